@@ -0,0 +1,153 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import org.waveprotocol.wave.examples.fedone.waveclient.common.ClientUtils;
+import org.waveprotocol.wave.model.document.operation.BufferedDocOp;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.operation.wave.WaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletDocumentOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+* Checks that {@link WaveConnector} hears back what it sends when the server answers with updates
+* of several deltas, against a {@link FakeWaveBackend} that holds back what is sent and then
+* delivers it as one update. Each case must be acknowledged well within the acknowledge timeout:
+*
+*   - a delta from another participant, then an append
+*   - an append, then a delta from another participant
+*   - an added participant, then an append
+*
+* It then loses the acknowledgement of an append, and checks the lines appended after it are
+* sent once the hold limit has passed rather than after the acknowledge timeout, and land after
+* the lines whose acknowledgement was lost.
+*
+* Exits with a non-zero status if any check failed.
+*
+* Run it with run-benchmark.sh acks
+*/
+public class AcknowledgementCheck {
+
+	private static final String USER = "check@check.example.com";
+	private static final ParticipantId OTHER = new ParticipantId("other@check.example.com");
+	private static final String MAIN_DOCUMENT_ID = "main";
+	//Long enough that a missed acknowledgement cannot pass for a late one
+	private static final long ACKNOWLEDGE_TIMEOUT_MILLIS = 20000;
+	private static final long PROMPT_MILLIS = 2000;
+	private static final long HOLD_LIMIT_MILLIS = 500;
+
+	private final FakeWaveBackend server = new FakeWaveBackend(USER);
+	private final WaveConnector waveConn = new WaveConnector();
+	private int failures = 0;
+
+
+
+	public static void main(String[] args) throws Exception {
+		boolean passed = new AcknowledgementCheck().run();
+		System.exit(passed ? 0 : 1);
+	}
+
+
+
+	private boolean run() throws Exception {
+		waveConn.setReadStateFile(null);
+		waveConn.setSnapshotCacheFile(null);
+		waveConn.setAcknowledgeTimeout(ACKNOWLEDGE_TIMEOUT_MILLIS);
+		waveConn.setAppendHoldLimit(HOLD_LIMIT_MILLIS);
+		waveConn.connect(server);
+		server.populate(1, 5);
+		WaveId waveId = new WaveId("check.example.com", "w+fake1");
+		waveConn.openWave(waveId);
+
+		server.holdUpdates();
+		sendFromOther(waveId, "From the other participant, first");
+		WaveFuture<Acknowledgement> append = waveConn.appendToWaveAsync("Appended second");
+		server.releaseUpdates();
+		check("other participant then append", append);
+
+		server.holdUpdates();
+		append = waveConn.appendToWaveAsync("Appended first");
+		sendFromOther(waveId, "From the other participant, second");
+		server.releaseUpdates();
+		check("append then other participant", append);
+
+		server.holdUpdates();
+		WaveFuture<Acknowledgement> added = waveConn.addParticipantAsync("added@check.example.com");
+		append = waveConn.appendToWaveAsync("Appended after adding a participant");
+		server.releaseUpdates();
+		check("added participant", added);
+		check("append after added participant", append);
+
+		server.loseNextEcho();
+		WaveFuture<Acknowledgement> lost = waveConn.appendToWaveAsync("Acknowledgement lost");
+		append = waveConn.appendToWaveAsync("Appended after the lost acknowledgement");
+		check("append after lost acknowledgement", append);
+		if(lost.isDone()) {
+			fail("lost acknowledgement: the append was acknowledged after all");
+		}
+		WaveLines lines = new WaveBody().lines(ClientUtils.getConversationRoot(server.getWave(waveId)));
+		if(lines.size() < 2 || !lines.getText(lines.size() - 2).equals("Acknowledgement lost")
+				|| !lines.getText(lines.size() - 1).equals("Appended after the lost acknowledgement")) {
+			fail("lost acknowledgement: the lines did not land in the order they were appended");
+		}
+
+		waveConn.shutdown();
+		server.shutdown();
+		System.out.println(failures == 0 ? "PASSED" : "FAILED: " + failures + " checks failed");
+		return failures == 0;
+	}
+
+
+
+	//Sends a line from another participant against the version the wave is at now
+	private void sendFromOther(WaveId waveId, String text) {
+		WaveletData root = ClientUtils.getConversationRoot(server.getWave(waveId));
+		BufferedDocOp document = root.getDocuments().get(MAIN_DOCUMENT_ID);
+		int size = (document == null) ? 0 : ClientUtils.findDocumentSize(document);
+		WaveletOperation op = new WaveletDocumentOperation(MAIN_DOCUMENT_ID,
+				WaveConnector.appendOperation(size, OTHER.getAddress(), Collections.singletonList(text)));
+		server.sendWaveletDelta(root, new WaveletDelta(OTHER, Collections.singletonList(op)));
+	}
+
+	private void check(String name, WaveFuture<Acknowledgement> future) {
+		long start = System.nanoTime();
+		try {
+			future.get(ACKNOWLEDGE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		} catch(Exception e) {
+			fail(name + ": not acknowledged: " + e);
+			return;
+		}
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		if(millis > PROMPT_MILLIS) {
+			fail(name + ": acknowledged after " + millis + " ms");
+		} else {
+			System.out.println(name + ": acknowledged after " + millis + " ms");
+		}
+	}
+
+	private void fail(String message) {
+		failures++;
+		System.out.println("FAILED " + message);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,187 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+* Times an operation the way a microbenchmark harness would: the operation is run for a warm up
+* period so the JIT has compiled it, then for a measurement period during which the latency of
+* each call and the bytes allocated by the measuring thread are recorded.
+*
+* Allocation is read from the com.sun.management extension of the thread MX bean and is reported
+* as unavailable on virtual machines without it.
+*/
+public class BenchmarkHarness {
+
+	/**
+	* The code being measured. Return something derived from the work done so the JIT cannot drop it
+	*/
+	public interface Operation {
+		Object run();
+	}
+
+	//Latencies beyond this many calls are not recorded, the calls are still counted
+	private static final int MAX_SAMPLES = 1 << 20;
+
+	private final long warmupNanos;
+	private final long measureNanos;
+	private final long[] samples = new long[MAX_SAMPLES];
+	private int sink;
+
+
+
+	/**
+	* Constructor requires how long to warm up and measure each operation for
+	*
+	* @param long containing the warm up time in milliseconds
+	* @param long containing the measurement time in milliseconds
+	*/
+	public BenchmarkHarness(long warmupMillis, long measureMillis) {
+		this.warmupNanos = warmupMillis * 1000000L;
+		this.measureNanos = measureMillis * 1000000L;
+	}
+
+
+
+	/**
+	* Warm up and measure an operation
+	*
+	* @param String naming the operation in the report
+	* @param Operation to measure
+	* @return Result of the measurement
+	*/
+	public Result measure(String name, Operation operation) {
+		long end = System.nanoTime() + warmupNanos;
+		while(System.nanoTime() < end) {
+			consume(operation.run());
+		}
+
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		end = start + measureNanos;
+		long calls = 0;
+		long now = start;
+		while(now < end) {
+			consume(operation.run());
+			long after = System.nanoTime();
+			if(calls < MAX_SAMPLES) {
+				samples[(int) calls] = after - now;
+			}
+			calls++;
+			now = after;
+		}
+		long elapsed = now - start;
+		long allocatedAfter = allocatedBytes();
+
+		int recorded = (int) Math.min(calls, MAX_SAMPLES);
+		Arrays.sort(samples, 0, recorded);
+		long allocated = (allocatedBefore < 0 || allocatedAfter < 0) ? -1 : allocatedAfter - allocatedBefore;
+		return new Result(name, calls, elapsed, percentile(recorded, 0.5), percentile(recorded, 0.99),
+				samples[recorded - 1], allocated);
+	}
+
+
+
+	/**
+	* Outcome of measuring one operation
+	*/
+	public static class Result {
+
+		private final String name;
+		private final long calls;
+		private final long elapsedNanos;
+		private final long p50;
+		private final long p99;
+		private final long max;
+		private final long allocatedBytes;
+
+		Result(String name, long calls, long elapsedNanos, long p50, long p99, long max, long allocatedBytes) {
+			this.name = name;
+			this.calls = calls;
+			this.elapsedNanos = elapsedNanos;
+			this.p50 = p50;
+			this.p99 = p99;
+			this.max = max;
+			this.allocatedBytes = allocatedBytes;
+		}
+
+		/**
+		* Returns the calls made per second
+		*/
+		public double getOperationsPerSecond() {
+			return calls * 1e9 / elapsedNanos;
+		}
+
+		/**
+		* Returns the bytes allocated per call, or -1 if allocation could not be measured
+		*/
+		public double getBytesPerOperation() {
+			return (allocatedBytes < 0) ? -1 : (double) allocatedBytes / calls;
+		}
+
+		/**
+		* Returns the bytes allocated per second, or -1 if allocation could not be measured
+		*/
+		public double getBytesPerSecond() {
+			return (allocatedBytes < 0) ? -1 : allocatedBytes * 1e9 / elapsedNanos;
+		}
+
+		@Override
+		public String toString() {
+			String allocation = (allocatedBytes < 0) ? "n/a"
+					: String.format("%.0f B/op %.1f MB/s", getBytesPerOperation(), getBytesPerSecond() / (1 << 20));
+			return String.format("%-48s %14.1f ops/s  p50 %10s  p99 %10s  max %10s  %s",
+					name, getOperationsPerSecond(), time(p50), time(p99), time(max), allocation);
+		}
+
+		private static String time(long nanos) {
+			if(nanos < 10000) {
+				return nanos + " ns";
+			} else if(nanos < 10000000) {
+				return (nanos / 1000) + " us";
+			}
+			return (nanos / 1000000) + " ms";
+		}
+	}
+
+
+
+	private long percentile(int recorded, double fraction) {
+		return samples[Math.min(recorded - 1, (int) (recorded * fraction))];
+	}
+
+	//Keeps results alive so the work that made them is not optimised away
+	private void consume(Object result) {
+		sink += System.identityHashCode(result);
+	}
+
+	//Bytes allocated by the calling thread so far, -1 if the JVM cannot tell
+	static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+			if(sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled()) {
+				return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,279 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import com.google.common.collect.Maps;
+
+import org.waveprotocol.wave.model.id.WaveId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* Hammers a {@link WaveConnector} from several threads at once while a {@link FakeWaveBackend}
+* streams deltas into it on the network thread, and checks that every thread always sees a
+* consistent state:
+*
+*   - the wave a thread opened is still the open wave until that thread changes it
+*   - a wave body only ever grows, and holds no missing lines
+*   - participant lists hold no missing addresses
+*   - nothing throws other than the exceptions the connector documents for the situation
+*
+* A small open wave cache is used so waves are closed and reopened all the time. Exits with a
+* non-zero status if any check failed.
+*
+* Run it with run-benchmark.sh stress [seconds] [threads of each kind]
+*/
+public class ConcurrencyStress {
+
+	private static final String USER = "stress@stress.example.com";
+	private static final String GUEST = "guest@stress.example.com";
+	private static final int WAVES = 200;
+	private static final int LINES = 20;
+	private static final double DELTAS_PER_SECOND = 2000;
+	private static final int MAX_REPORTED_FAILURES = 10;
+	private static final long PARTICIPANT_CHANGE_INTERVAL_MILLIS = 10;
+
+	private final WaveConnector waveConn = new WaveConnector();
+	private final List<WaveId> waveIds = new ArrayList<WaveId>();
+	private final AtomicLong operations = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final ConcurrentLinkedQueue<String> reported = new ConcurrentLinkedQueue<String>();
+	private volatile boolean running = true;
+
+
+
+	public static void main(String[] args) throws InterruptedException {
+		int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 10;
+		int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 2;
+		boolean passed = new ConcurrencyStress().run(seconds, threads);
+		System.exit(passed ? 0 : 1);
+	}
+
+
+
+	private boolean run(int seconds, int threads) throws InterruptedException {
+		FakeWaveBackend fake = new FakeWaveBackend(USER);
+		fake.setLatency(1, TimeUnit.MILLISECONDS);
+		waveConn.setReadStateFile(null);
+		waveConn.setSnapshotCacheFile(null);
+		waveConn.setOpenWaveCacheSize(4);
+		waveConn.connect(fake);
+		fake.populate(WAVES, LINES);
+		for(InboxElement element : waveConn.getInbox()) {
+			waveIds.add(element.getWaveId());
+		}
+		fake.startDeltaStream(DELTAS_PER_SECOND);
+
+		//Only the first thread opens and closes the open wave, the rest work on waves by id
+		List<Thread> workers = new ArrayList<Thread>();
+		workers.add(worker("open wave", 0, new Task() {
+			public void run(Random random) {
+				openWave(random);
+			}
+		}));
+		for(int i = 0; i < threads; i++) {
+			workers.add(worker("read body", i, new Task() {
+				private final Map<WaveId, Integer> seen = Maps.newHashMap();
+				public void run(Random random) {
+					readBody(random, seen);
+				}
+			}));
+			workers.add(worker("append", i, new Task() {
+				public void run(Random random) {
+					waveConn.appendLines(pick(random), Collections.singletonList("stress line " + random.nextInt()));
+				}
+			}));
+			workers.add(worker("inbox", i, new Task() {
+				public void run(Random random) {
+					readInbox(random);
+				}
+			}));
+			workers.add(worker("participants", i, new Task() {
+				public void run(Random random) {
+					changeParticipants(random);
+				}
+			}));
+		}
+
+		for(final Thread worker : workers) {
+			worker.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+				public void uncaughtException(Thread thread, Throwable e) {
+					fail(thread.getName() + " died", e);
+				}
+			});
+			worker.start();
+		}
+		long start = System.nanoTime();
+		Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+		running = false;
+		for(Thread worker : workers) {
+			worker.join();
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		fake.stopDeltaStream();
+		long deltas = fake.getDeltasDelivered();
+		waveConn.shutdown();
+
+		for(String failure : reported) {
+			System.out.println(failure);
+		}
+		System.out.println(String.format("%d threads, %.0f operations/s, %d deltas delivered, %d failures",
+				workers.size(), operations.get() / elapsed, deltas, failures.get()));
+		return failures.get() == 0;
+	}
+
+
+
+	//Open a wave, check it stays the open wave while reading it, and now and then close it
+	private void openWave(Random random) {
+		WaveId waveId = pick(random);
+		waveConn.openWave(waveId);
+		for(int i = 0; i < 5; i++) {
+			WaveId open = waveConn.getOpenWaveId();
+			if(!open.equals(waveId)) {
+				fail("Opened " + waveId + " but the open wave became " + open, null);
+			}
+			checkBody((i % 2 == 0) ? waveConn.getWaveBody() : waveConn.getWaveLines());
+			checkParticipants(waveConn.getWaveParticipants());
+		}
+		if(random.nextInt(4) == 0) {
+			waveConn.closeOpenWave();
+			if(waveConn.isWaveOpen()) {
+				fail("A wave is still open after closing it", null);
+			}
+		}
+	}
+
+	//Read the body of any wave, it must never be shorter than the last time this thread read it
+	private void readBody(Random random, Map<WaveId, Integer> seen) {
+		WaveId waveId = pick(random);
+		List<CWavelet> body = waveConn.getWaveBody(waveId);
+		checkBody(body);
+		Integer before = seen.put(waveId, body.size());
+		if(before != null && body.size() < before) {
+			fail("Body of " + waveId + " shrank from " + before + " to " + body.size() + " lines", null);
+		}
+		checkParticipants(waveConn.getWaveParticipants(waveId));
+	}
+
+	//Page through the inbox the way the user interface does and mark waves read in bulk
+	private void readInbox(Random random) {
+		long revision = waveConn.getInboxRevision();
+		List<InboxElement> inbox = waveConn.getInbox();
+		for(InboxElement element : inbox) {
+			if(element == null || element.getWaveId() == null || element.getDigest() == null) {
+				fail("Inbox holds an incomplete entry " + element, null);
+			}
+		}
+		if(waveConn.getInboxChanges(revision).getRevision() < revision) {
+			fail("Inbox revision went backwards from " + revision, null);
+		}
+		if(random.nextInt(10) == 0) {
+			waveConn.readAllWaves();
+		}
+	}
+
+	//Add and remove a guest on whatever wave is open, racing the thread that opens waves. Waits
+	//between changes so each is usually applied before the next one checks the participants
+	private void changeParticipants(Random random) {
+		try {
+			if(random.nextBoolean()) {
+				waveConn.addParticipant(GUEST);
+			} else {
+				waveConn.removeParticipant(GUEST);
+			}
+		} catch(NoWaveOpenException e) {
+			//The open wave was closed in between, as documented
+		} catch(ParticipantManagementException e) {
+			//The guest was already there or already gone, as documented
+		}
+		try {
+			Thread.sleep(PARTICIPANT_CHANGE_INTERVAL_MILLIS);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+
+	private void checkBody(List<CWavelet> body) {
+		for(CWavelet line : body) {
+			if(line == null || line.getAuthor() == null || line.getText() == null) {
+				fail("Body holds an incomplete line " + line, null);
+				return;
+			}
+		}
+	}
+
+	private void checkParticipants(String[] participants) {
+		for(String participant : participants) {
+			if(participant == null) {
+				fail("Participants hold a missing address", null);
+				return;
+			}
+		}
+	}
+
+	private WaveId pick(Random random) {
+		return waveIds.get(random.nextInt(waveIds.size()));
+	}
+
+	private void fail(String message, Throwable e) {
+		if(failures.incrementAndGet() <= MAX_REPORTED_FAILURES) {
+			StringBuilder report = new StringBuilder("FAILED: ").append(message);
+			if(e != null) {
+				report.append(": ").append(e);
+				for(StackTraceElement frame : e.getStackTrace()) {
+					report.append("\n    at ").append(frame);
+				}
+			}
+			reported.add(report.toString());
+		}
+	}
+
+
+
+	//One step of the work a stress thread repeats
+	private interface Task {
+		void run(Random random);
+	}
+
+	private Thread worker(final String kind, final int number, final Task task) {
+		return new Thread(new Runnable() {
+			public void run() {
+				Random random = new Random(kind.hashCode() * 31 + number);
+				while(running) {
+					try {
+						task.run(random);
+						operations.incrementAndGet();
+					} catch(RuntimeException e) {
+						fail(kind + " " + number, e);
+					}
+				}
+			}
+		}, "ConcurrencyStress " + kind + " " + number);
+	}
+}
\ No newline at end of file
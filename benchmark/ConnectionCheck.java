@@ -0,0 +1,180 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+
+import org.waveprotocol.wave.examples.fedone.rpc.ServerRpcProvider;
+import org.waveprotocol.wave.examples.fedone.waveclient.common.ClientUtils;
+import org.waveprotocol.wave.examples.fedone.waveclient.common.ClientWaveView;
+import org.waveprotocol.wave.examples.fedone.waveserver.WaveClientRpc.ProtocolOpenRequest;
+import org.waveprotocol.wave.examples.fedone.waveserver.WaveClientRpc.ProtocolSubmitRequest;
+import org.waveprotocol.wave.examples.fedone.waveserver.WaveClientRpc.ProtocolSubmitResponse;
+import org.waveprotocol.wave.examples.fedone.waveserver.WaveClientRpc.ProtocolWaveClientRpc;
+import org.waveprotocol.wave.examples.fedone.waveserver.WaveClientRpc.ProtocolWaveletUpdate;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.operation.wave.NoOp;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+* Checks when {@link ClientBackendAdapter} takes its connection to be lost, against a real RPC
+* server on a local port that answers submits as each case asks and never echoes a delta back:
+*
+*   - a submit that is answered keeps the connection
+*   - a submit the server rejects keeps the connection
+*   - shutting down another adapter in the same process keeps the connection
+*   - a submit that is never answered loses the connection once the submit timeout has passed
+*   - a stream of updates the server fails loses the connection
+*
+* Exits with a non-zero status if any check failed.
+*
+* Run it with run-benchmark.sh connection
+*/
+public class ConnectionCheck {
+
+	private static final String USER = "check@check.example.com";
+	private static final long SUBMIT_TIMEOUT_MILLIS = 500;
+	//Long enough for the submit timeout to pass and for the answer to any submit to arrive
+	private static final long SETTLE_MILLIS = 1500;
+
+	private enum Answer { APPLY, REJECT, IGNORE }
+
+	private final ServerRpcProvider server = new ServerRpcProvider(new InetSocketAddress("localhost", 0));
+	private volatile Answer answer = Answer.APPLY;
+	//The streams opened since the last case started
+	private final List<RpcController> streams = new CopyOnWriteArrayList<RpcController>();
+	private int failures = 0;
+
+	private final ProtocolWaveClientRpc.Interface service = new ProtocolWaveClientRpc.Interface() {
+		public void open(RpcController controller, ProtocolOpenRequest request,
+				RpcCallback<ProtocolWaveletUpdate> done) {
+			streams.add(controller);
+		}
+
+		public void submit(RpcController controller, ProtocolSubmitRequest request,
+				RpcCallback<ProtocolSubmitResponse> done) {
+			switch(answer) {
+			case APPLY:
+				done.run(ProtocolSubmitResponse.newBuilder()
+						.setOperationsApplied(request.getDelta().getOperationCount()).build());
+				break;
+			case REJECT:
+				done.run(ProtocolSubmitResponse.newBuilder()
+						.setOperationsApplied(0).setErrorMessage("Rejected by the check").build());
+				break;
+			case IGNORE:
+				break;
+			}
+		}
+	};
+
+
+
+	public static void main(String[] args) throws Exception {
+		boolean passed = new ConnectionCheck().run();
+		System.exit(passed ? 0 : 1);
+	}
+
+
+
+	private boolean run() throws Exception {
+		server.registerService(ProtocolWaveClientRpc.newReflectiveService(service));
+		server.startServer();
+
+		ClientBackendAdapter backend = connect();
+		answer = Answer.APPLY;
+		send(backend);
+		expect("answered submit", backend, true);
+
+		answer = Answer.REJECT;
+		send(backend);
+		expect("rejected submit", backend, true);
+
+		ClientBackendAdapter other = connect();
+		other.shutdown();
+		expect("other adapter shut down", other, false);
+		expect("this adapter after the other was shut down", backend, true);
+		backend.shutdown();
+
+		backend = connect();
+		answer = Answer.IGNORE;
+		send(backend);
+		expect("unanswered submit", backend, false);
+		backend.shutdown();
+
+		streams.clear();
+		backend = connect();
+		long waited = 0;
+		while(streams.isEmpty() && waited < SETTLE_MILLIS) {
+			Thread.sleep(10);
+			waited += 10;
+		}
+		if(streams.isEmpty()) {
+			fail("failed stream: the backend did not open a stream");
+		} else {
+			for(RpcController stream : streams) {
+				stream.setFailed("Failed by the check");
+			}
+			expect("failed stream", backend, false);
+		}
+		backend.shutdown();
+
+		server.stopServer();
+		System.out.println(failures == 0 ? "PASSED" : "FAILED: " + failures + " checks failed");
+		return failures == 0;
+	}
+
+	private ClientBackendAdapter connect() throws Exception {
+		InetSocketAddress address = (InetSocketAddress) server.getBoundAddress();
+		ClientBackendAdapter backend = new ClientBackendAdapter(USER, address.getHostName(), address.getPort());
+		backend.setSubmitTimeout(SUBMIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		return backend;
+	}
+
+	//Sends a delta to the conversation root of a new wave
+	private void send(ClientBackendAdapter backend) {
+		ClientWaveView view = backend.createNewWave();
+		WaveletId rootId = ClientUtils.getConversationRootId(view);
+		WaveletData root = view.getWavelet(rootId);
+		if(root == null) {
+			root = view.createWavelet(rootId);
+		}
+		backend.sendWaveletOperation(root, new NoOp());
+	}
+
+	private void expect(String name, ClientBackendAdapter backend, boolean connected) throws InterruptedException {
+		Thread.sleep(SETTLE_MILLIS);
+		if(backend.isConnected() != connected) {
+			fail(name + ": the connection was taken to be " + (connected ? "lost" : "still there"));
+		} else {
+			System.out.println(name + ": " + (connected ? "connected" : "lost"));
+		}
+	}
+
+	private void fail(String message) {
+		failures++;
+		System.out.println("FAILED " + message);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,365 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
+import org.waveprotocol.wave.examples.fedone.waveclient.common.ClientUtils;
+import org.waveprotocol.wave.model.document.operation.BufferedDocOp;
+import org.waveprotocol.wave.model.operation.wave.WaveletDocumentOperation;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+* Measures the work behind the hot paths of {@link WaveConnector} - getInbox(), getUnreadCount(),
+* getWaveBody(), getWaveLines(), visitWaveBody(), appendToWave(), getWaveParticipants() and search() - over
+* synthetic inboxes and waves of growing size, and how long the snapshot cache takes to open at
+* start up.
+* Run it with run-benchmark.sh. Pass "quick" for a short run over the smaller sizes only, or
+* the name of a benchmark to run just the ones containing it.
+*/
+public class ConnectorBenchmark {
+
+	private static final int[] INBOX_SIZES = {10, 1000, 10000, 100000};
+	private static final int[] LINE_COUNTS = {10, 1000, 100000, 1000000};
+	private static final int[] PARTICIPANT_COUNTS = {10, 1000};
+	private static final int INBOX_WINDOW = 20;
+	private static final int[] INDEXED_LINE_COUNTS = {10000, 1000000};
+	private static final int LINES_PER_INDEXED_WAVE = 1000;
+	private static final int SEARCH_LIMIT = 100;
+	private static final int REINDEX_ROUNDS = 3;
+
+	private final BenchmarkHarness harness;
+	private final String only;
+	private final int sizeLimit;
+
+
+
+	private ConnectorBenchmark(BenchmarkHarness harness, String only, int sizeLimit) {
+		this.harness = harness;
+		this.only = only;
+		this.sizeLimit = sizeLimit;
+	}
+
+
+
+	public static void main(String[] args) {
+		boolean quick = false;
+		String only = null;
+		for(String arg : args) {
+			if(arg.equals("quick")) {
+				quick = true;
+			} else {
+				only = arg;
+			}
+		}
+
+		ConnectorBenchmark benchmark = quick
+				? new ConnectorBenchmark(new BenchmarkHarness(200, 500), only, 10000)
+				: new ConnectorBenchmark(new BenchmarkHarness(2000, 5000), only, Integer.MAX_VALUE);
+		benchmark.inbox();
+		benchmark.waveBody();
+		benchmark.append();
+		benchmark.participants();
+		benchmark.search();
+		benchmark.snapshotCache();
+	}
+
+
+
+	//getInbox() copies the inbox, getInbox(offset, limit) a window of it, getUnreadCount() counts
+	//the unread waves, getInboxChanges() returns what changed since a revision
+	private void inbox() {
+		for(int size : INBOX_SIZES) {
+			if(size > sizeLimit) {
+				continue;
+			}
+			final InboxIndex inbox = SyntheticWaves.inbox(size);
+			run("getInbox waves=" + size, new BenchmarkHarness.Operation() {
+				public Object run() {
+					return inbox.getElements();
+				}
+			});
+
+			run("getInbox window=" + INBOX_WINDOW + " waves=" + size, new BenchmarkHarness.Operation() {
+				private int offset = 0;
+				public Object run() {
+					offset = (offset + INBOX_WINDOW) % inbox.size();
+					return inbox.getElements(offset, INBOX_WINDOW);
+				}
+			});
+
+			run("getUnreadCount waves=" + size, new BenchmarkHarness.Operation() {
+				public Object run() {
+					return inbox.getUnreadCount();
+				}
+			});
+
+			final WaveId changing = SyntheticWaves.waveId(size / 2);
+			run("getInboxChanges one change waves=" + size, new BenchmarkHarness.Operation() {
+				private long revision = inbox.getRevision();
+				private boolean read = false;
+				public Object run() {
+					read = !read;
+					inbox.setRead(changing, read);
+					InboxChanges changes = inbox.getChangesSince(revision);
+					revision = changes.getRevision();
+					return changes;
+				}
+			});
+		}
+	}
+
+
+
+	//getWaveBody() between changes, and after a change it cannot apply incrementally,
+	//getWaveLines() which hands out the lines without copying them, visitWaveBody() which hands
+	//them to a sink, and a LineTraversal of the documents themselves
+	private void waveBody() {
+		for(int lines : LINE_COUNTS) {
+			if(lines > sizeLimit) {
+				continue;
+			}
+			final WaveletData root = conversationRoot(lines, 2);
+			final WaveBody body = new WaveBody();
+			run("getWaveBody lines=" + lines, new BenchmarkHarness.Operation() {
+				public Object run() {
+					return body.snapshot(root);
+				}
+			});
+			run("getWaveBody rebuild lines=" + lines, new BenchmarkHarness.Operation() {
+				public Object run() {
+					body.invalidate();
+					return body.snapshot(root);
+				}
+			});
+			run("getWaveLines lines=" + lines, new BenchmarkHarness.Operation() {
+				public Object run() {
+					return body.lines(root);
+				}
+			});
+			final CountingSink sink = new CountingSink();
+			run("visitWaveBody lines=" + lines, new BenchmarkHarness.Operation() {
+				public Object run() {
+					body.lines(root).visit(sink);
+					return sink;
+				}
+			});
+			final LineTraversal traversal = new LineTraversal(true);
+			run("traverseWaveBody lines=" + lines, new BenchmarkHarness.Operation() {
+				public Object run() {
+					traversal.traverse(root, sink);
+					return sink;
+				}
+			});
+		}
+	}
+
+
+
+	//appendToWave() up to handing the operation to the backend, and the echo applied to the body
+	private void append() {
+		for(int lines : LINE_COUNTS) {
+			if(lines > sizeLimit) {
+				continue;
+			}
+			final WaveletData root = conversationRoot(lines, 2);
+			final BufferedDocOp document = root.getDocuments().get(SyntheticWaves.MAIN_DOCUMENT_ID);
+			final DocumentSizes sizes = new DocumentSizes();
+			final List<String> line = Collections.singletonList("One more line appended to the conversation");
+			run("appendToWave lines=" + lines, new BenchmarkHarness.Operation() {
+				public Object run() {
+					BufferedDocOp op = WaveConnector.appendOperation(
+							sizes.getSize(SyntheticWaves.MAIN_DOCUMENT_ID, document), SyntheticWaves.AUTHOR, line);
+					//As if the server had echoed it straight back
+					sizes.apply(new WaveletDocumentOperation(SyntheticWaves.MAIN_DOCUMENT_ID, op));
+					return op;
+				}
+			});
+
+			final WaveBody body = new WaveBody();
+			body.snapshot(root);
+			run("appendToWave echo applied lines=" + lines, new BenchmarkHarness.Operation() {
+				private int size = sizes.getSize(SyntheticWaves.MAIN_DOCUMENT_ID, document);
+				public Object run() {
+					WaveletDocumentOperation op = new WaveletDocumentOperation(SyntheticWaves.MAIN_DOCUMENT_ID,
+							WaveConnector.appendOperation(size, SyntheticWaves.AUTHOR, line));
+					size += WaveConnector.appendedSize(line);
+					body.apply(op);
+					return op;
+				}
+			});
+		}
+	}
+
+
+
+	//getWaveParticipants() copies the participant addresses of the conversation root, the checks
+	//of addParticipants() look one up in the cached set
+	private void participants() {
+		for(int participants : PARTICIPANT_COUNTS) {
+			final WaveletData root = conversationRoot(1, participants);
+			run("getWaveParticipants participants=" + participants, new BenchmarkHarness.Operation() {
+				public Object run() {
+					return WaveConnector.participantAddresses(root);
+				}
+			});
+
+			final OpenWave wave = new OpenWave(SyntheticWaves.wave(0, 1, participants));
+			final ParticipantId absent = new ParticipantId("absent@" + SyntheticWaves.DOMAIN);
+			run("hasParticipant participants=" + participants, new BenchmarkHarness.Operation() {
+				public Object run() {
+					return wave.hasParticipant(absent);
+				}
+			});
+		}
+	}
+
+
+
+	//search() over an index of many waves built in parallel, for a common word, a rare one,
+	//a prefix and an author
+	private void search() {
+		if(only != null && !"search".contains(only) && !only.startsWith("search")) {
+			return;
+		}
+		for(int lines : INDEXED_LINE_COUNTS) {
+			if(lines > sizeLimit) {
+				continue;
+			}
+			int waves = lines / LINES_PER_INDEXED_WAVE;
+			List<WaveletData> roots = new ArrayList<WaveletData>(waves);
+			for(int i = 0; i < waves; i++) {
+				roots.add(conversationRoot(i, LINES_PER_INDEXED_WAVE, 2));
+			}
+
+			final SearchIndex index = new SearchIndex();
+			ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+			long start = System.nanoTime();
+			try {
+				index.build(roots, pool, Runtime.getRuntime().availableProcessors() * 4).get();
+			} catch(Exception e) {
+				throw new IllegalStateException("Building the index failed", e);
+			} finally {
+				pool.shutdown();
+			}
+			System.out.println(String.format("search index built in %d ms: %s",
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), index));
+
+			for(final String query : new String[] {"conversation", String.valueOf(LINES_PER_INDEXED_WAVE / 2), "synth*", "by:author*"}) {
+				run("search " + query + " lines=" + lines, new BenchmarkHarness.Operation() {
+					public Object run() {
+						return index.search(query, SEARCH_LIMIT);
+					}
+				});
+			}
+
+			//Index every wave again a few times, as edits other than appends do, so the lines
+			//of the old numbers pile up until a compaction drops them
+			start = System.nanoTime();
+			for(int round = 0; round < REINDEX_ROUNDS; round++) {
+				for(WaveletData root : roots) {
+					index.index(root);
+				}
+			}
+			System.out.println(String.format("every wave indexed %d more times in %d ms: %s", REINDEX_ROUNDS,
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), index));
+			run("search conversation after reindex lines=" + lines, new BenchmarkHarness.Operation() {
+				public Object run() {
+					return index.search("conversation", SEARCH_LIMIT);
+				}
+			});
+		}
+	}
+
+
+
+	//Opening the snapshot cache at start up, which replays the whole log, for an inbox and a wave
+	//of the same size
+	private void snapshotCache() {
+		if(only != null && !"snapshot".contains(only) && !only.startsWith("snapshot")) {
+			return;
+		}
+		for(int size : INBOX_SIZES) {
+			if(size > sizeLimit) {
+				continue;
+			}
+			try {
+				File file = File.createTempFile("bench", ".snapshot");
+				file.deleteOnExit();
+				SnapshotCache cache = new SnapshotCache(file, new AddressPool());
+				for(InboxElement element : SyntheticWaves.inbox(size).getElements()) {
+					cache.putInboxEntry(element);
+				}
+				WaveletData root = conversationRoot(size, 2);
+				cache.putLines(SyntheticWaves.waveId(0), new HashedVersion(size, new byte[20]), new WaveBody().lines(root));
+				cache.close();
+
+				long start = System.nanoTime();
+				cache = new SnapshotCache(file, new AddressPool());
+				long elapsed = System.nanoTime() - start;
+				System.out.println(String.format("snapshot cache of %d waves and %d lines (%d KB) opened in %.1f ms",
+						cache.size(), cache.getLines(SyntheticWaves.waveId(0)).size(), file.length() / 1024, elapsed / 1e6));
+				cache.close();
+				file.delete();
+			} catch(IOException e) {
+				throw new IllegalStateException("Could not write the snapshot cache", e);
+			}
+		}
+	}
+
+
+
+	private WaveletData conversationRoot(int lines, int participants) {
+		return conversationRoot(0, lines, participants);
+	}
+
+	private WaveletData conversationRoot(int n, int lines, int participants) {
+		return ClientUtils.getConversationRoot(SyntheticWaves.wave(n, lines, participants));
+	}
+
+
+	private void run(String name, BenchmarkHarness.Operation operation) {
+		if(only == null || name.contains(only)) {
+			System.out.println(harness.measure(name, operation));
+		}
+	}
+
+
+
+	/*
+	* Renders nothing, only adds up the length of the lines so they are not optimised away
+	*/
+	private static class CountingSink implements LineSink {
+		private long characters = 0;
+
+		public void line(String author, String text) {
+			characters += author.length() + text.length();
+		}
+	}
+}
\ No newline at end of file
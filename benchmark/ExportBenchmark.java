@@ -0,0 +1,189 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import org.waveprotocol.wave.model.id.WaveId;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+* Measures exporting the inbox with {@link WaveExporter} against a {@link FakeWaveBackend} filled
+* with waves, first on the calling thread to count what it allocates and then in parallel through
+* {@link WaveConnector}. Checks that:
+*
+*   - every wave and every line was written, each as one whole record
+*   - text needing escapes, and characters outside ASCII, come out as JSON expects
+*   - what is allocated does not grow with the number of lines
+*
+* Exits with a non-zero status if any check failed.
+*
+* Run it with run-benchmark.sh export [waves] [lines per wave]
+*/
+public class ExportBenchmark {
+
+	private static final String USER = "bench@bench.example.com";
+	private static final String DOMAIN = "bench.example.com";
+	private static final long TIMEOUT_SECONDS = 60;
+	//Anything more means the lines are being copied out of the documents
+	private static final double MAX_BYTES_PER_RECORD = 64;
+	private static final String AWKWARD = "Say \"hi\" \\ to\tcaf\u00e9 \u2713 \ud83d\ude00 \u0001";
+	private static final String AWKWARD_JSON = "\"text\":\"Say \\\"hi\\\" \\\\ to\\tcaf\u00e9 \u2713 \ud83d\ude00 \\u0001\"}";
+	private static final Executor DIRECT = new Executor() {
+		public void execute(Runnable task) {
+			task.run();
+		}
+	};
+
+	private int failures = 0;
+
+
+
+	public static void main(String[] args) throws Exception {
+		int waves = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+		int lines = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+		boolean passed = new ExportBenchmark().run(waves, lines);
+		System.exit(passed ? 0 : 1);
+	}
+
+
+
+	private boolean run(int waves, int lines) throws Exception {
+		FakeWaveBackend fake = new FakeWaveBackend(USER);
+		WaveConnector waveConn = new WaveConnector();
+		waveConn.setReadStateFile(null);
+		waveConn.setSnapshotCacheFile(null);
+		waveConn.connect(fake);
+		long start = System.nanoTime();
+		fake.populate(waves, lines);
+		long deadline = start + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+		//One delta sequence for the index wavelet of each wave and one for the wave itself
+		while(waveConn.getMetrics().getDeltaSequences() < 2L * waves && System.nanoTime() < deadline) {
+			Thread.sleep(1);
+		}
+		waveConn.appendLinesAsync(new WaveId(DOMAIN, "w+fake1"), Arrays.asList(AWKWARD)).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		System.out.println(String.format("Populated %d waves of %d lines in %d ms", waves, lines,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+		long expectedLines = (long) waves * lines + 1;
+
+		File file = File.createTempFile("bench", ".ndjson");
+		file.deleteOnExit();
+		try {
+			List<InboxElement> inbox = waveConn.getInbox();
+			long allocatedBefore = BenchmarkHarness.allocatedBytes();
+			ExportStats single = exportOnThisThread(new WaveExporter(fake), inbox, file);
+			long allocated = BenchmarkHarness.allocatedBytes() - allocatedBefore;
+			System.out.println("One thread:  " + single);
+			check(single, file, waves, expectedLines);
+			if(allocatedBefore >= 0) {
+				double perRecord = (double) allocated / (single.getWaves() + single.getLines());
+				System.out.println(String.format("Allocated %d KB, %.1f bytes per record", allocated / 1024, perRecord));
+				if(perRecord > MAX_BYTES_PER_RECORD) {
+					fail(String.format("%.1f bytes allocated per record, at most %.0f expected", perRecord, MAX_BYTES_PER_RECORD));
+				}
+			}
+
+			ExportStats parallel = exportInParallel(waveConn, file);
+			System.out.println("In parallel: " + parallel);
+			check(parallel, file, waves, expectedLines);
+		} finally {
+			waveConn.shutdown();
+			file.delete();
+		}
+		System.out.println(failures == 0 ? "PASSED" : "FAILED: " + failures + " checks failed");
+		return failures == 0;
+	}
+
+
+
+	private static ExportStats exportOnThisThread(WaveExporter exporter, List<InboxElement> inbox, File file) throws Exception {
+		FileOutputStream stream = new FileOutputStream(file);
+		try {
+			return exporter.export(inbox, stream.getChannel(), null, DIRECT, 1).get();
+		} finally {
+			stream.close();
+		}
+	}
+
+	private static ExportStats exportInParallel(WaveConnector waveConn, File file) throws Exception {
+		final long[] reported = new long[1];
+		FileOutputStream stream = new FileOutputStream(file);
+		try {
+			return waveConn.exportInbox(stream.getChannel(), new WaveExporter.Progress() {
+				public void exported(int waves, int totalWaves, long lines, long bytes) {
+					if(waves * 4L / totalWaves > reported[0]) {
+						reported[0] = waves * 4L / totalWaves;
+						System.out.println(String.format("  %d of %d waves, %d lines, %d KB", waves, totalWaves, lines, bytes / 1024));
+					}
+				}
+			}).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		} finally {
+			stream.close();
+		}
+	}
+
+	//Read the file back and check it holds a whole record for every wave and line
+	private void check(ExportStats stats, File file, int waves, long lines) throws IOException {
+		if(stats.getWaves() != waves || stats.getLines() != lines) {
+			fail("reported " + stats.getWaves() + " waves and " + stats.getLines() + " lines, expected " + waves + " and " + lines);
+		}
+		if(stats.getBytes() != file.length()) {
+			fail("reported " + stats.getBytes() + " bytes, the file holds " + file.length());
+		}
+		long waveRecords = 0;
+		long lineRecords = 0;
+		boolean awkwardFound = false;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String record;
+			while((record = reader.readLine()) != null) {
+				if(record.startsWith("{\"type\":\"wave\",") && record.endsWith("}")) {
+					waveRecords++;
+				} else if(record.startsWith("{\"type\":\"line\",") && record.endsWith("\"}")) {
+					lineRecords++;
+					awkwardFound |= record.endsWith(AWKWARD_JSON);
+				} else {
+					fail("malformed record " + record);
+					return;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		if(waveRecords != waves || lineRecords != lines) {
+			fail("the file holds " + waveRecords + " waves and " + lineRecords + " lines, expected " + waves + " and " + lines);
+		}
+		if(!awkwardFound) {
+			fail("the line with characters to escape was not written as expected");
+		}
+	}
+
+	private void fail(String message) {
+		failures++;
+		System.out.println("FAILED " + message);
+	}
+}
\ No newline at end of file
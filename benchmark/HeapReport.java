@@ -0,0 +1,115 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import org.waveprotocol.wave.examples.fedone.waveclient.common.ClientUtils;
+import org.waveprotocol.wave.model.operation.wave.WaveletDocumentOperation;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Collections;
+
+/**
+* Reports the heap retained by the body of a wave, as kept by {@link WaveBody}, against the same
+* lines kept the way they used to be, one {@link CWavelet} per line holding the author string of
+* the operation it arrived in. Each line is applied as its own operation with its own copy of the
+* author address, as when the lines are deserialized from the server, written by a few authors.
+* The heap is measured after collecting garbage, so run it with nothing else in the JVM.
+*
+* Run it with run-benchmark.sh heap [lines] [authors]
+*/
+public class HeapReport {
+
+	private static final int GC_ROUNDS = 5;
+	private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+	//What is being measured, held so it cannot be collected before the heap is read
+	private static Object measured;
+
+
+
+	public static void main(String[] args) {
+		int lines = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+		int authors = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+
+		long base = retained();
+		String[] texts = new String[lines];
+		for(int i = 0; i < lines; i++) {
+			texts[i] = text(i);
+		}
+		measured = texts;
+		long textBytes = retained() - base;
+
+		base = retained();
+		CWavelet[] old = new CWavelet[lines];
+		for(int i = 0; i < lines; i++) {
+			old[i] = new CWavelet(author(i, authors), texts[i]);
+		}
+		measured = old;
+		long oldBytes = retained() - base;
+		old = null;
+		measured = texts;
+
+		base = retained();
+		WaveBody body = new WaveBody(new AddressPool());
+		WaveletData root = ClientUtils.getConversationRoot(SyntheticWaves.wave(0, 0, 1));
+		body.snapshot(root);
+		int size = 0;
+		for(int i = 0; i < lines; i++) {
+			body.apply(new WaveletDocumentOperation(SyntheticWaves.MAIN_DOCUMENT_ID,
+					WaveConnector.appendOperation(size, author(i, authors), Collections.singletonList(texts[i]))));
+			size += 2 + texts[i].length();
+		}
+		measured = body;
+		long newBytes = retained() - base;
+
+		if(body.lines(root).size() != lines) {
+			throw new IllegalStateException("Body holds " + body.lines(root).size() + " lines, expected " + lines);
+		}
+		System.out.println(String.format("%d lines by %d authors, text alone %s", lines, authors, perLine(textBytes, lines)));
+		System.out.println(String.format("CWavelet per line:  %s besides the text", perLine(oldBytes, lines)));
+		System.out.println(String.format("WaveBody columns:   %s besides the text", perLine(newBytes, lines)));
+		System.out.println(String.format("Retained heap including the text %.1fx smaller, excluding it %.1fx smaller",
+				(double) (oldBytes + textBytes) / (newBytes + textBytes), (double) oldBytes / Math.max(1, newBytes)));
+	}
+
+
+
+	//Heap in use once garbage is collected
+	private static long retained() {
+		for(int i = 0; i < GC_ROUNDS; i++) {
+			System.gc();
+		}
+		return MEMORY.getHeapMemoryUsage().getUsed();
+	}
+
+	//A fresh copy of an author address, as deserializing an operation makes
+	private static String author(int line, int authors) {
+		return new String("author" + (line % authors) + "@" + SyntheticWaves.DOMAIN);
+	}
+
+	private static String text(int line) {
+		return "Line " + line + " of a synthetic conversation, about as long as a chat message";
+	}
+
+	private static String perLine(long bytes, int lines) {
+		return String.format("%.1f MB, %.1f bytes a line", bytes / 1e6, (double) bytes / lines);
+	}
+}
\ No newline at end of file
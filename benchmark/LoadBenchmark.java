@@ -0,0 +1,149 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import org.waveprotocol.wave.model.id.WaveId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+* Load tests the refresh and rendering paths of the client against a {@link FakeWaveBackend}.
+* The fake backend is filled with waves and sends messages to random waves at a set rate while
+* the client has a wave open and appends a line to it every few milliseconds. A listener plays
+* the part of the user interface, updating an {@link InboxListModel} and reading the open wave.
+* Each append is timed both until the server acknowledges it and until the user interface shows it.
+*
+* Run it with run-benchmark.sh load [waves] [lines per wave] [deltas per second] [latency ms] [seconds]
+*/
+public class LoadBenchmark {
+
+	private static final String USER = "bench@bench.example.com";
+	private static final long APPEND_INTERVAL_MILLIS = 20;
+	private static final String MARKER = "sent at ";
+	private static final Executor DIRECT = new Executor() {
+		public void execute(Runnable task) {
+			task.run();
+		}
+	};
+
+	private final List<Long> refreshNanos = Collections.synchronizedList(new ArrayList<Long>());
+	private final List<Long> roundTripNanos = Collections.synchronizedList(new ArrayList<Long>());
+	private final List<Long> acknowledgedNanos = Collections.synchronizedList(new ArrayList<Long>());
+
+
+
+	public static void main(String[] args) throws InterruptedException {
+		int waves = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+		int lines = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+		double rate = (args.length > 2) ? Double.parseDouble(args[2]) : 1000;
+		long latency = (args.length > 3) ? Long.parseLong(args[3]) : 50;
+		int seconds = (args.length > 4) ? Integer.parseInt(args[4]) : 10;
+		new LoadBenchmark().run(waves, lines, rate, latency, seconds);
+	}
+
+
+
+	private void run(int waves, int lines, double rate, long latency, int seconds) throws InterruptedException {
+		FakeWaveBackend fake = new FakeWaveBackend(USER);
+		fake.setLatency(latency, TimeUnit.MILLISECONDS);
+		final WaveConnector waveConn = new WaveConnector();
+		waveConn.setReadStateFile(null);
+		waveConn.setSnapshotCacheFile(null);
+		waveConn.connect(fake);
+
+		long start = System.nanoTime();
+		fake.populate(waves, lines);
+		System.out.println(String.format("Populated %d waves of %d lines in %d ms", waves, lines,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+
+		final InboxListModel inboxModel = new InboxListModel();
+		waveConn.addListener(new WaveConnectorAdapter() {
+			@Override
+			public void refreshed(Set<WaveId> changedWaves) {
+				long began = System.nanoTime();
+				inboxModel.update(waveConn);
+				//Render the rows a list would show
+				for(int i = 0; i < Math.min(30, inboxModel.getSize()); i++) {
+					inboxModel.getElementAt(i);
+				}
+				if(waveConn.isWaveOpen() && changedWaves.contains(waveConn.getOpenWaveId())) {
+					List<CWavelet> body = waveConn.getWaveBody();
+					String last = body.isEmpty() ? "" : body.get(body.size() - 1).getText();
+					if(last.startsWith(MARKER)) {
+						roundTripNanos.add(System.nanoTime() - Long.parseLong(last.substring(MARKER.length())));
+					}
+				}
+				refreshNanos.add(System.nanoTime() - began);
+			}
+		});
+
+		waveConn.openWave(0);
+		long deltasBefore = fake.getDeltasDelivered();
+		fake.startDeltaStream(rate);
+		start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(seconds);
+		int appended = 0;
+		WaveFuture.Callback<Acknowledgement> acknowledged = new WaveFuture.Callback<Acknowledgement>() {
+			public void onSuccess(Acknowledgement ack) {
+				acknowledgedNanos.add(ack.getLatencyNanos());
+			}
+			public void onFailure(Throwable cause) {
+			}
+		};
+		while(System.nanoTime() < end) {
+			waveConn.appendToWaveAsync(MARKER + System.nanoTime()).addCallback(acknowledged, DIRECT);
+			appended++;
+			Thread.sleep(APPEND_INTERVAL_MILLIS);
+		}
+		fake.stopDeltaStream();
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		long deltas = fake.getDeltasDelivered() - deltasBefore;
+		waveConn.shutdown();
+
+		System.out.println(String.format("%.0f deltas/s delivered including the index wave, %d lines appended, %.1f refreshes/s",
+				deltas / elapsed, appended, refreshNanos.size() / elapsed));
+		System.out.println("Refresh handling:   " + summary(refreshNanos));
+		System.out.println("Append acknowledged: " + summary(acknowledgedNanos));
+		System.out.println("Append round trip:  " + summary(roundTripNanos));
+		System.out.println("Appends: " + waveConn.getAppendStats());
+		System.out.println("Metrics: " + waveConn.getMetrics());
+	}
+
+
+
+	private static String summary(List<Long> samples) {
+		List<Long> sorted;
+		synchronized(samples) {
+			sorted = new ArrayList<Long>(samples);
+		}
+		if(sorted.isEmpty()) {
+			return "no samples";
+		}
+		Collections.sort(sorted);
+		return String.format("n=%d p50 %.2f ms  p99 %.2f ms  max %.2f ms", sorted.size(),
+				sorted.get(sorted.size() / 2) / 1e6,
+				sorted.get(Math.min(sorted.size() - 1, (int) (sorted.size() * 0.99))) / 1e6,
+				sorted.get(sorted.size() - 1) / 1e6);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,187 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import org.waveprotocol.wave.examples.fedone.waveclient.common.ClientUtils;
+import org.waveprotocol.wave.model.id.WaveId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+* Measures how long {@link WaveConnector} takes to get going again after losing its connection,
+* against a {@link FakeWaveBackend} filled with waves. Each round drops the connection, waits until
+* every wave has been sent again by the new connection and checks that:
+*
+*   - the open wave, unchanged while the connection was down, kept its body without rebuilding it
+*   - the body matches what the new connection holds
+*   - only the waves written to while the connection was down were reloaded
+*   - lines can be appended again
+*
+* For comparison it then times connecting a new client from nothing. Exits with a non-zero status
+* if any check failed.
+*
+* Run it with run-benchmark.sh reconnect [waves] [lines per wave] [waves changed while down] [rounds]
+*/
+public class ReconnectBenchmark {
+
+	private static final String USER = "bench@bench.example.com";
+	private static final String DOMAIN = "bench.example.com";
+	private static final long TIMEOUT_SECONDS = 60;
+
+	private final List<Long> caughtUpNanos = new ArrayList<Long>();
+	private int failures = 0;
+
+
+
+	public static void main(String[] args) throws Exception {
+		int waves = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+		int lines = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+		int changed = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+		int rounds = (args.length > 3) ? Integer.parseInt(args[3]) : 5;
+		boolean passed = new ReconnectBenchmark().run(waves, lines, changed, rounds);
+		System.exit(passed ? 0 : 1);
+	}
+
+
+
+	private boolean run(int waves, int lines, final int changed, int rounds) throws Exception {
+		final AtomicReference<FakeWaveBackend> server = new AtomicReference<FakeWaveBackend>(new FakeWaveBackend(USER));
+		WaveConnector waveConn = new WaveConnector();
+		waveConn.setReadStateFile(null);
+		waveConn.setSnapshotCacheFile(null);
+		waveConn.setReconnectBackoff(10, 1000);
+		waveConn.connect(server.get(), new ConnectionSupervisor.Connector() {
+			public WaveBackend connect() {
+				FakeWaveBackend next = server.get().reconnect(changed);
+				server.set(next);
+				return next;
+			}
+		});
+		server.get().populate(waves, lines);
+
+		//The waves written to while the connection is down are the first ones, open the last
+		WaveId open = new WaveId(DOMAIN, "w+fake" + waves);
+		waveConn.openWave(open);
+		ConnectorMetrics metrics = waveConn.getMetrics();
+		for(int round = 0; round < rounds; round++) {
+			WaveLines before = waveConn.getWaveLines();
+			long resumedBefore = metrics.getResumedWaves();
+			long reloadedBefore = metrics.getReloadedWaves();
+			long start = System.nanoTime();
+			server.get().disconnect();
+			if(!awaitCaughtUp(metrics, resumedBefore + reloadedBefore + waves)) {
+				fail("round " + round + ": waves not sent again within " + TIMEOUT_SECONDS + " s");
+				break;
+			}
+			caughtUpNanos.add(System.nanoTime() - start);
+
+			WaveLines after = waveConn.getWaveLines();
+			if(after != before) {
+				fail("round " + round + ": the body of the open wave was rebuilt");
+			}
+			WaveLines expected = new WaveBody().lines(ClientUtils.getConversationRoot(server.get().getWave(open)));
+			if(!sameLines(after, expected)) {
+				fail("round " + round + ": the open wave holds " + after.size() + " lines, the server " + expected.size());
+			}
+			long reloaded = metrics.getReloadedWaves() - reloadedBefore;
+			if(reloaded != Math.min(changed, waves)) {
+				fail("round " + round + ": " + reloaded + " waves reloaded, " + changed + " were changed");
+			}
+			try {
+				waveConn.appendToWaveAsync("Appended after reconnect " + round).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			} catch(Exception e) {
+				fail("round " + round + ": append after reconnecting failed: " + e);
+			}
+		}
+		long fullLoadMillis = fullLoad(server.get().reconnect(0), waves);
+		waveConn.shutdown();
+
+		System.out.println(String.format("%d waves of %d lines, %d changed while down, %d rounds", waves, lines, changed, rounds));
+		System.out.println("New connection made:  " + metrics.getLatency(ConnectorMetrics.RECONNECT));
+		System.out.println("All waves caught up:  " + summary(caughtUpNanos));
+		System.out.println(String.format("Waves resumed %d, reloaded %d", metrics.getResumedWaves(), metrics.getReloadedWaves()));
+		System.out.println("Connecting from nothing: " + fullLoadMillis + " ms");
+		System.out.println(failures == 0 ? "PASSED" : "FAILED: " + failures + " checks failed");
+		return failures == 0;
+	}
+
+
+
+	//Time for a new client to receive every wave and index them for search
+	private long fullLoad(FakeWaveBackend backend, int waves) throws Exception {
+		WaveConnector fresh = new WaveConnector();
+		fresh.setReadStateFile(null);
+		fresh.setSnapshotCacheFile(null);
+		long start = System.nanoTime();
+		fresh.connect(backend);
+		long deadline = start + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+		//One delta sequence for the index wavelet of each wave and one for the wave itself
+		while(fresh.getMetrics().getDeltaSequences() < 2L * waves && System.nanoTime() < deadline) {
+			Thread.sleep(1);
+		}
+		for(InboxElement element : fresh.getInbox()) {
+			fresh.getSearchIndex().indexIfAbsent(ClientUtils.getConversationRoot(backend.getWave(element.getWaveId())));
+		}
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		fresh.shutdown();
+		return elapsed;
+	}
+
+	private static boolean awaitCaughtUp(ConnectorMetrics metrics, long waves) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+		while(metrics.getResumedWaves() + metrics.getReloadedWaves() < waves) {
+			if(System.nanoTime() > deadline) {
+				return false;
+			}
+			Thread.sleep(1);
+		}
+		return true;
+	}
+
+	private static boolean sameLines(WaveLines lines, WaveLines expected) {
+		if(lines.size() != expected.size()) {
+			return false;
+		}
+		for(int i = 0; i < lines.size(); i++) {
+			if(!lines.getAuthor(i).equals(expected.getAuthor(i)) || !lines.getText(i).equals(expected.getText(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void fail(String message) {
+		failures++;
+		System.out.println("FAILED " + message);
+	}
+
+	private static String summary(List<Long> samples) {
+		if(samples.isEmpty()) {
+			return "no samples";
+		}
+		List<Long> sorted = new ArrayList<Long>(samples);
+		Collections.sort(sorted);
+		return String.format("n=%d p50 %.1f ms  max %.1f ms", sorted.size(),
+				sorted.get(sorted.size() / 2) / 1e6, sorted.get(sorted.size() - 1) / 1e6);
+	}
+}
\ No newline at end of file
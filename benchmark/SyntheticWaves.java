@@ -0,0 +1,115 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import org.waveprotocol.wave.examples.fedone.model.util.HashedVersionZeroFactoryImpl;
+import org.waveprotocol.wave.examples.fedone.waveclient.common.ClientUtils;
+import org.waveprotocol.wave.examples.fedone.waveclient.common.ClientWaveView;
+import org.waveprotocol.wave.model.operation.OperationException;
+import org.waveprotocol.wave.model.operation.wave.AddParticipant;
+import org.waveprotocol.wave.model.operation.wave.WaveletDocumentOperation;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+* Builds waves and inboxes of a given size for the benchmarks. The waves are real
+* {@link ClientWaveView} objects, the same the backend hands to {@link WaveConnector}, filled in
+* by applying operations so no server is needed.
+*/
+public class SyntheticWaves {
+
+	static final String DOMAIN = "bench.example.com";
+	static final String MAIN_DOCUMENT_ID = "main";
+	static final String AUTHOR = "author@" + DOMAIN;
+
+
+
+	/**
+	* Returns the id of the nth synthetic wave
+	*
+	* @param int containing the number of the wave
+	* @return {@link WaveId} of the wave
+	*/
+	public static WaveId waveId(int n) {
+		return new WaveId(DOMAIN, "w+bench" + n);
+	}
+
+
+
+	/**
+	* Build a wave whose conversation root holds a number of lines and participants
+	*
+	* @param int containing the number of the wave
+	* @param int containing the number of lines in the main document
+	* @param int containing the number of participants
+	* @return the {@link ClientWaveView}
+	*/
+	public static ClientWaveView wave(int n, int lines, int participants) {
+		ClientWaveView wave = new ClientWaveView(new HashedVersionZeroFactoryImpl(), waveId(n));
+		WaveletData root = wave.createWavelet(ClientUtils.getConversationRootId(wave));
+		try {
+			for(int i = 0; i < participants; i++) {
+				new AddParticipant(new ParticipantId("user" + i + "@" + DOMAIN)).apply(root);
+			}
+			if(lines > 0) {
+				new WaveletDocumentOperation(MAIN_DOCUMENT_ID,
+						WaveConnector.appendOperation(0, AUTHOR, lines(lines))).apply(root);
+			}
+		} catch(OperationException e) {
+			throw new IllegalStateException("Could not build synthetic wave", e);
+		}
+		return wave;
+	}
+
+
+
+	/**
+	* Build an inbox of unread waves with short digests
+	*
+	* @param int containing the number of waves
+	* @return the populated {@link InboxIndex}
+	*/
+	public static InboxIndex inbox(int waves) {
+		InboxIndex inbox = new InboxIndex();
+		for(int i = 0; i < waves; i++) {
+			inbox.put(waveId(i), "Digest of synthetic wave number " + i, false);
+		}
+		return inbox;
+	}
+
+
+
+	/**
+	* Returns lines of text of a typical message length
+	*
+	* @param int containing the number of lines
+	* @return List of lines
+	*/
+	public static List<String> lines(int count) {
+		List<String> lines = new ArrayList<String>(count);
+		for(int i = 0; i < count; i++) {
+			lines.add("Line " + i + " of a synthetic conversation, about as long as a chat message");
+		}
+		return lines;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,77 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
+import org.waveprotocol.wave.model.id.WaveId;
+
+/**
+* What the server sent back once it had applied an operation: the wave it was applied to, the
+* version of the wavelet after it, and how long it took from sending to hearing back.
+*/
+public class Acknowledgement {
+
+	private final WaveId waveId;
+	private final HashedVersion version;
+	private final long latencyNanos;
+
+
+
+	/**
+	* Constructor requires the wave, the version after the operation and the round trip time
+	*
+	* @param WaveId of the wave the operation was applied to
+	* @param HashedVersion of the wavelet once it was applied
+	* @param long containing the nanoseconds from sending to hearing back
+	*/
+	public Acknowledgement(WaveId waveId, HashedVersion version, long latencyNanos) {
+		this.waveId = waveId;
+		this.version = version;
+		this.latencyNanos = latencyNanos;
+	}
+
+
+
+	/**
+	* @return the id of the wave the operation was applied to
+	*/
+	public WaveId getWaveId() {
+		return waveId;
+	}
+
+	/**
+	* @return the version of the wavelet once the operation was applied
+	*/
+	public HashedVersion getVersion() {
+		return version;
+	}
+
+	/**
+	* @return the nanoseconds from sending the operation to hearing it had been applied
+	*/
+	public long getLatencyNanos() {
+		return latencyNanos;
+	}
+
+	@Override
+	public String toString() {
+		return waveId + " at version " + ((version == null) ? "unknown" : version.getVersion())
+				+ " after " + (latencyNanos / 1000) + " us";
+	}
+}
\ No newline at end of file
@@ -0,0 +1,121 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+* Gives every participant address a small number and keeps one copy of each address. Every
+* operation received from the server carries its own copy of the author of each line, so a wave
+* written by a handful of people would otherwise hold the same few addresses once per line.
+* Lines store the number of their author and look the address up when it is needed.
+*
+* Numbers are never reused, and the pool only grows, by one entry per distinct address seen.
+* Looking up an address that is already known does not lock.
+*/
+public class AddressPool {
+
+	private static final AddressPool DEFAULT = new AddressPool();
+
+	private final ConcurrentMap<String, Integer> numbers = new ConcurrentHashMap<String, Integer>();
+	//Index is the number of the address. Replaced when it grows, entries never change once set
+	private volatile String[] addresses = new String[16];
+	private int size = 0;
+
+
+
+	/**
+	* Returns the pool shared by every wave of the client
+	*
+	* @return the shared {@link AddressPool}
+	*/
+	public static AddressPool getDefault() {
+		return DEFAULT;
+	}
+
+
+
+	/**
+	* Returns the number of an address, giving it the next free number if it has none yet
+	*
+	* @param String containing the participant address
+	* @return int containing the number of the address
+	*/
+	public int numberOf(String address) {
+		Integer number = numbers.get(address);
+		if(number != null) {
+			return number;
+		}
+		synchronized(this) {
+			number = numbers.get(address);
+			if(number == null) {
+				String[] current = addresses;
+				if(size == current.length) {
+					current = Arrays.copyOf(current, size * 2);
+				}
+				current[size] = address;
+				//Publish the address before its number can be seen
+				addresses = current;
+				number = size++;
+				numbers.put(address, number);
+			}
+			return number;
+		}
+	}
+
+
+
+	/**
+	* Returns the address a number was given to
+	*
+	* @param int containing a number returned by numberOf()
+	* @return String containing the participant address
+	* @throws IllegalArgumentException if no address has that number
+	*/
+	public String addressOf(int number) {
+		String[] current = addresses;
+		if(number < 0 || number >= current.length || current[number] == null) {
+			throw new IllegalArgumentException("No address has the number " + number);
+		}
+		return current[number];
+	}
+
+
+
+	/**
+	* Returns the pooled copy of an address, so equal addresses kept by the caller share one string
+	*
+	* @param String containing the participant address
+	* @return the pooled String equal to it
+	*/
+	public String intern(String address) {
+		return addressOf(numberOf(address));
+	}
+
+
+
+	/**
+	* @return the number of distinct addresses in the pool
+	*/
+	public synchronized int size() {
+		return size;
+	}
+}
\ No newline at end of file
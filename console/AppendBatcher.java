@@ -0,0 +1,161 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import org.waveprotocol.wave.examples.fedone.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+* Collects lines appended in quick succession and hands them on in batches, so that many lines
+* can be sent to the server as a single delta. A batch is sent once the coalescing window has
+* passed since its first line, once it holds the maximum number of lines, or when flushed.
+*/
+public class AppendBatcher {
+
+	private static final Log LOG = Log.get(AppendBatcher.class);
+
+	/**
+	* Receives each batch of lines, in the order they were added
+	*/
+	public interface Sender {
+		/**
+		* @param List of lines to send as one delta
+		*/
+		void send(List<String> lines);
+	}
+
+	private final Sender sender;
+	private final ScheduledExecutorService executor;
+	private List<String> pending = new ArrayList<String>();
+	private long windowNanos = 0;
+	private int maxLines;
+	private boolean scheduled = false;
+
+	private final Runnable timedFlush = new Runnable() {
+		public void run() {
+			synchronized(AppendBatcher.this) {
+				scheduled = false;
+				try {
+					flush();
+				} catch(RuntimeException e) {
+					LOG.warning("Failed to send appended lines", e);
+				}
+			}
+		}
+	};
+
+
+
+	/**
+	* Constructor requires where to send batches and how many lines make a full batch
+	*
+	* @param Sender to hand batches to
+	* @param int containing how many lines to collect before sending without waiting for the window
+	*/
+	public AppendBatcher(Sender sender, int maxLines) {
+		this.sender = sender;
+		this.maxLines = maxLines;
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "WaveConnector append");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+
+
+	/**
+	* Set the coalescing window. A window of 0 turns batching off, lines added are then sent straight away
+	*
+	* @param long containing the window
+	* @param TimeUnit of the window
+	*/
+	public synchronized void setWindow(long window, TimeUnit unit) {
+		if(window < 0) {
+			throw new IllegalArgumentException("The window must not be negative");
+		}
+		windowNanos = unit.toNanos(window);
+		if(windowNanos == 0) {
+			flush();
+		}
+	}
+
+
+
+	/**
+	* Returns whether lines are being collected into batches
+	*
+	* @return true if the coalescing window is greater than 0
+	*/
+	public synchronized boolean isEnabled() {
+		return windowNanos > 0;
+	}
+
+
+
+	/**
+	* Add lines to the current batch
+	*
+	* @param Collection of lines to append
+	*/
+	public synchronized void add(Collection<String> lines) {
+		pending.addAll(lines);
+		if(windowNanos == 0 || pending.size() >= maxLines) {
+			flush();
+		} else if(!scheduled && !executor.isShutdown()) {
+			scheduled = true;
+			executor.schedule(timedFlush, windowNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+
+
+	/**
+	* Send any lines collected so far
+	*/
+	public synchronized void flush() {
+		if(!pending.isEmpty()) {
+			List<String> batch = pending;
+			pending = new ArrayList<String>();
+			sender.send(batch);
+		}
+	}
+
+
+
+	/**
+	* Send any lines collected so far and stop the batching thread
+	*/
+	public synchronized void shutdown() {
+		try {
+			flush();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
+import org.waveprotocol.wave.examples.fedone.waveclient.common.ClientUtils;
+import org.waveprotocol.wave.model.document.operation.BufferedDocOp;
+
+/**
+* A version of a conversation root together with its main document as it was at that version,
+* for building an append that is sent against that version. The server transforms the append past
+* whatever it has applied since, so an append built on an older point still lands at the end.
+*
+* The length of the document is passed in when it is tracked, otherwise it is measured from the
+* document the first time it is needed.
+*/
+public class AppendPoint {
+
+	/**
+	* Passed as the size when the length of the document is not tracked
+	*/
+	public static final int UNKNOWN_SIZE = -1;
+
+	private final HashedVersion version;
+	private final BufferedDocOp document;
+	private volatile int size;
+
+
+
+	/**
+	* Constructor requires the version and the main document at that version
+	*
+	* @param HashedVersion of the conversation root, may be null if it has none yet
+	* @param BufferedDocOp containing the main document at that version, or null if there is none
+	* @param int containing the number of items in the document, or UNKNOWN_SIZE
+	*/
+	public AppendPoint(HashedVersion version, BufferedDocOp document, int size) {
+		this.version = version;
+		this.document = document;
+		this.size = size;
+	}
+
+
+
+	/**
+	* @return the version of the conversation root, null if it has none yet
+	*/
+	public HashedVersion getVersion() {
+		return version;
+	}
+
+	/**
+	* Returns the number of items in the main document at the version, measuring it if need be
+	*
+	* @return the number of items
+	*/
+	public int getSize() {
+		int known = size;
+		if(known == UNKNOWN_SIZE) {
+			known = (document == null) ? 0 : ClientUtils.findDocumentSize(document);
+			size = known;
+		}
+		return known;
+	}
+}
\ No newline at end of file
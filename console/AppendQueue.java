@@ -0,0 +1,256 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.waveprotocol.wave.examples.fedone.util.Log;
+import org.waveprotocol.wave.model.id.WaveId;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+* Sends the lines appended to each wave one delta at a time. The server transforms a delta past
+* everything applied since the version it was sent against, its sender's own earlier deltas
+* included, so two appends in flight to a wave at once could land in either order. Lines appended
+* while a delta to the wave is waiting to be acknowledged are held back, and sent together as the
+* next delta once it has been.
+*
+* An acknowledgement that never comes would hold the wave up until the delta times out, so the
+* lines waiting are sent anyway once the delta in flight has been waiting for the hold limit. By
+* then a delta that was applied without being recognised is part of what the next one is built on.
+* Lines are sent outside the lock of the queue, so appending never waits on a send.
+*/
+public class AppendQueue {
+
+	private static final Log LOG = Log.get(AppendQueue.class);
+	private static final long DEFAULT_HOLD_LIMIT_SECONDS = 5;
+
+	/**
+	* Sends lines to a wave
+	*/
+	public interface Sender {
+		/**
+		* @param OpenWave to append to
+		* @param List of lines to send as one delta
+		* @return {@link WaveFuture} of the {@link Acknowledgement} from the server
+		*/
+		WaveFuture<Acknowledgement> send(OpenWave wave, List<String> lines);
+	}
+
+	private final Sender sender;
+	private final ScheduledExecutorService executor;
+	//The waves with a delta in flight, and what waits to follow it
+	private final Map<WaveId, Waiting> waves = Maps.newHashMap();
+	private boolean shutdown = false;
+	private volatile long holdLimitNanos = TimeUnit.SECONDS.toNanos(DEFAULT_HOLD_LIMIT_SECONDS);
+
+
+
+	/**
+	* Constructor requires where to send lines
+	*
+	* @param Sender to hand lines to
+	*/
+	public AppendQueue(Sender sender) {
+		this.sender = sender;
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "WaveConnector append queue");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+
+
+	/**
+	* Set how long lines wait for the delta in flight to the same wave to be acknowledged before
+	* they are sent anyway. Applies to deltas sent from then on
+	*
+	* @param long containing the limit
+	* @param TimeUnit of the limit
+	*/
+	public void setHoldLimit(long limit, TimeUnit unit) {
+		if(limit <= 0) {
+			throw new IllegalArgumentException("The hold limit must be positive");
+		}
+		holdLimitNanos = unit.toNanos(limit);
+	}
+
+
+
+	/**
+	* Append lines to a wave. They are sent straight away unless a delta sent to the wave has not
+	* been acknowledged yet, then they wait to be sent with anything else appended meanwhile
+	*
+	* @param OpenWave to append to
+	* @param List of lines to append
+	* @return {@link WaveFuture} of the {@link Acknowledgement} from the server
+	*/
+	public WaveFuture<Acknowledgement> append(OpenWave wave, List<String> lines) {
+		WaveId waveId = wave.getWaveId();
+		Waiting inFlight;
+		synchronized(this) {
+			if(shutdown) {
+				inFlight = null;
+			} else {
+				Waiting waiting = waves.get(waveId);
+				if(waiting != null) {
+					WaveFuture<Acknowledgement> future = new WaveFuture<Acknowledgement>();
+					waiting.wave = wave;
+					waiting.lines.addAll(lines);
+					waiting.futures.add(future);
+					return future;
+				}
+				inFlight = new Waiting(wave);
+				waves.put(waveId, inFlight);
+			}
+		}
+		if(inFlight == null) {
+			return sender.send(wave, lines);
+		}
+		
+		WaveFuture<Acknowledgement> sent;
+		try {
+			sent = sender.send(wave, lines);
+		} catch(RuntimeException e) {
+			//Nothing is in flight after all, send what was appended meanwhile
+			sendNext(waveId, inFlight);
+			throw e;
+		}
+		sendNextWhenDone(waveId, inFlight, sent, Lists.<WaveFuture<Acknowledgement>>newArrayList());
+		return sent;
+	}
+
+
+
+	/**
+	* Returns how many waves have a delta waiting to be acknowledged
+	*
+	* @return int containing the number of waves
+	*/
+	public synchronized int size() {
+		return waves.size();
+	}
+
+
+
+	/**
+	* Fail anything not sent yet and stop the sending thread
+	*/
+	public synchronized void shutdown() {
+		shutdown = true;
+		for(Waiting waiting : waves.values()) {
+			for(WaveFuture<Acknowledgement> future : waiting.futures) {
+				future.fail(new ServerNotConnectedException("Shut down before the lines were sent"));
+			}
+		}
+		waves.clear();
+		executor.shutdownNow();
+	}
+
+
+
+	/*
+	* Completes the futures of the lines sent together once the server answers, and sends whatever
+	* was appended to the wave meanwhile then or once the hold limit has passed, whichever is first
+	*/
+	private void sendNextWhenDone(final WaveId waveId, final Waiting inFlight, WaveFuture<Acknowledgement> sent,
+			final List<WaveFuture<Acknowledgement>> futures) {
+		sent.addCallback(new WaveFuture.Callback<Acknowledgement>() {
+			public void onSuccess(Acknowledgement acknowledgement) {
+				for(WaveFuture<Acknowledgement> future : futures) {
+					future.complete(acknowledgement);
+				}
+				sendNext(waveId, inFlight);
+			}
+			public void onFailure(Throwable cause) {
+				for(WaveFuture<Acknowledgement> future : futures) {
+					future.fail(cause);
+				}
+				sendNext(waveId, inFlight);
+			}
+		}, executor);
+		try {
+			executor.schedule(new Runnable() {
+				public void run() {
+					sendNext(waveId, inFlight);
+				}
+			}, holdLimitNanos, TimeUnit.NANOSECONDS);
+		} catch(RejectedExecutionException e) {
+			//Shut down, nothing more is sent
+		}
+	}
+
+	/*
+	* Sends everything waiting behind a delta in flight as one delta, or marks the wave idle if
+	* nothing is. Does nothing if the wave has already moved on from that delta
+	*/
+	private void sendNext(WaveId waveId, Waiting inFlight) {
+		Waiting next;
+		synchronized(this) {
+			if(waves.get(waveId) != inFlight) {
+				return;
+			}
+			waves.remove(waveId);
+			if(inFlight.lines.isEmpty()) {
+				return;
+			}
+			next = new Waiting(inFlight.wave);
+			waves.put(waveId, next);
+		}
+		
+		WaveFuture<Acknowledgement> sent;
+		try {
+			sent = sender.send(inFlight.wave, inFlight.lines);
+		} catch(RuntimeException e) {
+			LOG.warning("Failed to send appended lines to " + waveId, e);
+			for(WaveFuture<Acknowledgement> future : inFlight.futures) {
+				future.fail(e);
+			}
+			sendNext(waveId, next);
+			return;
+		}
+		sendNextWhenDone(waveId, next, sent, inFlight.futures);
+	}
+
+
+
+	/*
+	* The lines appended to a wave while a delta to it is in flight
+	*/
+	private static class Waiting {
+		private OpenWave wave;
+		private final List<String> lines = Lists.newArrayList();
+		private final List<WaveFuture<Acknowledgement>> futures = Lists.newArrayList();
+
+		private Waiting(OpenWave wave) {
+			this.wave = wave;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+/**
+* Throughput of the lines sent by {@link WaveConnector} since the first one. Each operation sent
+* to the server may carry many lines when they are appended in batches.
+*/
+public class AppendStats {
+
+	private final long lines;
+	private final long operations;
+	private final long elapsedNanos;
+
+	/**
+	* Constructor requires the totals and the time they were sent over
+	*
+	* @param long containing the number of lines sent
+	* @param long containing the number of operations they were sent in
+	* @param long containing the nanoseconds since the first line was sent
+	*/
+	public AppendStats(long lines, long operations, long elapsedNanos) {
+		this.lines = lines;
+		this.operations = operations;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	/**
+	* Returns the number of lines sent
+	*
+	* @return the number of lines
+	*/
+	public long getLines() {
+		return lines;
+	}
+
+	/**
+	* Returns the number of operations sent
+	*
+	* @return the number of operations
+	*/
+	public long getOperations() {
+		return operations;
+	}
+
+	/**
+	* Returns the lines sent per second since the first one
+	*
+	* @return lines per second, 0 if nothing has been sent
+	*/
+	public double getLinesPerSecond() {
+		return perSecond(lines);
+	}
+
+	/**
+	* Returns the operations sent per second since the first one
+	*
+	* @return operations per second, 0 if nothing has been sent
+	*/
+	public double getOperationsPerSecond() {
+		return perSecond(operations);
+	}
+
+	@Override
+	public String toString() {
+		return lines + " lines in " + operations + " operations, "
+				+ String.format("%.1f", getLinesPerSecond()) + " lines/s, "
+				+ String.format("%.1f", getOperationsPerSecond()) + " ops/s";
+	}
+
+	private double perSecond(long count) {
+		if(elapsedNanos <= 0) {
+			return 0;
+		}
+		return count * 1e9 / elapsedNanos;
+	}
+}
\ No newline at end of file
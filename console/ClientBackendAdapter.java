@@ -0,0 +1,299 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+
+import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
+import org.waveprotocol.wave.examples.fedone.common.WaveletOperationSerializer;
+import org.waveprotocol.wave.examples.fedone.rpc.ClientRpcChannel;
+import org.waveprotocol.wave.examples.fedone.util.Log;
+import org.waveprotocol.wave.examples.fedone.util.URLEncoderDecoderBasedPercentEncoderDecoder;
+import org.waveprotocol.wave.examples.fedone.waveclient.common.ClientBackend;
+import org.waveprotocol.wave.examples.fedone.waveclient.common.ClientWaveView;
+import org.waveprotocol.wave.examples.fedone.waveclient.common.WaveletOperationListener;
+import org.waveprotocol.wave.examples.fedone.waveserver.WaveClientRpc.ProtocolSubmitRequest;
+import org.waveprotocol.wave.examples.fedone.waveserver.WaveClientRpc.ProtocolSubmitResponse;
+import org.waveprotocol.wave.examples.fedone.waveserver.WaveClientRpc.ProtocolWaveClientRpc;
+import org.waveprotocol.wave.examples.fedone.waveserver.WaveClientRpc.ProtocolWaveletUpdate;
+import org.waveprotocol.wave.model.id.IdURIEncoderDecoder;
+import org.waveprotocol.wave.model.id.URIEncoderDecoder.EncodingException;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.WaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
+import org.waveprotocol.wave.protocol.common.ProtocolWaveletDelta;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+* A {@link WaveBackend} that passes everything on to the reference {@link ClientBackend}
+*
+* The reference backend has no way of telling anyone that the connection has gone, it only logs
+* that the streaming RPC a wave is opened with has failed. The adapter looks at the RPC controllers
+* its own backend keeps for the waves it has open instead, and takes the connection to be lost once
+* any of them has failed. Submits fail the connection when their RPC fails or the send throws.
+*
+* A connection can also stop without failing, half open. Every submit must be answered within the
+* submit timeout or the connection is taken to be lost. The answer is enough, whether the server
+* applied the delta or rejected it, and whether or not the delta also comes back as an update. A
+* connection that stops while nothing is being sent is noticed at the next send.
+*
+* The backend made by the adapter tells the {@link WaveBackend.DeltaListener}s about each delta of
+* an update, read from the update as it arrives, before applying it.
+*
+* Deltas are submitted by the adapter itself, through the RPC stub of the backend, so they can be
+* sent against a version the caller chooses rather than the one the view is at when sending. A
+* submit the server rejects is logged rather than thrown on the thread that receives the answer.
+*/
+public class ClientBackendAdapter implements WaveBackend {
+
+	private static final Log LOG = Log.get(ClientBackendAdapter.class);
+	private static final long DEFAULT_SUBMIT_TIMEOUT_SECONDS = 30;
+
+	private final ClientBackend backend;
+	//Taken from the backend to send deltas against a version of our choosing
+	private final ProtocolWaveClientRpc.Stub rpcServer;
+	private final ClientRpcChannel rpcChannel;
+	//The controllers of the streams of the waves the backend has open
+	private final Map<WaveId, RpcController> waveControllers;
+	private final List<DeltaListener> deltaListeners = new CopyOnWriteArrayList<DeltaListener>();
+	private final IdURIEncoderDecoder uriCodec = new IdURIEncoderDecoder(new URLEncoderDecoderBasedPercentEncoderDecoder());
+	private volatile boolean connected = true;
+	private volatile long submitTimeoutNanos = TimeUnit.SECONDS.toNanos(DEFAULT_SUBMIT_TIMEOUT_SECONDS);
+	//When each submit not yet answered was sent
+	private final Map<RpcController, Long> unanswered = new ConcurrentHashMap<RpcController, Long>();
+
+
+
+	/**
+	* Constructor connects a new backend to the server
+	*
+	* @param String containing the user, in the form user@domain
+	* @param String containing the server to connect to
+	* @param int containing the port of the server
+	* @throws IOException if the server could not be reached
+	*/
+	@SuppressWarnings("unchecked")
+	public ClientBackendAdapter(String userAtDomain, String server, int port) throws IOException {
+		this.backend = new ClientBackend(userAtDomain, server, port) {
+			@Override
+			public void receiveWaveletUpdate(ProtocolWaveletUpdate update) {
+				deltasReceived(update);
+				super.receiveWaveletUpdate(update);
+			}
+		};
+		this.rpcServer = (ProtocolWaveClientRpc.Stub) backendField("rpcServer");
+		this.rpcChannel = (ClientRpcChannel) backendField("rpcChannel");
+		this.waveControllers = (Map<WaveId, RpcController>) backendField("waveControllers");
+	}
+
+	/**
+	* Set how long the server may take to answer a submit before the connection is taken to be lost
+	*
+	* @param long containing the timeout
+	* @param TimeUnit of the timeout
+	*/
+	public void setSubmitTimeout(long timeout, TimeUnit unit) {
+		if(timeout <= 0) {
+			throw new IllegalArgumentException("The timeout must be positive");
+		}
+		submitTimeoutNanos = unit.toNanos(timeout);
+	}
+
+	public ClientWaveView createNewWave() {
+		return backend.createNewWave();
+	}
+
+	public ClientWaveView getWave(WaveId waveId) {
+		return backend.getWave(waveId);
+	}
+
+	public ClientWaveView getIndexWave() {
+		return backend.getIndexWave();
+	}
+
+	public void sendWaveletOperation(WaveletData wavelet, WaveletOperation operation) {
+		sendWaveletDelta(wavelet, new WaveletDelta(backend.getUserId(), Collections.singletonList(operation)));
+	}
+
+	public void sendWaveletDelta(WaveletData wavelet, WaveletDelta delta) {
+		WaveletName name = wavelet.getWaveletName();
+		ClientWaveView view = backend.getWave(name.waveId);
+		sendWaveletDelta(wavelet, delta, (view == null) ? null : view.getWaveletVersion(name.waveletId));
+	}
+
+	public void sendWaveletDelta(WaveletData wavelet, WaveletDelta delta, HashedVersion targetVersion) {
+		final WaveletName name = wavelet.getWaveletName();
+		ProtocolSubmitRequest.Builder request = ProtocolSubmitRequest.newBuilder();
+		try {
+			request.setWaveletName(uriCodec.waveletNameToURI(name));
+		} catch(EncodingException e) {
+			throw new IllegalArgumentException(e);
+		}
+		request.setDelta(WaveletOperationSerializer.serialize(delta, targetVersion));
+		final RpcController controller = rpcChannel.newRpcController();
+		unanswered.put(controller, System.nanoTime());
+		try {
+			rpcServer.submit(controller, request.build(), new RpcCallback<ProtocolSubmitResponse>() {
+				public void run(ProtocolSubmitResponse response) {
+					unanswered.remove(controller);
+					if(response == null) {
+						LOG.warning("Submit to " + name + " failed: " + controller.errorText());
+						connected = false;
+					} else if(response.hasErrorMessage()) {
+						LOG.warning("The server rejected a delta to " + name + ": " + response.getErrorMessage());
+					}
+				}
+			});
+		} catch(RuntimeException e) {
+			unanswered.remove(controller);
+			connected = false;
+			throw e;
+		}
+	}
+
+	public ParticipantId getUserId() {
+		return backend.getUserId();
+	}
+
+	public void addWaveletOperationListener(WaveletOperationListener listener) {
+		backend.addWaveletOperationListener(listener);
+	}
+
+	public void removeWaveletOperationListener(WaveletOperationListener listener) {
+		backend.removeWaveletOperationListener(listener);
+	}
+
+	public void addDeltaListener(DeltaListener listener) {
+		deltaListeners.add(listener);
+	}
+
+	public void removeDeltaListener(DeltaListener listener) {
+		deltaListeners.remove(listener);
+	}
+
+	public boolean isConnected() {
+		if(connected && (submitTimedOut() || streamFailed())) {
+			connected = false;
+		}
+		return connected;
+	}
+
+	public void shutdown() {
+		connected = false;
+		unanswered.clear();
+		backend.shutdown();
+	}
+
+
+
+	/*
+	* Reads a field the reference backend keeps to itself
+	*/
+	private Object backendField(String name) {
+		try {
+			Field field = ClientBackend.class.getDeclaredField(name);
+			field.setAccessible(true);
+			return field.get(backend);
+		} catch(NoSuchFieldException | IllegalAccessException e) {
+			backend.shutdown();
+			throw new IllegalStateException("This version of ClientBackend has no " + name + " to send with", e);
+		}
+	}
+
+	/*
+	* Returns whether a submit has gone unanswered for longer than the submit timeout
+	*/
+	private boolean submitTimedOut() {
+		long now = System.nanoTime();
+		for(long sentAt : unanswered.values()) {
+			if(now - sentAt > submitTimeoutNanos) {
+				LOG.warning("A submit has been waiting on the server for " + TimeUnit.NANOSECONDS.toMillis(now - sentAt)
+						+ " ms, taking the connection to be lost");
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	* Returns whether the stream of updates for any wave the backend has open has failed. The backend
+	* changes its map of controllers on other threads without locking, so one that changes while it is
+	* being read is left for the next check
+	*/
+	private boolean streamFailed() {
+		List<RpcController> controllers;
+		try {
+			controllers = new ArrayList<RpcController>(waveControllers.values());
+		} catch(ConcurrentModificationException e) {
+			return false;
+		}
+		for(RpcController controller : controllers) {
+			boolean failed;
+			try {
+				failed = controller.failed();
+			} catch(IllegalStateException e) {
+				//Only a finished RPC can be asked, the stream is still running
+				failed = false;
+			}
+			if(failed) {
+				LOG.warning("The stream of updates from the server failed: " + controller.errorText());
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	* Tells the delta listeners about the deltas of an update. Called on the thread of the backend
+	* before it applies them
+	*/
+	private void deltasReceived(ProtocolWaveletUpdate update) {
+		if(deltaListeners.isEmpty() || update.getAppliedDeltaCount() == 0) {
+			return;
+		}
+		WaveletName wavelet;
+		try {
+			wavelet = uriCodec.uriToWaveletName(update.getWaveletName());
+		} catch(EncodingException e) {
+			//The backend rejects the update itself
+			return;
+		}
+		for(ProtocolWaveletDelta delta : update.getAppliedDeltaList()) {
+			ParticipantId author = new ParticipantId(delta.getAuthor());
+			long appliedAt = delta.getHashedVersion().getVersion();
+			for(DeltaListener listener : deltaListeners) {
+				listener.deltaReceived(wavelet, author, appliedAt, delta.getOperationCount());
+			}
+		}
+	}
+}
\ No newline at end of file
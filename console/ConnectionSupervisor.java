@@ -0,0 +1,227 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import org.waveprotocol.wave.examples.fedone.util.Log;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+* Watches the connection of a {@link WaveConnector} to the server and makes a new one once it is
+* lost. The backend is asked every second whether it is still connected. When it is not, new
+* connections are tried with exponential backoff: each wait is twice the one before up to a
+* limit, shortened by a random amount so clients that lost the same server do not all come back
+* at the same moment. Everything runs on one background thread, the listener included.
+*/
+public class ConnectionSupervisor {
+
+	private static final Log LOG = Log.get(ConnectionSupervisor.class);
+	private static final long CHECK_INTERVAL_MILLIS = 1000;
+
+	/**
+	* Makes a new connection to the server
+	*/
+	public interface Connector {
+		/**
+		* @return a connected {@link WaveBackend}
+		* @throws IOException if the server could not be reached
+		*/
+		WaveBackend connect() throws IOException;
+	}
+
+	/**
+	* Told what happens to the connection, on the thread of the supervisor
+	*/
+	public interface Listener {
+		/**
+		* @param WaveBackend whose connection was lost
+		*/
+		void connectionLost(WaveBackend backend);
+
+		/**
+		* @param Exception the attempt failed with
+		* @param int containing the number of attempts made so far
+		* @param long containing the wait in milliseconds before the next attempt
+		*/
+		void reconnectFailed(Exception cause, int attempts, long nextAttemptMillis);
+
+		/**
+		* @param WaveBackend connected in place of the one lost
+		*/
+		void reconnected(WaveBackend backend);
+	}
+
+	private final Connector connector;
+	private final Listener listener;
+	private final LatencyHistogram reconnectTime;
+	private final long initialDelayNanos;
+	private final long maxDelayNanos;
+	private final ScheduledExecutorService executor;
+	private volatile WaveBackend backend = null;
+	private volatile boolean reconnecting = false;
+
+	//Only used on the supervisor thread
+	private final Random random = new Random();
+	private long lostAt;
+	private int attempts;
+	private long delayNanos;
+
+	private final Runnable check = new Runnable() {
+		public void run() {
+			WaveBackend current = backend;
+			if(!reconnecting && current != null && !current.isConnected()) {
+				lost(current);
+			}
+		}
+	};
+
+	private final Runnable attempt = new Runnable() {
+		public void run() {
+			attempt();
+		}
+	};
+
+
+
+	/**
+	* Constructor requires how to connect, who to tell and how long to wait between attempts
+	*
+	* @param Connector making new connections
+	* @param Listener told about the connection
+	* @param LatencyHistogram recording the time from losing the connection to having a new one
+	* @param long containing the wait before the first attempt
+	* @param long containing the longest wait between attempts
+	* @param TimeUnit of the waits
+	*/
+	public ConnectionSupervisor(Connector connector, Listener listener, LatencyHistogram reconnectTime,
+			long initialDelay, long maxDelay, TimeUnit unit) {
+		if(initialDelay <= 0 || maxDelay < initialDelay) {
+			throw new IllegalArgumentException("The first wait must be positive and no longer than the longest");
+		}
+		this.connector = connector;
+		this.listener = listener;
+		this.reconnectTime = reconnectTime;
+		this.initialDelayNanos = unit.toNanos(initialDelay);
+		this.maxDelayNanos = unit.toNanos(maxDelay);
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "WaveConnector reconnect");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+
+
+	/**
+	* Start watching a backend
+	*
+	* @param WaveBackend that is connected
+	*/
+	public void start(WaveBackend connected) {
+		backend = connected;
+		executor.scheduleWithFixedDelay(check, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+
+
+	/**
+	* Run a task on the thread of the supervisor after a delay
+	*
+	* @param Runnable to run
+	* @param long containing the delay
+	* @param TimeUnit of the delay
+	*/
+	public void schedule(Runnable task, long delay, TimeUnit unit) {
+		if(!executor.isShutdown()) {
+			executor.schedule(task, delay, unit);
+		}
+	}
+
+
+
+	/**
+	* @return true from losing the connection until a new one has been made and handed over
+	*/
+	public boolean isReconnecting() {
+		return reconnecting;
+	}
+
+
+
+	/**
+	* Stop watching and stop any attempt to reconnect
+	*/
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+
+
+	private void lost(WaveBackend current) {
+		reconnecting = true;
+		lostAt = System.nanoTime();
+		attempts = 0;
+		delayNanos = initialDelayNanos;
+		try {
+			listener.connectionLost(current);
+		} catch(RuntimeException e) {
+			LOG.warning("Listener " + listener + " failed", e);
+		}
+		executor.schedule(attempt, jitter(delayNanos), TimeUnit.NANOSECONDS);
+	}
+
+	private void attempt() {
+		attempts++;
+		WaveBackend next;
+		try {
+			next = connector.connect();
+		} catch(Exception e) {
+			delayNanos = Math.min(delayNanos * 2, maxDelayNanos);
+			long wait = jitter(delayNanos);
+			try {
+				listener.reconnectFailed(e, attempts, TimeUnit.NANOSECONDS.toMillis(wait));
+			} catch(RuntimeException listenerFailure) {
+				LOG.warning("Listener " + listener + " failed", listenerFailure);
+			}
+			executor.schedule(attempt, wait, TimeUnit.NANOSECONDS);
+			return;
+		}
+
+		reconnectTime.recordSince(lostAt);
+		backend = next;
+		try {
+			listener.reconnected(next);
+		} catch(RuntimeException e) {
+			LOG.severe("Listener " + listener + " failed to take over the new connection", e);
+		}
+		reconnecting = false;
+	}
+
+	//Between half and all of the delay
+	private long jitter(long delay) {
+		return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+	}
+}
\ No newline at end of file
@@ -0,0 +1,330 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.waveprotocol.wave.examples.fedone.util.Log;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+* Counters and latency histograms for one {@link WaveConnector}. Once started they are published
+* as MBeans under {@value #JMX_DOMAIN}, one for the counters and one per timed operation, and a
+* summary is written to the log at a set interval. Rates are worked out every few seconds on a
+* background thread so recording stays a matter of a few atomic increments.
+*/
+public class ConnectorMetrics implements ConnectorMetricsMBean {
+
+	private static final Log LOG = Log.get(ConnectorMetrics.class);
+	public static final String JMX_DOMAIN = "org.waveprotocol.wave.examples.fedone.waveclient.console";
+	private static final long SAMPLE_SECONDS = 5;
+	private static final AtomicInteger instances = new AtomicInteger();
+
+	public static final String OPEN_WAVE = "openWave";
+	public static final String GET_INBOX = "getInbox";
+	public static final String GET_WAVE_BODY = "getWaveBody";
+	public static final String APPEND_TO_WAVE = "appendToWave";
+	public static final String REFRESH = "refresh";
+	public static final String ACKNOWLEDGE = "acknowledge";
+	public static final String RECONNECT = "reconnect";
+
+	private final String name = "WaveConnector-" + instances.incrementAndGet();
+	private final Map<String, LatencyHistogram> latencies = ImmutableMap.<String, LatencyHistogram>builder()
+			.put(OPEN_WAVE, new LatencyHistogram())
+			.put(GET_INBOX, new LatencyHistogram())
+			.put(GET_WAVE_BODY, new LatencyHistogram())
+			.put(APPEND_TO_WAVE, new LatencyHistogram())
+			.put(REFRESH, new LatencyHistogram())
+			.put(ACKNOWLEDGE, new LatencyHistogram())
+			.put(RECONNECT, new LatencyHistogram())
+			.build();
+	private final AtomicLong deltaSequences = new AtomicLong();
+	private final AtomicLong refreshes = new AtomicLong();
+	private final AtomicLong connectionsLost = new AtomicLong();
+	private final AtomicLong reconnects = new AtomicLong();
+	private final AtomicLong failedReconnects = new AtomicLong();
+	private final AtomicLong resumedWaves = new AtomicLong();
+	private final AtomicLong reloadedWaves = new AtomicLong();
+	private volatile int inboxSize = 0;
+	private volatile int unreadCount = 0;
+	private volatile int openDocumentSize = 0;
+	private volatile double deltaSequenceRate = 0;
+	private volatile double refreshRate = 0;
+	private volatile long logIntervalNanos = TimeUnit.MINUTES.toNanos(1);
+	private final List<ObjectName> registered = new CopyOnWriteArrayList<ObjectName>();
+	private ScheduledExecutorService sampler = null;
+
+	//Only used on the sampler thread
+	private long lastSampleAt;
+	private long lastLogAt;
+	private long lastDeltaSequences;
+	private long lastRefreshes;
+
+
+
+	/**
+	* Publish the MBeans and start working out rates and logging
+	*/
+	public synchronized void start() {
+		if(sampler != null) {
+			return;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			register(server, new ObjectName(JMX_DOMAIN + ":type=WaveConnector,name=" + name), this);
+			for(Map.Entry<String, LatencyHistogram> latency : latencies.entrySet()) {
+				register(server, new ObjectName(JMX_DOMAIN + ":type=WaveConnector,name=" + name
+						+ ",operation=" + latency.getKey()), latency.getValue());
+			}
+		} catch(JMException e) {
+			LOG.warning("Could not publish metrics over JMX", e);
+		}
+
+		lastSampleAt = System.nanoTime();
+		lastLogAt = lastSampleAt;
+		sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "WaveConnector metrics");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		sampler.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				sample();
+			}
+		}, SAMPLE_SECONDS, SAMPLE_SECONDS, TimeUnit.SECONDS);
+	}
+
+
+
+	/**
+	* Remove the MBeans and stop the background thread
+	*/
+	public synchronized void shutdown() {
+		if(sampler != null) {
+			sampler.shutdownNow();
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for(ObjectName objectName : registered) {
+			try {
+				server.unregisterMBean(objectName);
+			} catch(JMException e) {
+				//Already gone
+			}
+		}
+		registered.clear();
+	}
+
+
+
+	/**
+	* Set how often a summary is written to the log
+	*
+	* @param long containing the interval, 0 to stop logging
+	* @param TimeUnit of the interval
+	*/
+	public void setLogInterval(long interval, TimeUnit unit) {
+		if(interval < 0) {
+			throw new IllegalArgumentException("The interval must not be negative");
+		}
+		logIntervalNanos = unit.toNanos(interval);
+	}
+
+
+
+	/**
+	* Returns the histogram of one of the timed operations
+	*
+	* @param String naming the operation, one of the constants of this class
+	* @return the {@link LatencyHistogram}, or null for an unknown operation
+	*/
+	public LatencyHistogram getLatency(String operation) {
+		return latencies.get(operation);
+	}
+
+	/**
+	* Count a delta sequence received from the server
+	*/
+	public void deltaSequenceReceived() {
+		deltaSequences.incrementAndGet();
+	}
+
+	/**
+	* Count a batch of changes handed to the listeners
+	*/
+	public void refreshed() {
+		refreshes.incrementAndGet();
+	}
+
+	/**
+	* Count a lost connection to the server
+	*/
+	public void connectionLost() {
+		connectionsLost.incrementAndGet();
+	}
+
+	/**
+	* Count a connection made again after one was lost. The time it took is recorded by the
+	* {@value #RECONNECT} histogram
+	*/
+	public void reconnected() {
+		reconnects.incrementAndGet();
+	}
+
+	/**
+	* Count an attempt to reconnect that failed
+	*/
+	public void reconnectFailed() {
+		failedReconnects.incrementAndGet();
+	}
+
+	/**
+	* Count a wave caught up with after reconnecting
+	*
+	* @param boolean true if it had not changed while the connection was lost, so nothing was rebuilt
+	*/
+	public void waveResumed(boolean unchanged) {
+		(unchanged ? resumedWaves : reloadedWaves).incrementAndGet();
+	}
+
+	/**
+	* @param int containing the number of waves in the inbox
+	*/
+	public void setInboxSize(int size) {
+		inboxSize = size;
+	}
+
+	/**
+	* @param int containing the number of unread waves in the inbox
+	*/
+	public void setUnreadCount(int count) {
+		unreadCount = count;
+	}
+
+	/**
+	* @param int containing the number of items in the main document of the open wave
+	*/
+	public void setOpenDocumentSize(int size) {
+		openDocumentSize = size;
+	}
+
+	public long getDeltaSequences() {
+		return deltaSequences.get();
+	}
+
+	public double getDeltaSequencesPerSecond() {
+		return deltaSequenceRate;
+	}
+
+	public long getRefreshes() {
+		return refreshes.get();
+	}
+
+	public double getRefreshesPerSecond() {
+		return refreshRate;
+	}
+
+	public long getConnectionsLost() {
+		return connectionsLost.get();
+	}
+
+	public long getReconnects() {
+		return reconnects.get();
+	}
+
+	public long getFailedReconnects() {
+		return failedReconnects.get();
+	}
+
+	public long getResumedWaves() {
+		return resumedWaves.get();
+	}
+
+	public long getReloadedWaves() {
+		return reloadedWaves.get();
+	}
+
+	public int getInboxSize() {
+		return inboxSize;
+	}
+
+	public int getUnreadCount() {
+		return unreadCount;
+	}
+
+	public int getOpenDocumentSize() {
+		return openDocumentSize;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder summary = new StringBuilder(name);
+		summary.append(String.format(": %.1f deltas/s, %.1f refreshes/s, inbox %d (%d unread), open document %d",
+				deltaSequenceRate, refreshRate, inboxSize, unreadCount, openDocumentSize));
+		if(connectionsLost.get() > 0) {
+			summary.append(String.format(", %d connections lost, %d reconnects, %d failed, %d waves resumed, %d reloaded",
+					connectionsLost.get(), reconnects.get(), failedReconnects.get(), resumedWaves.get(), reloadedWaves.get()));
+		}
+		for(Map.Entry<String, LatencyHistogram> latency : latencies.entrySet()) {
+			summary.append("; ").append(latency.getKey()).append(" ").append(latency.getValue());
+		}
+		return summary.toString();
+	}
+
+
+
+	private void register(MBeanServer server, ObjectName objectName, Object mbean) throws JMException {
+		server.registerMBean(mbean, objectName);
+		registered.add(objectName);
+	}
+
+	//Runs on the sampler thread
+	private void sample() {
+		long now = System.nanoTime();
+		double seconds = (now - lastSampleAt) / 1e9;
+		long currentDeltaSequences = deltaSequences.get();
+		long currentRefreshes = refreshes.get();
+		deltaSequenceRate = (currentDeltaSequences - lastDeltaSequences) / seconds;
+		refreshRate = (currentRefreshes - lastRefreshes) / seconds;
+		lastDeltaSequences = currentDeltaSequences;
+		lastRefreshes = currentRefreshes;
+		lastSampleAt = now;
+
+		long interval = logIntervalNanos;
+		if(interval > 0 && now - lastLogAt >= interval) {
+			lastLogAt = now;
+			LOG.info(toString());
+		}
+	}
+}
\ No newline at end of file
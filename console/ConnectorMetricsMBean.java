@@ -0,0 +1,87 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+/**
+* The JMX view of the counters kept by {@link ConnectorMetrics}. Rates are averaged over the
+* most recent sampling interval. The time taken by each operation is published separately as a
+* {@link LatencyHistogramMBean}.
+*/
+public interface ConnectorMetricsMBean {
+
+	/**
+	* @return the number of delta sequences received from the server
+	*/
+	long getDeltaSequences();
+
+	/**
+	* @return delta sequences received per second
+	*/
+	double getDeltaSequencesPerSecond();
+
+	/**
+	* @return the number of batches of changes handed to listeners
+	*/
+	long getRefreshes();
+
+	/**
+	* @return batches of changes handed to listeners per second
+	*/
+	double getRefreshesPerSecond();
+
+	/**
+	* @return the number of times the connection to the server was lost
+	*/
+	long getConnectionsLost();
+
+	/**
+	* @return the number of times the connection was made again after being lost
+	*/
+	long getReconnects();
+
+	/**
+	* @return the number of attempts to reconnect that failed
+	*/
+	long getFailedReconnects();
+
+	/**
+	* @return the number of waves that had not changed while the connection was lost, kept as they were
+	*/
+	long getResumedWaves();
+
+	/**
+	* @return the number of waves that had changed while the connection was lost, rebuilt
+	*/
+	long getReloadedWaves();
+
+	/**
+	* @return the number of waves in the inbox
+	*/
+	int getInboxSize();
+
+	/**
+	* @return the number of unread waves in the inbox
+	*/
+	int getUnreadCount();
+
+	/**
+	* @return the number of items in the main document of the open wave, 0 if none is open
+	*/
+	int getOpenDocumentSize();
+}
\ No newline at end of file
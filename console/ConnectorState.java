@@ -0,0 +1,106 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+/**
+* The state of a {@link WaveConnector} that more than one thread acts on: the backend it is
+* connected through, where the read state of waves is kept and which wave is open. A state is
+* never changed once made, the connector publishes a new one in its place, so a thread that has
+* read the state sees a backend, read state and open wave that belong together without locking.
+*/
+public final class ConnectorState {
+
+	private final WaveBackend backend;
+	private final ReadStateStore readState;
+	private final OpenWave openWave;
+
+
+
+	private ConnectorState(WaveBackend backend, ReadStateStore readState, OpenWave openWave) {
+		this.backend = backend;
+		this.readState = readState;
+		this.openWave = openWave;
+	}
+
+
+
+	/**
+	* Returns the state before connecting: no backend, read state kept in memory and no wave open
+	*
+	* @return the new {@link ConnectorState}
+	*/
+	public static ConnectorState disconnected() {
+		return new ConnectorState(null, new ReadStateStore(), null);
+	}
+
+
+
+	/**
+	* @return the backend, or null if not connected
+	*/
+	public WaveBackend getBackend() {
+		return backend;
+	}
+
+	/**
+	* @return the store the read state of waves is kept in
+	*/
+	public ReadStateStore getReadState() {
+		return readState;
+	}
+
+	/**
+	* @return the open wave, or null if no wave is open
+	*/
+	public OpenWave getOpenWave() {
+		return openWave;
+	}
+
+	/**
+	* @return true if there is a backend
+	*/
+	public boolean isConnected() {
+		return backend != null;
+	}
+
+
+
+	/**
+	* Returns this state connected through a backend, keeping read state in a store
+	*
+	* @param WaveBackend to connect through
+	* @param ReadStateStore to keep read state in
+	* @return the new {@link ConnectorState}
+	*/
+	public ConnectorState connect(WaveBackend backend, ReadStateStore readState) {
+		return new ConnectorState(backend, readState, openWave);
+	}
+
+
+
+	/**
+	* Returns this state with a different wave open
+	*
+	* @param OpenWave to open, or null to have no wave open
+	* @return the new {@link ConnectorState}
+	*/
+	public ConnectorState withOpenWave(OpenWave wave) {
+		return (wave == openWave) ? this : new ConnectorState(backend, readState, wave);
+	}
+}
\ No newline at end of file
@@ -23,14 +23,15 @@ import java.awt.Dimension;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 
-import java.lang.NoSuchMethodException;
-import java.lang.SecurityException;
 import java.lang.StringBuilder;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 import javax.swing.BoxLayout;
-import javax.swing.DefaultListModel;
 import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -42,39 +43,43 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextField;
-import javax.swing.ListModel;
 import javax.swing.ListSelectionModel;
-import javax.swing.event.ListDataListener;
+import javax.swing.SwingUtilities;
+
+import org.waveprotocol.wave.model.id.WaveId;
 
 
 public class ConsoleClient extends JFrame implements Runnable{
 	private WaveConnector waveConn;
-    private JList inboxList;
-    private JList waveList;
+    private JList<String> inboxList;
+    private JList<String> waveList;
     private JLabel participantsText;
     private JLabel currentUserLab;
+    private final InboxListModel inboxModel = new InboxListModel();
+    private final WaveListModel waveModel = new WaveListModel();
+    private static final String TITLE = "GWave Client";
+    
+    //Runs listener callbacks on the Swing event dispatch thread
+    private static final Executor SWING_EXECUTOR = new Executor() {
+        public void execute(Runnable command) {
+            SwingUtilities.invokeLater(command);
+        }
+    };
     
     public static void main(String[] args) {
+        //Scripted use without a window, see HeadlessClient
+        if(args.length > 0 && args[0].equals("--headless")) {
+            HeadlessClient.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         new ConsoleClient(args);
     }
 
     //Constructor
     public ConsoleClient(String[] args) {
-    	try{
-    		waveConn = new WaveConnector(this);
-    		waveConn.connect(args[0], args[1], args[2]);
-        	new Thread(this).start();
-    	}catch(NoSuchMethodException e) {
-    		System.out.println(e);
-    		System.out.println("CRITICAL");
-    		waveConn.shutdown();
-    		System.exit(1);
-    	}catch(SecurityException e){
-    		System.out.println(e);
-    		System.out.println("CRITICAL");
-    		waveConn.shutdown();
-    		System.exit(1);
-    	}
+    	waveConn = new WaveConnector();
+    	waveConn.connect(args[0], args[1], args[2]);
+    	new Thread(this).start();
     }
 
     //Main thread
@@ -134,7 +139,9 @@ public class ConsoleClient extends JFrame implements Runnable{
         currentUserLab = new JLabel();
         inboxPa.add(currentUserLab);
         
-        inboxList = new JList();
+        inboxList = new JList<String>(inboxModel);
+        //A fixed cell size lets the list render only the visible rows
+        inboxList.setPrototypeCellValue("[NEW] (w+XXXXXXXXXX) XXXXXXXXXXXXXXXXXXXX");
         inboxList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         inboxList.setLayoutOrientation(JList.VERTICAL);
         inboxList.setVisibleRowCount(-1);
@@ -159,7 +166,12 @@ public class ConsoleClient extends JFrame implements Runnable{
             public void actionPerformed(ActionEvent e) {
             	int selectedIndex = inboxList.getSelectedIndex();
                 if(selectedIndex != -1) {
-                	waveConn.openWave(selectedIndex);
+                	try {
+                		waveConn.openWave(inboxModel.getWaveIdAt(selectedIndex));
+                	} catch(IndexOutOfBoundsException excep) {
+                		//Shown from the snapshot cache but not yet sent by the server
+                		System.out.println(excep.getMessage());
+                	}
                 	refresh();
                 }
             }
@@ -178,8 +190,8 @@ public class ConsoleClient extends JFrame implements Runnable{
         inboxPa.add(allReadButt);
         allReadButt.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
+               	//Listeners are told straight away, no need to refresh
                	waveConn.readAllWaves();
-               	refresh();
             }
         });
 
@@ -191,9 +203,10 @@ public class ConsoleClient extends JFrame implements Runnable{
         addParticipantButt.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
             	if(waveConn.isWaveOpen()) {
-	            	try{
-	            		waveConn.addParticipant(JOptionPane.showInputDialog(null, "Who do you want to add?"));
-	            	}catch(ParticipantManagementException excep){System.out.println(excep);}
+	            	String names = JOptionPane.showInputDialog(null, "Who do you want to add? Separate several with commas");
+	            	if(names != null) {
+	            		reportParticipantChanges(waveConn.addParticipants(Arrays.asList(names.trim().split("\\s*,\\s*"))));
+	            	}
 	            	refresh();
             	}
             }
@@ -204,9 +217,10 @@ public class ConsoleClient extends JFrame implements Runnable{
         removeParticipantButt.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
             	if(waveConn.isWaveOpen()) {
-	            	try{
-	            		waveConn.removeParticipant(JOptionPane.showInputDialog(null, "Who do you want to remove?"));
-	            	}catch(ParticipantManagementException excep){System.out.println(excep);}
+	            	String names = JOptionPane.showInputDialog(null, "Who do you want to remove? Separate several with commas");
+	            	if(names != null) {
+	            		reportParticipantChanges(waveConn.removeParticipants(Arrays.asList(names.trim().split("\\s*,\\s*"))));
+	            	}
 	            	refresh();
             	}
             }
@@ -245,7 +259,8 @@ public class ConsoleClient extends JFrame implements Runnable{
 
 
         //Main conversation
-        waveList = new JList();
+        waveList = new JList<String>(waveModel);
+        waveList.setPrototypeCellValue("user@example.com SAYS: XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX");
         waveList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         waveList.setLayoutOrientation(JList.VERTICAL);
         waveList.setVisibleRowCount(-1);
@@ -284,13 +299,47 @@ public class ConsoleClient extends JFrame implements Runnable{
 
 
         //---------------Finishing setting up window
-        this.setTitle("GWave Client");
+        this.setTitle(TITLE);
         this.setSize(1000, 600);
         this.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         this.setLocationRelativeTo(null);
         this.setVisible(true);
         
         
+        //---------------Listen for changes now that everything is in place
+        waveConn.addListener(new WaveConnectorAdapter() {
+            @Override
+            public void inboxChanged(InboxChanges changes) {
+                updateInbox();
+            }
+            
+            @Override
+            public void waveBodyChanged(WaveId waveId) {
+                if(waveConn.isWaveOpen() && waveConn.getOpenWaveId().equals(waveId)) {
+                    updateWaveBody();
+                }
+            }
+            
+            @Override
+            public void participantsChanged(WaveId waveId) {
+                if(waveConn.isWaveOpen() && waveConn.getOpenWaveId().equals(waveId)) {
+                    updateParticipants();
+                }
+            }
+            
+            @Override
+            public void refreshed(Set<WaveId> changedWaves) {
+                //We may have been removed from the open wave
+                if(!waveConn.isWaveOpen()) {
+                    updateWave();
+                }
+            }
+        }, SWING_EXECUTOR);
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                refresh();
+            }
+        });
 
 
     }
@@ -305,62 +354,45 @@ public class ConsoleClient extends JFrame implements Runnable{
 
     private void updateInbox(){
     	currentUserLab.setText(waveConn.getUserId());
-        ArrayList<InboxElement> inbox = waveConn.getInbox();
-
-        DefaultListModel model = new DefaultListModel();
-        StringBuilder tempStr;
-        InboxElement tempElem;
-        
-        for(int i = 0; i < inbox.size(); i++) {
-        	tempStr = new StringBuilder();
-        	tempElem = inbox.get(i);
-        	
-        	//Construct the element
-        	if(tempElem.getRead() == false) {
-        		tempStr.append("[NEW] ");
-        	}
-        	tempStr.append("(" + tempElem.getId() + ") ");
-        	tempStr.append(tempElem.getDigest());
-        	
-        	//Add to model
-        	model.addElement(tempStr);
-        }
-        inboxList.setModel(model);
+    	inboxModel.update(waveConn);
+    	int unread = waveConn.getUnreadCount();
+    	setTitle((unread > 0) ? TITLE + " (" + unread + " unread)" : TITLE);
     }
 
 
 
 
     private void updateWave() {
-    	//if(waveConn.isWaveOpen())
-    	//{
-	    	//Update participants
-	    	
-	    	String[] participants = waveConn.getWaveParticipants();
-	    	if(participants != null) {
-		    	StringBuilder participantsString = new StringBuilder();
-				for(int i = 0; i < participants.length; i++) {
-					participantsString.append(participants[i]);
-					participantsString.append(", ");
-				}
-		        participantsText.setText(participantsString.toString());
-	    	}
-	        
-	        
-	        
-	        //Update wave
-	        ArrayList<CWavelet> waveBody = waveConn.getWaveBody();
-	        if(waveBody != null) {
-				CWavelet tempWavelet;
-				DefaultListModel model = new DefaultListModel();
-				
-				for(int i = 0; i < waveBody.size(); i++) {
-					tempWavelet = waveBody.get(i);
-					model.addElement(tempWavelet.getAuthor() + " SAYS: " + tempWavelet.getText());
-				}
-				waveList.setModel(model);
-	        }
-    	//}
+    	updateParticipants();
+    	updateWaveBody();
+    }
+    
+    
+    
+    private void updateParticipants() {
+    	List<String> participants = waveConn.getWaveParticipantList();
+    	StringBuilder participantsString = new StringBuilder();
+    	for(String participant : participants) {
+    		participantsString.append(participant);
+    		participantsString.append(", ");
+    	}
+    	participantsText.setText(participantsString.toString());
+    }
+    
+    
+    
+    private void reportParticipantChanges(ParticipantChanges changes) {
+    	for(Map.Entry<String, ParticipantChanges.Outcome> outcome : changes.getOutcomes().entrySet()) {
+    		if(outcome.getValue() != ParticipantChanges.Outcome.SENT) {
+    			System.out.println(outcome.getKey() + ": " + outcome.getValue());
+    		}
+    	}
+    }
+    
+    
+    
+    private void updateWaveBody() {
+    	waveModel.update(waveConn.getWaveLines());
     }
 
 }
@@ -0,0 +1,117 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import com.google.common.collect.Maps;
+
+import org.waveprotocol.wave.examples.fedone.waveclient.common.ClientUtils;
+import org.waveprotocol.wave.model.document.operation.BufferedDocOp;
+import org.waveprotocol.wave.model.document.operation.DocOpComponentType;
+import org.waveprotocol.wave.model.operation.wave.WaveletDocumentOperation;
+
+import java.util.Map;
+
+/**
+* Tracks the number of items in each document of a wavelet so that an operation appending to a
+* document can be built without walking it. Element starts, element ends and each character count
+* as one item, the same as ClientUtils.findDocumentSize.
+*
+* The size of a document is measured once by a full scan and then adjusted by every operation the
+* server applies to it. If an operation does not fit the tracked size (it retains or deletes a
+* different number of items than the document is believed to hold) the size is dropped and the
+* document is scanned again the next time it is needed.
+*/
+public class DocumentSizes {
+
+	private final Map<String, Integer> sizes = Maps.newHashMap();
+	private int rescans = 0;
+
+
+
+	/**
+	* Adjust the size of a document by an operation the server has applied to it
+	*
+	* @param WaveletDocumentOperation received from the server
+	*/
+	public synchronized void apply(WaveletDocumentOperation operation) {
+		Integer size = sizes.get(operation.getDocumentId());
+		if(size == null) {
+			return;
+		}
+
+		BufferedDocOp op = operation.getOperation();
+		int input = 0;
+		int output = 0;
+		for(int i = 0; i < op.size(); i++) {
+			DocOpComponentType type = op.getType(i);
+			if(type == DocOpComponentType.RETAIN) {
+				input += op.getRetainItemCount(i);
+				output += op.getRetainItemCount(i);
+			} else if(type == DocOpComponentType.CHARACTERS) {
+				output += op.getCharactersString(i).length();
+			} else if(type == DocOpComponentType.ELEMENT_START || type == DocOpComponentType.ELEMENT_END) {
+				output++;
+			} else if(type == DocOpComponentType.DELETE_CHARACTERS) {
+				input += op.getDeleteCharactersString(i).length();
+			} else if(type == DocOpComponentType.DELETE_ELEMENT_START || type == DocOpComponentType.DELETE_ELEMENT_END) {
+				input++;
+			} else if(type == DocOpComponentType.REPLACE_ATTRIBUTES || type == DocOpComponentType.UPDATE_ATTRIBUTES) {
+				input++;
+				output++;
+			}
+		}
+
+		if(input == size.intValue()) {
+			sizes.put(operation.getDocumentId(), output);
+		} else {
+			//Out of step with the server, measure again next time
+			sizes.remove(operation.getDocumentId());
+		}
+	}
+
+
+
+	/**
+	* Returns the number of items in a document, scanning it only if the size is not known
+	*
+	* @param String containing the document id
+	* @param BufferedDocOp containing the current document, or null if it does not exist yet
+	* @return the number of items in the document
+	*/
+	public synchronized int getSize(String documentId, BufferedDocOp document) {
+		Integer size = sizes.get(documentId);
+		if(size == null) {
+			size = (document == null) ? 0 : ClientUtils.findDocumentSize(document);
+			sizes.put(documentId, size);
+			rescans++;
+		}
+		return size;
+	}
+
+
+
+	/**
+	* Returns how many times a document had to be scanned in full
+	*
+	* @return the number of full scans
+	*/
+	public synchronized int getRescanCount() {
+		return rescans;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+/**
+* What an export by {@link WaveExporter} wrote, and how long it took
+*/
+public class ExportStats {
+
+	private final int waves;
+	private final long lines;
+	private final long bytes;
+	private final long elapsedNanos;
+
+	/**
+	* Constructor requires the totals and the time they were written over
+	*
+	* @param int containing the number of waves written
+	* @param long containing the number of lines written
+	* @param long containing the number of bytes written
+	* @param long containing the nanoseconds since the export started
+	*/
+	public ExportStats(int waves, long lines, long bytes, long elapsedNanos) {
+		this.waves = waves;
+		this.lines = lines;
+		this.bytes = bytes;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	/**
+	* Returns the number of waves written
+	*
+	* @return the number of waves
+	*/
+	public int getWaves() {
+		return waves;
+	}
+
+	/**
+	* Returns the number of lines written, over all the waves
+	*
+	* @return the number of lines
+	*/
+	public long getLines() {
+		return lines;
+	}
+
+	/**
+	* Returns the number of bytes written
+	*
+	* @return the number of bytes
+	*/
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	* Returns how long the export took
+	*
+	* @return the elapsed time in nanoseconds
+	*/
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	* Returns the lines written per second
+	*
+	* @return lines per second, 0 if nothing has been written
+	*/
+	public double getLinesPerSecond() {
+		if(elapsedNanos <= 0) {
+			return 0;
+		}
+		return lines * 1e9 / elapsedNanos;
+	}
+
+	@Override
+	public String toString() {
+		return waves + " waves, " + lines + " lines, " + (bytes / 1024) + " KB in "
+				+ String.format("%.1f", elapsedNanos / 1e6) + " ms, "
+				+ String.format("%.0f", getLinesPerSecond()) + " lines/s";
+	}
+}
\ No newline at end of file
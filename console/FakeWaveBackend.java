@@ -0,0 +1,883 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.waveprotocol.wave.examples.fedone.common.CommonConstants;
+import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
+import org.waveprotocol.wave.examples.fedone.model.util.HashedVersionZeroFactoryImpl;
+import org.waveprotocol.wave.examples.fedone.util.Log;
+import org.waveprotocol.wave.examples.fedone.waveclient.common.ClientUtils;
+import org.waveprotocol.wave.examples.fedone.waveclient.common.ClientWaveView;
+import org.waveprotocol.wave.examples.fedone.waveclient.common.WaveletOperationListener;
+import org.waveprotocol.wave.model.document.operation.BufferedDocOp;
+import org.waveprotocol.wave.model.document.operation.DocOpComponentType;
+import org.waveprotocol.wave.model.document.operation.algorithm.Transformer;
+import org.waveprotocol.wave.model.document.operation.impl.BufferedDocOpImpl.DocOpBuilder;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.OperationException;
+import org.waveprotocol.wave.model.operation.OperationPair;
+import org.waveprotocol.wave.model.operation.wave.AddParticipant;
+import org.waveprotocol.wave.model.operation.wave.NoOp;
+import org.waveprotocol.wave.model.operation.wave.RemoveParticipant;
+import org.waveprotocol.wave.model.operation.wave.WaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletDocumentOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* A {@link WaveBackend} that keeps its waves in memory instead of talking to a server, for load
+* and latency testing. It can be filled with any number of waves, can generate a stream of
+* messages from other participants at a set rate, and can hold back the echo of everything the
+* client sends by a set latency.
+*
+* Like the reference backend every update is applied and passed to the listeners on a single
+* thread, and the index wave holds one wavelet per wave whose document is the wave's digest.
+*
+* A lost connection can be simulated with disconnect(), and reconnect() makes the backend a
+* client would get by connecting to the same "server" again. holdUpdates() keeps back what the
+* client sends until releaseUpdates(), which sends all of it on each wavelet as one update of
+* several deltas, as a server may when it is behind. loseNextEcho() applies the next delta sent
+* without telling the DeltaListeners about it, so it cannot be matched with what was sent.
+*/
+public class FakeWaveBackend implements WaveBackend {
+
+	private static final Log LOG = Log.get(FakeWaveBackend.class);
+	private static final String MAIN_DOCUMENT_ID = "main";
+	private static final String DIGEST_DOCUMENT_ID = "digest";
+	private static final int DIGEST_LENGTH = 80;
+	private static final int OTHER_PARTICIPANTS = 3;
+	//How often the delta stream wakes up, each tick sends the deltas due since the previous one
+	private static final long TICK_MILLIS = 10;
+	//How many of the latest document operations are kept to transform deltas sent against older versions
+	private static final int HISTORY_LENGTH = 10000;
+
+	private final ParticipantId user;
+	private final String domain;
+	private final ClientWaveView indexWave =
+			new ClientWaveView(new HashedVersionZeroFactoryImpl(), CommonConstants.INDEX_WAVE_ID);
+	private final Map<WaveId, ClientWaveView> waves = new ConcurrentHashMap<WaveId, ClientWaveView>();
+	private final List<WaveletOperationListener> listeners = new CopyOnWriteArrayList<WaveletOperationListener>();
+	private final List<DeltaListener> deltaListeners = new CopyOnWriteArrayList<DeltaListener>();
+	private final ScheduledExecutorService executor;
+	private final AtomicInteger nextWave = new AtomicInteger();
+	private final AtomicLong deltasDelivered = new AtomicLong();
+	private volatile long latencyNanos = 0;
+	private volatile boolean connected = true;
+	//Sends the waves of a reconnected backend once a listener is added
+	private Runnable replay = null;
+
+	//Only used on the backend thread
+	private final List<WaveId> streamWaves = Lists.newArrayList();
+	private final Map<WaveId, DocumentSizes> sizes = Maps.newHashMap();
+	private final Map<WaveletName, History> history = Maps.newHashMap();
+	private final Deque<WaveletName> historyOrder = new ArrayDeque<WaveletName>();
+	private final Random random = new Random(0);
+	private ScheduledFuture<?> stream = null;
+	private double streamDue = 0;
+	private long messages = 0;
+	private boolean holding = false;
+	private final List<SentDelta> held = Lists.newArrayList();
+	private boolean loseEcho = false;
+	private WaveletDelta unreported = null;
+
+
+
+	/**
+	* Constructor requires the user the client is connected as
+	*
+	* @param String containing the user, in the form user@domain
+	*/
+	public FakeWaveBackend(String userAtDomain) {
+		int at = userAtDomain.indexOf('@');
+		if(at < 0) {
+			throw new IllegalArgumentException("userAtDomain must be in form user@domain");
+		}
+		this.user = new ParticipantId(userAtDomain);
+		this.domain = userAtDomain.substring(at + 1);
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "FakeWaveBackend");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+
+
+	/**
+	* Add waves the user takes part in, each with some lines from other participants. Listeners
+	* are told about the new waves as they would be by a server. Returns once all are added
+	*
+	* @param int containing the number of waves to add
+	* @param int containing the number of lines in each
+	*/
+	public void populate(final int count, final int linesPerWave) {
+		await(executor.submit(new Runnable() {
+			public void run() {
+				for(int i = 0; i < count; i++) {
+					ClientWaveView wave = new ClientWaveView(new HashedVersionZeroFactoryImpl(), newWaveId());
+					List<WaveletOperation> ops = Lists.newArrayList();
+					ops.add(new AddParticipant(user));
+					for(int p = 0; p < OTHER_PARTICIPANTS; p++) {
+						ops.add(new AddParticipant(otherParticipant(p)));
+					}
+					if(linesPerWave > 0) {
+						List<String> lines = Lists.newArrayListWithCapacity(linesPerWave);
+						for(int l = 0; l < linesPerWave; l++) {
+							lines.add(nextMessage());
+						}
+						ops.add(new WaveletDocumentOperation(MAIN_DOCUMENT_ID,
+								WaveConnector.appendOperation(0, otherParticipant(0).getAddress(), lines)));
+					}
+					createWave(wave, ops);
+				}
+			}
+		}));
+	}
+
+
+
+	/**
+	* Set how long everything the client sends takes to come back from the "server"
+	*
+	* @param long containing the latency, 0 to deliver straight away
+	* @param TimeUnit of the latency
+	*/
+	public void setLatency(long latency, TimeUnit unit) {
+		if(latency < 0) {
+			throw new IllegalArgumentException("The latency must not be negative");
+		}
+		latencyNanos = unit.toNanos(latency);
+	}
+
+
+
+	/**
+	* Start sending single line messages from other participants to random waves
+	*
+	* @param double containing the number of deltas to send per second
+	*/
+	public synchronized void startDeltaStream(final double deltasPerSecond) {
+		if(deltasPerSecond <= 0) {
+			throw new IllegalArgumentException("The rate must be positive");
+		}
+		stopDeltaStream();
+		final double perTick = deltasPerSecond * TICK_MILLIS / 1000;
+		stream = executor.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				streamDue += perTick;
+				while(streamDue >= 1 && !streamWaves.isEmpty()) {
+					streamDue--;
+					sendStreamDelta();
+				}
+			}
+		}, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+
+
+	/**
+	* Stop sending messages from other participants
+	*/
+	public synchronized void stopDeltaStream() {
+		if(stream != null) {
+			stream.cancel(false);
+			stream = null;
+		}
+	}
+
+
+
+	/**
+	* Keep back the deltas sent from now on until releaseUpdates() is called
+	*/
+	public void holdUpdates() {
+		await(executor.submit(new Runnable() {
+			public void run() {
+				holding = true;
+			}
+		}));
+	}
+
+
+
+	/**
+	* Apply the next delta sent without telling the DeltaListeners about it, as if what the server
+	* sent back could not be told apart from the deltas of others
+	*/
+	public void loseNextEcho() {
+		await(executor.submit(new Runnable() {
+			public void run() {
+				loseEcho = true;
+			}
+		}));
+	}
+
+
+
+	/**
+	* Send the deltas kept back since holdUpdates(), those on the same wavelet in one update in the
+	* order they were sent. Each is transformed past the deltas applied since the version it was
+	* sent against, including those before it in the update. Returns once they are delivered
+	*/
+	public void releaseUpdates() {
+		await(executor.submit(new Runnable() {
+			public void run() {
+				holding = false;
+				Map<WaveletName, List<SentDelta>> updates = Maps.newLinkedHashMap();
+				for(SentDelta sent : held) {
+					List<SentDelta> update = updates.get(sent.wavelet.getWaveletName());
+					if(update == null) {
+						update = Lists.newArrayList();
+						updates.put(sent.wavelet.getWaveletName(), update);
+					}
+					update.add(sent);
+				}
+				held.clear();
+				for(List<SentDelta> update : updates.values()) {
+					deliverSent(update);
+				}
+			}
+		}));
+	}
+
+
+
+	/**
+	* Act as if the connection to the server had been lost. Nothing sent afterwards reaches the
+	* "server", nothing more reaches the listeners and isConnected() returns false
+	*/
+	public synchronized void disconnect() {
+		stopDeltaStream();
+		connected = false;
+	}
+
+
+
+	/**
+	* Returns a new backend connected to the same "server", holding the waves of this one as they
+	* are now. Like a server it sends every wave from the start once a listener is added, the index
+	* wave first, and each wave reaches the version it has here. Other participants may have written
+	* to some waves while the client was away, those arrive in the same delta as the rest of the wave.
+	* The delta stream is not started
+	*
+	* @param int containing the number of waves written to while the client was away
+	* @return the new {@link FakeWaveBackend}
+	*/
+	public FakeWaveBackend reconnect(final int changedWaves) {
+		final FakeWaveBackend next = new FakeWaveBackend(user.getAddress());
+		next.latencyNanos = latencyNanos;
+		final List<WaveletSnapshot> snapshots = Lists.newArrayList();
+		await(executor.submit(new Runnable() {
+			public void run() {
+				next.nextWave.set(nextWave.get());
+				next.messages = messages;
+				snapshots.addAll(WaveletSnapshot.of(indexWave));
+				int changed = 0;
+				for(WaveId waveId : streamWaves) {
+					for(WaveletSnapshot snapshot : WaveletSnapshot.of(waves.get(waveId))) {
+						snapshot.changed = snapshot.isConversationRoot() && changed < changedWaves;
+						snapshots.add(snapshot);
+					}
+					changed++;
+				}
+			}
+		}));
+		synchronized(next) {
+			next.replay = new Runnable() {
+				public void run() {
+					next.replay(snapshots);
+				}
+			};
+		}
+		return next;
+	}
+
+
+
+	/**
+	* Returns the number of deltas passed to the listeners so far
+	*
+	* @return the number of deltas
+	*/
+	public long getDeltasDelivered() {
+		return deltasDelivered.get();
+	}
+
+
+
+	/**
+	* Returns the number of waves the user can see
+	*
+	* @return the number of waves
+	*/
+	public int getWaveCount() {
+		return waves.size();
+	}
+
+
+
+	public ClientWaveView createNewWave() {
+		final ClientWaveView wave = new ClientWaveView(new HashedVersionZeroFactoryImpl(), newWaveId());
+		later(new Runnable() {
+			public void run() {
+				createWave(wave, Collections.<WaveletOperation>singletonList(new AddParticipant(user)));
+			}
+		});
+		return wave;
+	}
+
+	public ClientWaveView getWave(WaveId waveId) {
+		return waves.get(waveId);
+	}
+
+	public ClientWaveView getIndexWave() {
+		return indexWave;
+	}
+
+	public void sendWaveletOperation(WaveletData wavelet, WaveletOperation operation) {
+		sendWaveletDelta(wavelet, new WaveletDelta(user, Collections.singletonList(operation)));
+	}
+
+	public void sendWaveletDelta(WaveletData wavelet, WaveletDelta delta) {
+		//Like the client library, the delta is sent against the version the client has seen
+		ClientWaveView sentFrom = waves.get(wavelet.getWaveletName().waveId);
+		HashedVersion seen = (sentFrom == null) ? null : sentFrom.getWaveletVersion(wavelet.getWaveletName().waveletId);
+		sendWaveletDelta(wavelet, delta, seen);
+	}
+
+	public void sendWaveletDelta(WaveletData wavelet, WaveletDelta delta, HashedVersion targetVersion) {
+		final SentDelta sent = new SentDelta(wavelet, (targetVersion == null) ? 0 : targetVersion.getVersion(), delta);
+		later(new Runnable() {
+			public void run() {
+				if(holding) {
+					held.add(sent);
+				} else {
+					deliverSent(Collections.singletonList(sent));
+				}
+			}
+		});
+	}
+
+	public ParticipantId getUserId() {
+		return user;
+	}
+
+	public void addWaveletOperationListener(WaveletOperationListener listener) {
+		listeners.add(listener);
+		Runnable pending;
+		synchronized(this) {
+			pending = replay;
+			replay = null;
+		}
+		if(pending != null) {
+			later(pending);
+		}
+	}
+
+	public void removeWaveletOperationListener(WaveletOperationListener listener) {
+		listeners.remove(listener);
+	}
+
+	public void addDeltaListener(DeltaListener listener) {
+		deltaListeners.add(listener);
+	}
+
+	public void removeDeltaListener(DeltaListener listener) {
+		deltaListeners.remove(listener);
+	}
+
+	public boolean isConnected() {
+		return connected;
+	}
+
+	public void shutdown() {
+		connected = false;
+		executor.shutdownNow();
+	}
+
+
+
+	/*
+	* Runs a task on the backend thread once the latency has passed
+	*/
+	private void later(Runnable task) {
+		if(!executor.isShutdown()) {
+			executor.schedule(task, latencyNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/*
+	* Creates the conversation root of a new wave, applies the first operations and indexes it
+	*/
+	private void createWave(ClientWaveView wave, List<WaveletOperation> ops) {
+		WaveletData root = wave.createWavelet(ClientUtils.getConversationRootId(wave));
+		waves.put(wave.getWaveId(), wave);
+		streamWaves.add(wave.getWaveId());
+		deliver(wave, root, user, ops);
+	}
+
+	/*
+	* Sends the waves of another backend as a server sends them to a client that has just connected,
+	* one delta per wavelet ending at the version the wavelet had there
+	*/
+	private void replay(List<WaveletSnapshot> snapshots) {
+		for(WaveletSnapshot snapshot : snapshots) {
+			boolean index = snapshot.waveId.equals(indexWave.getWaveId());
+			ClientWaveView wave = index ? indexWave : waves.get(snapshot.waveId);
+			if(wave == null) {
+				wave = new ClientWaveView(new HashedVersionZeroFactoryImpl(), snapshot.waveId);
+				waves.put(snapshot.waveId, wave);
+				streamWaves.add(snapshot.waveId);
+			}
+			WaveletData wavelet = wave.createWavelet(snapshot.waveletId);
+			List<WaveletOperation> ops = Lists.newArrayList();
+			for(ParticipantId participant : snapshot.participants) {
+				ops.add(new AddParticipant(participant));
+			}
+			for(Map.Entry<String, BufferedDocOp> document : snapshot.documents.entrySet()) {
+				ops.add(new WaveletDocumentOperation(document.getKey(), document.getValue()));
+			}
+			long version = snapshot.version;
+			if(snapshot.changed) {
+				BufferedDocOp document = snapshot.documents.get(MAIN_DOCUMENT_ID);
+				int size = (document == null) ? 0 : ClientUtils.findDocumentSize(document);
+				ops.add(new WaveletDocumentOperation(MAIN_DOCUMENT_ID, WaveConnector.appendOperation(size,
+						otherParticipant(0).getAddress(), Collections.singletonList(nextMessage()))));
+				version++;
+			}
+			//deliver() counts one version per operation, start where that ends at the wanted version
+			wave.setWaveletVersion(snapshot.waveletId, HashedVersion.unsigned(Math.max(0, version - ops.size())));
+			deliver(wave, wavelet, otherParticipant(0), ops);
+		}
+	}
+
+	/*
+	* Appends a message from another participant to a random wave
+	*/
+	private void sendStreamDelta() {
+		WaveId waveId = streamWaves.get(random.nextInt(streamWaves.size()));
+		ClientWaveView wave = waves.get(waveId);
+		WaveletData root = ClientUtils.getConversationRoot(wave);
+		BufferedDocOp document = root.getDocuments().get(MAIN_DOCUMENT_ID);
+		int size = (document == null) ? 0 : sizesOf(waveId).getSize(MAIN_DOCUMENT_ID, document);
+		ParticipantId author = otherParticipant(random.nextInt(OTHER_PARTICIPANTS));
+		deliver(wave, root, author, Collections.<WaveletOperation>singletonList(new WaveletDocumentOperation(MAIN_DOCUMENT_ID,
+				WaveConnector.appendOperation(size, author.getAddress(), Collections.singletonList(nextMessage())))));
+	}
+
+	/*
+	* Delivers deltas sent by the client to one wavelet as a single update, dropping those that can
+	* no longer be applied
+	*/
+	private void deliverSent(List<SentDelta> update) {
+		WaveletData wavelet = update.get(0).wavelet;
+		if(!connected) {
+			LOG.warning("Delta sent after the connection was lost to " + wavelet.getWaveletName());
+			return;
+		}
+		ClientWaveView wave = waves.get(wavelet.getWaveletName().waveId);
+		if(wave == null || wave.getWavelet(wavelet.getWaveletName().waveletId) != wavelet) {
+			LOG.warning("Delta sent to unknown wavelet " + wavelet.getWaveletName());
+			return;
+		}
+		List<WaveletDelta> deltas = Lists.newArrayList();
+		//The document operations of the deltas before in the update, applied after those now in the wavelet
+		List<AppliedOperation> before = Lists.newArrayList();
+		long version = wave.getWaveletVersion(wavelet.getWaveletName().waveletId).getVersion();
+		for(SentDelta sent : update) {
+			List<WaveletOperation> ops;
+			try {
+				ops = transform(wave, wavelet, sent.targetVersion, sent.delta.getOperations(), before, version);
+			} catch(OperationException e) {
+				LOG.warning("Delta sent against version " + sent.targetVersion + " of " + wavelet.getWaveletName()
+						+ " could not be transformed", e);
+				continue;
+			}
+			if(ops == null) {
+				LOG.warning("Delta sent against version " + sent.targetVersion + " of " + wavelet.getWaveletName()
+						+ " is too old to transform");
+				continue;
+			}
+			for(WaveletOperation op : ops) {
+				if(op instanceof WaveletDocumentOperation) {
+					before.add(new AppliedOperation(version, (WaveletDocumentOperation) op));
+				}
+				version++;
+			}
+			WaveletDelta delta = new WaveletDelta(sent.delta.getAuthor(), ops);
+			if(loseEcho) {
+				loseEcho = false;
+				unreported = delta;
+			}
+			deltas.add(delta);
+		}
+		if(!deltas.isEmpty()) {
+			deliver(wave, wavelet, deltas);
+		}
+	}
+
+	/*
+	* Transforms the operations of a delta past the document operations applied to the wavelet since
+	* the version it was sent against, as a server does, then past those of the deltas before it in
+	* the same update, which take the wavelet to the given version. Returns null if they are no
+	* longer all known
+	*/
+	private List<WaveletOperation> transform(ClientWaveView wave, WaveletData wavelet, long targetVersion,
+			List<WaveletOperation> ops, List<AppliedOperation> before, long version) throws OperationException {
+		WaveletName name = wavelet.getWaveletName();
+		if(targetVersion >= version) {
+			return ops;
+		}
+		List<AppliedOperation> serverOps = Lists.newArrayList();
+		if(targetVersion < wave.getWaveletVersion(name.waveletId).getVersion()) {
+			History applied = history.get(name);
+			if(applied == null || targetVersion < applied.since) {
+				return null;
+			}
+			serverOps.addAll(applied.operations);
+		}
+		serverOps.addAll(before);
+
+		List<WaveletOperation> transformed = Lists.newArrayList(ops);
+		for(AppliedOperation serverOp : serverOps) {
+			if(serverOp.version < targetVersion) {
+				continue;
+			}
+			String documentId = serverOp.operation.getDocumentId();
+			BufferedDocOp server = serverOp.operation.getOperation();
+			for(int i = 0; i < transformed.size(); i++) {
+				WaveletOperation op = transformed.get(i);
+				if(op instanceof WaveletDocumentOperation
+						&& ((WaveletDocumentOperation) op).getDocumentId().equals(documentId)) {
+					OperationPair<BufferedDocOp> pair =
+							Transformer.transform(((WaveletDocumentOperation) op).getOperation(), server);
+					transformed.set(i, new WaveletDocumentOperation(documentId, pair.clientOp()));
+					server = pair.serverOp();
+				}
+			}
+		}
+		return transformed;
+	}
+
+	/*
+	* Keeps a document operation applied to a wavelet for transform(), dropping the oldest one kept
+	* for any wavelet once there are too many
+	*/
+	private void record(WaveletName name, long version, WaveletDocumentOperation op) {
+		history.get(name).operations.add(new AppliedOperation(version, op));
+		historyOrder.add(name);
+		if(historyOrder.size() > HISTORY_LENGTH) {
+			History oldest = history.get(historyOrder.remove());
+			if(oldest != null && !oldest.operations.isEmpty()) {
+				oldest.since = oldest.operations.remove().version + 1;
+			}
+		}
+	}
+
+	private void deliver(ClientWaveView wave, WaveletData wavelet, ParticipantId author, List<WaveletOperation> ops) {
+		deliver(wave, wavelet, Collections.singletonList(new WaveletDelta(author, ops)));
+	}
+
+	/*
+	* Applies an update of one or more deltas to a wavelet and tells the listeners about it in the
+	* same order as the reference backend, every delta of the update before any of its operations.
+	* Waves the user has left are dropped, the index follows the conversation root. Once disconnected
+	* the waves are left as they were
+	*/
+	private void deliver(ClientWaveView wave, WaveletData wavelet, List<WaveletDelta> deltas) {
+		if(!connected) {
+			return;
+		}
+		WaveletId waveletId = wavelet.getWaveletName().waveletId;
+		HashedVersion version = wave.getWaveletVersion(waveletId);
+		if(wave != indexWave && !history.containsKey(wavelet.getWaveletName())) {
+			history.put(wavelet.getWaveletName(), new History(version.getVersion()));
+		}
+		List<WaveletOperation> ops = Lists.newArrayList();
+		for(WaveletDelta delta : deltas) {
+			for(DeltaListener listener : deltaListeners) {
+				try {
+					if(delta != unreported) {
+						listener.deltaReceived(wavelet.getWaveletName(), delta.getAuthor(), version.getVersion() + ops.size(),
+								delta.getOperations().size());
+					}
+				} catch(RuntimeException e) {
+					LOG.warning("Listener " + listener + " failed", e);
+				}
+			}
+			ops.addAll(delta.getOperations());
+		}
+		for(WaveletOperationListener listener : listeners) {
+			try {
+				listener.onDeltaSequenceStart(wavelet);
+			} catch(RuntimeException e) {
+				LOG.warning("Listener " + listener + " failed", e);
+			}
+		}
+
+		long appliedAt = version.getVersion();
+		for(WaveletOperation op : ops) {
+			appliedAt++;
+			try {
+				op.apply(wavelet);
+			} catch(OperationException e) {
+				LOG.warning("OperationException when applying " + op + " to " + wavelet.getWaveletName(), e);
+				continue;
+			}
+			if(op instanceof WaveletDocumentOperation && wave != indexWave) {
+				sizesOf(wave.getWaveId()).apply((WaveletDocumentOperation) op);
+				record(wavelet.getWaveletName(), appliedAt - 1, (WaveletDocumentOperation) op);
+			}
+			for(WaveletOperationListener listener : listeners) {
+				try {
+					notify(listener, wavelet, op);
+				} catch(RuntimeException e) {
+					LOG.warning("Listener " + listener + " failed", e);
+				}
+			}
+		}
+
+		wave.setWaveletVersion(waveletId, HashedVersion.unsigned(version.getVersion() + ops.size()));
+		boolean left = !wavelet.getParticipants().contains(user);
+		if(left) {
+			wave.removeWavelet(waveletId);
+			history.remove(wavelet.getWaveletName());
+		}
+		deltasDelivered.addAndGet(deltas.size());
+
+		for(WaveletOperationListener listener : listeners) {
+			try {
+				listener.onDeltaSequenceEnd(wavelet);
+			} catch(RuntimeException e) {
+				LOG.warning("Listener " + listener + " failed", e);
+			}
+		}
+
+		if(wave != indexWave && waveletId.equals(ClientUtils.getConversationRootId(wave))) {
+			if(left) {
+				waves.remove(wave.getWaveId());
+				streamWaves.remove(wave.getWaveId());
+				sizes.remove(wave.getWaveId());
+			}
+			updateIndex(wave.getWaveId(), wavelet, left);
+		}
+	}
+
+	private static void notify(WaveletOperationListener listener, WaveletData wavelet, WaveletOperation op) {
+		if(op instanceof WaveletDocumentOperation) {
+			listener.waveletDocumentUpdated(wavelet, (WaveletDocumentOperation) op);
+		} else if(op instanceof AddParticipant) {
+			listener.participantAdded(wavelet, ((AddParticipant) op).getParticipantId());
+		} else if(op instanceof RemoveParticipant) {
+			listener.participantRemoved(wavelet, ((RemoveParticipant) op).getParticipantId());
+		} else if(op instanceof NoOp) {
+			listener.noOp(wavelet);
+		}
+	}
+
+	/*
+	* Brings the index wavelet of a wave up to date. The digest is the start of the latest line
+	*/
+	private void updateIndex(WaveId waveId, WaveletData root, boolean left) {
+		WaveletId indexId = WaveletId.deserialise(waveId.serialise());
+		WaveletData indexWavelet = indexWave.getWavelet(indexId);
+		List<WaveletOperation> ops = Lists.newArrayList();
+		if(left) {
+			if(indexWavelet != null) {
+				ops.add(new RemoveParticipant(user));
+				deliver(indexWave, indexWavelet, user, ops);
+			}
+			return;
+		}
+		if(indexWavelet == null) {
+			indexWavelet = indexWave.createWavelet(indexId);
+			ops.add(new AddParticipant(user));
+		}
+
+		String digest = latestLine(root.getDocuments().get(MAIN_DOCUMENT_ID));
+		BufferedDocOp current = indexWavelet.getDocuments().get(DIGEST_DOCUMENT_ID);
+		String currentDigest = (current == null) ? "" : ClientUtils.render(Collections.singletonList(current));
+		if(!digest.equals(currentDigest)) {
+			DocOpBuilder docOp = new DocOpBuilder();
+			if(currentDigest.length() > 0) {
+				docOp.deleteCharacters(currentDigest);
+			}
+			if(digest.length() > 0) {
+				docOp.characters(digest);
+			}
+			ops.add(new WaveletDocumentOperation(DIGEST_DOCUMENT_ID, docOp.finish()));
+		}
+		if(!ops.isEmpty()) {
+			deliver(indexWave, indexWavelet, user, ops);
+		}
+	}
+
+	/*
+	* Returns the start of the text after the last line element of a document
+	*/
+	private static String latestLine(BufferedDocOp document) {
+		if(document == null) {
+			return "";
+		}
+		StringBuilder text = new StringBuilder();
+		for(int i = document.size() - 1; i >= 0; i--) {
+			if(document.getType(i) == DocOpComponentType.CHARACTERS) {
+				text.insert(0, document.getCharactersString(i));
+			} else if(document.getType(i) == DocOpComponentType.ELEMENT_START) {
+				break;
+			}
+		}
+		return (text.length() > DIGEST_LENGTH) ? text.substring(0, DIGEST_LENGTH) : text.toString();
+	}
+
+	private DocumentSizes sizesOf(WaveId waveId) {
+		DocumentSizes documentSizes = sizes.get(waveId);
+		if(documentSizes == null) {
+			documentSizes = new DocumentSizes();
+			sizes.put(waveId, documentSizes);
+		}
+		return documentSizes;
+	}
+
+	private WaveId newWaveId() {
+		return new WaveId(domain, "w+fake" + nextWave.incrementAndGet());
+	}
+
+	private ParticipantId otherParticipant(int n) {
+		return new ParticipantId("other" + n + "@" + domain);
+	}
+
+	private String nextMessage() {
+		return "Synthetic message " + (++messages) + " from the fake backend";
+	}
+
+	private static void await(Future<?> task) {
+		try {
+			task.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch(ExecutionException e) {
+			throw new IllegalStateException("Fake backend task failed", e.getCause());
+		}
+	}
+
+
+
+	/*
+	* The document operations kept for a wavelet, all of those applied from version since onwards
+	*/
+	private static class History {
+		private final Deque<AppliedOperation> operations = new ArrayDeque<AppliedOperation>();
+		private long since;
+
+		private History(long since) {
+			this.since = since;
+		}
+	}
+
+	/*
+	* A delta sent by the client and the version of the wavelet it was sent against
+	*/
+	private static class SentDelta {
+		private final WaveletData wavelet;
+		private final long targetVersion;
+		private final WaveletDelta delta;
+
+		private SentDelta(WaveletData wavelet, long targetVersion, WaveletDelta delta) {
+			this.wavelet = wavelet;
+			this.targetVersion = targetVersion;
+			this.delta = delta;
+		}
+	}
+
+
+
+	/*
+	* A document operation and the version of the wavelet it was applied at
+	*/
+	private static class AppliedOperation {
+		private final long version;
+		private final WaveletDocumentOperation operation;
+
+		private AppliedOperation(long version, WaveletDocumentOperation operation) {
+			this.version = version;
+			this.operation = operation;
+		}
+	}
+
+
+
+	/*
+	* A wavelet as it is at one point in time, to send again to a reconnected client
+	*/
+	private static class WaveletSnapshot {
+		private final WaveId waveId;
+		private final WaveletId waveletId;
+		private final List<ParticipantId> participants;
+		private final Map<String, BufferedDocOp> documents;
+		private final long version;
+		private boolean changed = false;
+
+		private WaveletSnapshot(ClientWaveView wave, WaveletData wavelet) {
+			waveId = wave.getWaveId();
+			waveletId = wavelet.getWaveletName().waveletId;
+			participants = Lists.newArrayList(wavelet.getParticipants());
+			documents = Maps.newLinkedHashMap(wavelet.getDocuments());
+			version = wave.getWaveletVersion(waveletId).getVersion();
+		}
+
+		private boolean isConversationRoot() {
+			return waveletId.equals(ClientUtils.getConversationRootId(waveId));
+		}
+
+		private static List<WaveletSnapshot> of(ClientWaveView wave) {
+			List<WaveletSnapshot> snapshots = Lists.newArrayList();
+			for(WaveletData wavelet : wave.getWavelets()) {
+				snapshots.add(new WaveletSnapshot(wave, wavelet));
+			}
+			return snapshots;
+		}
+	}
+}
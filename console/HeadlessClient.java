@@ -0,0 +1,365 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.waveprotocol.wave.model.id.WaveId;
+
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+* Runs a script of commands against {@link WaveConnector} without a user interface, for
+* provisioning waves and smoke testing a server at volume. No AWT or Swing class is used.
+*
+* Commands are sent without waiting for the server, up to a number in flight at once, and then
+* waited for together. Commands work on the current wave, which is the last wave created or
+* opened. At the end the number of operations per second and how long the server took to
+* acknowledge them are reported, and the exit status is 1 if any operation failed.
+*
+* Run it with ConsoleClient --headless <user@domain> <server> <port> [script], or with
+* --fake <user@domain> [script] against an in-memory {@link FakeWaveBackend}. The script is read
+* from standard input if no file, or -, is given. One command per line, # starts a comment:
+*
+*   create [count]         create waves, the last one becomes the current wave
+*   open <wave id|index>   make a wave current, by id such as example.com!w+abc or inbox position
+*   append <text>          append a line to the current wave
+*   add <address>...       add participants to the current wave, sent together as one delta
+*   remove <address>...    remove participants from the current wave, sent together
+*   inbox                  print every wave of the inbox: id, read or unread, and digest
+*   export <file>          write every wave of the inbox to a file as JSON, see WaveExporter
+*   wait                   wait for every operation sent so far
+*   batch <count>          set how many operations may be in flight at once, 100 by default
+*   repeat <count> <command>  run a command count times, replacing %i with 0, 1, 2...
+*/
+public class HeadlessClient {
+
+	private static final int DEFAULT_BATCH = 100;
+	private static final long ACKNOWLEDGE_TIMEOUT_SECONDS = 60;
+	private static final int INBOX_PAGE = 500;
+	private static final int EXPORT_REPORTS = 10;
+
+	private final WaveConnector waveConn;
+	private final PrintStream out;
+	private final List<PendingOperation> inFlight = new ArrayList<PendingOperation>();
+	private final LatencyHistogram acknowledged = new LatencyHistogram();
+	private final Map<String, Integer> counts = Maps.newTreeMap();
+	//Wave and address of each participant change in flight
+	private final Set<String> participantsInFlight = Sets.newHashSet();
+	private int batchSize = DEFAULT_BATCH;
+	private int operations = 0;
+	private int failures = 0;
+	//The current wave, or the creation that will give it once acknowledged
+	private WaveId currentWave = null;
+	private WaveFuture<Acknowledgement> creating = null;
+
+
+
+	public static void main(String[] args) {
+		if(args.length < 2 || (!args[0].equals("--fake") && args.length < 3)) {
+			System.err.println("usage: HeadlessClient <user@domain> <server> <port> [script]");
+			System.err.println("       HeadlessClient --fake <user@domain> [script]");
+			System.exit(2);
+		}
+		WaveConnector waveConn = new WaveConnector();
+		//Nothing is shown, so there is nothing to show sooner
+		waveConn.setSnapshotCacheFile(null);
+		String script;
+		if(args[0].equals("--fake")) {
+			waveConn.connect(new FakeWaveBackend(args[1]));
+			script = (args.length > 2) ? args[2] : "-";
+		} else {
+			waveConn.connect(args[0], args[1], args[2]);
+			script = (args.length > 3) ? args[3] : "-";
+		}
+
+		boolean succeeded = false;
+		try {
+			Reader reader = script.equals("-") ? new InputStreamReader(System.in) : new FileReader(script);
+			try {
+				succeeded = new HeadlessClient(waveConn, System.out).run(new BufferedReader(reader));
+			} finally {
+				reader.close();
+			}
+		} catch(IOException e) {
+			System.err.println("Could not read the script: " + e.getMessage());
+		} finally {
+			waveConn.shutdown();
+		}
+		System.exit(succeeded ? 0 : 1);
+	}
+
+
+
+	/**
+	* Constructor requires a connected {@link WaveConnector} and where to print to
+	*
+	* @param WaveConnector connected to the server
+	* @param PrintStream to print the inbox, errors and the report to
+	*/
+	public HeadlessClient(WaveConnector waveConn, PrintStream out) {
+		this.waveConn = waveConn;
+		this.out = out;
+	}
+
+
+
+	/**
+	* Run every command of a script, wait for the server to acknowledge them and print a report
+	*
+	* @param BufferedReader of the script
+	* @return true if every operation succeeded
+	* @throws IOException if the script cannot be read
+	*/
+	public boolean run(BufferedReader script) throws IOException {
+		long start = System.nanoTime();
+		String line;
+		int lineNumber = 0;
+		while((line = script.readLine()) != null) {
+			lineNumber++;
+			line = line.trim();
+			if(line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			try {
+				execute(line);
+			} catch(RuntimeException e) {
+				fail("line " + lineNumber + " (" + line + ")", e);
+			}
+		}
+		waitForAll();
+		report(System.nanoTime() - start);
+		return failures == 0;
+	}
+
+
+
+	//Run one command of the script
+	private void execute(String line) {
+		String[] words = line.split("\\s+", 2);
+		String command = words[0];
+		String argument = (words.length > 1) ? words[1] : "";
+
+		if(command.equals("repeat")) {
+			String[] repeated = argument.split("\\s+", 2);
+			if(repeated.length < 2) {
+				throw new IllegalArgumentException("repeat needs a count and a command");
+			}
+			int times = Integer.parseInt(repeated[0]);
+			for(int i = 0; i < times; i++) {
+				execute(repeated[1].replace("%i", String.valueOf(i)));
+			}
+		} else if(command.equals("create")) {
+			int times = argument.isEmpty() ? 1 : Integer.parseInt(argument);
+			for(int i = 0; i < times; i++) {
+				creating = waveConn.createWaveAsync();
+				currentWave = null;
+				send(command, creating);
+			}
+		} else if(command.equals("open")) {
+			creating = null;
+			if(argument.matches("\\d+")) {
+				currentWave = waveConn.getInbox(Integer.parseInt(argument), 1).get(0).getWaveId();
+			} else {
+				currentWave = WaveId.deserialise(argument);
+			}
+		} else if(command.equals("append")) {
+			send(command, waveConn.appendLinesAsync(currentWave(), Collections.singletonList(argument)));
+		} else if(command.equals("add") || command.equals("remove")) {
+			List<String> addresses = Arrays.asList(argument.split("[\\s,]+"));
+			for(String address : addresses) {
+				changingParticipant(address);
+			}
+			ParticipantChanges changes = command.equals("add")
+					? waveConn.addParticipants(addresses) : waveConn.removeParticipants(addresses);
+			for(Map.Entry<String, ParticipantChanges.Outcome> outcome : changes.getOutcomes().entrySet()) {
+				if(outcome.getValue() != ParticipantChanges.Outcome.SENT) {
+					fail(command + " " + outcome.getKey(), outcome.getValue().toString());
+				}
+			}
+			if(!changes.getSent().isEmpty()) {
+				send(command, changes.getAcknowledgement());
+			}
+		} else if(command.equals("inbox")) {
+			waitForAll();
+			printInbox();
+		} else if(command.equals("export")) {
+			if(argument.isEmpty()) {
+				throw new IllegalArgumentException("export needs a file to write to");
+			}
+			waitForAll();
+			export(argument);
+		} else if(command.equals("wait")) {
+			waitForAll();
+		} else if(command.equals("batch")) {
+			batchSize = Math.max(1, Integer.parseInt(argument));
+		} else {
+			throw new IllegalArgumentException("Unknown command " + command);
+		}
+	}
+
+
+
+	//Keep an operation in flight, waiting for all of them once the batch is full
+	private void send(String command, WaveFuture<Acknowledgement> future) {
+		Integer count = counts.get(command);
+		counts.put(command, (count == null) ? 1 : count + 1);
+		inFlight.add(new PendingOperation(command, future));
+		if(inFlight.size() >= batchSize) {
+			waitForAll();
+		}
+	}
+
+	//Wait for every operation in flight, counting the ones that failed
+	private void waitForAll() {
+		for(PendingOperation operation : inFlight) {
+			operations++;
+			try {
+				acknowledged.record(acknowledge(operation.future).getLatencyNanos());
+			} catch(Exception e) {
+				fail(operation.command, e);
+			}
+		}
+		inFlight.clear();
+		participantsInFlight.clear();
+	}
+
+	//The current wave, waiting for it to be created if need be
+	private WaveId currentWave() {
+		if(currentWave == null && creating != null) {
+			try {
+				currentWave = acknowledge(creating).getWaveId();
+			} catch(Exception e) {
+				throw new IllegalStateException("The current wave could not be created", e);
+			} finally {
+				creating = null;
+			}
+		}
+		if(currentWave == null) {
+			throw new IllegalStateException("No current wave, create or open one first");
+		}
+		return currentWave;
+	}
+
+	/*
+	* Participants can only be changed on the open wave, and whether a participant can be added or
+	* removed is checked against the wave as the server last sent it. So a change to a participant
+	* already being changed waits for the operations in flight first
+	*/
+	private void changingParticipant(String address) {
+		WaveId waveId = currentWave();
+		if(!participantsInFlight.add(waveId.serialise() + " " + address)) {
+			waitForAll();
+			participantsInFlight.add(waveId.serialise() + " " + address);
+		}
+		if(!waveConn.isWaveOpen() || !waveConn.getOpenWaveId().equals(waveId)) {
+			waveConn.openWave(waveId);
+		}
+	}
+
+	private Acknowledgement acknowledge(WaveFuture<Acknowledgement> future)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		return future.get(ACKNOWLEDGE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+	}
+
+
+
+	private void printInbox() {
+		InboxCursor cursor = waveConn.getInboxCursor(INBOX_PAGE);
+		while(cursor.hasNext()) {
+			InboxElement element = cursor.next();
+			out.println(element.getWaveId().serialise() + "\t" + (element.getRead() ? "read" : "unread")
+					+ "\t" + element.getDigest().replace('\n', ' '));
+		}
+	}
+
+	//Write the inbox to a file, printing the progress every tenth of the waves
+	private void export(String file) {
+		WaveExporter.Progress progress = new WaveExporter.Progress() {
+			public void exported(int waves, int totalWaves, long lines, long bytes) {
+				if(waves % Math.max(1, totalWaves / EXPORT_REPORTS) == 0 || waves == totalWaves) {
+					out.println(String.format("exported %d of %d waves, %d lines, %d KB", waves, totalWaves, lines, bytes / 1024));
+				}
+			}
+		};
+		try {
+			FileOutputStream stream = new FileOutputStream(file);
+			try {
+				out.println("exported " + waveConn.exportInbox(stream.getChannel(), progress).get());
+			} finally {
+				stream.close();
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			fail("export " + file, e);
+		} catch(Exception e) {
+			fail("export " + file, e);
+		}
+	}
+
+	private void fail(String what, Throwable cause) {
+		Throwable reported = (cause instanceof ExecutionException && cause.getCause() != null) ? cause.getCause() : cause;
+		fail(what, reported.toString());
+	}
+
+	private void fail(String what, String reason) {
+		failures++;
+		out.println("FAILED " + what + ": " + reason);
+	}
+
+	private void report(long elapsedNanos) {
+		double seconds = elapsedNanos / 1e9;
+		out.println(String.format("%d operations in %.2f s, %.0f operations/s, %d failed %s",
+				operations, seconds, operations / Math.max(seconds, 1e-9), failures, counts));
+		if(acknowledged.getCount() > 0) {
+			out.println("Acknowledged: " + acknowledged);
+		}
+	}
+
+
+
+	/*
+	* An operation sent to the server along with the command that sent it
+	*/
+	private static class PendingOperation {
+		private final String command;
+		private final WaveFuture<Acknowledgement> future;
+
+		PendingOperation(String command, WaveFuture<Acknowledgement> future) {
+			this.command = command;
+			this.future = future;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import org.waveprotocol.wave.model.id.WaveId;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+* The difference between two revisions of the inbox. Returned by
+* {@link WaveConnector}.getInboxChanges(long). Pass the value of getRevision() to the next
+* call to receive only what changed after this set of changes.
+*
+* If the requested revision is too old to be answered incrementally the changes are a reset:
+* every current entry is reported as added and the caller should discard what it held before.
+*/
+public class InboxChanges {
+
+	private final long revision;
+	private final boolean reset;
+	private final List<InboxElement> added;
+	private final List<InboxElement> modified;
+	private final List<WaveId> removed;
+	private final int unreadCount;
+
+	/**
+	* Constructor to create a set of changes
+	*
+	* @param long containing the inbox revision these changes bring the caller up to
+	* @param boolean true if the changes replace everything the caller held
+	* @param List of {@link InboxElement} added since the requested revision
+	* @param List of {@link InboxElement} whose digest or read status changed
+	* @param List of {@link WaveId} removed from the inbox
+	* @param int containing the number of unread waves as of the revision
+	*/
+	public InboxChanges(long revision, boolean reset, List<InboxElement> added,
+			List<InboxElement> modified, List<WaveId> removed, int unreadCount) {
+		this.revision = revision;
+		this.reset = reset;
+		this.added = Collections.unmodifiableList(added);
+		this.modified = Collections.unmodifiableList(modified);
+		this.removed = Collections.unmodifiableList(removed);
+		this.unreadCount = unreadCount;
+	}
+
+	/**
+	* Returns the inbox revision these changes are current to
+	*
+	* @return the revision to pass to the next request for changes
+	*/
+	public long getRevision() {
+		return revision;
+	}
+
+	/**
+	* Returns whether these changes are a full reset of the inbox
+	*
+	* @return true if every entry is listed as added and previous state should be discarded
+	*/
+	public boolean isReset() {
+		return reset;
+	}
+
+	/**
+	* Returns the entries added to the inbox
+	*
+	* @return unmodifiable List of added {@link InboxElement}
+	*/
+	public List<InboxElement> getAdded() {
+		return added;
+	}
+
+	/**
+	* Returns the entries whose digest or read status changed
+	*
+	* @return unmodifiable List of modified {@link InboxElement}
+	*/
+	public List<InboxElement> getModified() {
+		return modified;
+	}
+
+	/**
+	* Returns the ids of waves removed from the inbox
+	*
+	* @return unmodifiable List of removed {@link WaveId}
+	*/
+	public List<WaveId> getRemoved() {
+		return removed;
+	}
+
+	/**
+	* Returns the number of unread waves in the whole inbox, for example for a title bar
+	*
+	* @return the number of unread waves as of the revision
+	*/
+	public int getUnreadCount() {
+		return unreadCount;
+	}
+
+	/**
+	* Returns whether anything changed
+	*
+	* @return true if there are no added, modified or removed entries
+	*/
+	public boolean isEmpty() {
+		return !reset && added.isEmpty() && modified.isEmpty() && removed.isEmpty();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import java.lang.UnsupportedOperationException;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+* Walks the inbox a page at a time, so only the entries actually visited are copied. Entries
+* added while walking are reached at the end. An entry removed before the position reached shifts
+* the rest back by one, so the entry after it may be skipped; start again from getInboxChanges
+* if every entry must be seen.
+*/
+public class InboxCursor implements Iterator<InboxElement> {
+
+	private final InboxIndex inbox;
+	private final int pageSize;
+	private int position;
+	private List<InboxElement> page = null;
+	private int pageIndex = 0;
+
+
+
+	/**
+	* Constructor requires the inbox, where to start and how many entries to fetch at a time
+	*
+	* @param InboxIndex to walk
+	* @param int containing the position of the first entry
+	* @param int containing the number of entries fetched at a time, at least 1
+	*/
+	public InboxCursor(InboxIndex inbox, int offset, int pageSize) {
+		if(pageSize < 1) {
+			throw new IllegalArgumentException("At least one entry must be fetched at a time");
+		}
+		this.inbox = inbox;
+		this.position = offset;
+		this.pageSize = pageSize;
+	}
+
+
+
+	public boolean hasNext() {
+		if(page == null || pageIndex == page.size()) {
+			page = inbox.getElements(position, pageSize);
+			pageIndex = 0;
+		}
+		return pageIndex < page.size();
+	}
+
+	public InboxElement next() {
+		if(!hasNext()) {
+			throw new NoSuchElementException("No more entries in the inbox");
+		}
+		position++;
+		return page.get(pageIndex++);
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException("Entries cannot be removed from the inbox");
+	}
+
+
+
+	/**
+	* @return the position in the inbox of the entry next() will return
+	*/
+	public int getPosition() {
+		return position;
+	}
+}
\ No newline at end of file
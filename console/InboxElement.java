@@ -17,13 +17,22 @@
 
 
 package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import org.waveprotocol.wave.examples.fedone.waveclient.common.ClientUtils;
+import org.waveprotocol.wave.model.document.operation.BufferedDocOp;
+import org.waveprotocol.wave.model.id.WaveId;
+
+import java.util.List;
+
 /**
 * Contains a single inbox entry. Entry includes wave id, wave digest and read status
 */
 public class InboxElement {
 	
+	private WaveId waveId;
 	private String id;
 	private String digest;
+	private List<BufferedDocOp> digestDocuments;
 	private boolean read;
 	
 	/**
@@ -33,11 +42,50 @@ public class InboxElement {
 	* @param boolean indicating read status. True if wave read, false if unread
 	*/
 	public InboxElement(String id, String digest, boolean read) {
+		this.waveId = null;
 		this.id = id;
 		this.digest = digest;
 		this.read = read;
 	}
 	
+	/**
+	* Constructor to create a single element keyed by the full {@link WaveId}
+	* @param WaveId of the wave the entry describes
+	* @param String containing message digest
+	* @param boolean indicating read status. True if wave read, false if unread
+	*/
+	public InboxElement(WaveId waveId, String digest, boolean read) {
+		this.waveId = waveId;
+		this.id = waveId.getId();
+		this.digest = digest;
+		this.read = read;
+	}
+	
+	/**
+	* Constructor to create an element whose digest is only rendered from the documents of its
+	* index wavelet when first asked for, so entries that are never shown cost no rendering
+	* @param WaveId of the wave the entry describes
+	* @param List of the {@link BufferedDocOp} documents the digest is rendered from
+	* @param boolean indicating read status. True if wave read, false if unread
+	*/
+	public InboxElement(WaveId waveId, List<BufferedDocOp> digestDocuments, boolean read) {
+		this.waveId = waveId;
+		this.id = waveId.getId();
+		this.digest = null;
+		this.digestDocuments = digestDocuments;
+		this.read = read;
+	}
+	
+	/**
+	* Returns the full wave id including the domain. May be null for elements
+	* created from a plain id string
+	*
+	* @return {@link WaveId} of the wave
+	*/
+	public WaveId getWaveId() {
+		return waveId;
+	}
+	
 	/**
 	* Returns the wave id
 	*
@@ -52,7 +100,10 @@ public class InboxElement {
 	*
 	* @return String containing the message digest
 	*/
-	public String getDigest() {
+	public synchronized String getDigest() {
+		if(digest == null) {
+			digest = ClientUtils.render(digestDocuments);
+		}
 		return digest;
 	}
 	
@@ -64,4 +115,36 @@ public class InboxElement {
 	public boolean getRead() {
 		return read;
 	}
+	
+	/**
+	* Returns true if this element has the same digest as a set of documents would render to.
+	* Compares the documents themselves when the digest is rendered lazily, without rendering it
+	*
+	* @param List of {@link BufferedDocOp} documents
+	* @return true if the digest is known to be the same
+	*/
+	synchronized boolean hasDigestOf(List<BufferedDocOp> documents) {
+		if(digestDocuments == null || digestDocuments.size() != documents.size()) {
+			return false;
+		}
+		for(int i = 0; i < documents.size(); i++) {
+			if(digestDocuments.get(i) != documents.get(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	* Returns a copy of this element with a different read status, keeping the digest lazy
+	*
+	* @param boolean indicating read status
+	* @return the new {@link InboxElement}
+	*/
+	synchronized InboxElement withRead(boolean read) {
+		InboxElement element = (digestDocuments != null)
+				? new InboxElement(waveId, digestDocuments, read) : new InboxElement(waveId, digest, read);
+		element.digest = digest;
+		return element;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,408 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.waveprotocol.wave.model.document.operation.BufferedDocOp;
+import org.waveprotocol.wave.model.id.WaveId;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+* The inbox as seen by {@link WaveConnector}. Entries are keyed by {@link WaveId} and kept in the
+* order they were first seen. Every change bumps the inbox revision and is written to a short
+* journal so callers can ask for only what changed since a revision they already hold.
+*
+* Removing an entry leaves a gap in the order that is closed the next time an entry is looked up
+* by position, or once gaps make up half the order, so removing many entries costs one pass over
+* the order rather than one per entry.
+*
+* The unread entries are also kept in a set of their own, changed as entries are, so counting and
+* listing them costs nothing however large the inbox is.
+*
+* The connector updates this from the backend callback thread while the user interface reads it,
+* so all access is synchronized.
+*/
+public class InboxIndex {
+
+	//Oldest half of the journal is dropped once it grows past this many changes
+	private static final int MAX_JOURNAL_SIZE = 8192;
+
+	private static final int ADDED = 0;
+	private static final int MODIFIED = 1;
+	private static final int REMOVED = 2;
+
+	//Inbox order, with null where an entry was removed since the last compaction
+	private final List<WaveId> order = new ArrayList<WaveId>();
+	private final Map<WaveId, Integer> positions = Maps.newHashMap();
+	private int gaps = 0;
+	private final Map<WaveId, InboxElement> entries = Maps.newHashMap();
+	private final Set<WaveId> unread = Sets.newLinkedHashSet();
+	private final List<Change> journal = new ArrayList<Change>();
+	private long journalStart = 0;
+	private long revision = 0;
+
+
+
+	/**
+	* Add an entry, or replace it if the digest or read status differs from what is held
+	*
+	* @param WaveId of the wave
+	* @param String containing the wave digest
+	* @param boolean true if the wave has been read
+	* @return true if the inbox changed
+	*/
+	public synchronized boolean put(WaveId waveId, String digest, boolean read) {
+		InboxElement current = entries.get(waveId);
+		if(current == null) {
+			positions.put(waveId, order.size());
+			order.add(waveId);
+			entries.put(waveId, new InboxElement(waveId, digest, read));
+			track(waveId, read);
+			record(waveId, ADDED);
+			return true;
+		} else if(current.getRead() != read || !current.getDigest().equals(digest)) {
+			entries.put(waveId, new InboxElement(waveId, digest, read));
+			track(waveId, read);
+			record(waveId, MODIFIED);
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+
+
+	/**
+	* Add an entry whose digest is rendered from the documents of its index wavelet only when it
+	* is asked for, or replace it if the documents or read status differ from what is held
+	*
+	* @param WaveId of the wave
+	* @param List of {@link BufferedDocOp} documents the digest is rendered from
+	* @param boolean true if the wave has been read
+	* @return true if the inbox changed
+	*/
+	public synchronized boolean put(WaveId waveId, List<BufferedDocOp> digestDocuments, boolean read) {
+		InboxElement current = entries.get(waveId);
+		if(current == null) {
+			positions.put(waveId, order.size());
+			order.add(waveId);
+			entries.put(waveId, new InboxElement(waveId, digestDocuments, read));
+			track(waveId, read);
+			record(waveId, ADDED);
+			return true;
+		} else if(current.getRead() != read || !current.hasDigestOf(digestDocuments)) {
+			entries.put(waveId, new InboxElement(waveId, digestDocuments, read));
+			track(waveId, read);
+			record(waveId, MODIFIED);
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+
+
+	/**
+	* Change only the read status of an entry. Unknown waves are ignored
+	*
+	* @param WaveId of the wave
+	* @param boolean true if the wave has been read
+	* @return true if the inbox changed
+	*/
+	public synchronized boolean setRead(WaveId waveId, boolean read) {
+		InboxElement current = entries.get(waveId);
+		if(current == null || current.getRead() == read) {
+			return false;
+		}
+		entries.put(waveId, current.withRead(read));
+		track(waveId, read);
+		record(waveId, MODIFIED);
+		return true;
+	}
+
+
+
+	/**
+	* Change the read status of many entries at once. Unknown waves are ignored
+	*
+	* @param Collection of {@link WaveId} to change
+	* @param boolean true if the waves have been read
+	* @return the number of entries that changed
+	*/
+	public synchronized int setRead(Collection<WaveId> waveIds, boolean read) {
+		int changed = 0;
+		for(WaveId waveId : waveIds) {
+			if(setRead(waveId, read)) {
+				changed++;
+			}
+		}
+		return changed;
+	}
+
+
+
+	/**
+	* Remove an entry
+	*
+	* @param WaveId of the wave
+	* @return true if the inbox changed
+	*/
+	public synchronized boolean remove(WaveId waveId) {
+		if(entries.remove(waveId) == null) {
+			return false;
+		}
+		order.set(positions.remove(waveId), null);
+		gaps++;
+		if(gaps * 2 > order.size()) {
+			compact();
+		}
+		unread.remove(waveId);
+		record(waveId, REMOVED);
+		return true;
+	}
+
+
+
+	/**
+	* Returns whether a wave is in the inbox
+	*
+	* @param WaveId of the wave
+	* @return true if there is an entry for the wave
+	*/
+	public synchronized boolean contains(WaveId waveId) {
+		return entries.containsKey(waveId);
+	}
+
+
+
+	/**
+	* Returns the entry for a wave
+	*
+	* @param WaveId of the wave
+	* @return the {@link InboxElement} or null if the wave is not in the inbox
+	*/
+	public synchronized InboxElement get(WaveId waveId) {
+		return entries.get(waveId);
+	}
+
+
+
+	/**
+	* Returns the id of the wave at a position in the inbox
+	*
+	* @param int containing the position
+	* @return {@link WaveId} at that position
+	* @throws IndexOutOfBoundsException if there is no entry at that position
+	*/
+	public synchronized WaveId getWaveId(int position) {
+		compact();
+		return order.get(position);
+	}
+
+
+
+	/**
+	* Returns the number of entries
+	*
+	* @return the size of the inbox
+	*/
+	public synchronized int size() {
+		return order.size() - gaps;
+	}
+
+
+
+	/**
+	* Returns the number of entries that have not been read
+	*
+	* @return the number of unread waves
+	*/
+	public synchronized int getUnreadCount() {
+		return unread.size();
+	}
+
+
+
+	/**
+	* Returns the waves that have not been read, in the order they became unread
+	*
+	* @return List of {@link WaveId}
+	*/
+	public synchronized List<WaveId> getUnreadWaveIds() {
+		return new ArrayList<WaveId>(unread);
+	}
+
+
+
+	/**
+	* Returns the current revision. Increases by one for every change
+	*
+	* @return the inbox revision
+	*/
+	public synchronized long getRevision() {
+		return revision;
+	}
+
+
+
+	/**
+	* Returns a copy of every entry in inbox order
+	*
+	* @return ArrayList of {@link InboxElement}
+	*/
+	public synchronized ArrayList<InboxElement> getElements() {
+		ArrayList<InboxElement> elements = new ArrayList<InboxElement>(order.size() - gaps);
+		for(WaveId waveId : order) {
+			if(waveId != null) {
+				elements.add(entries.get(waveId));
+			}
+		}
+		return elements;
+	}
+
+
+
+	/**
+	* Returns a copy of a window of entries in inbox order. Only the entries in the window are
+	* copied, so the cost does not grow with the size of the inbox
+	*
+	* @param int containing the position of the first entry
+	* @param int containing the most entries to return
+	* @return ArrayList of {@link InboxElement}, shorter than the limit at the end of the inbox
+	*/
+	public synchronized ArrayList<InboxElement> getElements(int offset, int limit) {
+		if(offset < 0 || limit < 0) {
+			throw new IndexOutOfBoundsException("Cannot return " + limit + " entries from " + offset);
+		}
+		compact();
+		int end = (int) Math.min(order.size(), (long) offset + limit);
+		ArrayList<InboxElement> elements = new ArrayList<InboxElement>(Math.max(0, end - offset));
+		for(int i = offset; i < end; i++) {
+			elements.add(entries.get(order.get(i)));
+		}
+		return elements;
+	}
+
+
+
+	/**
+	* Returns what changed after a revision. Several changes to the same wave are collapsed
+	* into one, so a wave added and then modified is only reported as added.
+	*
+	* @param long containing a revision previously returned by getRevision(), or 0 for everything
+	* @return {@link InboxChanges} bringing the caller up to the current revision
+	*/
+	public synchronized InboxChanges getChangesSince(long since) {
+		if(since < journalStart || since > revision) {
+			return new InboxChanges(revision, true, getElements(),
+					new ArrayList<InboxElement>(), new ArrayList<WaveId>(), unread.size());
+		}
+
+		List<InboxElement> added = new ArrayList<InboxElement>();
+		List<InboxElement> modified = new ArrayList<InboxElement>();
+		List<WaveId> removed = new ArrayList<WaveId>();
+		Set<WaveId> seen = Sets.newHashSet();
+
+		//Journal revisions are consecutive so the first change after 'since' is found directly
+		for(int i = (int) (since - journalStart); i < journal.size(); i++) {
+			Change change = journal.get(i);
+			if(!seen.add(change.waveId)) {
+				continue;
+			}
+			boolean existedBefore = change.kind != ADDED;
+			InboxElement now = entries.get(change.waveId);
+			if(now != null) {
+				if(existedBefore) {
+					modified.add(now);
+				} else {
+					added.add(now);
+				}
+			} else if(existedBefore) {
+				removed.add(change.waveId);
+			}
+		}
+		return new InboxChanges(revision, false, added, modified, removed, unread.size());
+	}
+
+
+
+	//Close the gaps left by removed entries, renumbering the entries that move
+	private void compact() {
+		if(gaps == 0) {
+			return;
+		}
+		int kept = 0;
+		for(int i = 0; i < order.size(); i++) {
+			WaveId waveId = order.get(i);
+			if(waveId != null) {
+				if(kept != i) {
+					order.set(kept, waveId);
+					positions.put(waveId, kept);
+				}
+				kept++;
+			}
+		}
+		order.subList(kept, order.size()).clear();
+		gaps = 0;
+	}
+
+
+
+	//Keep the unread set in step with the read status of an entry
+	private void track(WaveId waveId, boolean read) {
+		if(read) {
+			unread.remove(waveId);
+		} else {
+			unread.add(waveId);
+		}
+	}
+
+
+
+	//Append a change to the journal, trimming the oldest half when it grows too long
+	private void record(WaveId waveId, int kind) {
+		revision++;
+		journal.add(new Change(waveId, kind));
+		if(journal.size() > MAX_JOURNAL_SIZE) {
+			int drop = journal.size() / 2;
+			journal.subList(0, drop).clear();
+			journalStart += drop;
+		}
+	}
+
+
+
+	//A single journal entry. Its revision is journalStart plus its position plus one
+	private static class Change {
+		private final WaveId waveId;
+		private final int kind;
+
+		private Change(WaveId waveId, int kind) {
+			this.waveId = waveId;
+			this.kind = kind;
+		}
+	}
+}
\ No newline at end of file
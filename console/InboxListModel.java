@@ -0,0 +1,160 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import com.google.common.collect.Maps;
+
+import org.waveprotocol.wave.model.id.WaveId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.AbstractListModel;
+
+/**
+* A list model of the inbox that is updated from {@link InboxChanges} rather than rebuilt. Only the
+* rows that changed fire events, so the selection and scroll position of the list survive an
+* update. The text of a row is only built when the list asks for it, which for a list with a fixed
+* cell size is only for the visible rows.
+*
+* Must only be used on the Swing event dispatch thread.
+*/
+public class InboxListModel extends AbstractListModel<String> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final List<InboxElement> rows = new ArrayList<InboxElement>();
+	private final Map<WaveId, Integer> positions = Maps.newHashMap();
+	private long revision = 0;
+
+
+
+	/**
+	* Bring the model up to date with the connector. Asks only for what changed since the last update
+	*
+	* @param WaveConnector to read the inbox from
+	*/
+	public void update(WaveConnector waveConn) {
+		apply(waveConn.getInboxChanges(revision));
+	}
+
+
+
+	/**
+	* Apply a set of changes, firing events for the affected rows only
+	*
+	* @param InboxChanges to apply
+	*/
+	public void apply(InboxChanges changes) {
+		if(changes.isReset()) {
+			int oldSize = rows.size();
+			rows.clear();
+			positions.clear();
+			if(oldSize > 0) {
+				fireIntervalRemoved(this, 0, oldSize - 1);
+			}
+		}
+
+		if(!changes.getRemoved().isEmpty()) {
+			for(WaveId waveId : changes.getRemoved()) {
+				Integer position = positions.get(waveId);
+				if(position != null) {
+					rows.set(position, null);
+				}
+			}
+			//Compact the rows, firing one event per removed row from the bottom up
+			for(int i = rows.size() - 1; i >= 0; i--) {
+				if(rows.get(i) == null) {
+					rows.remove(i);
+					fireIntervalRemoved(this, i, i);
+				}
+			}
+			reindex();
+		}
+
+		for(InboxElement element : changes.getModified()) {
+			Integer position = positions.get(element.getWaveId());
+			if(position != null) {
+				rows.set(position, element);
+				fireContentsChanged(this, position, position);
+			}
+		}
+
+		if(!changes.getAdded().isEmpty()) {
+			int first = rows.size();
+			for(InboxElement element : changes.getAdded()) {
+				positions.put(element.getWaveId(), rows.size());
+				rows.add(element);
+			}
+			fireIntervalAdded(this, first, rows.size() - 1);
+		}
+
+		revision = changes.getRevision();
+	}
+
+
+
+	/**
+	* Returns the id of the wave shown in a row
+	*
+	* @param int containing the row
+	* @return {@link WaveId} of the wave in that row
+	*/
+	public WaveId getWaveIdAt(int index) {
+		return rows.get(index).getWaveId();
+	}
+
+
+
+	/**
+	* Returns the text shown in a row
+	*/
+	@Override
+	public String getElementAt(int index) {
+		InboxElement element = rows.get(index);
+		StringBuilder text = new StringBuilder();
+		if(!element.getRead()) {
+			text.append("[NEW] ");
+		}
+		text.append("(").append(element.getId()).append(") ");
+		text.append(element.getDigest());
+		return text.toString();
+	}
+
+
+
+	/**
+	* Returns the number of rows
+	*/
+	@Override
+	public int getSize() {
+		return rows.size();
+	}
+
+
+
+	//Recalculate the position of every row after rows have been removed
+	private void reindex() {
+		positions.clear();
+		for(int i = 0; i < rows.size(); i++) {
+			positions.put(rows.get(i).getWaveId(), i);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,147 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+* Records how long an operation takes, cheaply enough to leave on all the time. Recording is a
+* few atomic increments with no locking or allocation. Times are counted in buckets that grow
+* in size with the time, each power of two split in 8, so percentiles are accurate to within
+* about 12%. The maximum is exact.
+*/
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+
+
+	/**
+	* Record how long one call took
+	*
+	* @param long containing the time in nanoseconds
+	*/
+	public void record(long nanos) {
+		if(nanos < 0) {
+			nanos = 0;
+		}
+		buckets.incrementAndGet(bucketOf(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long current = max.get();
+		while(nanos > current && !max.compareAndSet(current, nanos)) {
+			current = max.get();
+		}
+	}
+
+
+
+	/**
+	* Record the time since a call started
+	*
+	* @param long containing the System.nanoTime() when the call started
+	*/
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+
+
+	/**
+	* Returns the time below which a fraction of the calls completed
+	*
+	* @param double containing the fraction, for example 0.99
+	* @return the upper bound in nanoseconds of the bucket holding the percentile, 0 if nothing was recorded
+	*/
+	public long getPercentileNanos(double fraction) {
+		long[] counts = new long[BUCKETS];
+		long recorded = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			recorded += counts[i];
+		}
+		if(recorded == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(recorded * fraction);
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if(seen >= Math.max(1, rank)) {
+				return Math.min(upperBoundOf(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public double getMeanMicros() {
+		long calls = count.get();
+		return (calls == 0) ? 0 : total.get() / 1000.0 / calls;
+	}
+
+	public long getP50Micros() {
+		return getPercentileNanos(0.5) / 1000;
+	}
+
+	public long getP99Micros() {
+		return getPercentileNanos(0.99) / 1000;
+	}
+
+	public long getMaxMicros() {
+		return max.get() / 1000;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("n=%d p50=%dus p99=%dus max=%dus", getCount(), getP50Micros(), getP99Micros(), getMaxMicros());
+	}
+
+
+
+	//Values below SUB_BUCKETS get a bucket each, above that each power of two is split in SUB_BUCKETS
+	private static int bucketOf(long nanos) {
+		if(nanos < SUB_BUCKETS) {
+			return (int) nanos;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBoundOf(int bucket) {
+		if(bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,50 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+/**
+* The JMX view of a {@link LatencyHistogram}. Times are in microseconds
+*/
+public interface LatencyHistogramMBean {
+
+	/**
+	* @return the number of times recorded
+	*/
+	long getCount();
+
+	/**
+	* @return the mean time
+	*/
+	double getMeanMicros();
+
+	/**
+	* @return the median time
+	*/
+	long getP50Micros();
+
+	/**
+	* @return the 99th percentile time
+	*/
+	long getP99Micros();
+
+	/**
+	* @return the longest time recorded
+	*/
+	long getMaxMicros();
+}
\ No newline at end of file
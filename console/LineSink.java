@@ -0,0 +1,35 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+/**
+* Receives the lines of a wave one at a time, from a {@link LineTraversal} walking its documents
+* or from {@link WaveLines}.visit(). Lets the lines be rendered or written out without a
+* {@link CWavelet} or list being made for them.
+*/
+public interface LineSink {
+
+	/**
+	* Called for each line in order
+	*
+	* @param String containing the address of the author of the line
+	* @param String containing the text of the line
+	*/
+	void line(String author, String text);
+}
\ No newline at end of file
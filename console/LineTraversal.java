@@ -0,0 +1,215 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import org.waveprotocol.wave.model.document.operation.AnnotationBoundaryMap;
+import org.waveprotocol.wave.model.document.operation.Attributes;
+import org.waveprotocol.wave.model.document.operation.AttributesUpdate;
+import org.waveprotocol.wave.model.document.operation.BufferedDocOp;
+import org.waveprotocol.wave.model.document.operation.DocOpCursor;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
+
+import java.lang.UnsupportedOperationException;
+
+/**
+* Walks documents and hands the author and text of each line to a {@link LineSink}. A document
+* is a sequence of line elements, each followed by the text of that line: a line element gives
+* the author and the characters after it the text, and a line element with no text is not a line.
+*
+* The traversal is a cursor the documents are applied to, rather than reading them component by
+* component, as the getters of a document make objects on every call. One traversal can be used
+* for any number of documents, so walking a wave makes nothing but the text of a line split
+* over more than one component. It must only be used by one thread at a time.
+*
+* A strict traversal throws on anything other than a line, as {@link WaveBody} does. Otherwise any
+* other element ends the line before it and is skipped along with its text.
+*/
+public class LineTraversal implements DocOpCursor {
+
+	private final boolean strict;
+	private LineSink sink = null;
+	//Author of a trailing line element that has no text yet
+	private String pendingAuthor = null;
+	//The line being read, text is null unless a line is open
+	private String author = null;
+	private String text = null;
+	private int itemCount = 0;
+	private int lineCount = 0;
+
+
+
+	/**
+	* Constructor for a traversal that skips anything other than lines
+	*/
+	public LineTraversal() {
+		this(false);
+	}
+
+
+
+	/**
+	* Constructor for a traversal that may throw on anything other than lines
+	*
+	* @param boolean true to throw UnsupportedOperationException on an element that is not a line
+	* or a line without an author
+	*/
+	public LineTraversal(boolean strict) {
+		this.strict = strict;
+	}
+
+
+
+	/**
+	* Hand every line of the documents of a conversation root to a sink, one document after another
+	*
+	* @param WaveletData of the conversation root
+	* @param LineSink to hand the lines to
+	* @return int containing the number of lines
+	* @throws UnsupportedOperationException if strict and a document contains something other than lines
+	*/
+	public int traverse(WaveletData conversationRoot, LineSink sink) {
+		int lines = 0;
+		for(BufferedDocOp document : conversationRoot.getDocuments().values()) {
+			lines += traverse(document, sink);
+		}
+		return lines;
+	}
+
+
+
+	/**
+	* Hand every line of a document to a sink
+	*
+	* @param BufferedDocOp containing the document
+	* @param LineSink to hand the lines to
+	* @return int containing the number of lines
+	* @throws UnsupportedOperationException if strict and the document contains something other than lines
+	*/
+	public int traverse(BufferedDocOp document, LineSink sink) {
+		this.sink = sink;
+		pendingAuthor = null;
+		author = null;
+		text = null;
+		itemCount = 0;
+		lineCount = 0;
+		try {
+			document.apply(this);
+			endLine();
+		} finally {
+			this.sink = null;
+		}
+		return lineCount;
+	}
+
+
+
+	/**
+	* Returns the size of the document last traversed, the number of items an operation retains
+	* to append to it
+	*
+	* @return int containing the number of items
+	*/
+	public int getItemCount() {
+		return itemCount;
+	}
+
+
+
+	/**
+	* Returns the author of a line element with no text at the end of the document last traversed.
+	* Text appended to the document later is the first text of this line
+	*
+	* @return String containing the address of the author, null if the document ends otherwise
+	*/
+	public String getTrailingAuthor() {
+		return pendingAuthor;
+	}
+
+
+
+	public void elementStart(String tag, Attributes attributes) {
+		endLine();
+		itemCount++;
+		//Tags are compared by reference first, so this is cheap when they come from the same place
+		if(tag.equals(WaveBody.LINE)) {
+			pendingAuthor = attributes.get(WaveBody.LINE_AUTHOR);
+			if(pendingAuthor == null && strict) {
+				throw new UnsupportedOperationException("A line must have an author. No author was supplied");
+			}
+		} else if(strict) {
+			throw new UnsupportedOperationException("Unsupported element type. Only lines are supported at present");
+		} else {
+			pendingAuthor = null;
+		}
+	}
+
+	public void elementEnd() {
+		itemCount++;
+	}
+
+	public void characters(String characters) {
+		itemCount += characters.length();
+		if(text != null) {
+			text = text + characters;
+		} else if(pendingAuthor != null) {
+			author = pendingAuthor;
+			text = characters;
+			pendingAuthor = null;
+		}
+	}
+
+	public void annotationBoundary(AnnotationBoundaryMap map) {
+	}
+
+	public void retain(int itemCount) {
+		throw new UnsupportedOperationException("Only whole documents can be traversed");
+	}
+
+	public void deleteCharacters(String characters) {
+		throw new UnsupportedOperationException("Only whole documents can be traversed");
+	}
+
+	public void deleteElementStart(String tag, Attributes attributes) {
+		throw new UnsupportedOperationException("Only whole documents can be traversed");
+	}
+
+	public void deleteElementEnd() {
+		throw new UnsupportedOperationException("Only whole documents can be traversed");
+	}
+
+	public void replaceAttributes(Attributes oldAttributes, Attributes newAttributes) {
+		throw new UnsupportedOperationException("Only whole documents can be traversed");
+	}
+
+	public void updateAttributes(AttributesUpdate update) {
+		throw new UnsupportedOperationException("Only whole documents can be traversed");
+	}
+
+
+
+	//Hand the open line, if there is one, to the sink
+	private void endLine() {
+		if(text != null) {
+			lineCount++;
+			String line = text;
+			text = null;
+			sink.line(author, line);
+		}
+	}
+}
\ No newline at end of file
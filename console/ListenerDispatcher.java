@@ -0,0 +1,198 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import org.waveprotocol.wave.examples.fedone.util.Log;
+import org.waveprotocol.wave.model.id.WaveId;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+* Delivers batches of changes to every registered {@link WaveConnectorListener}, each on its own
+* executor. Delivering a batch only queues work on those executors so the caller is never held up
+* by a slow listener.
+*/
+public class ListenerDispatcher {
+
+	private static final Log LOG = Log.get(ListenerDispatcher.class);
+
+	/**
+	* Runs tasks on the calling thread
+	*/
+	public static final Executor DIRECT_EXECUTOR = new Executor() {
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+	private final LatencyHistogram listenerTime;
+
+
+
+	/**
+	* Constructor for a dispatcher that does not time its listeners
+	*/
+	public ListenerDispatcher() {
+		this(null);
+	}
+
+
+
+	/**
+	* Constructor requires where to record how long each listener takes over a batch
+	*
+	* @param LatencyHistogram to record in, or null
+	*/
+	public ListenerDispatcher(LatencyHistogram listenerTime) {
+		this.listenerTime = listenerTime;
+	}
+
+
+
+	/**
+	* Register a listener to be called on the given executor. Listeners called on an executor
+	* with more than one thread may receive batches out of order
+	*
+	* @param WaveConnectorListener to notify
+	* @param Executor to notify it on
+	*/
+	public void add(WaveConnectorListener listener, Executor executor) {
+		subscriptions.add(new Subscription(listener, executor, null));
+	}
+
+
+
+	/**
+	* Register a listener to be called on a thread of its own
+	*
+	* @param WaveConnectorListener to notify
+	*/
+	public void add(WaveConnectorListener listener) {
+		ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "WaveConnector listener");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		subscriptions.add(new Subscription(listener, executor, executor));
+	}
+
+
+
+	/**
+	* Stop notifying a listener
+	*
+	* @param WaveConnectorListener to remove
+	*/
+	public void remove(WaveConnectorListener listener) {
+		for(Subscription subscription : subscriptions) {
+			if(subscription.listener == listener) {
+				subscriptions.remove(subscription);
+				subscription.shutdown();
+			}
+		}
+	}
+
+
+
+	/**
+	* Queue a batch of changes for every listener
+	*
+	* @param InboxChanges made to the inbox, may be empty
+	* @param Set of {@link WaveId} whose body changed
+	* @param Set of {@link WaveId} whose participants changed
+	* @param Set of {@link WaveId} of every wave changed
+	*/
+	public void fire(final InboxChanges inboxChanges, final Set<WaveId> changedBodies,
+			final Set<WaveId> changedParticipants, final Set<WaveId> changedWaves) {
+		for(final Subscription subscription : subscriptions) {
+			Runnable notification = new Runnable() {
+				public void run() {
+					WaveConnectorListener listener = subscription.listener;
+					long start = System.nanoTime();
+					try {
+						if(!inboxChanges.isEmpty()) {
+							listener.inboxChanged(inboxChanges);
+						}
+						for(WaveId waveId : changedBodies) {
+							listener.waveBodyChanged(waveId);
+						}
+						for(WaveId waveId : changedParticipants) {
+							listener.participantsChanged(waveId);
+						}
+						listener.refreshed(changedWaves);
+					} catch(RuntimeException e) {
+						LOG.warning("Listener " + listener + " failed", e);
+					}
+					if(listenerTime != null) {
+						listenerTime.recordSince(start);
+					}
+				}
+			};
+			try {
+				subscription.executor.execute(notification);
+			} catch(RejectedExecutionException e) {
+				//The listener was removed while this batch was being delivered
+			}
+		}
+	}
+
+
+
+	/**
+	* Remove every listener and stop the threads created for them
+	*/
+	public void shutdown() {
+		for(Subscription subscription : subscriptions) {
+			subscription.shutdown();
+		}
+		subscriptions.clear();
+	}
+
+
+
+	//A listener with the executor it is called on
+	private static class Subscription {
+		private final WaveConnectorListener listener;
+		private final Executor executor;
+		//Executor created for this listener alone, null if it was supplied by the caller
+		private final ExecutorService ownExecutor;
+
+		private Subscription(WaveConnectorListener listener, Executor executor, ExecutorService ownExecutor) {
+			this.listener = listener;
+			this.executor = executor;
+			this.ownExecutor = ownExecutor;
+		}
+
+		private void shutdown() {
+			if(ownExecutor != null) {
+				ownExecutor.shutdown();
+			}
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,198 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import org.waveprotocol.wave.examples.fedone.waveclient.common.ClientUtils;
+import org.waveprotocol.wave.examples.fedone.waveclient.common.ClientWaveView;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+* A wave held open by {@link WaveConnector}: the view of the wave together with its materialized
+* body, the tracked sizes of its documents and its participants. All of them are kept up to date
+* as changes arrive from the server, so returning to the wave costs nothing.
+*/
+public class OpenWave {
+
+	private final ClientWaveView view;
+	private final WaveBody body;
+	private final DocumentSizes sizes;
+	private volatile Participants participants = null;
+	//Changed on every invalidation, so participants worked out before one are not kept
+	private int participantsGeneration = 0;
+
+
+
+	/**
+	* Constructor requires the view of the wave to hold open
+	*
+	* @param ClientWaveView of the wave
+	*/
+	public OpenWave(ClientWaveView view) {
+		this.view = view;
+		this.body = new WaveBody();
+		this.sizes = new DocumentSizes();
+	}
+
+
+
+	/**
+	* Constructor for a wave sent again by a new connection, at the same version as a wave held
+	* open before. The body and document sizes of that wave are kept rather than worked out again
+	*
+	* @param ClientWaveView of the wave from the new connection
+	* @param OpenWave held open before, whose content matches the view
+	*/
+	public OpenWave(ClientWaveView view, OpenWave previous) {
+		this.view = view;
+		this.body = previous.body;
+		this.sizes = previous.sizes;
+	}
+
+
+
+	/**
+	* @return the view of the wave
+	*/
+	public ClientWaveView getView() {
+		return view;
+	}
+
+	/**
+	* @return the id of the wave
+	*/
+	public WaveId getWaveId() {
+		return view.getWaveId();
+	}
+
+	/**
+	* @return the conversation root of the wave, or null if it has none yet
+	*/
+	public WaveletData getConversationRoot() {
+		return ClientUtils.getConversationRoot(view);
+	}
+
+	/**
+	* @return the body of the conversation root
+	*/
+	public WaveBody getBody() {
+		return body;
+	}
+
+	/**
+	* @return the sizes of the documents of the conversation root
+	*/
+	public DocumentSizes getSizes() {
+		return sizes;
+	}
+
+
+
+	/**
+	* Returns the addresses of the participants of the conversation root. The addresses are
+	* worked out once and kept until the participants change
+	*
+	* @return a new array of addresses
+	*/
+	public String[] getParticipants() {
+		return participants().addresses.clone();
+	}
+
+
+
+	/**
+	* Returns the addresses of the participants of the conversation root without copying them
+	*
+	* @return unmodifiable List of addresses, which later changes do not affect
+	*/
+	public List<String> getParticipantList() {
+		return participants().list;
+	}
+
+
+
+	/**
+	* Returns whether someone participates in the conversation root, without searching the list
+	*
+	* @param ParticipantId of the participant
+	* @return true if they participate
+	*/
+	public boolean hasParticipant(ParticipantId participant) {
+		return participants().ids.contains(participant);
+	}
+
+
+
+	/**
+	* Forget the participants, they are worked out again when next asked for
+	*/
+	public synchronized void invalidateParticipants() {
+		participants = null;
+		participantsGeneration++;
+	}
+
+
+
+	private Participants participants() {
+		Participants current = participants;
+		if(current == null) {
+			int generation;
+			synchronized(this) {
+				generation = participantsGeneration;
+			}
+			WaveletData root = getConversationRoot();
+			current = new Participants((root == null)
+					? Collections.<ParticipantId>emptyList() : new ArrayList<ParticipantId>(root.getParticipants()));
+			synchronized(this) {
+				if(generation == participantsGeneration) {
+					participants = current;
+				}
+			}
+		}
+		return current;
+	}
+
+
+
+	/*
+	* The participants as of one point in time, as addresses in order and as a set to look up
+	*/
+	private static class Participants {
+		private final String[] addresses;
+		private final List<String> list;
+		private final Set<ParticipantId> ids;
+
+		Participants(List<ParticipantId> participants) {
+			addresses = new String[participants.size()];
+			for(int i = 0; i < addresses.length; i++) {
+				addresses[i] = participants.get(i).getAddress();
+			}
+			list = Collections.unmodifiableList(Arrays.asList(addresses));
+			ids = new HashSet<ParticipantId>(participants);
+		}
+	}
+}
\ No newline at end of file
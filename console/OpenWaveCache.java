@@ -0,0 +1,178 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.waveprotocol.wave.examples.fedone.waveclient.common.ClientWaveView;
+import org.waveprotocol.wave.model.id.WaveId;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+* The waves held open by {@link WaveConnector}, least recently used first. Once there are more
+* than the maximum number the least recently used are closed, except for the wave pinned as the
+* one shown to the user. Looking a wave up to apply a change from the server does not count as
+* using it.
+*/
+public class OpenWaveCache {
+
+	//Insertion ordered, a wave is moved to the end each time it is used
+	private final Map<WaveId, OpenWave> waves = Maps.newLinkedHashMap();
+	private WaveId pinned = null;
+	private int maxSize;
+
+
+
+	/**
+	* Constructor requires the most waves to keep open
+	*
+	* @param int containing the maximum number of open waves, at least 1
+	*/
+	public OpenWaveCache(int maxSize) {
+		setMaxSize(maxSize);
+	}
+
+
+
+	/**
+	* Change the most waves to keep open, closing any beyond it
+	*
+	* @param int containing the maximum number of open waves, at least 1
+	*/
+	public synchronized void setMaxSize(int maxSize) {
+		if(maxSize < 1) {
+			throw new IllegalArgumentException("At least one wave must be kept open");
+		}
+		this.maxSize = maxSize;
+		evict();
+	}
+
+
+
+	/**
+	* Open a wave, or return it if it is already open, and mark it as the most recently used
+	*
+	* @param ClientWaveView of the wave
+	* @param boolean true to pin the wave so it is never closed to make room
+	* @return the {@link OpenWave}
+	*/
+	public synchronized OpenWave open(ClientWaveView view, boolean pin) {
+		WaveId waveId = view.getWaveId();
+		OpenWave wave = waves.remove(waveId);
+		//The backend may have replaced the view, for example if the user left the wave and rejoined
+		if(wave == null || wave.getView() != view) {
+			wave = new OpenWave(view);
+		}
+		waves.put(waveId, wave);
+		if(pin) {
+			pinned = waveId;
+		}
+		evict();
+		return wave;
+	}
+
+
+
+	/**
+	* Returns an open wave without marking it as used
+	*
+	* @param WaveId of the wave
+	* @return the {@link OpenWave}, or null if the wave is not open
+	*/
+	public synchronized OpenWave get(WaveId waveId) {
+		return waves.get(waveId);
+	}
+
+
+
+	/**
+	* Put a new {@link OpenWave} in the place of one held open, keeping how recently it was used
+	*
+	* @param OpenWave held open
+	* @param OpenWave to hold open instead, for the same wave
+	* @return false if the wave held open had already been closed or replaced
+	*/
+	public synchronized boolean replace(OpenWave previous, OpenWave replacement) {
+		if(waves.get(previous.getWaveId()) != previous) {
+			return false;
+		}
+		waves.put(previous.getWaveId(), replacement);
+		return true;
+	}
+
+
+
+	/**
+	* Close a wave
+	*
+	* @param WaveId of the wave
+	* @return the {@link OpenWave} closed, or null if the wave was not open
+	*/
+	public synchronized OpenWave remove(WaveId waveId) {
+		if(waveId.equals(pinned)) {
+			pinned = null;
+		}
+		return waves.remove(waveId);
+	}
+
+
+
+	/**
+	* Stop protecting the pinned wave from being closed to make room
+	*/
+	public synchronized void unpin() {
+		pinned = null;
+		evict();
+	}
+
+
+
+	/**
+	* Returns the ids of the open waves, least recently used first
+	*
+	* @return List of {@link WaveId}
+	*/
+	public synchronized List<WaveId> getWaveIds() {
+		return Lists.newArrayList(waves.keySet());
+	}
+
+
+
+	/**
+	* @return the number of open waves
+	*/
+	public synchronized int size() {
+		return waves.size();
+	}
+
+
+
+	private void evict() {
+		Iterator<WaveId> eldest = waves.keySet().iterator();
+		while(waves.size() > maxSize && eldest.hasNext()) {
+			if(!eldest.next().equals(pinned)) {
+				eldest.remove();
+			}
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+* The result of adding or removing several participants at once, returned by
+* {@link WaveConnector}.addParticipants() and removeParticipants(). Every address asked for has an
+* outcome. The addresses that were sent went to the server together as one delta, which the
+* acknowledgement completes for.
+*/
+public class ParticipantChanges {
+
+	/**
+	* What happened to one address
+	*/
+	public enum Outcome {
+		/** Sent to the server with the others */
+		SENT,
+		/** Not added, the address already participates in the wave */
+		ALREADY_PARTICIPANT,
+		/** Not removed, the address does not participate in the wave */
+		NOT_PARTICIPANT,
+		/** Not sent, the address is not of the form name@domain */
+		INVALID_ADDRESS
+	}
+
+	private final Map<String, Outcome> outcomes;
+	private final WaveFuture<Acknowledgement> acknowledgement;
+
+	/**
+	* Constructor to create the result of a change
+	*
+	* @param Map of each address asked for to its {@link Outcome}, in the order asked for
+	* @param WaveFuture of the {@link Acknowledgement} of the delta sent
+	*/
+	public ParticipantChanges(Map<String, Outcome> outcomes, WaveFuture<Acknowledgement> acknowledgement) {
+		this.outcomes = Collections.unmodifiableMap(outcomes);
+		this.acknowledgement = acknowledgement;
+	}
+
+	/**
+	* Returns what happened to an address
+	*
+	* @param String containing the address
+	* @return the {@link Outcome}, or null if the address was not asked for
+	*/
+	public Outcome getOutcome(String address) {
+		return outcomes.get(address);
+	}
+
+	/**
+	* Returns the outcome of every address asked for
+	*
+	* @return Map of address to {@link Outcome}, in the order asked for
+	*/
+	public Map<String, Outcome> getOutcomes() {
+		return outcomes;
+	}
+
+	/**
+	* Returns the addresses sent to the server
+	*
+	* @return List of addresses whose outcome is SENT
+	*/
+	public List<String> getSent() {
+		List<String> sent = new ArrayList<String>();
+		for(Map.Entry<String, Outcome> entry : outcomes.entrySet()) {
+			if(entry.getValue() == Outcome.SENT) {
+				sent.add(entry.getKey());
+			}
+		}
+		return sent;
+	}
+
+	/**
+	* Returns the acknowledgement of the delta sent. Completes with null straight away if no
+	* address was sent
+	*
+	* @return {@link WaveFuture} of the {@link Acknowledgement} from the server
+	*/
+	public WaveFuture<Acknowledgement> getAcknowledgement() {
+		return acknowledgement;
+	}
+
+	@Override
+	public String toString() {
+		return outcomes.toString();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,508 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
+import org.waveprotocol.wave.examples.fedone.util.Log;
+import org.waveprotocol.wave.model.document.operation.BufferedDocOp;
+import org.waveprotocol.wave.model.document.operation.DocOpComponentType;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.WaveletDocumentOperation;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+* Deltas sent to the server that have not been heard back yet. The server sends every delta it
+* applies back to the client, ours included, so a delta is known to have been applied once an
+* update carrying it arrives. Its {@link WaveFuture} is completed at the end of that delta
+* sequence, when the version of the wavelet has been updated.
+*
+* The backend tells this class the author and the version each received delta was applied at
+* before passing on its operations. A delta can only be one we sent if the author is the user
+* it was sent as, it was applied at or after the version it was sent against, and it has as many
+* operations. Its operations are then compared with ours by what they do rather than exactly, as
+* the server may have transformed them against deltas applied before. Several deltas that could
+* match are matched in the order they were sent. An update may carry several deltas, all of which
+* are reported before any of their operations are passed on, so the received deltas of a wavelet
+* are queued and each operation is compared for the delta at the head of the queue.
+*
+* Every delta must be heard back within a timeout, checked once a second on a background thread.
+* One that is not, for example because the server rejected it, is failed with a
+* {@link TimeoutException}.
+*/
+public class PendingDeltas implements WaveBackend.DeltaListener {
+
+	private static final Log LOG = Log.get(PendingDeltas.class);
+	private static final long DEFAULT_TIMEOUT_SECONDS = 30;
+	private static final long SWEEP_INTERVAL_MILLIS = 1000;
+	private static final String NO_OP = "no-op";
+
+	private final Map<WaveletName, List<Pending>> pending = Maps.newHashMap();
+	//The received deltas whose operations are still to come, in the order they are applied. Only
+	//kept for wavelets something waits on
+	private final Map<WaveletName, Deque<Delta>> receiving = Maps.newHashMap();
+	private final LatencyHistogram roundTrips;
+	private final ScheduledExecutorService sweeper;
+	private volatile long timeoutNanos = TimeUnit.SECONDS.toNanos(DEFAULT_TIMEOUT_SECONDS);
+
+
+
+	/**
+	* Constructor requires the histogram to record round trip times in
+	*
+	* @param LatencyHistogram of the time from sending a delta to it being applied
+	*/
+	public PendingDeltas(LatencyHistogram roundTrips) {
+		this.roundTrips = roundTrips;
+		this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "WaveConnector acknowledgements");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		sweeper.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					failOverdue(System.nanoTime());
+				} catch(RuntimeException e) {
+					LOG.warning("Could not fail the deltas not heard back in time", e);
+				}
+			}
+		}, SWEEP_INTERVAL_MILLIS, SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+
+
+	/**
+	* Set how long a delta may wait to be heard back before it is failed. Applies to deltas sent
+	* from then on
+	*
+	* @param long containing the timeout
+	* @param TimeUnit of the timeout
+	*/
+	public void setTimeout(long timeout, TimeUnit unit) {
+		if(timeout <= 0) {
+			throw new IllegalArgumentException("The timeout must be positive");
+		}
+		timeoutNanos = unit.toNanos(timeout);
+	}
+
+
+
+	/**
+	* Wait for a delta on a wavelet. Must be called before the delta is sent
+	*
+	* @param WaveletName of the wavelet the delta applies to
+	* @param ParticipantId the delta is sent as
+	* @param long containing the version of the wavelet the delta is sent against, or a lower one
+	* @param List of the changes made by each operation of the delta, see the static methods of this class
+	* @return {@link WaveFuture} completed once the delta has been applied
+	*/
+	public WaveFuture<Acknowledgement> expect(WaveletName wavelet, ParticipantId author, long targetVersion,
+			List<String> changes) {
+		return add(wavelet, new Pending(author, targetVersion, changes, null, timeoutNanos));
+	}
+
+
+
+	/**
+	* Wait for a wavelet to reach a state, checked at the end of every delta sequence on it. For
+	* operations such as creating a wave, whose wavelet is only known once they have been sent
+	*
+	* @param WaveletName of the wavelet
+	* @param Predicate that holds once the operation has been applied
+	* @return {@link WaveFuture} completed at the end of the first delta sequence it holds after
+	*/
+	public WaveFuture<Acknowledgement> expectState(WaveletName wavelet, Predicate<WaveletData> applied) {
+		return add(wavelet, new Pending(null, 0, null, applied, timeoutNanos));
+	}
+
+
+
+	/**
+	* Called by the backend before the operations of each delta received are passed on, in the order
+	* the deltas are applied. Picks the deltas waiting that the received one could be
+	*
+	* @param WaveletName of the wavelet the delta applies to
+	* @param ParticipantId of the author of the delta
+	* @param long containing the version the delta was applied at
+	* @param int containing the number of operations in the delta
+	*/
+	public synchronized void deltaReceived(WaveletName wavelet, ParticipantId author, long appliedAtVersion,
+			int operationCount) {
+		List<Pending> waiting = pending.get(wavelet);
+		Delta delta = null;
+		if(waiting != null) {
+			for(Pending next : waiting) {
+				if(next.couldBe(author, appliedAtVersion, operationCount)) {
+					if(delta == null) {
+						delta = new Delta(operationCount);
+					}
+					delta.candidates.add(next);
+				}
+			}
+		}
+		Deque<Delta> queued = receiving.isEmpty() ? null : receiving.get(wavelet);
+		if(operationCount == 0) {
+			//No operations will come to compare, a delta that does nothing is ours if we sent one
+			if(delta != null) {
+				delta.candidates.get(0).matched = true;
+			}
+		} else if(delta != null || queued != null || waiting != null) {
+			//One that cannot be ours is still queued, in case one after it in the same update can be
+			if(queued == null) {
+				queued = new ArrayDeque<Delta>();
+				receiving.put(wavelet, queued);
+			}
+			queued.add((delta != null) ? delta : new Delta(operationCount));
+		}
+	}
+
+
+
+	/**
+	* Called for every change to a document. Matches it against the deltas waiting. The change is
+	* only described when the delta it is part of could be one sent from here, as this runs for
+	* every operation received on the thread that receives them
+	*
+	* @param WaveletName of the wavelet changed
+	* @param WaveletDocumentOperation received
+	*/
+	public void documentUpdated(WaveletName wavelet, WaveletDocumentOperation operation) {
+		if(isReceiving(wavelet)) {
+			matched(wavelet, documentChange(operation));
+		}
+	}
+
+	/**
+	* @param WaveletName of the wavelet changed
+	* @param ParticipantId added
+	*/
+	public void participantAdded(WaveletName wavelet, ParticipantId participant) {
+		if(isReceiving(wavelet)) {
+			matched(wavelet, participantAddition(participant));
+		}
+	}
+
+	/**
+	* @param WaveletName of the wavelet changed
+	* @param ParticipantId removed
+	*/
+	public void participantRemoved(WaveletName wavelet, ParticipantId participant) {
+		if(isReceiving(wavelet)) {
+			matched(wavelet, participantRemoval(participant));
+		}
+	}
+
+	/**
+	* @param WaveletName of the wavelet the operation that does nothing was applied to
+	*/
+	public void noOp(WaveletName wavelet) {
+		if(isReceiving(wavelet)) {
+			matched(wavelet, NO_OP);
+		}
+	}
+
+
+
+	/**
+	* Called at the end of a delta sequence, once the version of the wavelet is up to date.
+	* Completes every delta on the wavelet that has now been applied
+	*
+	* @param WaveletData the sequence applied to
+	* @param HashedVersion of the wavelet, may be null if the backend does not know it
+	*/
+	public void deltaSequenceEnd(WaveletData wavelet, HashedVersion version) {
+		List<Pending> completed = Lists.newArrayList();
+		WaveletName name = wavelet.getWaveletName();
+		synchronized(this) {
+			if(!receiving.isEmpty()) {
+				receiving.remove(name);
+			}
+			List<Pending> waiting = pending.get(name);
+			if(waiting == null) {
+				return;
+			}
+			for(Iterator<Pending> it = waiting.iterator(); it.hasNext();) {
+				Pending next = it.next();
+				if(next.future.isDone()) {
+					it.remove();
+				} else if(next.isApplied(wavelet)) {
+					it.remove();
+					completed.add(next);
+				}
+			}
+			if(waiting.isEmpty()) {
+				pending.remove(name);
+			}
+		}
+
+		long now = System.nanoTime();
+		for(Pending done : completed) {
+			roundTrips.record(now - done.sentAt);
+			done.future.complete(new Acknowledgement(name.waveId, version, now - done.sentAt));
+		}
+	}
+
+
+
+	/**
+	* Fail every delta on a wavelet, for example once the user has left it
+	*
+	* @param WaveletName of the wavelet
+	* @param Throwable to fail the deltas with
+	*/
+	public void failAll(WaveletName wavelet, Throwable cause) {
+		List<Pending> failed;
+		synchronized(this) {
+			failed = pending.remove(wavelet);
+			receiving.remove(wavelet);
+		}
+		if(failed != null) {
+			for(Pending next : failed) {
+				next.future.fail(cause);
+			}
+		}
+	}
+
+
+
+	/**
+	* Fail every delta still waiting, for example when the connection has been lost
+	*
+	* @param Throwable to fail the deltas with
+	*/
+	public void failAll(Throwable cause) {
+		List<Pending> failed = Lists.newArrayList();
+		synchronized(this) {
+			for(List<Pending> waiting : pending.values()) {
+				failed.addAll(waiting);
+			}
+			pending.clear();
+			receiving.clear();
+		}
+		for(Pending next : failed) {
+			next.future.fail(cause);
+		}
+	}
+
+
+
+	/**
+	* Fail every delta that has waited past its timeout. Called once a second by the background
+	* thread, callers only need it to check sooner
+	*
+	* @param long containing the current {@link System#nanoTime()}
+	* @return the number of deltas failed
+	*/
+	public int failOverdue(long now) {
+		List<Pending> failed = Lists.newArrayList();
+		synchronized(this) {
+			for(Iterator<List<Pending>> lists = pending.values().iterator(); lists.hasNext();) {
+				List<Pending> waiting = lists.next();
+				for(Iterator<Pending> it = waiting.iterator(); it.hasNext();) {
+					Pending next = it.next();
+					if(next.future.isDone()) {
+						it.remove();
+					} else if(now - next.deadline >= 0) {
+						it.remove();
+						failed.add(next);
+					}
+				}
+				if(waiting.isEmpty()) {
+					lists.remove();
+				}
+			}
+		}
+		for(Pending next : failed) {
+			next.future.fail(new TimeoutException("The server did not answer within "
+					+ TimeUnit.NANOSECONDS.toMillis(next.deadline - next.sentAt) + " ms"));
+		}
+		return failed.size();
+	}
+
+
+
+	/**
+	* @return the number of deltas waiting to be heard back
+	*/
+	public synchronized int size() {
+		int size = 0;
+		for(List<Pending> waiting : pending.values()) {
+			size += waiting.size();
+		}
+		return size;
+	}
+
+
+
+	/**
+	* Stop the background thread. Deltas still waiting are left as they are, see failAll
+	*/
+	public void shutdown() {
+		sweeper.shutdownNow();
+	}
+
+
+
+	/**
+	* Describes a change to a document by what it inserts, ignoring where
+	*
+	* @param WaveletDocumentOperation making the change
+	* @return the change, for passing to expect
+	*/
+	public static String documentChange(WaveletDocumentOperation operation) {
+		BufferedDocOp op = operation.getOperation();
+		StringBuilder change = new StringBuilder("document ").append(operation.getDocumentId()).append(' ');
+		for(int i = 0; i < op.size(); i++) {
+			DocOpComponentType type = op.getType(i);
+			if(type == DocOpComponentType.ELEMENT_START) {
+				change.append('<').append(op.getElementStartTag(i)).append(op.getElementStartAttributes(i)).append('>');
+			} else if(type == DocOpComponentType.ELEMENT_END) {
+				change.append("</>");
+			} else if(type == DocOpComponentType.CHARACTERS) {
+				change.append(op.getCharactersString(i));
+			}
+		}
+		return change.toString();
+	}
+
+	/**
+	* @param ParticipantId added
+	* @return the change, for passing to expect
+	*/
+	public static String participantAddition(ParticipantId participant) {
+		return "added " + participant.getAddress();
+	}
+
+	/**
+	* @param ParticipantId removed
+	* @return the change, for passing to expect
+	*/
+	public static String participantRemoval(ParticipantId participant) {
+		return "removed " + participant.getAddress();
+	}
+
+
+
+	private synchronized WaveFuture<Acknowledgement> add(WaveletName wavelet, Pending next) {
+		List<Pending> waiting = pending.get(wavelet);
+		if(waiting == null) {
+			waiting = Lists.newLinkedList();
+			pending.put(wavelet, waiting);
+		}
+		waiting.add(next);
+		return next.future;
+	}
+
+	private synchronized boolean isReceiving(WaveletName wavelet) {
+		return !receiving.isEmpty() && receiving.containsKey(wavelet);
+	}
+
+	//Keeps the deltas waiting whose next change is this one for the received delta at the head of
+	//the queue, and once that delta has passed on all its operations marks the first left as applied
+	private synchronized void matched(WaveletName wavelet, String change) {
+		Deque<Delta> queued = receiving.get(wavelet);
+		Delta delta = (queued == null) ? null : queued.peek();
+		if(delta == null) {
+			return;
+		}
+		for(Iterator<Pending> it = delta.candidates.iterator(); it.hasNext();) {
+			Pending next = it.next();
+			if(next.future.isDone() || next.matched || !next.changes.get(delta.position).equals(change)) {
+				it.remove();
+			}
+		}
+		delta.position++;
+		if(delta.position == delta.operationCount) {
+			queued.remove();
+			if(!delta.candidates.isEmpty()) {
+				delta.candidates.get(0).matched = true;
+			}
+		}
+		for(Delta next : queued) {
+			if(!next.candidates.isEmpty()) {
+				return;
+			}
+		}
+		//None of the deltas still to come can be ours
+		receiving.remove(wavelet);
+	}
+
+
+
+	//A delta waiting to be heard back, either for a delta received with the same changes or for a state
+	private static class Pending {
+		private final WaveFuture<Acknowledgement> future = new WaveFuture<Acknowledgement>();
+		private final long sentAt = System.nanoTime();
+		private final long deadline;
+		private final ParticipantId author;
+		private final long targetVersion;
+		private final List<String> changes;
+		private final Predicate<WaveletData> applied;
+		private boolean matched = false;
+
+		Pending(ParticipantId author, long targetVersion, List<String> changes, Predicate<WaveletData> applied,
+				long timeoutNanos) {
+			this.deadline = sentAt + timeoutNanos;
+			this.author = author;
+			this.targetVersion = targetVersion;
+			this.changes = changes;
+			this.applied = applied;
+		}
+
+		boolean couldBe(ParticipantId deltaAuthor, long appliedAtVersion, int operationCount) {
+			return changes != null && !matched && !future.isDone() && changes.size() == operationCount
+					&& appliedAtVersion >= targetVersion && author.equals(deltaAuthor);
+		}
+
+		boolean isApplied(WaveletData wavelet) {
+			return (changes != null) ? matched : applied.apply(wavelet);
+		}
+	}
+
+
+
+	//A received delta whose operations are compared with the deltas it could be, none if it cannot be ours
+	private static class Delta {
+		private final int operationCount;
+		private final List<Pending> candidates = Lists.newArrayList();
+		private int position = 0;
+
+		Delta(int operationCount) {
+			this.operationCount = operationCount;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,319 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
+import org.waveprotocol.wave.model.id.WaveId;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+* Remembers the last version of each wave the user has seen. Entries are keyed by {@link WaveId}
+* and kept in an open addressing hash table laid out in a memory mapped file, so the store is
+* available as soon as the file is mapped, each update writes a single slot in place and the
+* table takes no space on the Java heap however many waves the inbox holds.
+*
+* Each slot holds two independent 64 bit hashes of the wave id, the version number and a 64 bit
+* hash of the history hash of the version. A wave counts as read when both the version number and
+* the history hash match what was stored for it.
+*
+* A store created without a file keeps the same table in memory and is lost on exit.
+*/
+public class ReadStateStore {
+
+	private static final int MAGIC = 0x57525331; //"WRS1"
+	private static final int HEADER_SIZE = 16;
+	private static final int SLOT_SIZE = 32;
+	private static final int INITIAL_CAPACITY = 1024;
+	//Grow once the table is this full, in percent
+	private static final int MAX_LOAD = 70;
+
+	private final RandomAccessFile file;
+	private ByteBuffer table;
+	private int capacity;
+	private int count;
+
+
+
+	/**
+	* Open or create a store backed by a file. A file that is not a valid store is started afresh
+	*
+	* @param File to keep the read state in
+	* @throws IOException if the file cannot be opened or mapped
+	*/
+	public ReadStateStore(File path) throws IOException {
+		File parent = path.getAbsoluteFile().getParentFile();
+		if(parent != null && !parent.exists() && !parent.mkdirs()) {
+			throw new IOException("Could not create " + parent);
+		}
+		file = new RandomAccessFile(path, "rw");
+		try {
+			if(file.length() >= HEADER_SIZE) {
+				table = map(file.length());
+				capacity = table.getInt(4);
+				count = table.getInt(8);
+				if(!isValidHeader(table.getInt(0), capacity, count, file.length())) {
+					table = null;
+				}
+			}
+			if(table == null) {
+				capacity = INITIAL_CAPACITY;
+				count = 0;
+				file.setLength(HEADER_SIZE + (long) capacity * SLOT_SIZE);
+				table = map(HEADER_SIZE + (long) capacity * SLOT_SIZE);
+				clearSlots();
+				writeHeader();
+			}
+		} catch(IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+
+
+	/**
+	* Create a store that is only kept in memory
+	*/
+	public ReadStateStore() {
+		file = null;
+		capacity = INITIAL_CAPACITY;
+		count = 0;
+		table = ByteBuffer.allocate(HEADER_SIZE + capacity * SLOT_SIZE);
+		writeHeader();
+	}
+
+
+
+	/**
+	* Returns whether the given version of a wave has been seen
+	*
+	* @param WaveId of the wave
+	* @param HashedVersion of the wave now
+	* @return true if the version last marked seen for the wave is the same version
+	*/
+	public synchronized boolean isSeen(WaveId waveId, HashedVersion version) {
+		if(version == null) {
+			return false;
+		}
+		int slot = find(hash1(waveId), hash2(waveId));
+		if(slot < 0) {
+			return false;
+		}
+		int offset = offsetOf(slot);
+		return table.getLong(offset + 16) == version.getVersion()
+				&& table.getLong(offset + 24) == historyHash(version);
+	}
+
+
+
+	/**
+	* Record that a version of a wave has been seen
+	*
+	* @param WaveId of the wave
+	* @param HashedVersion seen
+	*/
+	public synchronized void markSeen(WaveId waveId, HashedVersion version) {
+		if(version == null) {
+			return;
+		}
+		long h1 = hash1(waveId);
+		long h2 = hash2(waveId);
+		int slot = find(h1, h2);
+		if(slot < 0) {
+			if((count + 1) * 100L > (long) capacity * MAX_LOAD) {
+				grow();
+				slot = find(h1, h2);
+			}
+			slot = -slot - 1;
+			count++;
+			table.putInt(8, count);
+		}
+		int offset = offsetOf(slot);
+		table.putLong(offset, h1);
+		table.putLong(offset + 8, h2);
+		table.putLong(offset + 16, version.getVersion());
+		table.putLong(offset + 24, historyHash(version));
+	}
+
+
+
+	/**
+	* Returns the number of waves with a recorded read state
+	*
+	* @return the number of entries
+	*/
+	public synchronized int size() {
+		return count;
+	}
+
+
+
+	/**
+	* Write outstanding changes to disk and close the file
+	*/
+	public synchronized void close() {
+		if(file != null) {
+			((MappedByteBuffer) table).force();
+			try {
+				file.close();
+			} catch(IOException e) {
+				//Nothing more can be done, the mapping has already been forced to disk
+			}
+		}
+	}
+
+
+
+	/*
+	* Returns the slot holding the key, or -(empty slot + 1) where the key would go
+	*/
+	private int find(long h1, long h2) {
+		int slot = (int) ((h1 ^ (h1 >>> 32)) & 0x7fffffff) % capacity;
+		while(true) {
+			int offset = offsetOf(slot);
+			long stored = table.getLong(offset);
+			if(stored == 0) {
+				return -slot - 1;
+			}
+			if(stored == h1 && table.getLong(offset + 8) == h2) {
+				return slot;
+			}
+			slot = (slot + 1) % capacity;
+		}
+	}
+
+
+
+	//Double the capacity and insert every entry again
+	private void grow() {
+		int oldCapacity = capacity;
+		long[] slots = new long[count * 4];
+		int n = 0;
+		for(int slot = 0; slot < oldCapacity; slot++) {
+			int offset = offsetOf(slot);
+			if(table.getLong(offset) != 0) {
+				for(int i = 0; i < 4; i++) {
+					slots[n++] = table.getLong(offset + i * 8);
+				}
+			}
+		}
+
+		capacity = oldCapacity * 2;
+		if(file != null) {
+			try {
+				table = map(HEADER_SIZE + (long) capacity * SLOT_SIZE);
+			} catch(IOException e) {
+				throw new IllegalStateException("Could not grow the read state file", e);
+			}
+		} else {
+			table = ByteBuffer.allocate(HEADER_SIZE + capacity * SLOT_SIZE);
+		}
+		clearSlots();
+		writeHeader();
+
+		for(int i = 0; i < n; i += 4) {
+			int offset = offsetOf(-find(slots[i], slots[i + 1]) - 1);
+			for(int j = 0; j < 4; j++) {
+				table.putLong(offset + j * 8, slots[i + j]);
+			}
+		}
+	}
+
+
+
+	/*
+	* Returns whether a header describes a table this class could have written. The capacity only
+	* ever starts at a power of two and doubles, and the table is never filled past MAX_LOAD, which
+	* find relies on to always reach an empty slot
+	*/
+	private static boolean isValidHeader(int magic, int capacity, int count, long length) {
+		return magic == MAGIC
+				&& capacity > 0
+				&& Integer.bitCount(capacity) == 1
+				&& count >= 0
+				&& count * 100L <= (long) capacity * MAX_LOAD
+				&& (long) HEADER_SIZE + (long) capacity * SLOT_SIZE == length;
+	}
+
+	private MappedByteBuffer map(long size) throws IOException {
+		if(size > Integer.MAX_VALUE) {
+			throw new IOException("Read state file is too large");
+		}
+		return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	private void clearSlots() {
+		for(int offset = HEADER_SIZE; offset < HEADER_SIZE + capacity * SLOT_SIZE; offset += 8) {
+			table.putLong(offset, 0);
+		}
+	}
+
+	private void writeHeader() {
+		table.putInt(0, MAGIC);
+		table.putInt(4, capacity);
+		table.putInt(8, count);
+		table.putInt(12, 0);
+	}
+
+	private static int offsetOf(int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+
+
+
+	//FNV-1a over the serialised wave id. Never 0 as 0 marks an empty slot
+	private static long hash1(WaveId waveId) {
+		String key = waveId.serialise();
+		long hash = 0xcbf29ce484222325L;
+		for(int i = 0; i < key.length(); i++) {
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return (hash == 0) ? 1 : hash;
+	}
+
+	//A second, independent hash so two ids only collide if both hashes do
+	private static long hash2(WaveId waveId) {
+		String key = waveId.serialise();
+		long hash = 0x9e3779b97f4a7c15L;
+		for(int i = 0; i < key.length(); i++) {
+			hash = (hash ^ key.charAt(i)) * 0xff51afd7ed558ccdL;
+			hash ^= hash >>> 29;
+		}
+		return hash;
+	}
+
+	private static long historyHash(HashedVersion version) {
+		byte[] bytes = version.getHistoryHash();
+		long hash = 0xcbf29ce484222325L;
+		if(bytes != null) {
+			for(byte b : bytes) {
+				hash ^= b & 0xff;
+				hash *= 0x100000001b3L;
+			}
+		}
+		return hash;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import org.waveprotocol.wave.examples.fedone.util.Log;
+import org.waveprotocol.wave.model.id.WaveId;
+
+import java.lang.IllegalAccessException;
+import java.lang.NoSuchMethodException;
+import java.lang.SecurityException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import java.util.Set;
+
+/**
+* Adapts an object with a public "refresh" method to {@link WaveConnectorListener}. This is how the
+* {@link WaveConnector}(Object) constructor keeps working for applications written before typed
+* listeners were available. The method is looked up once and called through a bound
+* {@link MethodHandle} at the end of every batch of changes.
+*/
+public class RefreshMethodListener extends WaveConnectorAdapter {
+
+	private static final Log LOG = Log.get(RefreshMethodListener.class);
+
+	private final MethodHandle refreshMethod;
+
+
+
+	/**
+	* Constructor requires the object containing the public "refresh" method
+	*
+	* @param Object containing the refresh method
+	* @throws NoSuchMethodException if there is no public refresh method taking no arguments
+	* @throws SecurityException if the refresh method is not accessible
+	*/
+	public RefreshMethodListener(Object callingClass) throws NoSuchMethodException, SecurityException {
+		try{
+			refreshMethod = MethodHandles.publicLookup()
+					.findVirtual(callingClass.getClass(), "refresh", MethodType.methodType(void.class))
+					.bindTo(callingClass);
+		}catch(NoSuchMethodException e) {
+			throw new NoSuchMethodException("Class named 'refresh' in calling method was not found. " +
+			"'refresh' must be declared as a method that refreshes all variables in the user interface");
+		}catch(IllegalAccessException e) {
+			throw new SecurityException("Class named 'refresh' in calling method was not accessible. " +
+			"'refresh' must be declared as a method that refreshes all variables in the user interface");
+		}
+	}
+
+
+
+	/**
+	* Calls the refresh method
+	*/
+	@Override
+	public void refreshed(Set<WaveId> changedWaves) {
+		try{
+			refreshMethod.invokeExact();
+		}catch(RuntimeException e) {
+			throw e;
+		}catch(Error e) {
+			throw e;
+		}catch(Throwable e) {
+			LOG.warning("The refresh method threw a checked exception", e);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,207 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import com.google.common.collect.Sets;
+
+import org.waveprotocol.wave.examples.fedone.util.Log;
+import org.waveprotocol.wave.model.id.WaveId;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+* Merges bursts of changes into a single refresh. Each change marks a wave as dirty. The refresh
+* runs once no change has arrived for the coalescing window, or once the oldest pending change
+* has waited for the maximum latency, whichever comes first. Refreshes run one at a time on a
+* single background thread and are handed the set of waves dirtied since the previous one.
+*/
+public class RefreshScheduler {
+
+	private static final Log LOG = Log.get(RefreshScheduler.class);
+
+	/**
+	* Work performed by a refresh
+	*/
+	public interface Refresh {
+		/**
+		* Called on the scheduler thread, never concurrently with itself
+		*
+		* @param Set of {@link WaveId} changed since the previous refresh
+		*/
+		void refresh(Set<WaveId> dirtyWaves);
+	}
+
+	private final Refresh refresh;
+	private final ScheduledExecutorService executor;
+	private Set<WaveId> dirtyWaves = Sets.newLinkedHashSet();
+	private long windowNanos;
+	private long maxLatencyNanos;
+	private long firstDirtyAt;
+	private long lastDirtyAt;
+	private boolean scheduled = false;
+	private boolean running = false;
+
+	private final Runnable runRefresh = new Runnable() {
+		public void run() {
+			runIfDue();
+		}
+	};
+
+
+
+	/**
+	* Constructor requires the refresh to run and the coalescing parameters
+	*
+	* @param Refresh to run
+	* @param long containing the time to wait for changes to stop arriving
+	* @param long containing the longest a change may wait before a refresh is forced
+	* @param TimeUnit of both times
+	*/
+	public RefreshScheduler(Refresh refresh, long window, long maxLatency, TimeUnit unit) {
+		this.refresh = refresh;
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "WaveConnector refresh");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		setCoalescing(window, maxLatency, unit);
+	}
+
+
+
+	/**
+	* Change the coalescing parameters. Takes effect from the next change
+	*
+	* @param long containing the time to wait for changes to stop arriving, 0 to refresh on every change
+	* @param long containing the longest a change may wait before a refresh is forced
+	* @param TimeUnit of both times
+	*/
+	public synchronized void setCoalescing(long window, long maxLatency, TimeUnit unit) {
+		if(window < 0 || maxLatency < window) {
+			throw new IllegalArgumentException("The window must not be negative or longer than the maximum latency");
+		}
+		this.windowNanos = unit.toNanos(window);
+		this.maxLatencyNanos = unit.toNanos(maxLatency);
+	}
+
+
+
+	/**
+	* Record a change to a wave and make sure a refresh will follow
+	*
+	* @param WaveId of the changed wave
+	*/
+	public synchronized void markDirty(WaveId waveId) {
+		long now = System.nanoTime();
+		if(dirtyWaves.isEmpty()) {
+			firstDirtyAt = now;
+		}
+		lastDirtyAt = now;
+		dirtyWaves.add(waveId);
+
+		//A running refresh reschedules itself when it finishes
+		if(!scheduled && !running) {
+			schedule(now);
+		}
+	}
+
+
+
+	/**
+	* Record changes to many waves and refresh as soon as possible, without waiting for the window.
+	* Used after a bulk change made by the client itself, when no more changes are expected
+	*
+	* @param Collection of {@link WaveId} changed
+	*/
+	public synchronized void markDirtyNow(Collection<WaveId> waveIds) {
+		long now = System.nanoTime();
+		dirtyWaves.addAll(waveIds);
+		firstDirtyAt = now - maxLatencyNanos;
+		lastDirtyAt = now - windowNanos;
+
+		//An earlier deadline may still be queued, runIfDue ignores whichever call finds nothing to do
+		if(!running && !executor.isShutdown()) {
+			scheduled = true;
+			executor.execute(runRefresh);
+		}
+	}
+
+
+
+	/**
+	* Stop the scheduler thread. Pending changes are dropped
+	*/
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+
+
+	//Queue runIfDue for whichever of the window or the latency deadline comes first
+	private void schedule(long now) {
+		if(executor.isShutdown()) {
+			return;
+		}
+		long due = Math.min(lastDirtyAt + windowNanos, firstDirtyAt + maxLatencyNanos);
+		scheduled = true;
+		executor.schedule(runRefresh, Math.max(0, due - now), TimeUnit.NANOSECONDS);
+	}
+
+
+
+	//Runs on the scheduler thread. Refresh if due, otherwise wait for the new deadline
+	private void runIfDue() {
+		Set<WaveId> dirty;
+		synchronized(this) {
+			scheduled = false;
+			if(dirtyWaves.isEmpty()) {
+				return;
+			}
+			long now = System.nanoTime();
+			if(now - lastDirtyAt < windowNanos && now - firstDirtyAt < maxLatencyNanos) {
+				schedule(now);
+				return;
+			}
+			dirty = dirtyWaves;
+			dirtyWaves = Sets.newLinkedHashSet();
+			running = true;
+		}
+
+		try {
+			refresh.refresh(Collections.unmodifiableSet(dirty));
+		} catch(RuntimeException e) {
+			LOG.warning("Refresh failed", e);
+		} finally {
+			synchronized(this) {
+				running = false;
+				if(!dirtyWaves.isEmpty()) {
+					schedule(System.nanoTime());
+				}
+			}
+		}
+	}
+}
\ No newline at end of file
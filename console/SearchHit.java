@@ -0,0 +1,78 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import org.waveprotocol.wave.model.id.WaveId;
+
+/**
+* A line found by a search of the {@link SearchIndex}
+*/
+public class SearchHit {
+
+	private final WaveId waveId;
+	private final int line;
+
+
+
+	/**
+	* Constructor requires the wave and the position of the line in it
+	*
+	* @param WaveId of the wave the line is in
+	* @param int containing the position of the line in the body of the wave, from 0
+	*/
+	public SearchHit(WaveId waveId, int line) {
+		this.waveId = waveId;
+		this.line = line;
+	}
+
+
+
+	/**
+	* @return the id of the wave the line is in
+	*/
+	public WaveId getWaveId() {
+		return waveId;
+	}
+
+	/**
+	* @return the position of the line in the list returned by getWaveBody, from 0
+	*/
+	public int getLine() {
+		return line;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof SearchHit)) {
+			return false;
+		}
+		SearchHit other = (SearchHit) o;
+		return line == other.line && waveId.equals(other.waveId);
+	}
+
+	@Override
+	public int hashCode() {
+		return waveId.hashCode() * 31 + line;
+	}
+
+	@Override
+	public String toString() {
+		return waveId + " line " + line;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,643 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import org.waveprotocol.wave.model.document.operation.Attributes;
+import org.waveprotocol.wave.model.document.operation.BufferedDocOp;
+import org.waveprotocol.wave.model.document.operation.DocOpComponentType;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.operation.wave.WaveletDocumentOperation;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* An inverted index over the text and authors of the lines of many waves, for finding which
+* lines contain a word. Only the main document of the conversation root is indexed, which is
+* where {@link WaveConnector} writes.
+*
+* Words are lower cased runs of letters and digits. Each word and each author address maps to a
+* list of the lines it appears on, held in sorted skip lists so words starting with a prefix are
+* found as a range. The lists are encoded as variable length deltas, usually two or three bytes
+* a line, and are only ever appended to, so queries read them without locking while waves are
+* being indexed.
+*
+* A wave is indexed once in full and then kept up to date by applying the operations that append
+* lines to it. Any other change indexes the wave again under a new number; the lines recorded
+* under its old number are skipped by queries from then on. Once such lines, and those of
+* removed waves, make up half of the lines held, the line lists are rewritten without them, so
+* they cost at most as much again as the live lines, in memory and in the entries a query reads.
+* What remains for each number ever given out is one slot of the table mapping numbers to waves.
+*
+* Queries are a single word, a prefix ending in *, or either of these after "by:" to search
+* authors, for example "hello", "hel*" or "by:alice*".
+*/
+public class SearchIndex {
+
+	static final String MAIN_DOCUMENT_ID = "main";
+	static final String AUTHOR_QUERY = "by:";
+	private static final int MAX_TERM_LENGTH = 64;
+	//Compact once lines of retired waves are this share of the lines held, in percent, and at least this many
+	private static final int COMPACT_RETIRED_PERCENT = 50;
+	private static final int COMPACT_MIN_LINES = 10000;
+
+	private final ConcurrentSkipListMap<String, Postings> terms = new ConcurrentSkipListMap<String, Postings>();
+	private final ConcurrentSkipListMap<String, Postings> authors = new ConcurrentSkipListMap<String, Postings>();
+	private final ConcurrentMap<WaveId, IndexedWave> waves = new ConcurrentHashMap<WaveId, IndexedWave>();
+	//The wave each number was given to, null once the wave has been indexed again or removed
+	private volatile WaveId[] waveOfNumber = new WaveId[1024];
+	private int numbers = 0;
+	private final AtomicLong lines = new AtomicLong();
+	private final AtomicLong retiredLines = new AtomicLong();
+	private final AtomicBoolean compacting = new AtomicBoolean();
+
+
+
+	/**
+	* Index the conversation root of a wave in full, replacing anything indexed for it before
+	*
+	* @param WaveletData of the conversation root
+	*/
+	public void index(WaveletData conversationRoot) {
+		index(conversationRoot, true);
+	}
+
+
+
+	/**
+	* Index a wave in full unless it has been indexed already. If the wave is indexed by another
+	* thread while this one reads it, the other thread's index is kept, as the operation that made
+	* it index the wave may not have been applied when this thread started reading
+	*
+	* @param WaveletData of the conversation root
+	*/
+	public void indexIfAbsent(WaveletData conversationRoot) {
+		if(!waves.containsKey(conversationRoot.getWaveletName().waveId)) {
+			index(conversationRoot, false);
+		}
+	}
+
+
+
+	/**
+	* Apply an operation the server has applied to a document of a conversation root. Lines
+	* appended are indexed on their own, anything else indexes the wave again
+	*
+	* @param WaveletData of the conversation root, with the operation already applied
+	* @param WaveletDocumentOperation received from the server
+	*/
+	public void update(WaveletData conversationRoot, WaveletDocumentOperation operation) {
+		if(!operation.getDocumentId().equals(MAIN_DOCUMENT_ID)) {
+			return;
+		}
+		IndexedWave wave = waves.get(conversationRoot.getWaveletName().waveId);
+		if(wave != null) {
+			synchronized(wave) {
+				if(!wave.retired && wave.append(operation.getOperation())) {
+					return;
+				}
+			}
+		}
+		index(conversationRoot);
+	}
+
+
+
+	/**
+	* Stop finding the lines of a wave
+	*
+	* @param WaveId of the wave
+	*/
+	public void remove(WaveId waveId) {
+		IndexedWave wave = waves.remove(waveId);
+		if(wave != null) {
+			retire(wave);
+		}
+	}
+
+
+
+	/**
+	* Index many waves in parallel, skipping any indexed already
+	*
+	* @param Collection of the conversation roots of the waves
+	* @param Executor to index on
+	* @param int containing the number of tasks to split the waves between
+	* @return {@link WaveFuture} of the number of waves, completed once all are indexed
+	*/
+	public WaveFuture<Integer> build(Collection<? extends WaveletData> conversationRoots, Executor executor, int tasks) {
+		final WaveFuture<Integer> built = new WaveFuture<Integer>();
+		final List<WaveletData> roots = new ArrayList<WaveletData>(conversationRoots);
+		if(roots.isEmpty()) {
+			built.complete(0);
+			return built;
+		}
+		int chunkSize = (roots.size() + tasks - 1) / tasks;
+		final AtomicInteger remaining = new AtomicInteger((roots.size() + chunkSize - 1) / chunkSize);
+		for(int start = 0; start < roots.size(); start += chunkSize) {
+			final List<WaveletData> chunk = roots.subList(start, Math.min(start + chunkSize, roots.size()));
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						for(WaveletData root : chunk) {
+							indexIfAbsent(root);
+						}
+					} catch(RuntimeException e) {
+						built.fail(e);
+					}
+					if(remaining.decrementAndGet() == 0) {
+						built.complete(roots.size());
+					}
+				}
+			});
+		}
+		return built;
+	}
+
+
+
+	/**
+	* Find the lines matching a query
+	*
+	* @param String containing a word, a prefix ending in *, or either after "by:" to search authors
+	* @param int containing the most lines to return
+	* @return List of {@link SearchHit} in the order the lines were indexed
+	*/
+	public List<SearchHit> search(String query, int limit) {
+		String term = query.trim().toLowerCase();
+		ConcurrentSkipListMap<String, Postings> index = terms;
+		if(term.startsWith(AUTHOR_QUERY)) {
+			index = authors;
+			term = term.substring(AUTHOR_QUERY.length());
+		}
+
+		Set<SearchHit> hits = Sets.newLinkedHashSet();
+		WaveId[] waveIds = waveOfNumber;
+		if(term.endsWith("*")) {
+			String prefix = term.substring(0, term.length() - 1);
+			ConcurrentNavigableMap<String, Postings> range = prefix.isEmpty() ? index
+					: index.subMap(prefix, true, prefix + Character.MAX_VALUE, true);
+			for(Postings postings : range.values()) {
+				if(hits.size() >= limit) {
+					break;
+				}
+				postings.collect(waveIds, hits, limit);
+			}
+		} else {
+			Postings postings = index.get(term);
+			if(postings != null) {
+				postings.collect(waveIds, hits, limit);
+			}
+		}
+		return Lists.newArrayList(hits);
+	}
+
+
+
+	/**
+	* Rewrite the line lists without the lines of waves that have been indexed again or removed
+	* since. Happens by itself once those lines are half of the lines held, so calling this is only
+	* needed to reclaim the space sooner. Queries and indexing carry on while it runs
+	*/
+	public void compact() {
+		if(!compacting.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			WaveId[] waveIds;
+			synchronized(this) {
+				waveIds = Arrays.copyOf(waveOfNumber, numbers);
+			}
+			compact(terms, waveIds);
+			//Every line has exactly one author entry, so these count the lines dropped
+			long dropped = compact(authors, waveIds);
+			lines.addAndGet(-dropped);
+			retiredLines.addAndGet(-dropped);
+		} finally {
+			compacting.set(false);
+		}
+	}
+
+
+
+	/**
+	* @return the number of waves indexed
+	*/
+	public int getWaveCount() {
+		return waves.size();
+	}
+
+	/**
+	* @return the number of lines held, including those of waves indexed again since that have
+	* not been compacted away yet
+	*/
+	public long getLineCount() {
+		return lines.get();
+	}
+
+	/**
+	* @return the number of lines held for waves that have been indexed again or removed since
+	*/
+	public long getRetiredLineCount() {
+		return retiredLines.get();
+	}
+
+	/**
+	* @return the number of different words indexed
+	*/
+	public int getTermCount() {
+		return terms.size();
+	}
+
+	/**
+	* Returns the bytes used by the encoded line lists, not counting the space held for growth
+	*
+	* @return the size of the postings in bytes
+	*/
+	public long getPostingBytes() {
+		long bytes = 0;
+		for(Postings postings : terms.values()) {
+			bytes += postings.length;
+		}
+		for(Postings postings : authors.values()) {
+			bytes += postings.length;
+		}
+		return bytes;
+	}
+
+	@Override
+	public String toString() {
+		long postingBytes = getPostingBytes();
+		return String.format("%d waves, %d lines (%d retired), %d words, %d KB of postings", getWaveCount(),
+				getLineCount(), getRetiredLineCount(), getTermCount(), postingBytes / 1024);
+	}
+
+
+
+	private void index(WaveletData conversationRoot, boolean replace) {
+		WaveId waveId = conversationRoot.getWaveletName().waveId;
+		IndexedWave wave = new IndexedWave(assignNumber(waveId));
+		BufferedDocOp document = conversationRoot.getDocuments().get(MAIN_DOCUMENT_ID);
+		synchronized(wave) {
+			if(document != null) {
+				wave.index(document);
+			}
+		}
+		if(replace) {
+			IndexedWave previous = waves.put(waveId, wave);
+			if(previous != null) {
+				retire(previous);
+			}
+		} else if(waves.putIfAbsent(waveId, wave) != null) {
+			retire(wave);
+		}
+	}
+
+	private synchronized int assignNumber(WaveId waveId) {
+		if(numbers == waveOfNumber.length) {
+			waveOfNumber = Arrays.copyOf(waveOfNumber, numbers * 2);
+		}
+		waveOfNumber[numbers] = waveId;
+		return numbers++;
+	}
+
+	private void retire(IndexedWave wave) {
+		int lineCount;
+		synchronized(wave) {
+			wave.retired = true;
+			lineCount = wave.lineCount;
+		}
+		//Counted before the number is cleared, so a compaction never drops lines not yet counted
+		long retired = retiredLines.addAndGet(lineCount);
+		synchronized(this) {
+			waveOfNumber[wave.number] = null;
+		}
+		if(retired >= COMPACT_MIN_LINES && retired * 100 > lines.get() * COMPACT_RETIRED_PERCENT) {
+			compact();
+		}
+	}
+
+	//Compact every line list of an index, returning the number of entries dropped
+	private static long compact(ConcurrentSkipListMap<String, Postings> index, WaveId[] waveIds) {
+		long dropped = 0;
+		for(Map.Entry<String, Postings> entry : index.entrySet()) {
+			dropped += entry.getValue().compact(index, entry.getKey(), waveIds);
+		}
+		return dropped;
+	}
+
+	//Record that a line contains every word of its text and was written by its author
+	private void addLine(int number, int line, String author, CharSequence text) {
+		lines.incrementAndGet();
+		addPosting(authors, author.toLowerCase(), number, line);
+
+		char[] word = new char[MAX_TERM_LENGTH];
+		int length = 0;
+		for(int i = 0; i <= text.length(); i++) {
+			char c = (i < text.length()) ? text.charAt(i) : ' ';
+			if(Character.isLetterOrDigit(c)) {
+				if(length < MAX_TERM_LENGTH) {
+					word[length] = Character.toLowerCase(c);
+				}
+				length++;
+			} else if(length > 0) {
+				//Longer words are most likely not words at all
+				if(length <= MAX_TERM_LENGTH) {
+					addPosting(terms, new String(word, 0, length), number, line);
+				}
+				length = 0;
+			}
+		}
+	}
+
+	private static void addPosting(ConcurrentSkipListMap<String, Postings> index, String term, int number, int line) {
+		while(!postingsFor(index, term).add(number, line)) {
+			//Replaced by a compaction after it was looked up, so look it up again
+		}
+	}
+
+	private static Postings postingsFor(ConcurrentSkipListMap<String, Postings> index, String term) {
+		Postings postings = index.get(term);
+		if(postings == null) {
+			Postings created = new Postings();
+			postings = index.putIfAbsent(term, created);
+			if(postings == null) {
+				postings = created;
+			}
+		}
+		return postings;
+	}
+
+
+
+	/*
+	* The lines of one word, as pairs of wave number and line position. Each pair is stored as the
+	* zig-zag encoded difference from the one before, in variable length bytes. Appends happen under
+	* the lock; readers read the length and then the array, which always holds at least that many
+	* bytes, without locking. A compaction never changes the bytes of a list, it replaces the list
+	* in the index with a shorter copy and closes the old one to appends.
+	*/
+	private static class Postings {
+		private volatile byte[] bytes = new byte[8];
+		private volatile int length = 0;
+		private int lastNumber = 0;
+		private int lastLine = 0;
+		private boolean closed = false;
+
+		//Returns false, adding nothing, if the list has been replaced by a compaction
+		synchronized boolean add(int number, int line) {
+			if(closed) {
+				return false;
+			}
+			if(length > 0 && number == lastNumber && line == lastLine) {
+				return true;
+			}
+			byte[] target = bytes;
+			if(length + 10 > target.length) {
+				target = Arrays.copyOf(target, Math.max(target.length * 2, length + 10));
+				bytes = target;
+			}
+			int end = writeVarInt(target, length, zigZag(number - lastNumber));
+			end = writeVarInt(target, end, zigZag(line - lastLine));
+			lastNumber = number;
+			lastLine = line;
+			length = end;
+			return true;
+		}
+
+		void collect(WaveId[] waveIds, Set<SearchHit> hits, int limit) {
+			int end = length;
+			Reader reader = new Reader(bytes, end);
+			while(hits.size() < limit && reader.next()) {
+				WaveId waveId = (reader.number < waveIds.length) ? waveIds[reader.number] : null;
+				if(waveId != null) {
+					hits.add(new SearchHit(waveId, reader.line));
+				}
+			}
+		}
+
+		/*
+		* Replace the list in the index with a copy that only holds the lines of waves that still
+		* have a number, or take it out of the index if none are left. Numbers given out after the
+		* table was copied are kept. Returns the number of entries dropped
+		*/
+		synchronized int compact(ConcurrentSkipListMap<String, Postings> index, String term, WaveId[] waveIds) {
+			Postings kept = new Postings();
+			int dropped = 0;
+			Reader reader = new Reader(bytes, length);
+			while(reader.next()) {
+				if(reader.number >= waveIds.length || waveIds[reader.number] != null) {
+					kept.add(reader.number, reader.line);
+				} else {
+					dropped++;
+				}
+			}
+			if(dropped > 0) {
+				closed = true;
+				if(kept.length == 0) {
+					index.remove(term, this);
+				} else {
+					index.replace(term, this, kept);
+				}
+			}
+			return dropped;
+		}
+
+		private static int writeVarInt(byte[] target, int position, int value) {
+			while((value & ~0x7f) != 0) {
+				target[position++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			target[position++] = (byte) value;
+			return position;
+		}
+
+		private static int zigZag(int value) {
+			return (value << 1) ^ (value >> 31);
+		}
+
+		private static int unZigZag(int value) {
+			return (value >>> 1) ^ -(value & 1);
+		}
+	}
+
+
+
+	/*
+	* Decodes the pairs of a line list in order. The length must be read before the array
+	*/
+	private static class Reader {
+		private final byte[] source;
+		private final int end;
+		private int position = 0;
+		private int number = 0;
+		private int line = 0;
+
+		Reader(byte[] source, int end) {
+			this.source = source;
+			this.end = end;
+		}
+
+		boolean next() {
+			if(position >= end) {
+				return false;
+			}
+			number += Postings.unZigZag(readVarInt());
+			line += Postings.unZigZag(readVarInt());
+			return true;
+		}
+
+		private int readVarInt() {
+			int value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = source[position++];
+				value |= (b & 0x7f) << shift;
+				shift += 7;
+			} while(b < 0);
+			return value;
+		}
+	}
+
+
+
+	/*
+	* Where indexing of the main document of one wave has got to. Lines are numbered the same way
+	* as by {@link WaveBody}: a line element only becomes a line once it has text.
+	*/
+	private class IndexedWave implements LineSink {
+		private final int number;
+		private boolean retired = false;
+		private int itemCount = 0;
+		private int lineCount = 0;
+		//Author of a trailing line element that has no text yet
+		private String pendingAuthor = null;
+
+		IndexedWave(int number) {
+			this.number = number;
+		}
+
+		/*
+		* Index an operation if it only adds whole lines to the end of the document. Returns false,
+		* indexing nothing, for anything else, including text added to the last line
+		*/
+		boolean append(BufferedDocOp op) {
+			int first = 0;
+			if(op.size() > 0 && op.getType(0) == DocOpComponentType.RETAIN) {
+				if(op.getRetainItemCount(0) != itemCount) {
+					return false;
+				}
+				first = 1;
+			} else if(itemCount != 0) {
+				return false;
+			}
+			if(!onlyAddsLines(op, first)) {
+				return false;
+			}
+			insert(op, first);
+			return true;
+		}
+
+		//Index a whole document, skipping anything that is not a line as WaveBody does
+		void index(BufferedDocOp document) {
+			LineTraversal traversal = new LineTraversal();
+			traversal.traverse(document, this);
+			itemCount = traversal.getItemCount();
+			pendingAuthor = traversal.getTrailingAuthor();
+		}
+
+		public void line(String author, String text) {
+			addLine(number, lineCount++, author, text);
+		}
+
+		//Index the inserted components of an operation that only adds lines, from a component on
+		private void insert(BufferedDocOp op, int first) {
+			String author = null;
+			StringBuilder text = null;
+			for(int i = first; i < op.size(); i++) {
+				DocOpComponentType type = op.getType(i);
+				if(type == DocOpComponentType.ELEMENT_START) {
+					if(text != null) {
+						addLine(number, lineCount++, author, text);
+						text = null;
+					}
+					Attributes attributes = op.getElementStartAttributes(i);
+					pendingAuthor = op.getElementStartTag(i).equals(WaveBody.LINE)
+							? attributes.get(WaveBody.LINE_AUTHOR) : null;
+					itemCount++;
+				} else if(type == DocOpComponentType.ELEMENT_END) {
+					itemCount++;
+				} else if(type == DocOpComponentType.CHARACTERS) {
+					String characters = op.getCharactersString(i);
+					if(text != null) {
+						text.append(characters);
+					} else if(pendingAuthor != null) {
+						author = pendingAuthor;
+						pendingAuthor = null;
+						text = new StringBuilder(characters);
+					}
+					itemCount += characters.length();
+				}
+			}
+			if(text != null) {
+				addLine(number, lineCount++, author, text);
+			}
+		}
+
+		//True if, from a component on, an operation only inserts line elements and their text
+		private boolean onlyAddsLines(BufferedDocOp op, int first) {
+			boolean lineOpen = (pendingAuthor != null);
+			for(int i = first; i < op.size(); i++) {
+				DocOpComponentType type = op.getType(i);
+				if(type == DocOpComponentType.ELEMENT_START) {
+					if(!op.getElementStartTag(i).equals(WaveBody.LINE)
+							|| !op.getElementStartAttributes(i).containsKey(WaveBody.LINE_AUTHOR)) {
+						return false;
+					}
+					lineOpen = true;
+				} else if(type == DocOpComponentType.CHARACTERS) {
+					if(!lineOpen) {
+						return false;
+					}
+				} else if(type != DocOpComponentType.ELEMENT_END
+						&& type != DocOpComponentType.ANNOTATION_BOUNDARY) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
\ No newline at end of file
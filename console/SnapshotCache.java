@@ -0,0 +1,568 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import com.google.common.collect.Maps;
+
+import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
+import org.waveprotocol.wave.model.id.WaveId;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+* Keeps the inbox and the bodies of recently open waves on disk, so the next start can show them
+* before the server has sent anything. The file is a log that is only ever appended to: each
+* record adds or removes an inbox entry, or adds lines to the body of a wave along with the
+* version of the conversation root they were taken from. A body that only grew since it was last
+* saved costs a record of the new lines only.
+*
+* On opening, the file is memory mapped and replayed. Each record carries a checksum, and a
+* record cut short by a crash ends the replay and is cut off the file. Once the file is more than
+* twice the size of what it describes it is rewritten with one record per entry and body.
+*
+* The file holds the text of waves in the clear, so it is created readable and writable by its
+* owner only, and so is its directory when the cache has to create it.
+*
+* The cache only ever shows what the client last saw. It is not a source of truth, entries the
+* server no longer has are dropped by {@link WaveConnector} once the index wave arrives.
+*/
+public class SnapshotCache {
+
+	private static final int MAGIC = 0x57534331; //"WSC1"
+	private static final int HEADER_SIZE = 8;
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final byte INBOX_ENTRY = 1;
+	private static final byte INBOX_REMOVAL = 2;
+	private static final byte LINES = 3;
+	//Rewrite the file once it is this many times the size of what it holds, and at least this big
+	private static final int COMPACT_RATIO = 2;
+	private static final long COMPACT_MIN_BYTES = 1 << 20;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Set<PosixFilePermission> OWNER_DIRECTORY = PosixFilePermissions.fromString("rwx------");
+	private static final Set<PosixFilePermission> OWNER_FILE = PosixFilePermissions.fromString("rw-------");
+
+	private final File path;
+	private final AddressPool addresses;
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private final Map<WaveId, InboxElement> inbox = Maps.newLinkedHashMap();
+	private final Map<WaveId, Body> bodies = Maps.newHashMap();
+	//Bytes of the records that still describe each inbox entry
+	private final Map<WaveId, Integer> entryBytes = Maps.newHashMap();
+	//Records written since the last flush, and the record being written
+	private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+	//Bytes of records that still describe the current state, as opposed to ones superseded
+	private long liveBytes = 0;
+
+
+
+	/**
+	* Open or create a cache backed by a file. A file that is not a cache is started afresh
+	*
+	* @param File to keep the cache in
+	* @param AddressPool to number the authors of cached lines in
+	* @throws IOException if the file cannot be opened or read
+	*/
+	public SnapshotCache(File path, AddressPool addresses) throws IOException {
+		this.path = path;
+		this.addresses = addresses;
+		createPrivate(path);
+		file = new RandomAccessFile(path, "rw");
+		channel = file.getChannel();
+		try {
+			long end = replay();
+			if(end < 0) {
+				channel.truncate(0);
+				writeHeader(channel);
+			} else if(end < channel.size()) {
+				channel.truncate(end);
+			}
+			channel.position(channel.size());
+		} catch(IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+
+
+	/**
+	* Returns the cached inbox, in the order the entries were first cached
+	*
+	* @return List of {@link InboxElement}
+	*/
+	public synchronized List<InboxElement> getInbox() {
+		return new ArrayList<InboxElement>(inbox.values());
+	}
+
+
+
+	/**
+	* Returns the cached lines of a wave
+	*
+	* @param WaveId of the wave
+	* @return {@link WaveLines} of its conversation root, or null if the wave has no cached body
+	*/
+	public synchronized WaveLines getLines(WaveId waveId) {
+		Body body = bodies.get(waveId);
+		return (body == null) ? null : body.lines(addresses);
+	}
+
+
+
+	/**
+	* Returns the version of the conversation root the cached lines of a wave were taken from
+	*
+	* @param WaveId of the wave
+	* @return the {@link HashedVersion}, or null if the wave has no cached body
+	*/
+	public synchronized HashedVersion getVersion(WaveId waveId) {
+		Body body = bodies.get(waveId);
+		return (body == null) ? null : body.version;
+	}
+
+
+
+	/**
+	* Cache an inbox entry, replacing any earlier entry for the wave. Nothing is written if the
+	* entry is unchanged
+	*
+	* @param InboxElement to cache
+	*/
+	public synchronized void putInboxEntry(InboxElement element) throws IOException {
+		InboxElement cached = inbox.get(element.getWaveId());
+		String digest = element.getDigest();
+		if(cached != null && cached.getRead() == element.getRead() && cached.getDigest().equals(digest)) {
+			return;
+		}
+		inbox.put(element.getWaveId(), new InboxElement(element.getWaveId(), digest, element.getRead()));
+		DataOutputStream out = startRecord(INBOX_ENTRY);
+		writeString(out, element.getWaveId().serialise());
+		out.writeBoolean(element.getRead());
+		writeString(out, digest);
+		replaceEntryBytes(element.getWaveId(), endRecord(out));
+	}
+
+
+
+	/**
+	* Remove an inbox entry, along with the body of its wave
+	*
+	* @param WaveId of the wave
+	*/
+	public synchronized void removeInboxEntry(WaveId waveId) throws IOException {
+		if(inbox.remove(waveId) == null && !bodies.containsKey(waveId)) {
+			return;
+		}
+		forget(waveId);
+		DataOutputStream out = startRecord(INBOX_REMOVAL);
+		writeString(out, waveId.serialise());
+		endRecord(out);
+	}
+
+
+
+	/**
+	* Cache the lines of a wave. If lines were only added to the end since they were last cached
+	* just the new ones are written, a change to any earlier line writes them all again
+	*
+	* @param WaveId of the wave
+	* @param HashedVersion of the conversation root the lines were taken from
+	* @param WaveLines of the conversation root
+	*/
+	public synchronized void putLines(WaveId waveId, HashedVersion version, WaveLines lines) throws IOException {
+		Body body = bodies.get(waveId);
+		if(body != null && body.version.equals(version)) {
+			return;
+		}
+		int first = 0;
+		if(body != null && body.saved != null && unchangedPrefix(body.saved, lines) == body.saved.size()) {
+			first = body.saved.size();
+		}
+		if(body == null || first == 0) {
+			body = replaceBody(waveId);
+		}
+
+		DataOutputStream out = startRecord(LINES);
+		writeString(out, waveId.serialise());
+		writeVersion(out, version);
+		out.writeInt(first);
+		out.writeInt(lines.size() - first);
+		for(int i = first; i < lines.size(); i++) {
+			String author = lines.getAuthor(i);
+			String text = lines.getText(i);
+			writeString(out, author);
+			writeString(out, text);
+			body.add(addresses.numberOf(author), text);
+		}
+		int bytes = endRecord(out);
+		body.bytes += bytes;
+		liveBytes += bytes;
+		body.version = version;
+		body.saved = lines;
+	}
+
+
+
+	/**
+	* Write the records added since the last flush to disk, rewriting the whole file first if most
+	* of it no longer describes anything
+	*/
+	public synchronized void flush() throws IOException {
+		if(pending.size() == 0) {
+			return;
+		}
+		long size = channel.size() + pending.size();
+		if(size > COMPACT_MIN_BYTES && size > liveBytes * COMPACT_RATIO) {
+			compact();
+		} else {
+			channel.write(ByteBuffer.wrap(pending.toByteArray()));
+			channel.force(false);
+		}
+		pending.reset();
+	}
+
+
+
+	/**
+	* Flush and close the file
+	*/
+	public synchronized void close() {
+		try {
+			flush();
+		} catch(IOException e) {
+			//The records not yet written are lost, what was written is still a valid log
+		}
+		try {
+			file.close();
+		} catch(IOException e) {
+			//Nothing more can be done
+		}
+	}
+
+
+
+	/**
+	* @return the number of inbox entries cached
+	*/
+	public synchronized int size() {
+		return inbox.size();
+	}
+
+
+
+	/*
+	* Read every record of the file into memory. Returns the offset after the last good record,
+	* or -1 if the file is not a cache
+	*/
+	private long replay() throws IOException {
+		long size = channel.size();
+		if(size < HEADER_SIZE) {
+			return -1;
+		}
+		ByteBuffer log = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		if(log.getInt(0) != MAGIC) {
+			return -1;
+		}
+		int position = HEADER_SIZE;
+		CRC32 crc = new CRC32();
+		while(position + RECORD_HEADER_SIZE <= size) {
+			int length = log.getInt(position);
+			int checksum = log.getInt(position + 4);
+			int start = position + RECORD_HEADER_SIZE;
+			if(length <= 0 || start + (long) length > size) {
+				break;
+			}
+			byte[] record = new byte[length];
+			log.position(start);
+			log.get(record);
+			crc.reset();
+			crc.update(record, 0, length);
+			if((int) crc.getValue() != checksum) {
+				break;
+			}
+			try {
+				apply(ByteBuffer.wrap(record), RECORD_HEADER_SIZE + length);
+			} catch(RuntimeException e) {
+				break;
+			}
+			position = start + length;
+		}
+		return position;
+	}
+
+	//Apply one record read back from the file
+	private void apply(ByteBuffer record, int bytes) {
+		byte type = record.get();
+		WaveId waveId = WaveId.deserialise(readString(record));
+		if(type == INBOX_ENTRY) {
+			boolean read = record.get() != 0;
+			inbox.put(waveId, new InboxElement(waveId, readString(record), read));
+			replaceEntryBytes(waveId, bytes);
+		} else if(type == INBOX_REMOVAL) {
+			inbox.remove(waveId);
+			forget(waveId);
+		} else if(type == LINES) {
+			HashedVersion version = readVersion(record);
+			int first = record.getInt();
+			int count = record.getInt();
+			Body body = bodies.get(waveId);
+			if(first == 0 || body == null || body.count != first) {
+				//A record that does not follow on from the cached lines replaces them
+				body = replaceBody(waveId);
+			}
+			for(int i = 0; i < count; i++) {
+				String author = readString(record);
+				body.add(addresses.numberOf(author), readString(record));
+			}
+			body.version = version;
+			body.bytes += bytes;
+			liveBytes += bytes;
+		} else {
+			throw new IllegalArgumentException("Unknown record type " + type);
+		}
+	}
+
+	//Write the current state to a new file and put it in place of the log
+	private void compact() throws IOException {
+		pending.reset();
+		liveBytes = 0;
+		for(InboxElement element : inbox.values()) {
+			DataOutputStream out = startRecord(INBOX_ENTRY);
+			writeString(out, element.getWaveId().serialise());
+			out.writeBoolean(element.getRead());
+			writeString(out, element.getDigest());
+			entryBytes.put(element.getWaveId(), endRecord(out));
+		}
+		for(Map.Entry<WaveId, Body> entry : bodies.entrySet()) {
+			Body body = entry.getValue();
+			DataOutputStream out = startRecord(LINES);
+			writeString(out, entry.getKey().serialise());
+			writeVersion(out, body.version);
+			out.writeInt(0);
+			out.writeInt(body.count);
+			for(int i = 0; i < body.count; i++) {
+				writeString(out, addresses.addressOf(body.authors[i]));
+				writeString(out, body.texts[i]);
+			}
+			body.bytes = endRecord(out);
+		}
+		liveBytes = pending.size();
+
+		File compacted = new File(path.getPath() + ".new");
+		createPrivate(compacted);
+		RandomAccessFile newFile = new RandomAccessFile(compacted, "rw");
+		try {
+			FileChannel newChannel = newFile.getChannel();
+			newChannel.truncate(0);
+			writeHeader(newChannel);
+			newChannel.write(ByteBuffer.wrap(pending.toByteArray()));
+			newChannel.force(false);
+		} finally {
+			newFile.close();
+		}
+		file.close();
+		if(!compacted.renameTo(path)) {
+			//Fall back to the old log, which still holds everything
+			file = new RandomAccessFile(path, "rw");
+			channel = file.getChannel();
+			channel.position(channel.size());
+			throw new IOException("Could not replace " + path + " with " + compacted);
+		}
+		file = new RandomAccessFile(path, "rw");
+		channel = file.getChannel();
+		channel.position(channel.size());
+	}
+
+
+
+	/*
+	* Create the file if it does not exist and leave it readable and writable by its owner only. A
+	* missing directory is created so that only the owner can list or enter it
+	*/
+	private static void createPrivate(File path) throws IOException {
+		Path file = path.toPath().toAbsolutePath();
+		Path parent = file.getParent();
+		try {
+			if(parent != null && !Files.isDirectory(parent)) {
+				Files.createDirectories(parent, PosixFilePermissions.asFileAttribute(OWNER_DIRECTORY));
+			}
+			if(Files.exists(file)) {
+				Files.setPosixFilePermissions(file, OWNER_FILE);
+			} else {
+				Files.createFile(file, PosixFilePermissions.asFileAttribute(OWNER_FILE));
+			}
+		} catch(UnsupportedOperationException e) {
+			//Not a POSIX file system, fall back to what java.io.File can express
+			File directory = path.getAbsoluteFile().getParentFile();
+			if(directory != null && !directory.exists() && !directory.mkdirs()) {
+				throw new IOException("Could not create " + directory);
+			}
+			path.createNewFile();
+			if(!(path.setReadable(false, false) && path.setReadable(true, true)
+					&& path.setWritable(false, false) && path.setWritable(true, true))) {
+				throw new IOException("Could not make " + path + " private to its owner");
+			}
+		}
+	}
+
+
+
+	//Account for the record now describing an inbox entry
+	private void replaceEntryBytes(WaveId waveId, int bytes) {
+		Integer previous = entryBytes.put(waveId, bytes);
+		liveBytes += bytes - ((previous == null) ? 0 : previous);
+	}
+
+	//Number of lines at the start of the new lines that are the same as those saved before
+	private static int unchangedPrefix(WaveLines saved, WaveLines lines) {
+		int shortest = Math.min(saved.size(), lines.size());
+		int prefix = 0;
+		while(prefix < shortest && lines.isSameLine(prefix, saved, prefix)) {
+			prefix++;
+		}
+		return prefix;
+	}
+
+	//Start the cached body of a wave afresh
+	private Body replaceBody(WaveId waveId) {
+		Body previous = bodies.put(waveId, new Body());
+		if(previous != null) {
+			liveBytes -= previous.bytes;
+		}
+		return bodies.get(waveId);
+	}
+
+	//Drop the inbox entry and body of a wave
+	private void forget(WaveId waveId) {
+		Integer entry = entryBytes.remove(waveId);
+		Body body = bodies.remove(waveId);
+		liveBytes -= ((entry == null) ? 0 : entry) + ((body == null) ? 0 : body.bytes);
+	}
+
+	private DataOutputStream startRecord(byte type) throws IOException {
+		record.reset();
+		DataOutputStream out = new DataOutputStream(record);
+		out.writeByte(type);
+		return out;
+	}
+
+	//Frame a record with its length and checksum and queue it for the next flush. Returns the
+	//size of the framed record
+	private int endRecord(DataOutputStream out) throws IOException {
+		out.flush();
+		byte[] bytes = record.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length);
+		DataOutputStream framed = new DataOutputStream(pending);
+		framed.writeInt(bytes.length);
+		framed.writeInt((int) crc.getValue());
+		framed.write(bytes);
+		framed.flush();
+		return RECORD_HEADER_SIZE + bytes.length;
+	}
+
+	private static void writeHeader(FileChannel target) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC);
+		header.putInt(0);
+		header.flip();
+		target.write(header, 0);
+		target.position(HEADER_SIZE);
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer in) {
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private static void writeVersion(DataOutputStream out, HashedVersion version) throws IOException {
+		out.writeLong(version.getVersion());
+		byte[] hash = version.getHistoryHash();
+		out.writeInt(hash.length);
+		out.write(hash);
+	}
+
+	private static HashedVersion readVersion(ByteBuffer in) {
+		long version = in.getLong();
+		byte[] hash = new byte[in.getInt()];
+		in.get(hash);
+		return new HashedVersion(version, hash);
+	}
+
+
+
+	/*
+	* The cached lines of one wave, in columns as {@link WaveBody} keeps them
+	*/
+	private static class Body {
+		private int[] authors = new int[16];
+		private String[] texts = new String[16];
+		private int count = 0;
+		private HashedVersion version;
+		//Bytes of the records that still describe the body
+		private long bytes = 0;
+		//The lines last written, null if the body was read from the file
+		private WaveLines saved = null;
+		//Handed out by lines() until the next line is added
+		private WaveLines lines = null;
+
+		void add(int author, String text) {
+			if(count == texts.length) {
+				authors = Arrays.copyOf(authors, count * 2);
+				texts = Arrays.copyOf(texts, count * 2);
+			}
+			authors[count] = author;
+			texts[count++] = text;
+			lines = null;
+		}
+
+		WaveLines lines(AddressPool addresses) {
+			if(lines == null) {
+				lines = new WaveLines(addresses, new int[][] {authors}, new String[][] {texts}, new int[] {count});
+			}
+			return lines;
+		}
+	}
+}
\ No newline at end of file
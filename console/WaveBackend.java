@@ -0,0 +1,142 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
+import org.waveprotocol.wave.examples.fedone.waveclient.common.ClientWaveView;
+import org.waveprotocol.wave.examples.fedone.waveclient.common.WaveletOperationListener;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.WaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
+
+/**
+* The part of the client backend {@link WaveConnector} depends on. {@link ClientBackendAdapter}
+* talks to a real server, {@link FakeWaveBackend} keeps everything in memory for load testing.
+*
+* Implementations apply each update to their waves before telling the listeners about it, and
+* call the listeners of one backend from one thread at a time, as the reference ClientBackend does.
+*/
+public interface WaveBackend {
+
+	/**
+	* Told about each delta received before its operations are passed to the
+	* WaveletOperationListeners, on the same thread
+	*/
+	interface DeltaListener {
+		/**
+		* @param WaveletName of the wavelet the delta applies to
+		* @param ParticipantId of the author of the delta
+		* @param long containing the version the server applied the delta at
+		* @param int containing the number of operations in the delta
+		*/
+		void deltaReceived(WaveletName wavelet, ParticipantId author, long appliedAtVersion, int operationCount);
+	}
+
+	/**
+	* Create a new wave with a random id
+	*
+	* @return the view of the new wave
+	*/
+	ClientWaveView createNewWave();
+
+	/**
+	* Returns a wave the user can see
+	*
+	* @param WaveId of the wave
+	* @return the view of the wave, or null if the user cannot see it
+	*/
+	ClientWaveView getWave(WaveId waveId);
+
+	/**
+	* Returns the index wave, which holds one wavelet with a digest per wave
+	*
+	* @return the view of the index wave
+	*/
+	ClientWaveView getIndexWave();
+
+	/**
+	* Send a single operation on a wavelet to the server
+	*
+	* @param WaveletData the operation applies to
+	* @param WaveletOperation to send
+	*/
+	void sendWaveletOperation(WaveletData wavelet, WaveletOperation operation);
+
+	/**
+	* Send several operations on a wavelet to the server as one delta
+	*
+	* @param WaveletData the operations apply to
+	* @param WaveletDelta to send
+	*/
+	void sendWaveletDelta(WaveletData wavelet, WaveletDelta delta);
+
+	/**
+	* Send several operations on a wavelet to the server as one delta, against a version of the
+	* wavelet seen earlier rather than the one it is at now. The server transforms the delta past
+	* everything applied since
+	*
+	* @param WaveletData the operations apply to
+	* @param WaveletDelta to send
+	* @param HashedVersion of the wavelet the operations were built against
+	*/
+	void sendWaveletDelta(WaveletData wavelet, WaveletDelta delta, HashedVersion targetVersion);
+
+	/**
+	* Returns the user the backend is connected as
+	*
+	* @return {@link ParticipantId} of the user
+	*/
+	ParticipantId getUserId();
+
+	/**
+	* @param WaveletOperationListener to tell about updates from the server
+	*/
+	void addWaveletOperationListener(WaveletOperationListener listener);
+
+	/**
+	* @param WaveletOperationListener to stop telling about updates
+	*/
+	void removeWaveletOperationListener(WaveletOperationListener listener);
+
+	/**
+	* @param DeltaListener to tell about each delta received
+	*/
+	void addDeltaListener(DeltaListener listener);
+
+	/**
+	* @param DeltaListener to stop telling about deltas
+	*/
+	void removeDeltaListener(DeltaListener listener);
+
+	/**
+	* Returns false once the connection to the server has been lost. A backend never reconnects,
+	* a new one is made in its place
+	*
+	* @return true while updates can be sent and received
+	*/
+	boolean isConnected();
+
+	/**
+	* Close the connection to the server
+	*/
+	void shutdown();
+}
\ No newline at end of file
@@ -0,0 +1,286 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import com.google.common.collect.Maps;
+
+import org.waveprotocol.wave.model.document.operation.BufferedDocOp;
+import org.waveprotocol.wave.model.document.operation.DocOpComponentType;
+import org.waveprotocol.wave.model.operation.wave.WaveletDocumentOperation;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
+
+import java.lang.UnsupportedOperationException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+* The materialized body of a wave, the author and text of each line. Built once from the documents
+* of the conversation root and then kept up to date by applying only the operations that arrive
+* from the server, so the cost of an update depends on the size of the change and not on the
+* length of the wave.
+*
+* Operations that append to the end of a document are applied directly. Anything else (edits in
+* the middle of a document, deletions) marks the body as stale and it is rebuilt the next time
+* a snapshot is requested.
+*
+* Lines are kept in columns, the number of the author in an {@link AddressPool} and the text, so
+* a line costs two array entries rather than an object and its own copy of the author address.
+* Lines are only ever added past the end of the arrays readers were handed, and an array is
+* copied before a line in it is changed, so once the body is current the lines are handed out
+* without taking the lock. Applying operations on the network thread never waits for a copy.
+*/
+public class WaveBody {
+
+	static final String LINE = "line";
+	static final String LINE_AUTHOR = "by";
+
+	private final AddressPool addresses;
+	private final Map<String, DocumentLines> documents = Maps.newLinkedHashMap();
+	//Reused by every rebuild, which happens under the lock
+	private final LineTraversal traversal = new LineTraversal(true);
+	private boolean stale = true;
+	//The lines as of the latest change, null while stale. Replaced on every change, never modified
+	private volatile WaveLines published = null;
+
+
+
+	/**
+	* Constructor for a body whose authors are kept in the shared {@link AddressPool}
+	*/
+	public WaveBody() {
+		this(AddressPool.getDefault());
+	}
+
+
+
+	/**
+	* Constructor for a body whose authors are kept in a given pool
+	*
+	* @param AddressPool to number the authors of lines in
+	*/
+	public WaveBody(AddressPool addresses) {
+		this.addresses = addresses;
+	}
+
+
+
+	/**
+	* Apply an operation the server has applied to one of the documents of the conversation root
+	*
+	* @param WaveletDocumentOperation received from the server
+	*/
+	public synchronized void apply(WaveletDocumentOperation operation) {
+		if(stale) {
+			return;
+		}
+
+		DocumentLines document = documents.get(operation.getDocumentId());
+		if(document == null) {
+			document = new DocumentLines(addresses);
+			documents.put(operation.getDocumentId(), document);
+		}
+		if(document.append(operation.getOperation())) {
+			publish();
+		} else {
+			invalidate();
+		}
+	}
+
+
+
+	/**
+	* Forget the materialized lines. The body is rebuilt on the next snapshot
+	*/
+	public synchronized void invalidate() {
+		stale = true;
+		published = null;
+	}
+
+
+
+	/**
+	* Returns a copy of the lines of the wave, rebuilding them from the wavelet first if needed
+	*
+	* @param WaveletData of the conversation root the body belongs to
+	* @return ArrayList of {@link CWavelet} containing the author and text of each line
+	* @throws UnsupportedOperationException if a document contains something other than lines
+	*/
+	public ArrayList<CWavelet> snapshot(WaveletData conversationRoot) {
+		return lines(conversationRoot).toArrayList();
+	}
+
+
+
+	/**
+	* Returns the lines of the wave without copying them, rebuilding them from the wavelet first
+	* if needed
+	*
+	* @param WaveletData of the conversation root the body belongs to
+	* @return {@link WaveLines} as of now, which later changes do not affect
+	* @throws UnsupportedOperationException if a document contains something other than lines
+	*/
+	public WaveLines lines(WaveletData conversationRoot) {
+		WaveLines current = published;
+		if(current == null) {
+			synchronized(this) {
+				if(stale) {
+					rebuild(conversationRoot);
+				}
+				current = published;
+			}
+		}
+		return current;
+	}
+
+
+
+	//Materialize every document of the conversation root from scratch
+	private void rebuild(WaveletData conversationRoot) {
+		documents.clear();
+		for(Map.Entry<String, BufferedDocOp> entry : conversationRoot.getDocuments().entrySet()) {
+			DocumentLines document = new DocumentLines(addresses);
+			document.initialize(entry.getValue(), traversal);
+			documents.put(entry.getKey(), document);
+		}
+		stale = false;
+		publish();
+	}
+
+
+
+	//Hand readers the lines as they are now
+	private void publish() {
+		int[][] authors = new int[documents.size()][];
+		String[][] texts = new String[documents.size()][];
+		int[] counts = new int[documents.size()];
+		int i = 0;
+		for(DocumentLines document : documents.values()) {
+			authors[i] = document.authors;
+			texts[i] = document.texts;
+			counts[i] = document.lineCount;
+			i++;
+		}
+		published = new WaveLines(addresses, authors, texts, counts);
+	}
+
+
+
+	/*
+	* The lines of a single document along with the number of items in it. A document is a
+	* sequence of empty line elements each followed by the text of that line. Built by a
+	* {@link LineTraversal} of the whole document, then kept up to date by appends.
+	*/
+	private static class DocumentLines implements LineSink {
+		private final AddressPool addresses;
+		private int[] authors = new int[16];
+		private String[] texts = new String[16];
+		private int lineCount = 0;
+		private int itemCount = 0;
+		//Author of a trailing line element that has no text yet
+		private String pendingAuthor = null;
+		//True if further characters belong to the last entry of lines
+		private boolean lastLineOpen = false;
+
+		DocumentLines(AddressPool addresses) {
+			this.addresses = addresses;
+		}
+
+		//Build the lines from a whole document. Throws on anything that is not a line
+		void initialize(BufferedDocOp document, LineTraversal traversal) {
+			traversal.traverse(document, this);
+			itemCount = traversal.getItemCount();
+			pendingAuthor = traversal.getTrailingAuthor();
+			lastLineOpen = (lineCount > 0 && pendingAuthor == null);
+		}
+
+		public void line(String author, String text) {
+			addLine(author, text);
+		}
+
+		/*
+		* Apply an operation if it only inserts lines and text at the end of the document.
+		* Returns false, leaving the lines untouched, for any other kind of operation.
+		*/
+		boolean append(BufferedDocOp op) {
+			int first = 0;
+			if(op.size() > 0 && op.getType(0) == DocOpComponentType.RETAIN) {
+				if(op.getRetainItemCount(0) != itemCount) {
+					return false;
+				}
+				first = 1;
+			} else if(itemCount != 0) {
+				return false;
+			}
+
+			for(int i = first; i < op.size(); i++) {
+				DocOpComponentType type = op.getType(i);
+				if(type == DocOpComponentType.ELEMENT_START) {
+					if(!op.getElementStartTag(i).equals(LINE)
+							|| !op.getElementStartAttributes(i).containsKey(LINE_AUTHOR)) {
+						return false;
+					}
+				} else if(type != DocOpComponentType.CHARACTERS
+						&& type != DocOpComponentType.ELEMENT_END
+						&& type != DocOpComponentType.ANNOTATION_BOUNDARY) {
+					return false;
+				}
+			}
+
+			insert(op, first);
+			return true;
+		}
+
+		//Add the inserted components of an operation, starting at a component index
+		private void insert(BufferedDocOp op, int first) {
+			for(int i = first; i < op.size(); i++) {
+				DocOpComponentType type = op.getType(i);
+				if(type == DocOpComponentType.ELEMENT_START) {
+					pendingAuthor = op.getElementStartAttributes(i).get(LINE_AUTHOR);
+					lastLineOpen = false;
+					itemCount++;
+				} else if(type == DocOpComponentType.ELEMENT_END) {
+					itemCount++;
+				} else if(type == DocOpComponentType.CHARACTERS) {
+					String text = op.getCharactersString(i);
+					if(pendingAuthor != null) {
+						addLine(pendingAuthor, text);
+						pendingAuthor = null;
+						lastLineOpen = true;
+					} else if(lastLineOpen) {
+						//Readers may hold the array, so change a copy
+						texts = Arrays.copyOf(texts, texts.length);
+						texts[lineCount - 1] = texts[lineCount - 1] + text;
+					}
+					itemCount += text.length();
+				}
+			}
+		}
+
+		private void addLine(String author, String text) {
+			if(lineCount == texts.length) {
+				authors = Arrays.copyOf(authors, lineCount * 2);
+				texts = Arrays.copyOf(texts, lineCount * 2);
+			}
+			authors[lineCount] = addresses.numberOf(author);
+			texts[lineCount++] = text;
+		}
+	}
+}
\ No newline at end of file
@@ -23,43 +23,59 @@
  */
 package org.waveprotocol.wave.examples.fedone.waveclient.console;
 
+import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
-import org.waveprotocol.wave.examples.fedone.waveclient.common.ClientBackend;
 import org.waveprotocol.wave.examples.fedone.waveclient.common.ClientUtils;
 import org.waveprotocol.wave.examples.fedone.waveclient.common.ClientWaveView;
 import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
-import org.waveprotocol.wave.examples.fedone.waveclient.common.IndexEntry;
+import org.waveprotocol.wave.examples.fedone.util.Log;
 import org.waveprotocol.wave.examples.fedone.waveclient.common.WaveletOperationListener;
 import org.waveprotocol.wave.model.document.operation.BufferedDocOp;
 import org.waveprotocol.wave.model.document.operation.impl.AttributesImpl;
 import org.waveprotocol.wave.model.document.operation.impl.BufferedDocOpImpl.DocOpBuilder;
 import org.waveprotocol.wave.model.operation.wave.AddParticipant;
 import org.waveprotocol.wave.model.operation.wave.RemoveParticipant;
+import org.waveprotocol.wave.model.operation.wave.WaveletDelta;
 import org.waveprotocol.wave.model.operation.wave.WaveletDocumentOperation;
-import org.waveprotocol.wave.model.document.operation.AnnotationBoundaryMap;
-import org.waveprotocol.wave.model.document.operation.Attributes;
-import org.waveprotocol.wave.model.document.operation.DocInitializationCursor;
-import org.waveprotocol.wave.model.document.operation.impl.InitializationCursorAdapter;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
 import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.model.wave.data.WaveletData;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 
-import java.lang.IllegalAccessException;
 import java.lang.IndexOutOfBoundsException;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.NoSuchMethodException;
-import java.lang.reflect.Method;
 import java.lang.SecurityException;
-import java.lang.UnsupportedOperationException;
+
+import java.nio.channels.WritableByteChannel;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 
@@ -71,30 +87,124 @@ import java.util.Map;
 * communicating with the wave server in an effort to allow developers to quickly and easily develop
 * applications that communicate with the wave server.
 *
-* Any applications you build should contain a publicly accessible "refresh" method. This method when
-* called should request the inbox, open wave and participants from the server and redraw/refresh/update
-* them in the user interface. This data periodically changes when for example, someone else posts a blip
-* in a wave.
+* Any applications you build should register a {@link WaveConnectorListener} using addListener. The
+* listener is told when the inbox, the text of a wave or its participants change so that it can
+* redraw/refresh/update them in the user interface. This data periodically changes when for example,
+* someone else posts a blip in a wave. Each listener is called on its own executor, so a slow user
+* interface never holds up the connection to the server.
+*
+* Older applications may instead contain a publicly accessible "refresh" method and pass themselves to
+* the WaveConnector(Object) constructor. This method when called should request the inbox, open wave
+* and participants from the server and redraw/refresh/update them in the user interface.
 *
 * It should also be noted that because the Google wave server works asynchronously if you modify a value
 * then immediately request that value again from the server it may not have had time to register. For 
 * example requesting a new wave then immediately requesting the wavelist. This is where the "refresh"
 * method is key as this will propogate the changes to the calling class.
 *
+* Alternatively use the methods ending in Async. They return a {@link WaveFuture} that completes
+* once the server has applied the change and the new version of the wave is known, so follow up
+* operations can be chained on it and many operations can be in flight at once.
+*
+* Changes arriving close together are merged so that a burst of updates from the server results in
+* a single batch of notifications. See setRefreshCoalescing(long, long) to tune this.
+*
+* The methods may be called from any thread. The backend, the read state and the open wave are
+* published together as a {@link ConnectorState} that is replaced rather than changed, so a method
+* works on one consistent state without locking and never holds up the network thread.
+*
+* If the connection to the server is lost it is made again, see setReconnectBackoff(long, long).
+* Until then the inbox and the waves held open stay as they were, only sending anything fails.
+* The new connection sends every wave again, which is matched up with the version last seen so
+* waves that have not changed are neither rebuilt nor reported as changed.
+*
 * Ensure that the connect method has been called with the correct arguments prior to accessing the other
 * methods otherwise you will encounter a lot of {@link ServerNotConnectedException}
 */
 public class WaveConnector implements WaveletOperationListener {
 	
 	
-	private ClientBackend backend = null;
-	private ClientWaveView openWave;
+	private final AtomicReference<ConnectorState> state = new AtomicReference<ConnectorState>(ConnectorState.disconnected());
+	private static final int DEFAULT_OPEN_WAVES = 8;
+	private final OpenWaveCache openWaves = new OpenWaveCache(DEFAULT_OPEN_WAVES);
 	private static final String MAIN_DOCUMENT_ID = "main";
-	private final String LINE = "line";
-	private final String LINE_AUTHOR = "by";
-	private final Object callingClass;
-	private final Method refreshMethod;
-	private Map<ClientWaveView, HashedVersion> lastSeenVersions = Maps.newHashMap();
+	private static final Log LOG = Log.get(WaveConnector.class);
+	private File readStateFile = null;
+	private boolean keepReadState = true;
+	private final InboxIndex inbox = new InboxIndex();
+	private final RefreshScheduler refreshScheduler;
+	private final ConnectorMetrics metrics = new ConnectorMetrics();
+	private final LatencyHistogram openWaveTime = metrics.getLatency(ConnectorMetrics.OPEN_WAVE);
+	private final LatencyHistogram getInboxTime = metrics.getLatency(ConnectorMetrics.GET_INBOX);
+	private final LatencyHistogram getWaveBodyTime = metrics.getLatency(ConnectorMetrics.GET_WAVE_BODY);
+	private final LatencyHistogram appendTime = metrics.getLatency(ConnectorMetrics.APPEND_TO_WAVE);
+	private final PendingDeltas pendingDeltas = new PendingDeltas(metrics.getLatency(ConnectorMetrics.ACKNOWLEDGE));
+	private final ListenerDispatcher listeners = new ListenerDispatcher(metrics.getLatency(ConnectorMetrics.REFRESH));
+	private final Set<WaveId> changedBodies = Sets.newLinkedHashSet();
+	private final Set<WaveId> changedParticipants = Sets.newLinkedHashSet();
+	private long notifiedInboxRevision = 0;
+	private volatile Set<WaveId> refreshedWaves = Collections.emptySet();
+	private static final long DEFAULT_REFRESH_WINDOW = 50;
+	private static final long DEFAULT_REFRESH_MAX_LATENCY = 250;
+	private static final int MAX_APPEND_BATCH = 1000;
+	private final AppendBatcher appendBatcher;
+	private final AppendQueue appendQueue;
+	private final AtomicLong linesSent = new AtomicLong();
+	private final AtomicLong appendOpsSent = new AtomicLong();
+	private final AtomicLong firstAppendAt = new AtomicLong();
+	//The version of the conversation root of each wave at the end of its latest delta sequence, with
+	//the main document then. Appends are built on these and sent against that version
+	private final Map<WaveId, AppendPoint> appendPoints = new ConcurrentHashMap<WaveId, AppendPoint>();
+	private static final int PARALLEL_READ_THRESHOLD = 256;
+	private ExecutorService readExecutor = null;
+	private final SearchIndex searchIndex = new SearchIndex();
+	private volatile WaveFuture<Integer> searchIndexBuild = WaveFuture.immediate(0);
+	private static final long SNAPSHOT_INTERVAL_SECONDS = 5;
+	//Cached inbox entries are dropped if the index wave has not confirmed them by then
+	private static final long PROVISIONAL_ENTRY_SECONDS = 60;
+	private File snapshotCacheFile = null;
+	private boolean keepSnapshotCache = true;
+	private volatile SnapshotCache snapshotCache = null;
+	private ScheduledExecutorService snapshotSaver = null;
+	//Only touched on the snapshot saver thread once connected
+	private long savedInboxRevision = 0;
+	//Inbox entries kept until the index wave confirms them, guarded by the set
+	private final Set<WaveId> provisionalEntries = Sets.newHashSet();
+	private long provisionalUntil = 0;
+	private int provisionalIndexSize = -1;
+	private static final long DEFAULT_RECONNECT_DELAY = 500;
+	private static final long DEFAULT_RECONNECT_MAX_DELAY = 30000;
+	private long reconnectDelay = DEFAULT_RECONNECT_DELAY;
+	private long reconnectMaxDelay = DEFAULT_RECONNECT_MAX_DELAY;
+	private volatile ConnectionSupervisor supervisor = null;
+	//The version of each wave seen before the connection was lost, until the new one catches up
+	private final Map<WaveId, HashedVersion> resumeVersions = new ConcurrentHashMap<WaveId, HashedVersion>();
+	
+	
+	
+	/**
+	* Constructor. Register a {@link WaveConnectorListener} with addListener to be told about changes
+	*/
+	public WaveConnector() {
+		refreshScheduler = new RefreshScheduler(new RefreshScheduler.Refresh() {
+			public void refresh(Set<WaveId> dirtyWaves) {
+				fireChanges(dirtyWaves);
+			}
+		}, DEFAULT_REFRESH_WINDOW, DEFAULT_REFRESH_MAX_LATENCY, TimeUnit.MILLISECONDS);
+		
+		appendBatcher = new AppendBatcher(new AppendBatcher.Sender() {
+			public void send(List<String> lines) {
+				sendLines(lines);
+			}
+		}, MAX_APPEND_BATCH);
+		appendQueue = new AppendQueue(new AppendQueue.Sender() {
+			public WaveFuture<Acknowledgement> send(OpenWave wave, List<String> lines) {
+				return sendLines(wave, lines);
+			}
+		});
+		
+		metrics.start();
+	}
 	
 	
 	
@@ -108,378 +218,303 @@ public class WaveConnector implements WaveletOperationListener {
 	* @param Object contaning calling method
 	*/
 	public WaveConnector(Object callingClass) throws NoSuchMethodException, SecurityException{
-		//Get the refresh method in parent
-		this.callingClass = callingClass;
-		try{
-			refreshMethod = callingClass.getClass().getMethod("refresh");
-		}catch(NoSuchMethodException e) {
-			throw new NoSuchMethodException("Class named 'refresh' in calling method was not found. " +
-			"'refresh' must be declared as a method that refreshes all variables in the user interface");
-		}catch(SecurityException e) {
-			throw new SecurityException("Class named 'refresh' in calling method was not accessible. " +
-			"'refresh' must be declared as a method that refreshes all variables in the user interface");
-		}
+		this();
+		//Refreshes already run one at a time on their own thread so call it there directly
+		addListener(new RefreshMethodListener(callingClass), ListenerDispatcher.DIRECT_EXECUTOR);
 	}
-
-
+	
+	
+	
 	/**
-	*	Initiate a connection with the server, registering the client.
+	* Register a listener to be told about changes. The listener is called on a thread of its own
+	*
+	* @param WaveConnectorListener to notify
 	*/
-	public void connect(String userAtDomain, String server, String portString) {
-		//Parse and check provided port
-		int port;
-		try {
-			port = Integer.parseInt(portString);
-		} catch (NumberFormatException e) {
-			throw new NumberFormatException("A valid port must be provided");
-		}
-		
-		//Connect to backend		
-		try {
-			backend = new ClientBackend(userAtDomain, server, port);
-		} catch (IOException e) {
-			throw new ServerNotConnectedException("Failed to connect: " + e.getMessage());
-		}
-		
-		backend.addWaveletOperationListener(this);
+	public void addListener(WaveConnectorListener listener) {
+		listeners.add(listener);
 	}
 	
 	
 	
 	/**
-	*	Create a new wave with a randomly generated id
+	* Register a listener to be told about changes, called on the given executor. For example
+	* pass an executor that uses SwingUtilities.invokeLater for a Swing user interface
+	*
+	* @param WaveConnectorListener to notify
+	* @param Executor to call the listener on
 	*/
-	public void createWave(){
-		if(isConnected()) {
-			backend.createNewWave();
-		}
-		else {
-			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
-		}
+	public void addListener(WaveConnectorListener listener, Executor executor) {
+		listeners.add(listener, executor);
 	}
 	
 	
 	
 	/**
-	*	Open a wave of a given id. The id is the index of the wave.
+	* Stop notifying a listener
 	*
-	* @param int containing the index
+	* @param WaveConnectorListener to remove
 	*/
-	public void openWave(int entry) {
-		if(isConnected()) {
-			List<IndexEntry> index = ClientUtils.getIndexEntries(backend.getIndexWave());
-			
-			//Check index is not out of bounds
-			if(entry >= index.size()) {
-				throw new IndexOutOfBoundsException("Cannot select wave " + entry + " does not exist");	
-			}
-			else {
-				openWave = backend.getWave(index.get(entry).getWaveId());
-				if (ClientUtils.getConversationRoot(openWave) == null) {
-					openWave.createWavelet(ClientUtils.getConversationRootId(openWave));
-				}
-			}
-		}
-		else {
-			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
-		}
+	public void removeListener(WaveConnectorListener listener) {
+		listeners.remove(listener);
 	}
 	
 	
 	
 	/**
-	* Close the currently wave so that no waves are open
+	* Set the file the read state of waves is kept in between runs. Must be called before connect.
+	* By default the read state is kept in the .waveclient directory of the user's home directory
+	*
+	* @param File to keep the read state in, or null to keep it in memory only
 	*/
-	public void closeOpenWave() {
-		openWave = null;
+	public void setReadStateFile(File file) {
+		readStateFile = file;
+		keepReadState = (file != null);
 	}
 	
 	
 	
 	/**
-	* Mark all waves as read
+	* Set the file the inbox and the bodies of recently open waves are cached in between runs, so
+	* they can be shown at start up before the server has sent them. Must be called before connect.
+	* By default the cache is kept in the .waveclient directory of the user's home directory. The cache
+	* holds wave text in the clear, so the file is made readable by its owner only
+	*
+	* @param File to keep the cache in, or null to keep no cache
 	*/
-	public void readAllWaves() {
-		for (IndexEntry indexEntry : ClientUtils.getIndexEntries(backend.getIndexWave())) {
-			ClientWaveView wave = backend.getWave(indexEntry.getWaveId());
-			if ((wave != null) && (ClientUtils.getConversationRoot(wave) != null)) {
-				lastSeenVersions.put(wave, wave.getWaveletVersion(ClientUtils.getConversationRootId(wave)));
-			}
-		}
+	public void setSnapshotCacheFile(File file) {
+		snapshotCacheFile = file;
+		keepSnapshotCache = (file != null);
 	}
 	
 	
 	
 	/**
-	* Append a new message to a wave
+	* Set how long to wait between attempts to connect again once the connection has been lost. The
+	* wait doubles after every failed attempt, up to the maximum. Must be called before connect
 	*
-	*@param String containing the text to be dded
+	* @param long containing the wait before the first attempt in milliseconds
+	* @param long containing the longest wait in milliseconds
 	*/
-	public void appendToWave(String text){
-		if (isConnected()) {
-			if(isWaveOpen()){
-				BufferedDocOp openDoc = ClientUtils.getConversationRoot(openWave).getDocuments().get(MAIN_DOCUMENT_ID);
-				int docSize = (openDoc == null) ? 0 : ClientUtils.findDocumentSize(openDoc);
-				DocOpBuilder docOp = new DocOpBuilder();
-				
-				if (docSize > 0) {
-					docOp.retain(docSize);
-				}
-				
-				docOp.elementStart(
-					LINE, new AttributesImpl(
-							ImmutableMap.of(LINE_AUTHOR, backend.getUserId().getAddress())));
-				docOp.elementEnd();
-				docOp.characters(text);
-				
-				backend.sendWaveletOperation(
-					ClientUtils.getConversationRoot(openWave),
-						new WaveletDocumentOperation(MAIN_DOCUMENT_ID, docOp.finish()));
-			} else {
-				throw new NoWaveOpenException("No waves are open. Cannot perform this operation while no wave is open");
-			}
-		} else {
-			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
+	public void setReconnectBackoff(long delayMillis, long maxDelayMillis) {
+		if(delayMillis <= 0 || maxDelayMillis < delayMillis) {
+			throw new IllegalArgumentException("The first wait must be positive and no longer than the longest");
 		}
+		reconnectDelay = delayMillis;
+		reconnectMaxDelay = maxDelayMillis;
 	}
 	
 	
 	
 	/**
-	*	Return the inbox. Returns the inbox in an ArrayList
+	* Set how long the server has to apply something sent before the future returned for it fails
+	* with a TimeoutException. Applies to what is sent from then on
 	*
-	* @return An ArrayList of WaveId's contaning the id/domain representation of the waves the user is participating in
+	* @param long containing the timeout in milliseconds
 	*/
-	public ArrayList<InboxElement> getInbox(){
-		if(isConnected()) {
-			updateLastSeenVersion();
-			ClientWaveView indexWave = backend.getIndexWave();
-		    List<IndexEntry> indexEntries = ClientUtils.getIndexEntries(indexWave);
-		    ArrayList<InboxElement> inboxList = new ArrayList<InboxElement>();
-		    
-		    //Dump each result in the inbox list
-		    for(int i = 0; i < indexEntries.size(); i++) {
-		    	ClientWaveView wave = backend.getWave(indexEntries.get(i).getWaveId());
-		    	if(!wave.getWaveletVersion(ClientUtils.getConversationRootId(wave)).equals(lastSeenVersions.get(wave))) {
-		    		inboxList.add(new InboxElement(wave.getWaveId().getId(), indexEntries.get(i).getDigest(), false));
-		    	} else {
-		    		inboxList.add(new InboxElement(wave.getWaveId().getId(), indexEntries.get(i).getDigest(), true));
-		    	}
-		    }
-		    return inboxList;
-			}
-		else {
-			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
-		}
+	public void setAcknowledgeTimeout(long timeoutMillis) {
+		pendingDeltas.setTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
 	}
 	
 	
 	
 	/**
-	* Return the participants of the currently open wave
+	* Set how long lines appended to a wave wait for the lines sent to it before to be acknowledged.
+	* Once it has passed they are sent anyway, so an acknowledgement that is never recognised does
+	* not hold the wave up until the acknowledge timeout
 	*
-	* @return An array of Strings containing the address' of participants partaking in the open wave
+	* @param long containing the limit in milliseconds
 	*/
-	public String[] getWaveParticipants(){
-		if(isConnected()) {
-			if(isWaveOpen()){
-				List<ParticipantId> participantList = ClientUtils.getConversationRoot(openWave).getParticipants();
-				int participantListLength = participantList.size();
-				String[] participantsAddress = new String[participantListLength];
-				
-				for(int i = 0; i < participantListLength; i++) {
-					participantsAddress[i] = participantList.get(i).getAddress();
-				}
-				
-				return participantsAddress;
-			} else {
-				//throw new NoWaveOpenException("No waves are open. Cannot perform this operation while no wave is open");
-				return new String[0];
-			}
-		}
-		else {
-			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
-		}
+	public void setAppendHoldLimit(long limitMillis) {
+		appendQueue.setHoldLimit(limitMillis, TimeUnit.MILLISECONDS);
 	}
 	
 	
 	
+	/**
+	* Return true while the connection to the server is being made again. The inbox and waves can
+	* still be read but nothing can be sent
+	*
+	* @return true from losing the connection until a new one has taken over
+	*/
+	public boolean isReconnecting() {
+		ConnectionSupervisor current = supervisor;
+		return current != null && current.isReconnecting();
+	}
+	
+	
 	
 	/**
-	* Return the wave as an ArrayList. Each Wavelet is of type {@link CWavelet}
+	* Returns the counters and latency histograms of this connector, which are also published over JMX
 	*
-	* This method works in a rather complex way...
-	* We need to store the message author + contents in a final variable as the data is within an inner class
-	* To do this we have to have a wavelet container (CWaveletContainer) that stores the data as it is added.
-	* Once all the data has been added the wavelet container places this in a wavelet {@link CWavelet}.
-	* This wavelet can be returned through the container and placed in an array
-	* Continue doing this until you have all the wavelets and return the wavelet array to the calling method 
+	* @return the {@link ConnectorMetrics}
+	*/
+	public ConnectorMetrics getMetrics() {
+		return metrics;
+	}
+	
+	
+	
+	/**
+	* Set how often a summary of the metrics is written to the log
 	*
-	* @return ArrayList of {@link CWavelet} containing the author and text of each wavelet.
+	* @param long containing the interval in seconds, 0 to stop logging
 	*/
-	public ArrayList<CWavelet> getWaveBody(){
-		if(isConnected()) {
-			if(isWaveOpen()) {
-				final ArrayList<CWavelet> waveBody = new ArrayList<CWavelet>();
-				final CWaveletContainer cWaveletContainer = new CWaveletContainer();
-				
-				for (BufferedDocOp document : ClientUtils.getConversationRoot(openWave).getDocuments().values()) {
-						
-					document.apply(new InitializationCursorAdapter(
-					new DocInitializationCursor() {
-					@Override public void characters(String s) {
-						cWaveletContainer.setText(s);//Message content
-						waveBody.add(cWaveletContainer.getWavelet());//Add to array
-					}
-					
-					@Override
-					public void elementStart(String type, Attributes attrs) {
-						if(type.equals(LINE)) {
-							if(!attrs.containsKey(LINE_AUTHOR)) {
-								throw new UnsupportedOperationException("A line must have an author. No author was supplied");
-							}
-							cWaveletContainer.setAuthor(attrs.get(LINE_AUTHOR));//Message Author
-						}
-						else {
-							throw new UnsupportedOperationException("Unsupported element type. Only lines are supported at present");
-						}          
-					}
-					
-					@Override
-					public void elementEnd() {}
-					
-					@Override public void annotationBoundary(AnnotationBoundaryMap map) {}
-					}));
-				}
-				updateLastSeenVersion();
-				return waveBody;
-			} else {
-				return new ArrayList<CWavelet>();
-			}
-		}
-		else {
-			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
-		}
+	public void setMetricsLogInterval(long seconds) {
+		metrics.setLogInterval(seconds, TimeUnit.SECONDS);
 	}
 	
 	
 	
 	/**
-	* Remove a participant from the open wave
+	* Set how changes from the server are merged into calls to "refresh". A refresh happens once no
+	* change has arrived for the window, or once a change has waited for the maximum latency.
+	* Only one refresh runs at a time.
 	*
-	* @params String contaning the participants name
-	* @throws ParticipantManagementException when the participant could not be found in the open wave
+	* @param long containing the window in milliseconds, 0 to refresh after every change
+	* @param long containing the maximum latency in milliseconds, at least as long as the window
 	*/
-	public void removeParticipant(String name) throws ParticipantManagementException{
-		if(isConnected()) {
-			if(isWaveOpen()) {
-				ParticipantId removeId = new ParticipantId(name);
-				WaveletData openWavelet = ClientUtils.getConversationRoot(openWave);
-				if (openWavelet.getParticipants().contains(removeId)) {
-					backend.sendWaveletOperation(openWavelet, new RemoveParticipant(removeId));
-				} else {
-					throw new ParticipantManagementException("The participant could not be found in the open wave.");
-				}
-			} else {
-				throw new NoWaveOpenException("No waves are open. Cannot perform this operation while no wave is open");
-			}
-		} else {
-			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
-		}
+	public void setRefreshCoalescing(long windowMillis, long maxLatencyMillis) {
+		refreshScheduler.setCoalescing(windowMillis, maxLatencyMillis, TimeUnit.MILLISECONDS);
 	}
 	
 	
 	
 	/**
-	* Add a participant to the open wave
+	* Return the waves that changed in the latest batch of notifications. Only meaningful while
+	* a listener is being notified, or after it returns.
 	*
-	* @params String contaning the participants name
-	* @throws ParticipantManagementException when the participant is already participating in the wave
+	* @return Set of {@link WaveId} changed in the latest batch
 	*/
-	public void addParticipant(String name) throws ParticipantManagementException{
-		if(isConnected()) {
-			if(isWaveOpen()) {
-				ParticipantId addId = new ParticipantId(name);
-				WaveletData openWavelet = ClientUtils.getConversationRoot(openWave);
-				if(!openWavelet.getParticipants().contains(addId)) {
-					backend.sendWaveletOperation(openWavelet, new AddParticipant(addId));
-				} else {
-					throw new ParticipantManagementException("The participant could not be added. Participant is already participating in this wave");
-				}
-			}
-			else {
-				throw new NoWaveOpenException("No waves are open. Cannot perform this operation while no wave is open");
+	public Set<WaveId> getRefreshedWaves() {
+		return refreshedWaves;
+	}
+
+
+	/**
+	*	Initiate a connection with the server, registering the client. The connection is made again
+	*	if it is lost
+	*/
+	public void connect(final String userAtDomain, final String server, String portString) {
+		//Parse and check provided port
+		final int port;
+		try {
+			port = Integer.parseInt(portString);
+		} catch (NumberFormatException e) {
+			throw new NumberFormatException("A valid port must be provided");
+		}
+		
+		//Connect to backend
+		ConnectionSupervisor.Connector connector = new ConnectionSupervisor.Connector() {
+			public WaveBackend connect() throws IOException {
+				return new ClientBackendAdapter(userAtDomain, server, port);
 			}
-		} else {
-			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
+		};
+		try {
+			connect(connector.connect(), connector);
+		} catch (IOException e) {
+			throw new ServerNotConnectedException("Failed to connect: " + e.getMessage());
 		}
 	}
 	
 	
+	
 	/**
-	* Return the ID of the currently open wave
-	* 
-	* @return string containing the ID of the open wave
+	*	Use a backend that is already connected, for example a {@link FakeWaveBackend} for testing
+	*	without a server.
+	*
+	*	@param WaveBackend to use
 	*/
-	public String getOpenWaveIdString() {
-		if(isConnected()) {
-			if(isWaveOpen()) {
-				return openWave.getWaveId().getId();
-			} else {
-				throw new NoWaveOpenException("No waves are open. Cannot perform this operation while no wave is open");
-			}
-		} else {
-			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
+	public void connect(WaveBackend waveBackend) {
+		ConnectorState previous;
+		ReadStateStore store = openReadState(waveBackend.getUserId().getAddress());
+		do {
+			previous = state.get();
+		} while(!state.compareAndSet(previous, previous.connect(waveBackend, (store == null) ? previous.getReadState() : store)));
+		if(store != null) {
+			previous.getReadState().close();
 		}
+		waveBackend.addDeltaListener(pendingDeltas);
+		waveBackend.addWaveletOperationListener(this);
+		
+		//Pick up anything the backend received before we were listening
+		syncInbox();
+		buildSearchIndex();
+		startSnapshotCache(waveBackend.getUserId().getAddress());
 	}
 	
 	
 	
 	/**
-	* Return the ID of the currently open wave
-	* 
-	* @return {@link WaveId} containing the ID and domain of the open wave
+	*	Use a backend that is already connected, and make a new one with a connector whenever the
+	*	connection is lost
+	*
+	*	@param WaveBackend to use
+	*	@param ConnectionSupervisor.Connector making a new backend connected to the same server
 	*/
-	public WaveId getOpenWaveId() {
-		if(isConnected()) {
-			if(isWaveOpen()) {
-				return openWave.getWaveId();
-			} else {
-				throw new NoWaveOpenException("No waves are open. Cannot perform this operation while no wave is open");
+	public void connect(WaveBackend waveBackend, ConnectionSupervisor.Connector connector) {
+		connect(waveBackend);
+		ConnectionSupervisor watching = new ConnectionSupervisor(connector, new ConnectionSupervisor.Listener() {
+			public void connectionLost(WaveBackend backend) {
+				LOG.warning("Lost the connection to the server, reconnecting");
+				metrics.connectionLost();
+				pendingDeltas.failAll(new ServerNotConnectedException("The connection to the server was lost before it answered"));
 			}
-		} else {
-			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
-		}
+			public void reconnectFailed(Exception cause, int attempts, long nextAttemptMillis) {
+				metrics.reconnectFailed();
+				LOG.info("Reconnect attempt " + attempts + " failed: " + cause.getMessage() + ", trying again in " + nextAttemptMillis + " ms");
+			}
+			public void reconnected(WaveBackend backend) {
+				metrics.reconnected();
+				resume(backend);
+				LOG.info("Reconnected to the server");
+			}
+		}, metrics.getLatency(ConnectorMetrics.RECONNECT), reconnectDelay, reconnectMaxDelay, TimeUnit.MILLISECONDS);
+		supervisor = watching;
+		watching.start(waveBackend);
 	}
 	
 	
 	
 	/**
-	* Return the address of the user
-	* 
-	* @return String containing the address of the user. For example tom@localhost.com
+	*	Create a new wave with a randomly generated id
 	*/
-	public String getUserId() {
-		return backend.getUserId().getAddress();
+	public void createWave(){
+		createWaveAsync();
 	}
 	
 	
 	
 	/**
-	* Removes the user from the open wave
+	*	Create a new wave with a randomly generated id. The returned future completes once the
+	*	server has created it, with the id of the new wave, so it can be opened straight away
+	*
+	* @return {@link WaveFuture} of the {@link Acknowledgement} from the server
 	*/
-	public void removeSelfFromWave() {
+	public WaveFuture<Acknowledgement> createWaveAsync() {
 		if(isConnected()) {
-			if(isWaveOpen()) {
-				try {
-					removeParticipant(getUserId());
-				} catch(ParticipantManagementException e) {
-					//This will never occur
+			checkWritable(null);
+			WaveBackend backend = state.get().getBackend();
+			final ParticipantId user = backend.getUserId();
+			ClientWaveView wave = backend.createNewWave();
+			WaveletName root = WaveletName.of(wave.getWaveId(), ClientUtils.getConversationRootId(wave));
+			Predicate<WaveletData> created = new Predicate<WaveletData>() {
+				public boolean apply(WaveletData wavelet) {
+					return wavelet.getParticipants().contains(user);
+				}
+			};
+			WaveFuture<Acknowledgement> future = pendingDeltas.expectState(root, created);
+			
+			//The server may have answered before we started waiting
+			WaveletData rootWavelet = wave.getWavelet(root.waveletId);
+			if(rootWavelet != null && created.apply(rootWavelet)) {
+				HashedVersion version = wave.getWaveletVersion(root.waveletId);
+				if(version != null && version.getVersion() > 0) {
+					future.complete(new Acknowledgement(wave.getWaveId(), version, 0));
 				}
-			} else {
-				throw new NoWaveOpenException("No waves are open. Cannot perform this operation while no wave is open");
 			}
-		} else {
+			return future;
+		}
+		else {
 			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
 		}
 	}
@@ -487,107 +522,1871 @@ public class WaveConnector implements WaveletOperationListener {
 	
 	
 	/**
-	* Return boolean if a wave is currently open or not
-	* 
-	* @return true if there is a wave open, false if there is not
+	*	Open a wave of a given id. The id is the index of the wave in the list returned by getInbox().
+	*
+	* @param int containing the index
 	*/
-	public boolean isWaveOpen() {
-		if(openWave == null) {
-			return false;
+	public void openWave(int entry) {
+		if(isConnected()) {
+			//Check index is not out of bounds
+			if(entry < 0 || entry >= inbox.size()) {
+				throw new IndexOutOfBoundsException("Cannot select wave " + entry + " does not exist");	
+			}
+			else {
+				openWave(inbox.getWaveId(entry));
+			}
 		}
 		else {
-			return true;
+			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
 		}
 	}
 	
-
+	
 	
 	/**
-	* Return boolen if client is currently connected to the server
+	*	Open a wave of a given id and make it the open wave the other methods work on. Waves opened
+	*	recently stay open in the background, with their bodies kept up to date, so switching back
+	*	to one of them costs nothing.
 	*
-	* @return true is client is connected, false if not
+	* @param {@link WaveId} of the wave to open
 	*/
-	public boolean isConnected(){
-		if(backend == null) {
-			return false;
+	public void openWave(WaveId waveId) {
+		if(isConnected()) {
+			long start = System.nanoTime();
+			ClientWaveView wave = viewOf(waveId);
+			if(wave == null) {
+				throw new IndexOutOfBoundsException("Cannot select wave " + waveId + " does not exist");
+			}
+			//Lines still waiting to be sent belong to the wave that was open when they were added
+			appendBatcher.flush();
+			if (ClientUtils.getConversationRoot(wave) == null) {
+				wave.createWavelet(ClientUtils.getConversationRootId(wave));
+			}
+			setOpenWave(openWaves.open(wave, true));
+			openWaveTime.recordSince(start);
 		}
 		else {
-			return true;
+			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
 		}
 	}
 	
 	
 	
 	/**
-	* Shuts down the connection between the client and server gracefully
+	* Close the currently wave so that no waves are open. The wave stays open in the background
+	* until it is the least recently used of more than the maximum number of open waves
 	*/
-	public void shutdown() {
-		backend.shutdown();
+	public void closeOpenWave() {
+		appendBatcher.flush();
+		setOpenWave(null);
+		openWaves.unpin();
 	}
 	
 	
 	
 	/**
-	* Overrides parent method. Unused.
+	* Close a wave opened in the background. If it is the open wave no wave is open afterwards
+	*
+	* @param {@link WaveId} of the wave to close
 	*/
-	@Override
-	public void waveletDocumentUpdated(WaveletData wavelet, WaveletDocumentOperation docOp) {
+	public void closeWave(WaveId waveId) {
+		OpenWave wave = state.get().getOpenWave();
+		if(wave != null && wave.getWaveId().equals(waveId)) {
+			closeOpenWave();
+		}
+		openWaves.remove(waveId);
 	}
 	
+	
+	
 	/**
-	* Overrides parent method. Unused.
+	* Return the waves held open, including the open wave, least recently used first
+	*
+	* @return List of {@link WaveId}
 	*/
-	@Override
-	public void participantAdded(WaveletData wavelet, ParticipantId participantId) {
+	public List<WaveId> getOpenWaveIds() {
+		return openWaves.getWaveIds();
 	}
 	
+	
+	
 	/**
-	* Overrides parent method. Called when user is removed from a wave
+	* Set how many waves are held open at once. The least recently used are closed first, the open
+	* wave never is
+	*
+	* @param int containing the maximum number of open waves, at least 1
 	*/
-	@Override
-	public void participantRemoved(WaveletData wavelet, ParticipantId participantId) {
-		if (isWaveOpen() && participantId.equals(backend.getUserId())) {
-			// We might have been removed from our open wave (an impressively verbose check...)
-			if (wavelet.getWaveletName().waveId.equals(openWave.getWaveId())) {
-				openWave = null;
+	public void setOpenWaveCacheSize(int maxWaves) {
+		openWaves.setMaxSize(maxWaves);
+	}
+	
+	
+	
+	/**
+	* Mark all waves as read
+	*
+	* @return the number of waves that were unread
+	*/
+	public int readAllWaves() {
+		return readWaves(null);
+	}
+	
+	
+	
+	/**
+	* Mark the unread waves accepted by a filter as read in one pass. Large inboxes are processed
+	* in parallel. Listeners are told about the change once, straight away
+	*
+	* @param Predicate choosing which {@link InboxElement} to mark read, null for all of them
+	* @return the number of waves that were unread
+	*/
+	public int readWaves(Predicate<InboxElement> filter) {
+		if(!isConnected()) {
+			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
+		}
+		
+		List<WaveId> unread = inbox.getUnreadWaveIds();
+		if(filter != null) {
+			List<WaveId> accepted = new ArrayList<WaveId>();
+			for(WaveId waveId : unread) {
+				InboxElement element = inbox.get(waveId);
+				if(element != null && filter.apply(element)) {
+					accepted.add(waveId);
+				}
+			}
+			unread = accepted;
+		}
+		
+		List<WaveId> read;
+		if(unread.size() < PARALLEL_READ_THRESHOLD) {
+			read = markSeen(unread);
+		} else {
+			int chunks = Runtime.getRuntime().availableProcessors() * 4;
+			int chunkSize = (unread.size() + chunks - 1) / chunks;
+			List<Callable<List<WaveId>>> tasks = new ArrayList<Callable<List<WaveId>>>();
+			for(int start = 0; start < unread.size(); start += chunkSize) {
+				final List<WaveId> chunk = unread.subList(start, Math.min(start + chunkSize, unread.size()));
+				tasks.add(new Callable<List<WaveId>>() {
+					public List<WaveId> call() {
+						return markSeen(chunk);
+					}
+				});
+			}
+			read = new ArrayList<WaveId>(unread.size());
+			try {
+				for(Future<List<WaveId>> result : getReadExecutor().invokeAll(tasks)) {
+					read.addAll(result.get());
+				}
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch(ExecutionException e) {
+				throw new IllegalStateException("Failed to mark waves read", e.getCause());
 			}
 		}
+		
+		int changed = inbox.setRead(read, true);
+		if(changed > 0) {
+			refreshScheduler.markDirtyNow(read);
+		}
+		return changed;
 	}
 	
+	
+	
 	/**
-	* Overrides parent method. Unused.
+	* Find lines in any wave in the inbox. A query is a word, a prefix ending in *, or either of
+	* these after "by:" to find lines by an author, for example "hello", "hel*" or "by:alice*".
+	* Waves are indexed in the background after connecting, see getSearchIndexBuild()
+	*
+	* @param String containing the query
+	* @param int containing the most lines to return
+	* @return List of {@link SearchHit} giving the wave and the position of each line in its body
 	*/
-	@Override
-	public void noOp(WaveletData wavelet) {
+	public List<SearchHit> search(String query, int limit) {
+		return searchIndex.search(query, limit);
 	}
 	
+	
+	
 	/**
-	* Overrides parent method. Unused.
+	* Return the index behind search(String, int), for example to report its size
+	*
+	* @return the {@link SearchIndex}
 	*/
-	@Override
-	public void onDeltaSequenceStart(WaveletData wavelet) {
+	public SearchIndex getSearchIndex() {
+		return searchIndex;
 	}
 	
+	
+	
 	/**
-	* Overrides parent method. Called when inbox or wave updates
+	* Return the indexing of the inbox started by connect. Waves changed while it runs are indexed
+	* as the changes arrive, so searches work, if incompletely, before it has finished
+	*
+	* @return {@link WaveFuture} of the number of waves indexed, completed once all are
 	*/
-	@Override
-	public void onDeltaSequenceEnd(WaveletData wavelet){
-		try{
-			refreshMethod.invoke(callingClass);
-		}catch(IllegalAccessException e) {
-			
-		}catch(InvocationTargetException e) {
-			
+	public WaveFuture<Integer> getSearchIndexBuild() {
+		return searchIndexBuild;
+	}
+	
+	
+	
+	/**
+	* Write every wave in the inbox to a channel as newline delimited JSON, see {@link WaveExporter}.
+	* Waves are written in parallel on the read pool, straight from the documents held by the
+	* backend, so the export uses the same memory however many waves there are
+	*
+	* @param WritableByteChannel to write to, which is not closed
+	* @param WaveExporter.Progress to tell about each wave written, null for none
+	* @return {@link WaveFuture} of what was written, completed once every wave is
+	*/
+	public WaveFuture<ExportStats> exportInbox(WritableByteChannel channel, WaveExporter.Progress progress) {
+		if(!isConnected()) {
+			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
 		}
+	
+		int tasks = Runtime.getRuntime().availableProcessors();
+		return new WaveExporter(state.get().getBackend()).export(inbox.getElements(), channel, progress,
+				getReadExecutor(), tasks);
 	}
 	
-	/*
-	* Updates the last time the wave was seen
+	
+	
+	/**
+	* Append a new message to a wave
+	*
+	* If append coalescing is turned on the message may be held back for a short while and sent
+	* along with other messages. See setAppendCoalescing(long).
+	*
+	*@param String containing the text to be dded
 	*/
-	private void updateLastSeenVersion() {
-		if(openWave != null) {
-				lastSeenVersions.put(openWave, openWave.getWaveletVersion(ClientUtils.getConversationRootId(openWave)));
+	public void appendToWave(String text){
+		appendLines(Collections.singletonList(text));
+	}
+	
+	
+	
+	/**
+	* Append several new messages to a wave, one line each. All the lines are sent to the server
+	* together as a single delta, after anything sent to the wave before has been applied
+	*
+	*@param List of Strings containing the text of each line, in order
+	*/
+	public void appendLines(List<String> lines){
+		if (isConnected()) {
+			if(isWaveOpen()){
+				long start = System.nanoTime();
+				if(appendBatcher.isEnabled()) {
+					appendBatcher.add(lines);
+				} else {
+					sendLines(lines);
+				}
+				appendTime.recordSince(start);
+			} else {
+				throw new NoWaveOpenException("No waves are open. Cannot perform this operation while no wave is open");
 			}
+		} else {
+			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
+		}
+	}
+	
+	
+	
+	/**
+	* Append a new message to the open wave straight away, without coalescing. The returned future
+	* completes once the server has applied it
+	*
+	* @param String containing the text to be added
+	* @return {@link WaveFuture} of the {@link Acknowledgement} from the server
+	*/
+	public WaveFuture<Acknowledgement> appendToWaveAsync(String text) {
+		return appendLinesAsync(Collections.singletonList(text));
+	}
+	
+	
+	
+	/**
+	* Append several new messages to the open wave as one delta, without coalescing. Anything still
+	* waiting to be coalesced is sent first. The returned future completes once the server has
+	* applied the lines
+	*
+	* @param List of Strings containing the text of each line, in order
+	* @return {@link WaveFuture} of the {@link Acknowledgement} from the server
+	*/
+	public WaveFuture<Acknowledgement> appendLinesAsync(List<String> lines) {
+		if(!isConnected()) {
+			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
+		}
+		OpenWave wave = state.get().getOpenWave();
+		if(wave == null) {
+			throw new NoWaveOpenException("No waves are open. Cannot perform this operation while no wave is open");
+		}
+		long start = System.nanoTime();
+		appendBatcher.flush();
+		WaveFuture<Acknowledgement> future = queueLines(wave, lines);
+		appendTime.recordSince(start);
+		return future;
+	}
+	
+	
+	
+	/**
+	* Append several new messages to any wave as one delta, opening it in the background if it
+	* is not open. The returned future completes once the server has applied the lines
+	*
+	* @param {@link WaveId} of the wave to append to
+	* @param List of Strings containing the text of each line, in order
+	* @return {@link WaveFuture} of the {@link Acknowledgement} from the server
+	*/
+	public WaveFuture<Acknowledgement> appendLinesAsync(WaveId waveId, List<String> lines) {
+		OpenWave current = state.get().getOpenWave();
+		if(current != null && current.getWaveId().equals(waveId)) {
+			return appendLinesAsync(lines);
+		}
+		long start = System.nanoTime();
+		OpenWave wave = openInBackground(waveId);
+		if(wave.getConversationRoot() == null) {
+			wave.getView().createWavelet(ClientUtils.getConversationRootId(wave.getView()));
+		}
+		WaveFuture<Acknowledgement> future = queueLines(wave, lines);
+		appendTime.recordSince(start);
+		return future;
+	}
+	
+	
+	
+	/**
+	* Append several new messages to any wave, opening it in the background if it is not open.
+	* Lines for a wave other than the open wave are sent without coalescing
+	*
+	* @param {@link WaveId} of the wave to append to
+	* @param List of Strings containing the text of each line, in order
+	*/
+	public void appendLines(WaveId waveId, List<String> lines) {
+		OpenWave current = state.get().getOpenWave();
+		if(current != null && current.getWaveId().equals(waveId)) {
+			appendLines(lines);
+			return;
+		}
+		long start = System.nanoTime();
+		OpenWave wave = openInBackground(waveId);
+		if(wave.getConversationRoot() == null) {
+			wave.getView().createWavelet(ClientUtils.getConversationRootId(wave.getView()));
+		}
+		queueLines(wave, lines);
+		appendTime.recordSince(start);
+	}
+	
+	
+	
+	/**
+	* Turn automatic coalescing of appended messages on or off. While on, messages appended within
+	* the window of the first one are sent together as a single delta. Changing the open wave
+	* sends anything still waiting first.
+	*
+	* @param long containing the window in milliseconds, 0 to send every message straight away
+	*/
+	public void setAppendCoalescing(long windowMillis) {
+		appendBatcher.setWindow(windowMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	
+	
+	/**
+	* Send any appended messages still waiting to be coalesced
+	*/
+	public void flushAppends() {
+		appendBatcher.flush();
+	}
+	
+	
+	
+	/**
+	* Return the number of lines and operations sent by appendToWave and appendLines and the rate
+	* they have been sent at
+	*
+	* @return {@link AppendStats} since the first line was sent
+	*/
+	public AppendStats getAppendStats() {
+		long first = firstAppendAt.get();
+		long elapsed = (first == 0) ? 0 : System.nanoTime() - first;
+		return new AppendStats(linesSent.get(), appendOpsSent.get(), elapsed);
+	}
+	
+	
+	
+	/**
+	*	Return the inbox. Returns the inbox in an ArrayList
+	*
+	* The inbox is kept up to date as changes arrive from the server so this only copies the
+	* current entries. Use getInboxChanges(long) to receive only what has changed.
+	*
+	* @return An ArrayList of WaveId's contaning the id/domain representation of the waves the user is participating in
+	*/
+	public ArrayList<InboxElement> getInbox(){
+		if(isConnected()) {
+			long start = System.nanoTime();
+			updateLastSeenVersion();
+			ArrayList<InboxElement> elements = inbox.getElements();
+			getInboxTime.recordSince(start);
+			return elements;
+		}
+		else {
+			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
+		}
+	}
+	
+	
+	
+	/**
+	* Return a window of the inbox, for example the rows a list is showing. Only the entries in the
+	* window are copied and their digests are only rendered when asked for, so the cost stays the
+	* same however large the inbox grows
+	*
+	* @param int containing the position of the first entry
+	* @param int containing the most entries to return
+	* @return An ArrayList of {@link InboxElement}, shorter than the limit at the end of the inbox
+	*/
+	public ArrayList<InboxElement> getInbox(int offset, int limit) {
+		if(isConnected()) {
+			long start = System.nanoTime();
+			updateLastSeenVersion();
+			ArrayList<InboxElement> elements = inbox.getElements(offset, limit);
+			getInboxTime.recordSince(start);
+			return elements;
+		}
+		else {
+			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
+		}
+	}
+	
+	
+	
+	/**
+	* Return the number of entries in the inbox
+	*
+	* @return int containing the size of the inbox
+	*/
+	public int getInboxSize() {
+		if(isConnected()) {
+			return inbox.size();
+		}
+		else {
+			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
+		}
+	}
+	
+	
+	
+	/**
+	* Return the number of waves in the inbox that have not been read. The unread waves are kept
+	* track of as changes arrive, so this costs the same however large the inbox is
+	*
+	* @return int containing the number of unread waves
+	*/
+	public int getUnreadCount() {
+		if(isConnected()) {
+			return inbox.getUnreadCount();
+		}
+		else {
+			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
+		}
+	}
+	
+	
+	
+	/**
+	* Return the waves in the inbox that have not been read, in the order they became unread
+	*
+	* @return List of {@link WaveId} of the unread waves
+	*/
+	public List<WaveId> getUnreadWaveIds() {
+		if(isConnected()) {
+			return inbox.getUnreadWaveIds();
+		}
+		else {
+			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
+		}
+	}
+	
+	
+	
+	/**
+	* Return a cursor over the inbox that fetches a page of entries at a time
+	*
+	* @param int containing the number of entries fetched at a time
+	* @return {@link InboxCursor} starting at the first entry
+	*/
+	public InboxCursor getInboxCursor(int pageSize) {
+		if(isConnected()) {
+			updateLastSeenVersion();
+			return new InboxCursor(inbox, 0, pageSize);
+		}
+		else {
+			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
+		}
+	}
+	
+	
+	
+	/**
+	* Return the current revision of the inbox. The revision increases every time an entry is
+	* added, removed or modified
+	*
+	* @return long containing the inbox revision
+	*/
+	public long getInboxRevision() {
+		if(isConnected()) {
+			return inbox.getRevision();
+		}
+		else {
+			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
+		}
+	}
+	
+	
+	
+	/**
+	* Return only what has changed in the inbox since a given revision. Keep the revision of the
+	* returned {@link InboxChanges} and pass it to the next call.
+	*
+	* For example
+	*	InboxChanges changes = conn.getInboxChanges(0);
+	*	...
+	*	changes = conn.getInboxChanges(changes.getRevision());
+	*
+	* @param long containing a revision from getInboxRevision() or a previous {@link InboxChanges}, 0 for everything
+	* @return {@link InboxChanges} listing the added, removed and modified entries
+	*/
+	public InboxChanges getInboxChanges(long sinceRevision) {
+		if(isConnected()) {
+			updateLastSeenVersion();
+			return inbox.getChangesSince(sinceRevision);
+		}
+		else {
+			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
+		}
+	}
+	
+	
+	
+	/**
+	* Return the participants of the currently open wave
+	*
+	* @return An array of Strings containing the address' of participants partaking in the open wave
+	*/
+	public String[] getWaveParticipants(){
+		if(isConnected()) {
+			OpenWave wave = state.get().getOpenWave();
+			if(wave != null){
+				return wave.getParticipants();
+			} else {
+				//throw new NoWaveOpenException("No waves are open. Cannot perform this operation while no wave is open");
+				return new String[0];
+			}
+		}
+		else {
+			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
+		}
+	}
+	
+	
+	
+	
+	/**
+	* Return the participants of the currently open wave without copying them. The list is kept
+	* until a participant is added or removed
+	*
+	* @return unmodifiable List of the addresses of the participants, empty if no wave is open
+	*/
+	public List<String> getWaveParticipantList() {
+		if(isConnected()) {
+			OpenWave wave = state.get().getOpenWave();
+			return (wave != null) ? wave.getParticipantList() : Collections.<String>emptyList();
+		}
+		else {
+			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
+		}
+	}
+	
+	
+	
+	/**
+	* Return the participants of any wave, opening it in the background if it is not open
+	*
+	* @param {@link WaveId} of the wave
+	* @return An array of Strings containing the address' of participants partaking in the wave
+	*/
+	public String[] getWaveParticipants(WaveId waveId) {
+		return openInBackground(waveId).getParticipants();
+	}
+	
+	
+	
+	/**
+	* Return the wave as an ArrayList. Each Wavelet is of type {@link CWavelet}
+	*
+	* The body of the open wave is materialized the first time this is called and then kept up to
+	* date as changes arrive from the server, so later calls only copy the current lines.
+	*
+	* @return ArrayList of {@link CWavelet} containing the author and text of each wavelet.
+	*/
+	public ArrayList<CWavelet> getWaveBody(){
+		if(isConnected()) {
+			OpenWave wave = state.get().getOpenWave();
+			if(wave != null) {
+				long start = System.nanoTime();
+				WaveLines cached = cachedLinesAhead(wave.getWaveId(), wave.getView());
+				ArrayList<CWavelet> waveBody = (cached != null)
+						? cached.toArrayList() : wave.getBody().snapshot(wave.getConversationRoot());
+				updateLastSeenVersion();
+				getWaveBodyTime.recordSince(start);
+				return waveBody;
+			} else {
+				return new ArrayList<CWavelet>();
+			}
+		}
+		else {
+			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
+		}
+	}
+	
+	
+	
+	/**
+	* Return the lines of the open wave without copying them. Cheaper than getWaveBody() for
+	* large waves, as no object is made for a line until it is read
+	*
+	* @return {@link WaveLines} of the open wave as of now, empty if no wave is open
+	*/
+	public WaveLines getWaveLines() {
+		if(isConnected()) {
+			OpenWave wave = state.get().getOpenWave();
+			if(wave != null) {
+				long start = System.nanoTime();
+				WaveLines lines = cachedLinesAhead(wave.getWaveId(), wave.getView());
+				if(lines == null) {
+					lines = wave.getBody().lines(wave.getConversationRoot());
+				}
+				updateLastSeenVersion();
+				getWaveBodyTime.recordSince(start);
+				return lines;
+			} else {
+				return WaveLines.EMPTY;
+			}
+		}
+		else {
+			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
+		}
+	}
+	
+	
+	
+	/**
+	* Hand each line of the open wave to a sink, for rendering the body on every refresh without
+	* making a {@link CWavelet} or list for it. Nothing is allocated per line
+	*
+	* @param LineSink to hand the author and text of each line to
+	* @return int containing the number of lines, 0 if no wave is open
+	*/
+	public int visitWaveBody(LineSink sink) {
+		WaveLines lines = getWaveLines();
+		lines.visit(sink);
+		return lines.size();
+	}
+	
+	
+	
+	/**
+	* Return the body of any wave, opening it in the background if it is not open. Unlike
+	* getWaveBody() this does not mark the wave as read
+	*
+	* @param {@link WaveId} of the wave
+	* @return ArrayList of {@link CWavelet} containing the author and text of each wavelet.
+	*/
+	public ArrayList<CWavelet> getWaveBody(WaveId waveId) {
+		long start = System.nanoTime();
+		if(isConnected()) {
+			WaveLines cached = cachedLinesAhead(waveId, state.get().getBackend().getWave(waveId));
+			if(cached != null) {
+				getWaveBodyTime.recordSince(start);
+				return cached.toArrayList();
+			}
+		}
+		OpenWave wave = openInBackground(waveId);
+		WaveletData root = wave.getConversationRoot();
+		ArrayList<CWavelet> waveBody = (root == null) ? new ArrayList<CWavelet>() : wave.getBody().snapshot(root);
+		getWaveBodyTime.recordSince(start);
+		return waveBody;
+	}
+	
+	
+	
+	/**
+	* Remove a participant from the open wave
+	*
+	* @params String contaning the participants name
+	* @throws ParticipantManagementException when the participant could not be found in the open wave
+	*/
+	public void removeParticipant(String name) throws ParticipantManagementException{
+		removeParticipantAsync(name);
+	}
+	
+	
+	
+	/**
+	* Remove a participant from the open wave. The returned future completes once the server has
+	* removed them
+	*
+	* @params String contaning the participants name
+	* @return {@link WaveFuture} of the {@link Acknowledgement} from the server
+	* @throws ParticipantManagementException when the participant could not be found in the open wave
+	*/
+	public WaveFuture<Acknowledgement> removeParticipantAsync(String name) throws ParticipantManagementException{
+		if(isConnected()) {
+			ConnectorState current = state.get();
+			OpenWave wave = current.getOpenWave();
+			if(wave != null) {
+				checkWritable(wave.getWaveId());
+				ParticipantId removeId = new ParticipantId(name);
+				WaveletData openWavelet = wave.getConversationRoot();
+				if (wave.hasParticipant(removeId)) {
+					WaveFuture<Acknowledgement> future = expectDelta(wave.getView(), openWavelet, current.getBackend(),
+							Collections.singletonList(PendingDeltas.participantRemoval(removeId)));
+					current.getBackend().sendWaveletOperation(openWavelet, new RemoveParticipant(removeId));
+					return future;
+				} else {
+					throw new ParticipantManagementException("The participant could not be found in the open wave.");
+				}
+			} else {
+				throw new NoWaveOpenException("No waves are open. Cannot perform this operation while no wave is open");
+			}
+		} else {
+			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
+		}
+	}
+	
+	
+	
+	/**
+	* Add a participant to the open wave
+	*
+	* @params String contaning the participants name
+	* @throws ParticipantManagementException when the participant is already participating in the wave
+	*/
+	public void addParticipant(String name) throws ParticipantManagementException{
+		addParticipantAsync(name);
+	}
+	
+	
+	
+	/**
+	* Add a participant to the open wave. The returned future completes once the server has added
+	* them
+	*
+	* @params String contaning the participants name
+	* @return {@link WaveFuture} of the {@link Acknowledgement} from the server
+	* @throws ParticipantManagementException when the participant is already participating in the wave
+	*/
+	public WaveFuture<Acknowledgement> addParticipantAsync(String name) throws ParticipantManagementException{
+		if(isConnected()) {
+			ConnectorState current = state.get();
+			OpenWave wave = current.getOpenWave();
+			if(wave != null) {
+				checkWritable(wave.getWaveId());
+				ParticipantId addId = new ParticipantId(name);
+				WaveletData openWavelet = wave.getConversationRoot();
+				if(!wave.hasParticipant(addId)) {
+					WaveFuture<Acknowledgement> future = expectDelta(wave.getView(), openWavelet, current.getBackend(),
+							Collections.singletonList(PendingDeltas.participantAddition(addId)));
+					current.getBackend().sendWaveletOperation(openWavelet, new AddParticipant(addId));
+					return future;
+				} else {
+					throw new ParticipantManagementException("The participant could not be added. Participant is already participating in this wave");
+				}
+			}
+			else {
+				throw new NoWaveOpenException("No waves are open. Cannot perform this operation while no wave is open");
+			}
+		} else {
+			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
+		}
+	}
+	
+	
+	/**
+	* Add several participants to the open wave at once. Addresses that cannot be added are
+	* reported rather than thrown, the rest are sent to the server together as one delta
+	*
+	* @param Collection of Strings containing the addresses to add
+	* @return {@link ParticipantChanges} with the outcome of each address and the acknowledgement
+	*/
+	public ParticipantChanges addParticipants(Collection<String> names) {
+		return changeParticipants(names, true);
+	}
+	
+	
+	
+	/**
+	* Remove several participants from the open wave at once. Addresses that cannot be removed are
+	* reported rather than thrown, the rest are sent to the server together as one delta
+	*
+	* @param Collection of Strings containing the addresses to remove
+	* @return {@link ParticipantChanges} with the outcome of each address and the acknowledgement
+	*/
+	public ParticipantChanges removeParticipants(Collection<String> names) {
+		return changeParticipants(names, false);
+	}
+	
+	
+	/**
+	* Return the ID of the currently open wave
+	* 
+	* @return string containing the ID of the open wave
+	*/
+	public String getOpenWaveIdString() {
+		if(isConnected()) {
+			OpenWave wave = state.get().getOpenWave();
+			if(wave != null) {
+				return wave.getWaveId().getId();
+			} else {
+				throw new NoWaveOpenException("No waves are open. Cannot perform this operation while no wave is open");
+			}
+		} else {
+			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
+		}
+	}
+	
+	
+	
+	/**
+	* Return the ID of the currently open wave
+	* 
+	* @return {@link WaveId} containing the ID and domain of the open wave
+	*/
+	public WaveId getOpenWaveId() {
+		if(isConnected()) {
+			OpenWave wave = state.get().getOpenWave();
+			if(wave != null) {
+				return wave.getWaveId();
+			} else {
+				throw new NoWaveOpenException("No waves are open. Cannot perform this operation while no wave is open");
+			}
+		} else {
+			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
+		}
+	}
+	
+	
+	
+	/**
+	* Return the address of the user
+	* 
+	* @return String containing the address of the user. For example tom@localhost.com
+	*/
+	public String getUserId() {
+		return state.get().getBackend().getUserId().getAddress();
+	}
+	
+	
+	
+	/**
+	* Removes the user from the open wave
+	*/
+	public void removeSelfFromWave() {
+		if(isConnected()) {
+			if(isWaveOpen()) {
+				try {
+					removeParticipant(getUserId());
+				} catch(ParticipantManagementException e) {
+					//This will never occur
+				}
+			} else {
+				throw new NoWaveOpenException("No waves are open. Cannot perform this operation while no wave is open");
+			}
+		} else {
+			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
+		}
+	}
+	
+	
+	
+	/**
+	* Return boolean if a wave is currently open or not
+	* 
+	* @return true if there is a wave open, false if there is not
+	*/
+	public boolean isWaveOpen() {
+		if(state.get().getOpenWave() == null) {
+			return false;
+		}
+		else {
+			return true;
+		}
+	}
+	
+
+	
+	/**
+	* Return boolen if client is currently connected to the server
+	*
+	* @return true is client is connected, false if not
+	*/
+	public boolean isConnected(){
+		if(!state.get().isConnected()) {
+			return false;
+		}
+		else {
+			return true;
+		}
+	}
+	
+	
+	
+	/**
+	* Shuts down the connection between the client and server gracefully
+	*/
+	public void shutdown() {
+		ConnectionSupervisor watching = supervisor;
+		if(watching != null) {
+			watching.shutdown();
+		}
+		appendBatcher.shutdown();
+		refreshScheduler.shutdown();
+		listeners.shutdown();
+		metrics.shutdown();
+		synchronized(this) {
+			if(readExecutor != null) {
+				readExecutor.shutdownNow();
+			}
+		}
+		stopSnapshotCache();
+		pendingDeltas.failAll(new ServerNotConnectedException("Shut down before the server answered"));
+		pendingDeltas.shutdown();
+		appendQueue.shutdown();
+		ConnectorState current = state.get();
+		if(current.isConnected()) {
+			current.getBackend().shutdown();
+		}
+		current.getReadState().close();
+	}
+	
+	
+	
+	/**
+	* Overrides parent method. Called when a document changes, keeps the body of the open wave up to date
+	*/
+	@Override
+	public void waveletDocumentUpdated(WaveletData wavelet, WaveletDocumentOperation docOp) {
+		pendingDeltas.documentUpdated(wavelet.getWaveletName(), docOp);
+		if(isResuming(wavelet)) {
+			//Sent again from the start after reconnecting, what it holds is already known
+			return;
+		}
+		if(isConversationRoot(wavelet)) {
+			searchIndex.update(wavelet, docOp);
+		}
+		OpenWave wave = openWaves.get(wavelet.getWaveletName().waveId);
+		if(wave != null && isConversationRoot(wave.getView(), wavelet)) {
+			wave.getBody().apply(docOp);
+			wave.getSizes().apply(docOp);
+		}
+		if(isConversationRoot(wavelet)) {
+			synchronized(changedBodies) {
+				changedBodies.add(wavelet.getWaveletName().waveId);
+			}
+		}
+	}
+	
+	/**
+	* Overrides parent method. Called when a participant is added to a wave. New inbox entries are
+	* picked up when the delta sequence ends and the digest is complete
+	*/
+	@Override
+	public void participantAdded(WaveletData wavelet, ParticipantId participantId) {
+		pendingDeltas.participantAdded(wavelet.getWaveletName(), participantId);
+		if(isResuming(wavelet)) {
+			return;
+		}
+		OpenWave wave = openWaves.get(wavelet.getWaveletName().waveId);
+		if(wave != null) {
+			wave.invalidateParticipants();
+		}
+		if(isConversationRoot(wavelet)) {
+			synchronized(changedParticipants) {
+				changedParticipants.add(wavelet.getWaveletName().waveId);
+			}
+		}
+	}
+	
+	/**
+	* Overrides parent method. Called when user is removed from a wave
+	*/
+	@Override
+	public void participantRemoved(WaveletData wavelet, ParticipantId participantId) {
+		pendingDeltas.participantRemoved(wavelet.getWaveletName(), participantId);
+		if(isResuming(wavelet)) {
+			return;
+		}
+		ParticipantId user = state.get().getBackend().getUserId();
+		if (participantId.equals(user) && isIndexWavelet(wavelet)) {
+			inbox.remove(indexedWaveId(wavelet));
+		}
+		OpenWave wave = openWaves.get(wavelet.getWaveletName().waveId);
+		if(wave != null) {
+			wave.invalidateParticipants();
+		}
+		if(isConversationRoot(wavelet)) {
+			synchronized(changedParticipants) {
+				changedParticipants.add(wavelet.getWaveletName().waveId);
+			}
+			if(participantId.equals(user)) {
+				searchIndex.remove(wavelet.getWaveletName().waveId);
+			}
+		}
+		
+		if (wave != null && participantId.equals(user) && isConversationRoot(wavelet)) {
+			// We have been removed from a wave we hold open. If the user has already moved on to
+			// another wave that wave stays open
+			openWaves.remove(wave.getWaveId());
+			clearOpenWave(wave);
+		}
+	}
+	
+	/**
+	* Overrides parent method. Only counted off the delta it is part of
+	*/
+	@Override
+	public void noOp(WaveletData wavelet) {
+		pendingDeltas.noOp(wavelet.getWaveletName());
+	}
+	
+	/**
+	* Overrides parent method. Unused.
+	*/
+	@Override
+	public void onDeltaSequenceStart(WaveletData wavelet) {
+	}
+	
+	/**
+	* Overrides parent method. Called when inbox or wave updates
+	*/
+	@Override
+	public void onDeltaSequenceEnd(WaveletData wavelet){
+		recordAppendPoint(wavelet);
+		acknowledge(wavelet);
+		if(isResuming(wavelet) && !resumed(wavelet)) {
+			metrics.deltaSequenceReceived();
+			return;
+		}
+		updateInbox(wavelet);
+		
+		metrics.deltaSequenceReceived();
+		metrics.setInboxSize(inbox.size());
+		metrics.setUnreadCount(inbox.getUnreadCount());
+		OpenWave wave = state.get().getOpenWave();
+		if(wave != null && isConversationRoot(wave.getView(), wavelet)) {
+			BufferedDocOp document = wavelet.getDocuments().get(MAIN_DOCUMENT_ID);
+			metrics.setOpenDocumentSize((document == null) ? 0 : wave.getSizes().getSize(MAIN_DOCUMENT_ID, document));
+		}
+		
+		if(isIndexWavelet(wavelet)) {
+			refreshScheduler.markDirty(indexedWaveId(wavelet));
+		} else {
+			refreshScheduler.markDirty(wavelet.getWaveletName().waveId);
+		}
+	}
+	
+	/*
+	* Records what the next append to a conversation root is built on, before anything waiting on
+	* the sequence is completed so an append that follows one just acknowledged is built after it.
+	* Runs on the thread applying deltas, which is the only one changing the document and its size
+	*/
+	private void recordAppendPoint(WaveletData wavelet) {
+		if(!isConversationRoot(wavelet)) {
+			return;
+		}
+		WaveletName name = wavelet.getWaveletName();
+		ClientWaveView view = state.get().getBackend().getWave(name.waveId);
+		HashedVersion version = (view == null) ? null : view.getWaveletVersion(name.waveletId);
+		if(version == null || !wavelet.getParticipants().contains(state.get().getBackend().getUserId())) {
+			appendPoints.remove(name.waveId);
+			return;
+		}
+		BufferedDocOp document = wavelet.getDocuments().get(MAIN_DOCUMENT_ID);
+		OpenWave wave = openWaves.get(name.waveId);
+		int size = (wave == null || wave.getView() != view) ? AppendPoint.UNKNOWN_SIZE
+				: wave.getSizes().getSize(MAIN_DOCUMENT_ID, document);
+		appendPoints.put(name.waveId, new AppendPoint(version, document, size));
+	}
+	
+	/*
+	* Completes the operations the delta sequence has applied. Anything still waiting on a
+	* conversation root the user has left will never be applied
+	*/
+	private void acknowledge(WaveletData wavelet) {
+		WaveletName name = wavelet.getWaveletName();
+		WaveBackend backend = state.get().getBackend();
+		ClientWaveView wave = backend.getWave(name.waveId);
+		boolean present = (wave != null && wave.getWavelet(name.waveletId) != null);
+		pendingDeltas.deltaSequenceEnd(wavelet, present ? wave.getWaveletVersion(name.waveletId) : null);
+		if(isConversationRoot(wavelet) && !wavelet.getParticipants().contains(backend.getUserId())) {
+			pendingDeltas.failAll(name, new IllegalStateException("No longer a participant of " + name.waveId));
+		}
+	}
+	
+	/*
+	* Starts waiting for a delta about to be sent on a wavelet, against the version the wavelet is at
+	* now. The backend reads the version again when sending, which can only be later
+	*/
+	private WaveFuture<Acknowledgement> expectDelta(ClientWaveView view, WaveletData wavelet, WaveBackend backend,
+			List<String> changes) {
+		HashedVersion version = view.getWaveletVersion(wavelet.getWaveletName().waveletId);
+		return pendingDeltas.expect(wavelet.getWaveletName(), backend.getUserId(),
+				(version == null) ? 0 : version.getVersion(), changes);
+	}
+	
+	/*
+	* Sends lines to the end of the main document of the open wave as one delta
+	*/
+	private void sendLines(List<String> lines) {
+		OpenWave wave = state.get().getOpenWave();
+		if(wave == null) {
+			throw new NoWaveOpenException("No waves are open. Cannot perform this operation while no wave is open");
+		}
+		queueLines(wave, lines);
+	}
+	
+	/*
+	* Sends lines to the end of the main document of a wave held open once nothing sent to it before
+	* is still waiting on the server. Returns a future completed once the server has applied them
+	*/
+	private WaveFuture<Acknowledgement> queueLines(OpenWave wave, List<String> lines) {
+		checkWritable(wave.getWaveId());
+		if(lines.isEmpty()) {
+			return WaveFuture.immediate(new Acknowledgement(wave.getWaveId(),
+					wave.getView().getWaveletVersion(ClientUtils.getConversationRootId(wave.getView())), 0));
+		}
+		return appendQueue.append(wave, lines);
+	}
+	
+	/*
+	* Sends lines to the end of the main document of a wave held open as one delta, with an operation
+	* for each batch of up to MAX_APPEND_BATCH lines. The server applies the whole delta against the
+	* version it was sent against, so each operation retains what the ones before it leave. The delta
+	* is built on the version and length of the document recorded at the end of the latest delta
+	* sequence, and sent against that version, so it never sees a document half way through a
+	* sequence. The length is tracked as changes arrive so the document does not need to be walked
+	*/
+	private WaveFuture<Acknowledgement> sendLines(OpenWave wave, List<String> lines) {
+		checkWritable(wave.getWaveId());
+		WaveletData conversationRoot = wave.getConversationRoot();
+		WaveBackend backend = state.get().getBackend();
+		String author = backend.getUserId().getAddress();
+		AppendPoint point = appendPoints.get(wave.getWaveId());
+		if(point == null) {
+			//Nothing received for the wave yet, so nothing is changing it either
+			HashedVersion version = wave.getView().getWaveletVersion(conversationRoot.getWaveletName().waveletId);
+			point = new AppendPoint(version, conversationRoot.getDocuments().get(MAIN_DOCUMENT_ID), AppendPoint.UNKNOWN_SIZE);
+		}
+		List<WaveletOperation> operations = new ArrayList<WaveletOperation>();
+		List<String> changes = new ArrayList<String>();
+		int docSize = point.getSize();
+		for(int start = 0; start < lines.size(); start += MAX_APPEND_BATCH) {
+			List<String> batch = lines.subList(start, Math.min(start + MAX_APPEND_BATCH, lines.size()));
+			WaveletDocumentOperation operation = new WaveletDocumentOperation(MAIN_DOCUMENT_ID,
+					appendOperation(docSize, author, batch));
+			operations.add(operation);
+			changes.add(PendingDeltas.documentChange(operation));
+			docSize += appendedSize(batch);
+		}
+		WaveFuture<Acknowledgement> future = pendingDeltas.expect(conversationRoot.getWaveletName(), backend.getUserId(),
+				(point.getVersion() == null) ? 0 : point.getVersion().getVersion(), changes);
+		WaveletDelta delta = new WaveletDelta(backend.getUserId(), operations);
+		if(point.getVersion() == null) {
+			backend.sendWaveletDelta(conversationRoot, delta);
+		} else {
+			backend.sendWaveletDelta(conversationRoot, delta, point.getVersion());
+		}
+		
+		firstAppendAt.compareAndSet(0, System.nanoTime());
+		linesSent.addAndGet(lines.size());
+		appendOpsSent.addAndGet(operations.size());
+		return future;
+	}
+	
+	/*
+	* Returns how many items appendOperation adds to a document for the lines
+	*/
+	static int appendedSize(List<String> lines) {
+		int size = 0;
+		for(String text : lines) {
+			size += 2 + text.length();
+		}
+		return size;
+	}
+	
+	/*
+	* Builds the operation appending lines by one author to the end of a document of the given size
+	*/
+	static BufferedDocOp appendOperation(int docSize, String author, List<String> lines) {
+		DocOpBuilder docOp = new DocOpBuilder();
+		
+		if (docSize > 0) {
+			docOp.retain(docSize);
+		}
+		
+		AttributesImpl authorAttributes = new AttributesImpl(ImmutableMap.of(WaveBody.LINE_AUTHOR, author));
+		for(String text : lines) {
+			docOp.elementStart(WaveBody.LINE, authorAttributes);
+			docOp.elementEnd();
+			if(text.length() > 0) {
+				docOp.characters(text);
+			}
+		}
+		return docOp.finish();
+	}
+	
+	/*
+	* Check each address against the participants of the open wave and send the ones that can be
+	* added, or removed, as one delta
+	*/
+	private ParticipantChanges changeParticipants(Collection<String> names, boolean add) {
+		if(!isConnected()) {
+			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
+		}
+		ConnectorState current = state.get();
+		OpenWave wave = current.getOpenWave();
+		if(wave == null) {
+			throw new NoWaveOpenException("No waves are open. Cannot perform this operation while no wave is open");
+		}
+		
+		checkWritable(wave.getWaveId());
+		Map<String, ParticipantChanges.Outcome> outcomes = Maps.newLinkedHashMap();
+		List<WaveletOperation> operations = new ArrayList<WaveletOperation>();
+		List<String> changes = new ArrayList<String>();
+		for(String name : names) {
+			if(outcomes.containsKey(name)) {
+				continue;
+			}
+			int at = name.indexOf('@');
+			if(at <= 0 || at == name.length() - 1) {
+				outcomes.put(name, ParticipantChanges.Outcome.INVALID_ADDRESS);
+				continue;
+			}
+			ParticipantId id = new ParticipantId(name);
+			if(add && wave.hasParticipant(id)) {
+				outcomes.put(name, ParticipantChanges.Outcome.ALREADY_PARTICIPANT);
+			} else if(!add && !wave.hasParticipant(id)) {
+				outcomes.put(name, ParticipantChanges.Outcome.NOT_PARTICIPANT);
+			} else {
+				outcomes.put(name, ParticipantChanges.Outcome.SENT);
+				operations.add(add ? new AddParticipant(id) : new RemoveParticipant(id));
+				changes.add(add ? PendingDeltas.participantAddition(id) : PendingDeltas.participantRemoval(id));
+			}
+		}
+		
+		if(operations.isEmpty()) {
+			return new ParticipantChanges(outcomes, WaveFuture.immediate((Acknowledgement) null));
+		}
+		WaveletData openWavelet = wave.getConversationRoot();
+		WaveBackend backend = current.getBackend();
+		WaveFuture<Acknowledgement> future = expectDelta(wave.getView(), openWavelet, backend, changes);
+		backend.sendWaveletDelta(openWavelet, new WaveletDelta(backend.getUserId(), operations));
+		return new ParticipantChanges(outcomes, future);
+	}
+	
+	/*
+	* Returns the addresses of the participants of a wavelet
+	*/
+	static String[] participantAddresses(WaveletData wavelet) {
+		List<ParticipantId> participantList = wavelet.getParticipants();
+		int participantListLength = participantList.size();
+		String[] participantsAddress = new String[participantListLength];
+		
+		for(int i = 0; i < participantListLength; i++) {
+			participantsAddress[i] = participantList.get(i).getAddress();
+		}
+		
+		return participantsAddress;
+	}
+	
+	/*
+	* Updates the last time the wave was seen
+	*/
+	private void updateLastSeenVersion() {
+		ConnectorState current = state.get();
+		OpenWave wave = current.getOpenWave();
+		if(wave != null) {
+				current.getReadState().markSeen(wave.getWaveId(), wave.getView().getWaveletVersion(ClientUtils.getConversationRootId(wave.getView())));
+				inbox.setRead(wave.getWaveId(), true);
+			}
+	}
+	
+	/*
+	* Publishes a new open wave
+	*/
+	private void setOpenWave(OpenWave wave) {
+		ConnectorState current;
+		do {
+			current = state.get();
+		} while(!state.compareAndSet(current, current.withOpenWave(wave)));
+	}
+	
+	/*
+	* Closes the open wave, but only while it is still the given wave. Returns false if another
+	* thread had already opened a different wave
+	*/
+	private boolean clearOpenWave(OpenWave expected) {
+		return replaceOpenWave(expected, null);
+	}
+	
+	/*
+	* Replaces the open wave, but only while it is still the given wave
+	*/
+	private boolean replaceOpenWave(OpenWave expected, OpenWave replacement) {
+		ConnectorState current;
+		do {
+			current = state.get();
+			if(current.getOpenWave() != expected) {
+				return false;
+			}
+		} while(!state.compareAndSet(current, current.withOpenWave(replacement)));
+		return true;
+	}
+	
+	/*
+	* Returns a wave held open, opening it in the background without making it the open wave
+	*/
+	private OpenWave openInBackground(WaveId waveId) {
+		if(!isConnected()) {
+			throw new ServerNotConnectedException("Not connected to server. Unable to perform server operations while not connected to server");
+		}
+		ClientWaveView view = viewOf(waveId);
+		if(view == null) {
+			throw new IndexOutOfBoundsException("Cannot select wave " + waveId + " does not exist");
+		}
+		return openWaves.open(view, false);
+	}
+	
+	/*
+	* Returns the view of a wave to work on. A wave held open keeps its view after reconnecting
+	* until the new connection has caught up with it
+	*/
+	private ClientWaveView viewOf(WaveId waveId) {
+		if(resumeVersions.containsKey(waveId)) {
+			OpenWave held = openWaves.get(waveId);
+			if(held != null) {
+				return held.getView();
+			}
+		}
+		return state.get().getBackend().getWave(waveId);
+	}
+	
+	/*
+	* Updates the inbox entry affected by a delta sequence. Wavelets of the index wave carry the
+	* digest of the wave they describe, any other wavelet may change the read status of its wave
+	*/
+	private void updateInbox(WaveletData wavelet) {
+		if(isIndexWavelet(wavelet)) {
+			WaveId waveId = indexedWaveId(wavelet);
+			if(state.get().getBackend().getIndexWave().getWavelet(wavelet.getWaveletName().waveletId) != null) {
+				inbox.put(waveId, digestDocuments(wavelet), isRead(waveId));
+			} else {
+				inbox.remove(waveId);
+			}
+		} else {
+			WaveId waveId = wavelet.getWaveletName().waveId;
+			OpenWave wave = state.get().getOpenWave();
+			if(wave != null && wave.getWaveId().equals(waveId)) {
+				updateLastSeenVersion();
+			} else {
+				inbox.setRead(waveId, isRead(waveId));
+			}
+		}
+	}
+	
+	/*
+	* Rebuilds the inbox from the whole index wave, dropping entries that are no longer there
+	*/
+	private void syncInbox() {
+		Set<WaveId> present = Sets.newHashSet();
+		for(WaveletData indexWavelet : state.get().getBackend().getIndexWave().getWavelets()) {
+			WaveId waveId = indexedWaveId(indexWavelet);
+			present.add(waveId);
+			inbox.put(waveId, digestDocuments(indexWavelet), isRead(waveId));
+		}
+		for(InboxElement element : inbox.getElements()) {
+			if(!present.contains(element.getWaveId())) {
+				inbox.remove(element.getWaveId());
+			}
+		}
+	}
+	
+	/*
+	* Returns the documents of an index wavelet the digest of its wave is rendered from. The
+	* documents are never changed, an update replaces them, so the digest can be rendered later
+	*/
+	private static List<BufferedDocOp> digestDocuments(WaveletData indexWavelet) {
+		return new ArrayList<BufferedDocOp>(indexWavelet.getDocuments().values());
+	}
+	
+	/*
+	* Returns true if the conversation root has not changed since it was last seen. Waves without
+	* a conversation root have nothing to read
+	*/
+	private boolean isRead(WaveId waveId) {
+		ConnectorState current = state.get();
+		ClientWaveView wave = current.getBackend().getWave(waveId);
+		HashedVersion resuming = resumeVersions.get(waveId);
+		if(resuming != null) {
+			return current.getReadState().isSeen(waveId, resuming);
+		}
+		if(wave == null || ClientUtils.getConversationRoot(wave) == null) {
+			return true;
+		}
+		return current.getReadState().isSeen(waveId, wave.getWaveletVersion(ClientUtils.getConversationRootId(wave)));
+	}
+	
+	/*
+	* Records the current version of each wave as seen. Returns the waves that have a conversation
+	* root to read, which are the ones that can now be shown as read. Safe to call from many threads
+	*/
+	private List<WaveId> markSeen(List<WaveId> waveIds) {
+		ConnectorState current = state.get();
+		List<WaveId> seen = new ArrayList<WaveId>(waveIds.size());
+		for(WaveId waveId : waveIds) {
+			HashedVersion version = resumeVersions.get(waveId);
+			if(version == null) {
+				ClientWaveView wave = current.getBackend().getWave(waveId);
+				if(wave == null || ClientUtils.getConversationRoot(wave) == null) {
+					continue;
+				}
+				version = wave.getWaveletVersion(ClientUtils.getConversationRootId(wave));
+			}
+			if(version != null) {
+				current.getReadState().markSeen(waveId, version);
+				seen.add(waveId);
+			}
+		}
+		return seen;
+	}
+	
+	/*
+	* Starts indexing the conversation roots of every wave in the inbox on the read pool
+	*/
+	private void buildSearchIndex() {
+		WaveBackend backend = state.get().getBackend();
+		List<WaveletData> roots = new ArrayList<WaveletData>();
+		for(InboxElement element : inbox.getElements()) {
+			ClientWaveView wave = backend.getWave(element.getWaveId());
+			WaveletData root = (wave == null) ? null : ClientUtils.getConversationRoot(wave);
+			if(root != null) {
+				roots.add(root);
+			}
+		}
+		searchIndexBuild = searchIndex.build(roots, getReadExecutor(), Runtime.getRuntime().availableProcessors() * 4);
+	}
+	
+	/*
+	* Returns the pool bulk reads are spread over, starting it on first use
+	*/
+	private synchronized ExecutorService getReadExecutor() {
+		if(readExecutor == null) {
+			readExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "WaveConnector read " + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return readExecutor;
+	}
+	
+	/*
+	* Opens the snapshot cache of the user, shows the inbox it holds until the index wave arrives
+	* and starts saving to it in the background
+	*/
+	private void startSnapshotCache(String userAtDomain) {
+		if(!keepSnapshotCache) {
+			return;
+		}
+		File file = snapshotCacheFile;
+		if(file == null) {
+			file = new File(new File(System.getProperty("user.home"), ".waveclient"), userAtDomain + ".snapshot");
+		}
+		SnapshotCache cache;
+		try {
+			cache = new SnapshotCache(file, AddressPool.getDefault());
+		} catch(IOException e) {
+			LOG.warning("Could not open snapshot cache " + file + ", waves will not be cached", e);
+			return;
+		}
+		
+		synchronized(provisionalEntries) {
+			for(InboxElement element : cache.getInbox()) {
+				if(!inbox.contains(element.getWaveId())) {
+					inbox.put(element.getWaveId(), element.getDigest(), element.getRead());
+					provisionalEntries.add(element.getWaveId());
+				}
+			}
+			provisionalUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(PROVISIONAL_ENTRY_SECONDS);
+		}
+		snapshotCache = cache;
+		
+		synchronized(this) {
+			snapshotSaver = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "WaveConnector snapshot cache");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			snapshotSaver.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					saveSnapshot();
+				}
+			}, SNAPSHOT_INTERVAL_SECONDS, SNAPSHOT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+		}
+	}
+	
+	/*
+	* Saves what changed one last time and closes the snapshot cache
+	*/
+	private void stopSnapshotCache() {
+		ScheduledExecutorService saver;
+		synchronized(this) {
+			saver = snapshotSaver;
+			snapshotSaver = null;
+		}
+		if(saver == null) {
+			return;
+		}
+		saver.shutdown();
+		try {
+			saver.awaitTermination(SNAPSHOT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		saveSnapshot();
+		snapshotCache.close();
+		snapshotCache = null;
+	}
+	
+	/*
+	* Runs on the snapshot saver thread. Writes the inbox entries that changed since the last save
+	* and the bodies of the waves held open
+	*/
+	private void saveSnapshot() {
+		SnapshotCache cache = snapshotCache;
+		if(cache == null || !isConnected()) {
+			return;
+		}
+		try {
+			dropProvisionalEntries(cache);
+			InboxChanges changes = inbox.getChangesSince(savedInboxRevision);
+			if(changes.isReset()) {
+				Set<WaveId> current = Sets.newHashSet();
+				for(InboxElement element : changes.getAdded()) {
+					current.add(element.getWaveId());
+				}
+				for(InboxElement element : cache.getInbox()) {
+					if(!current.contains(element.getWaveId())) {
+						cache.removeInboxEntry(element.getWaveId());
+					}
+				}
+			}
+			for(InboxElement element : changes.getAdded()) {
+				cache.putInboxEntry(element);
+			}
+			for(InboxElement element : changes.getModified()) {
+				cache.putInboxEntry(element);
+			}
+			for(WaveId waveId : changes.getRemoved()) {
+				cache.removeInboxEntry(waveId);
+			}
+			savedInboxRevision = changes.getRevision();
+			
+			for(WaveId waveId : openWaves.getWaveIds()) {
+				OpenWave wave = openWaves.get(waveId);
+				WaveletData root = (wave == null) ? null : wave.getConversationRoot();
+				if(root == null) {
+					continue;
+				}
+				try {
+					HashedVersion version = wave.getView().getWaveletVersion(root.getWaveletName().waveletId);
+					if(version != null && cachedLinesAhead(waveId, wave.getView()) == null) {
+						cache.putLines(waveId, version, wave.getBody().lines(root));
+					}
+				} catch(UnsupportedOperationException e) {
+					//A wave with more than lines in it is not cached
+				}
+			}
+			cache.flush();
+		} catch(IOException e) {
+			LOG.warning("Could not save the snapshot cache", e);
+		}
+	}
+	
+	/*
+	* Drops the inbox entries the index wave does not hold, cached ones at start up or ones from
+	* before reconnecting, once the index wave has arrived and stopped growing. Returns true once
+	* no entry is left to check
+	*/
+	private boolean dropProvisionalEntries(SnapshotCache cache) throws IOException {
+		synchronized(provisionalEntries) {
+			if(provisionalEntries.isEmpty()) {
+				return true;
+			}
+			Set<WaveId> present = Sets.newHashSet();
+			for(WaveletData indexWavelet : state.get().getBackend().getIndexWave().getWavelets()) {
+				present.add(indexedWaveId(indexWavelet));
+			}
+			boolean settled = !present.isEmpty() && present.size() == provisionalIndexSize;
+			provisionalIndexSize = present.size();
+			if(!settled && System.nanoTime() < provisionalUntil) {
+				return false;
+			}
+			for(WaveId waveId : provisionalEntries) {
+				if(!present.contains(waveId)) {
+					inbox.remove(waveId);
+					resumeVersions.remove(waveId);
+					if(cache != null) {
+						cache.removeInboxEntry(waveId);
+					}
+				}
+			}
+			provisionalEntries.clear();
+			provisionalIndexSize = -1;
+			return true;
+		}
+	}
+	
+	/*
+	* Returns the cached lines of a wave if they are of a later version than the backend has sent
+	* so far, which is the case at start up until the wave arrives. Otherwise returns null
+	*/
+	private WaveLines cachedLinesAhead(WaveId waveId, ClientWaveView view) {
+		SnapshotCache cache = snapshotCache;
+		if(cache == null) {
+			return null;
+		}
+		HashedVersion cachedVersion = cache.getVersion(waveId);
+		if(cachedVersion == null) {
+			return null;
+		}
+		long liveVersion = -1;
+		if(view != null) {
+			WaveletId rootId = ClientUtils.getConversationRootId(view);
+			if(view.getWavelet(rootId) != null) {
+				HashedVersion version = view.getWaveletVersion(rootId);
+				liveVersion = (version == null) ? -1 : version.getVersion();
+			}
+		}
+		return (cachedVersion.getVersion() > liveVersion) ? cache.getLines(waveId) : null;
+	}
+	
+	/*
+	* Runs on the reconnect thread. Moves everything onto a new backend. The version of each wave
+	* seen so far is kept so the waves the new backend sends again from the start can be matched
+	* up with what is already held, and the inbox is kept until the new index wave confirms it
+	*/
+	private void resume(WaveBackend backend) {
+		ConnectorState previous = state.get();
+		WaveBackend lost = previous.getBackend();
+		lost.removeWaveletOperationListener(this);
+		lost.removeDeltaListener(pendingDeltas);
+		List<InboxElement> entries = inbox.getElements();
+		for(InboxElement element : entries) {
+			rememberVersion(lost, element.getWaveId());
+		}
+		for(WaveId waveId : openWaves.getWaveIds()) {
+			rememberVersion(lost, waveId);
+		}
+		
+		do {
+			previous = state.get();
+		} while(!state.compareAndSet(previous, previous.connect(backend, previous.getReadState())));
+		try {
+			lost.shutdown();
+		} catch(RuntimeException e) {
+			LOG.fine("Could not shut down the lost connection", e);
+		}
+		
+		synchronized(provisionalEntries) {
+			for(InboxElement element : entries) {
+				provisionalEntries.add(element.getWaveId());
+			}
+			provisionalUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(PROVISIONAL_ENTRY_SECONDS);
+			provisionalIndexSize = -1;
+		}
+		backend.addDeltaListener(pendingDeltas);
+		backend.addWaveletOperationListener(this);
+		supervisor.schedule(new Runnable() {
+			public void run() {
+				try {
+					if(!dropProvisionalEntries(snapshotCache)) {
+						supervisor.schedule(this, 1, TimeUnit.SECONDS);
+					}
+				} catch(IOException e) {
+					LOG.warning("Could not update the snapshot cache", e);
+				}
+			}
+		}, 1, TimeUnit.SECONDS);
+	}
+	
+	/*
+	* Records the version of the conversation root of a wave as seen through a backend, unless a
+	* later one is already recorded
+	*/
+	private void rememberVersion(WaveBackend backend, WaveId waveId) {
+		ClientWaveView view = backend.getWave(waveId);
+		if(view == null || ClientUtils.getConversationRoot(view) == null) {
+			return;
+		}
+		HashedVersion version = view.getWaveletVersion(ClientUtils.getConversationRootId(view));
+		HashedVersion recorded = resumeVersions.get(waveId);
+		if(version != null && version.getVersion() > 0 && (recorded == null || version.getVersion() > recorded.getVersion())) {
+			resumeVersions.put(waveId, version);
+		}
+	}
+	
+	/*
+	* Returns true if the wavelet is the conversation root of a wave the new backend is sending again
+	* after reconnecting, and has not yet caught up with
+	*/
+	private boolean isResuming(WaveletData wavelet) {
+		return !resumeVersions.isEmpty() && resumeVersions.containsKey(wavelet.getWaveletName().waveId)
+				&& isConversationRoot(wavelet);
+	}
+	
+	/*
+	* Called at the end of each delta sequence of a wave being sent again. Once the new backend has
+	* caught up with the version seen before the connection was lost, the wave held open is moved
+	* onto the new view. At the same version nothing has changed, so the body and document sizes are
+	* kept and no one is told. Returns true if the wave changed while the connection was lost, to be
+	* handled like any other change
+	*/
+	private boolean resumed(WaveletData root) {
+		WaveId waveId = root.getWaveletName().waveId;
+		HashedVersion seen = resumeVersions.get(waveId);
+		if(seen == null) {
+			return true;
+		}
+		ClientWaveView view = state.get().getBackend().getWave(waveId);
+		HashedVersion version = (view == null) ? null : view.getWaveletVersion(root.getWaveletName().waveletId);
+		if(version == null || version.getVersion() < seen.getVersion()) {
+			return false;
+		}
+		
+		boolean unchanged = version.equals(seen);
+		OpenWave held = openWaves.get(waveId);
+		if(held != null) {
+			OpenWave moved = unchanged ? new OpenWave(view, held) : new OpenWave(view);
+			if(openWaves.replace(held, moved)) {
+				replaceOpenWave(held, moved);
+			}
+		}
+		resumeVersions.remove(waveId);
+		metrics.waveResumed(unchanged);
+		if(unchanged) {
+			return false;
+		}
+		
+		searchIndex.index(root);
+		synchronized(changedBodies) {
+			changedBodies.add(waveId);
+		}
+		synchronized(changedParticipants) {
+			changedParticipants.add(waveId);
+		}
+		return true;
+	}
+	
+	/*
+	* Refuses to send while the connection is being made again, or to a wave the new connection has
+	* not caught up with, as the server would not accept what was built on the old view
+	*/
+	private void checkWritable(WaveId waveId) {
+		if(isReconnecting()) {
+			throw new ServerNotConnectedException("The connection to the server was lost, reconnecting");
+		}
+		if(waveId != null && resumeVersions.containsKey(waveId)) {
+			throw new ServerNotConnectedException("Reconnected to the server, wave " + waveId + " has not been sent again yet");
+		}
+	}
+	
+	/*
+	* Opens the read state file for the user. Returns null if read state is kept in memory, either
+	* because no file is wanted or because it cannot be used
+	*/
+	private ReadStateStore openReadState(String userAtDomain) {
+		if(!keepReadState) {
+			return null;
+		}
+		File file = readStateFile;
+		if(file == null) {
+			file = new File(new File(System.getProperty("user.home"), ".waveclient"), userAtDomain + ".readstate");
+		}
+		try {
+			return new ReadStateStore(file);
+		} catch(IOException e) {
+			LOG.warning("Could not open read state file " + file + ", read state will not be kept", e);
+			return null;
+		}
+	}
+	
+	/*
+	* Runs on the refresh thread. Hands everything that changed since the last batch to the listeners
+	*/
+	private void fireChanges(Set<WaveId> dirtyWaves) {
+		refreshedWaves = dirtyWaves;
+		metrics.refreshed();
+		InboxChanges inboxChanges = inbox.getChangesSince(notifiedInboxRevision);
+		notifiedInboxRevision = inboxChanges.getRevision();
+		listeners.fire(inboxChanges, drain(changedBodies), drain(changedParticipants), dirtyWaves);
+	}
+	
+	/*
+	* Returns a copy of a set of changed waves and empties it
+	*/
+	private static Set<WaveId> drain(Set<WaveId> changed) {
+		synchronized(changed) {
+			Set<WaveId> copy = Collections.unmodifiableSet(Sets.newLinkedHashSet(changed));
+			changed.clear();
+			return copy;
+		}
+	}
+	
+	/*
+	* Returns true if the wavelet is the conversation root of its wave
+	*/
+	private boolean isConversationRoot(WaveletData wavelet) {
+		WaveletName name = wavelet.getWaveletName();
+		return name.waveletId.equals(ClientUtils.getConversationRootId(name.waveId));
+	}
+	
+	/*
+	* Returns true if the wavelet is the conversation root of the given wave
+	*/
+	private boolean isConversationRoot(ClientWaveView wave, WaveletData wavelet) {
+		return wavelet.getWaveletName().waveId.equals(wave.getWaveId())
+				&& wavelet.getWaveletName().waveletId.equals(ClientUtils.getConversationRootId(wave));
+	}
+	
+	/*
+	* Returns true if the wavelet belongs to the index wave
+	*/
+	private boolean isIndexWavelet(WaveletData wavelet) {
+		return wavelet.getWaveletName().waveId.equals(state.get().getBackend().getIndexWave().getWaveId());
+	}
+	
+	/*
+	* Returns the id of the wave an index wavelet describes. Index wavelets are named after their wave
+	*/
+	private WaveId indexedWaveId(WaveletData indexWavelet) {
+		return WaveId.deserialise(indexWavelet.getWaveletName().waveletId.serialise());
 	}
 }
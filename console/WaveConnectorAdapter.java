@@ -0,0 +1,45 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import org.waveprotocol.wave.model.id.WaveId;
+
+import java.util.Set;
+
+/**
+* An empty implementation of {@link WaveConnectorListener}. Override only the callbacks you need.
+*/
+public abstract class WaveConnectorAdapter implements WaveConnectorListener {
+
+	@Override
+	public void inboxChanged(InboxChanges changes) {
+	}
+
+	@Override
+	public void waveBodyChanged(WaveId waveId) {
+	}
+
+	@Override
+	public void participantsChanged(WaveId waveId) {
+	}
+
+	@Override
+	public void refreshed(Set<WaveId> changedWaves) {
+	}
+}
\ No newline at end of file
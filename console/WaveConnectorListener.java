@@ -0,0 +1,63 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import org.waveprotocol.wave.model.id.WaveId;
+
+import java.util.Set;
+
+/**
+* Receives notifications from {@link WaveConnector} when the inbox or a wave changes. Changes are
+* delivered in batches. For each batch the fine grained callbacks are called first, in the order
+* they are declared here, followed by refreshed().
+*
+* Each listener is called on the executor it was registered with, so a slow listener never holds
+* up the connection to the server or other listeners. Extend {@link WaveConnectorAdapter} to only
+* implement the callbacks you need.
+*/
+public interface WaveConnectorListener {
+
+	/**
+	* Called when entries have been added to, removed from or modified in the inbox
+	*
+	* @param InboxChanges describing what changed since the previous notification
+	*/
+	void inboxChanged(InboxChanges changes);
+
+	/**
+	* Called when the text of a wave has changed
+	*
+	* @param WaveId of the changed wave
+	*/
+	void waveBodyChanged(WaveId waveId);
+
+	/**
+	* Called when participants have been added to or removed from a wave
+	*
+	* @param WaveId of the changed wave
+	*/
+	void participantsChanged(WaveId waveId);
+
+	/**
+	* Called once at the end of every batch of changes
+	*
+	* @param Set of {@link WaveId} of every wave changed in this batch
+	*/
+	void refreshed(Set<WaveId> changedWaves);
+}
\ No newline at end of file
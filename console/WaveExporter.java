@@ -0,0 +1,424 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
+import org.waveprotocol.wave.examples.fedone.waveclient.common.ClientUtils;
+import org.waveprotocol.wave.examples.fedone.waveclient.common.ClientWaveView;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+* Writes waves and the inbox out as newline delimited JSON, one record per line. Each wave gives
+* a record of its inbox entry followed by a record for each line of its body:
+*
+*   {"type":"wave","wave":"example.com!w+abc","version":12,"read":false,"digest":"Hello"}
+*   {"type":"line","wave":"example.com!w+abc","version":12,"line":0,"author":"a@example.com","text":"Hello"}
+*
+* The version is that of the conversation root, and is left out of waves the backend has not
+* sent yet. The documents are walked by a {@link LineTraversal} and each record is encoded straight
+* into a fixed buffer that is written to the channel whenever it fills, so the memory used does not
+* depend on the number or length of the waves. No {@link WaveBody} is built.
+*
+* Waves are exported by several tasks at once, each with its own buffer. A buffer is only written
+* at the end of a record, or while holding the channel until the record ends, so records never
+* interleave. The records of a wave keep their order, but the waves can come out in any order.
+*/
+public class WaveExporter {
+
+	/**
+	* Told about each wave as it is written, on the thread that wrote it. Calls are made one at a
+	* time, so the counts only ever go up
+	*/
+	public interface Progress {
+		/**
+		* @param int containing the number of waves written so far
+		* @param int containing the number of waves being exported
+		* @param long containing the number of lines written so far
+		* @param long containing the number of bytes written so far
+		*/
+		void exported(int waves, int totalWaves, long lines, long bytes);
+	}
+
+	static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	//The longest any char can be once encoded, as an escape such as \u001f
+	private static final int MAX_CHAR_BYTES = 6;
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+	private static final byte[] WAVE_RECORD = ascii("{\"type\":\"wave\",\"wave\":");
+	private static final byte[] LINE_RECORD = ascii("{\"type\":\"line\",\"wave\":");
+	private static final byte[] VERSION = ascii(",\"version\":");
+	private static final byte[] READ = ascii(",\"read\":");
+	private static final byte[] DIGEST = ascii(",\"digest\":");
+	private static final byte[] LINE = ascii(",\"line\":");
+	private static final byte[] AUTHOR = ascii(",\"author\":");
+	private static final byte[] TEXT = ascii(",\"text\":");
+	private static final byte[] TRUE = ascii("true");
+	private static final byte[] FALSE = ascii("false");
+
+	private final WaveBackend backend;
+	private final int bufferSize;
+
+
+
+	/**
+	* Constructor for an exporter with buffers of the default size
+	*
+	* @param WaveBackend holding the waves to export
+	*/
+	public WaveExporter(WaveBackend backend) {
+		this(backend, DEFAULT_BUFFER_SIZE);
+	}
+
+
+
+	/**
+	* Constructor for an exporter with buffers of a given size
+	*
+	* @param WaveBackend holding the waves to export
+	* @param int containing the bytes each task buffers before writing to the channel
+	*/
+	public WaveExporter(WaveBackend backend, int bufferSize) {
+		if(bufferSize < 1024) {
+			throw new IllegalArgumentException("The buffer must hold at least 1024 bytes");
+		}
+		this.backend = backend;
+		this.bufferSize = bufferSize;
+	}
+
+
+
+	/**
+	* Write waves to a channel in parallel. The channel is not closed. Cancelling the returned
+	* future stops the export once the waves being written are done
+	*
+	* @param Collection of the {@link InboxElement} of each wave to export
+	* @param WritableByteChannel to write to
+	* @param Progress to tell about each wave written, null for none
+	* @param Executor to export on
+	* @param int containing the most tasks to write at once, each holding one buffer
+	* @return {@link WaveFuture} of what was written, completed once every wave is, or failed with
+	* the first IOException of the channel
+	*/
+	public WaveFuture<ExportStats> export(Collection<InboxElement> waves, WritableByteChannel channel,
+			Progress progress, Executor executor, int tasks) {
+		Export export = new Export(new ArrayList<InboxElement>(waves), channel, progress);
+		int count = Math.max(1, Math.min(tasks, export.waves.size()));
+		export.running.set(count);
+		for(int i = 0; i < count; i++) {
+			executor.execute(export);
+		}
+		return export.result;
+	}
+
+
+
+	private static byte[] ascii(String text) {
+		byte[] bytes = new byte[text.length()];
+		for(int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) text.charAt(i);
+		}
+		return bytes;
+	}
+
+	/*
+	* The state of one call to export. Each task it runs takes the next wave until none are left
+	*/
+	private class Export implements Runnable {
+		private final List<InboxElement> waves;
+		private final WritableByteChannel channel;
+		private final Progress progress;
+		private final WaveFuture<ExportStats> result = new WaveFuture<ExportStats>();
+		private final ReentrantLock channelLock = new ReentrantLock();
+		private final AtomicInteger next = new AtomicInteger();
+		private final AtomicInteger running = new AtomicInteger();
+		private final AtomicInteger written = new AtomicInteger();
+		private final AtomicLong lines = new AtomicLong();
+		private final AtomicLong bytes = new AtomicLong();
+		private final long start = System.nanoTime();
+
+		Export(List<InboxElement> waves, WritableByteChannel channel, Progress progress) {
+			this.waves = waves;
+			this.channel = channel;
+			this.progress = progress;
+		}
+
+		public void run() {
+			RecordWriter writer = new RecordWriter(this);
+			try {
+				int index;
+				while(!result.isDone() && (index = next.getAndIncrement()) < waves.size()) {
+					written(writer.writeWave(waves.get(index)), writer.buffered());
+				}
+				writer.flush();
+			} catch(ChannelException e) {
+				result.fail(e.getCause());
+			} catch(RuntimeException e) {
+				result.fail(e);
+			} finally {
+				writer.release();
+			}
+			if(running.decrementAndGet() == 0) {
+				result.complete(new ExportStats(written.get(), lines.get(), bytes.get(), System.nanoTime() - start));
+			}
+		}
+
+		//Count a wave written by a task, with the bytes it still has buffered
+		private synchronized void written(long waveLines, int buffered) {
+			int done = written.incrementAndGet();
+			long total = lines.addAndGet(waveLines);
+			if(progress != null) {
+				progress.exported(done, waves.size(), total, bytes.get() + buffered);
+			}
+		}
+	}
+
+	/*
+	* Encodes records as UTF-8 JSON into the buffer of one task. The lines of a wave are read by
+	* a {@link LineTraversal} of its documents, which hands them straight to the writer
+	*/
+	private class RecordWriter implements LineSink {
+		private final Export export;
+		private final ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+		private final LineTraversal traversal = new LineTraversal();
+		//True while the channel is held because a record did not fit in the buffer
+		private boolean holding = false;
+		//The wave being written and the number of its next line
+		private byte[] waveId;
+		private long version;
+		private long line;
+
+		RecordWriter(Export export) {
+			this.export = export;
+		}
+
+		//Write the inbox entry and lines of a wave, returning the number of lines
+		long writeWave(InboxElement element) {
+			waveId = ascii(element.getWaveId().serialise());
+			ClientWaveView wave = backend.getWave(element.getWaveId());
+			WaveletData root = (wave == null) ? null : ClientUtils.getConversationRoot(wave);
+			HashedVersion hashed = (root == null) ? null : wave.getWaveletVersion(ClientUtils.getConversationRootId(wave));
+			version = (hashed == null) ? -1 : hashed.getVersion();
+
+			put(WAVE_RECORD);
+			putQuoted(waveId);
+			putVersion();
+			put(READ);
+			put(element.getRead() ? TRUE : FALSE);
+			put(DIGEST);
+			putString(element.getDigest());
+			ensure(1);
+			buffer.put((byte) '}');
+			endRecord();
+
+			line = 0;
+			if(root != null) {
+				traversal.traverse(root, this);
+			}
+			return line;
+		}
+
+		public void line(String author, String text) {
+			put(LINE_RECORD);
+			putQuoted(waveId);
+			putVersion();
+			put(LINE);
+			putLong(line++);
+			put(AUTHOR);
+			putString(author);
+			put(TEXT);
+			putString(text);
+			ensure(1);
+			buffer.put((byte) '}');
+			endRecord();
+		}
+
+		private void putVersion() {
+			if(version >= 0) {
+				put(VERSION);
+				putLong(version);
+			}
+		}
+
+		private void put(byte[] bytes) {
+			ensure(bytes.length);
+			buffer.put(bytes);
+		}
+
+		private void putQuoted(byte[] bytes) {
+			ensure(bytes.length + 2);
+			buffer.put((byte) '"');
+			buffer.put(bytes);
+			buffer.put((byte) '"');
+		}
+
+		private void putString(String text) {
+			ensure(1);
+			buffer.put((byte) '"');
+			putChars(text);
+			ensure(1);
+			buffer.put((byte) '"');
+		}
+
+		private void putLong(long value) {
+			ensure(20);
+			if(value == 0) {
+				buffer.put((byte) '0');
+				return;
+			}
+			int end = buffer.position();
+			for(long rest = value; rest > 0; rest /= 10) {
+				end++;
+			}
+			for(int i = end - 1; value > 0; value /= 10) {
+				buffer.put(i--, (byte) ('0' + value % 10));
+			}
+			buffer.position(end);
+		}
+
+		//Encode characters as UTF-8, escaping what JSON requires and any unpaired surrogate
+		private void putChars(String text) {
+			int length = text.length();
+			for(int i = 0; i < length; i++) {
+				char c = text.charAt(i);
+				if(buffer.remaining() < MAX_CHAR_BYTES) {
+					flush(true);
+				}
+				if(c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+					buffer.put((byte) c);
+				} else if(c == '"' || c == '\\') {
+					buffer.put((byte) '\\');
+					buffer.put((byte) c);
+				} else if(c == '\n') {
+					buffer.put((byte) '\\');
+					buffer.put((byte) 'n');
+				} else if(c == '\r') {
+					buffer.put((byte) '\\');
+					buffer.put((byte) 'r');
+				} else if(c == '\t') {
+					buffer.put((byte) '\\');
+					buffer.put((byte) 't');
+				} else if(c < 0x20) {
+					putEscape(c);
+				} else if(c < 0x800) {
+					buffer.put((byte) (0xc0 | (c >> 6)));
+					buffer.put((byte) (0x80 | (c & 0x3f)));
+				} else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+					int codePoint = Character.toCodePoint(c, text.charAt(++i));
+					buffer.put((byte) (0xf0 | (codePoint >> 18)));
+					buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+					buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+					buffer.put((byte) (0x80 | (codePoint & 0x3f)));
+				} else if(Character.isSurrogate(c)) {
+					putEscape(c);
+				} else {
+					buffer.put((byte) (0xe0 | (c >> 12)));
+					buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+					buffer.put((byte) (0x80 | (c & 0x3f)));
+				}
+			}
+		}
+
+		private void putEscape(char c) {
+			buffer.put((byte) '\\');
+			buffer.put((byte) 'u');
+			buffer.put(HEX[(c >> 12) & 0xf]);
+			buffer.put(HEX[(c >> 8) & 0xf]);
+			buffer.put(HEX[(c >> 4) & 0xf]);
+			buffer.put(HEX[c & 0xf]);
+		}
+
+		private void ensure(int bytes) {
+			if(buffer.remaining() < bytes) {
+				flush(true);
+			}
+		}
+
+		//End a record, handing the channel back if it was held for it
+		private void endRecord() {
+			ensure(1);
+			buffer.put((byte) '\n');
+			if(holding) {
+				flush(false);
+			}
+		}
+
+		int buffered() {
+			return buffer.position();
+		}
+
+		//Write what is buffered at the end of a record
+		void flush() {
+			flush(false);
+		}
+
+		/*
+		* Write the buffer to the channel. In the middle of a record the channel is kept until
+		* the record ends so no other task can write into it
+		*/
+		private void flush(boolean midRecord) {
+			if(!holding) {
+				export.channelLock.lock();
+				holding = true;
+			}
+			buffer.flip();
+			try {
+				while(buffer.hasRemaining()) {
+					export.bytes.addAndGet(export.channel.write(buffer));
+				}
+			} catch(IOException e) {
+				throw new ChannelException(e);
+			} finally {
+				buffer.clear();
+				if(!midRecord) {
+					release();
+				}
+			}
+		}
+
+		//Hand the channel back if it is held
+		void release() {
+			if(holding) {
+				holding = false;
+				export.channelLock.unlock();
+			}
+		}
+	}
+
+	/*
+	* An IOException of the channel, carried out of the sink methods that cannot throw it
+	*/
+	private static class ChannelException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		ChannelException(IOException cause) {
+			super(cause);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,253 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+* The result of an operation sent to the server that is not known yet. As well as waiting for it
+* with get(), callers can register callbacks and chain further operations onto it, so several
+* operations can be in flight at once without polling.
+*
+* Callbacks and steps always run on the executor given with them. The future is completed on the
+* thread that receives updates from the server, which must never be held up.
+*/
+public class WaveFuture<V> implements Future<V> {
+
+	/**
+	* Told the outcome of a {@link WaveFuture}
+	*/
+	public interface Callback<V> {
+		void onSuccess(V result);
+		void onFailure(Throwable cause);
+	}
+
+	/**
+	* The next operation in a chain, started with the result of the one before
+	*/
+	public interface Step<V, R> {
+		WaveFuture<R> apply(V result) throws Exception;
+	}
+
+	//Runs a task on the thread that asks, for passing results along without a hop
+	private static final Executor DIRECT = new Executor() {
+		public void execute(Runnable task) {
+			task.run();
+		}
+	};
+
+	private final CountDownLatch done = new CountDownLatch(1);
+	private final List<Runnable> listeners = new ArrayList<Runnable>();
+	private boolean completed = false;
+	private V result = null;
+	private Throwable failure = null;
+	private boolean cancelled = false;
+
+
+
+	/**
+	* Returns a future that has already succeeded
+	*
+	* @param V result of the future
+	* @return the completed {@link WaveFuture}
+	*/
+	public static <V> WaveFuture<V> immediate(V result) {
+		WaveFuture<V> future = new WaveFuture<V>();
+		future.complete(result);
+		return future;
+	}
+
+
+
+	/**
+	* Succeed with a result. Has no effect if the future is already done
+	*
+	* @param V result of the operation
+	* @return true if this completed the future
+	*/
+	boolean complete(V value) {
+		return finish(value, null, false);
+	}
+
+
+
+	/**
+	* Fail with a cause. Has no effect if the future is already done
+	*
+	* @param Throwable the operation failed with
+	* @return true if this completed the future
+	*/
+	boolean fail(Throwable cause) {
+		return finish(null, cause, false);
+	}
+
+
+
+	/**
+	* Stop waiting for the result. The operation itself may still be applied by the server
+	*/
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return finish(null, new CancellationException("Cancelled"), true);
+	}
+
+
+
+	public boolean isCancelled() {
+		synchronized(listeners) {
+			return cancelled;
+		}
+	}
+
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	public V get() throws InterruptedException, ExecutionException {
+		done.await();
+		return outcome();
+	}
+
+	public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if(!done.await(timeout, unit)) {
+			throw new TimeoutException("No result after " + timeout + " " + unit);
+		}
+		return outcome();
+	}
+
+
+
+	/**
+	* Register a callback, called once the future is done. If it is already done the callback is
+	* handed to the executor straight away
+	*
+	* @param Callback to tell the outcome
+	* @param Executor to call it on
+	*/
+	public void addCallback(final Callback<? super V> callback, Executor executor) {
+		addListener(new Runnable() {
+			public void run() {
+				V value;
+				try {
+					value = outcome();
+				} catch(ExecutionException e) {
+					callback.onFailure(e.getCause());
+					return;
+				} catch(CancellationException e) {
+					callback.onFailure(e);
+					return;
+				}
+				callback.onSuccess(value);
+			}
+		}, executor);
+	}
+
+
+
+	/**
+	* Start another operation once this one succeeds. If this one fails, or the step throws, the
+	* returned future fails with the same cause
+	*
+	* @param Step starting the next operation with the result of this one
+	* @param Executor to run the step on
+	* @return {@link WaveFuture} of the operation the step starts
+	*/
+	public <R> WaveFuture<R> then(final Step<? super V, R> step, Executor executor) {
+		final WaveFuture<R> next = new WaveFuture<R>();
+		addCallback(new Callback<V>() {
+			public void onSuccess(V value) {
+				WaveFuture<R> started;
+				try {
+					started = step.apply(value);
+				} catch(Exception e) {
+					next.fail(e);
+					return;
+				}
+				started.addCallback(new Callback<R>() {
+					public void onSuccess(R value) {
+						next.complete(value);
+					}
+					public void onFailure(Throwable cause) {
+						next.fail(cause);
+					}
+				}, DIRECT);
+			}
+			public void onFailure(Throwable cause) {
+				next.fail(cause);
+			}
+		}, executor);
+		return next;
+	}
+
+
+
+	private void addListener(final Runnable listener, final Executor executor) {
+		Runnable task = new Runnable() {
+			public void run() {
+				executor.execute(listener);
+			}
+		};
+		synchronized(listeners) {
+			if(!completed) {
+				listeners.add(task);
+				return;
+			}
+		}
+		task.run();
+	}
+
+	private boolean finish(V value, Throwable cause, boolean cancel) {
+		List<Runnable> toRun;
+		synchronized(listeners) {
+			if(completed) {
+				return false;
+			}
+			completed = true;
+			result = value;
+			failure = cause;
+			cancelled = cancel;
+			toRun = new ArrayList<Runnable>(listeners);
+			listeners.clear();
+		}
+		done.countDown();
+		for(Runnable listener : toRun) {
+			listener.run();
+		}
+		return true;
+	}
+
+	private V outcome() throws ExecutionException {
+		synchronized(listeners) {
+			if(cancelled) {
+				throw (CancellationException) failure;
+			}
+			if(failure != null) {
+				throw new ExecutionException(failure);
+			}
+			return result;
+		}
+	}
+}
\ No newline at end of file
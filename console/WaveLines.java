@@ -0,0 +1,207 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.RandomAccess;
+
+/**
+* The lines of a wave at one point in time, as returned by {@link WaveConnector}.getWaveLines().
+* Lines are kept in columns, the number of the author in the {@link AddressPool} and the text, so
+* no object is held per line. A {@link CWavelet} is only made when get() is called; getAuthor(),
+* getText() and visit() read lines without making one.
+*
+* The list cannot be changed and never changes, later updates to the wave are seen by asking the
+* connector again. Unchanged lines of two such lists share the same author and text strings.
+*/
+public class WaveLines extends AbstractList<CWavelet> implements RandomAccess {
+
+	static final WaveLines EMPTY = new WaveLines(AddressPool.getDefault(), new int[0][], new String[0][], new int[0]);
+
+	private final AddressPool addresses;
+	//Per document. Only the first counts[i] entries are part of the list and they are never changed
+	private final int[][] authors;
+	private final String[][] texts;
+	private final int[] counts;
+	//Index in the list of the first line of each document
+	private final int[] starts;
+	private final int size;
+
+
+
+	/**
+	* Constructor requires the columns of every document and how many lines of each are included
+	*
+	* @param AddressPool the author numbers belong to
+	* @param int[][] containing the author number of each line of each document
+	* @param String[][] containing the text of each line of each document
+	* @param int[] containing the number of lines of each document
+	*/
+	WaveLines(AddressPool addresses, int[][] authors, String[][] texts, int[] counts) {
+		this.addresses = addresses;
+		this.authors = authors;
+		this.texts = texts;
+		this.counts = counts;
+		this.starts = new int[counts.length];
+		int total = 0;
+		for(int i = 0; i < counts.length; i++) {
+			starts[i] = total;
+			total += counts[i];
+		}
+		this.size = total;
+	}
+
+
+
+	/**
+	* Returns a line of the wave as a new {@link CWavelet}
+	*/
+	@Override
+	public CWavelet get(int index) {
+		return new CWavelet(getAuthor(index), getText(index));
+	}
+
+
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+
+
+	/**
+	* Returns the author of a line
+	*
+	* @param int containing the index of the line
+	* @return String containing the address of the author
+	*/
+	public String getAuthor(int index) {
+		int document = documentOf(index);
+		return addresses.addressOf(authors[document][index - starts[document]]);
+	}
+
+
+
+	/**
+	* Returns the text of a line
+	*
+	* @param int containing the index of the line
+	* @return String containing the text of the line
+	*/
+	public String getText(int index) {
+		int document = documentOf(index);
+		return texts[document][index - starts[document]];
+	}
+
+
+
+	/**
+	* Returns true if a line of this list is known to be the same as a line of another. Lines
+	* that were not changed between the two are, without comparing their text
+	*
+	* @param int containing the index of the line in this list
+	* @param WaveLines to compare with
+	* @param int containing the index of the line in the other list
+	* @return true if both lines have the same author and the same text string
+	*/
+	public boolean isSameLine(int index, WaveLines other, int otherIndex) {
+		int document = documentOf(index);
+		int line = index - starts[document];
+		int otherDocument = other.documentOf(otherIndex);
+		int otherLine = otherIndex - other.starts[otherDocument];
+		return texts[document][line] == other.texts[otherDocument][otherLine]
+				&& authors[document][line] == other.authors[otherDocument][otherLine]
+				&& addresses == other.addresses;
+	}
+
+
+
+	/**
+	* Hand every line to a sink in order, without making anything for them
+	*
+	* @param LineSink to hand the author and text of each line to
+	*/
+	public void visit(LineSink sink) {
+		visit(0, size, sink);
+	}
+
+
+
+	/**
+	* Hand a range of lines to a sink in order, for example the rows a list shows, without making
+	* anything for them
+	*
+	* @param int containing the index of the first line
+	* @param int containing the index after the last line
+	* @param LineSink to hand the author and text of each line to
+	*/
+	public void visit(int from, int to, LineSink sink) {
+		if(from < 0 || to > size || from > to) {
+			throw new IndexOutOfBoundsException("Lines " + from + " to " + to + " of " + size);
+		}
+		if(from == to) {
+			return;
+		}
+		int document = documentOf(from);
+		int line = from - starts[document];
+		for(int i = from; i < to; i++) {
+			while(line == counts[document]) {
+				document++;
+				line = 0;
+			}
+			sink.line(addresses.addressOf(authors[document][line]), texts[document][line]);
+			line++;
+		}
+	}
+
+
+
+	/**
+	* Copy the lines into a list of {@link CWavelet}
+	*
+	* @return ArrayList with a new {@link CWavelet} for each line
+	*/
+	public ArrayList<CWavelet> toArrayList() {
+		ArrayList<CWavelet> copy = new ArrayList<CWavelet>(size);
+		for(int i = 0; i < counts.length; i++) {
+			int[] documentAuthors = authors[i];
+			String[] documentTexts = texts[i];
+			for(int j = 0; j < counts[i]; j++) {
+				copy.add(new CWavelet(addresses.addressOf(documentAuthors[j]), documentTexts[j]));
+			}
+		}
+		return copy;
+	}
+
+
+
+	//The document holding a line. Waves almost always have a single document
+	private int documentOf(int index) {
+		if(index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index " + index + " of " + size + " lines");
+		}
+		int document = starts.length - 1;
+		while(starts[document] > index || counts[document] == 0) {
+			document--;
+		}
+		return document;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2009, Acknack Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.waveprotocol.wave.examples.fedone.waveclient.console;
+
+import javax.swing.AbstractListModel;
+
+/**
+* A list model of the lines of the open wave. Each update is compared with the previous one and
+* events are fired only for the lines in between the unchanged start and end, which for a new
+* message is just the line appended. Unchanged lines share their strings between updates so they
+* are recognised without comparing text. The text of a row is only built when the list asks for it.
+*
+* Must only be used on the Swing event dispatch thread.
+*/
+public class WaveListModel extends AbstractListModel<String> {
+
+	private static final long serialVersionUID = 1L;
+
+	private WaveLines lines = WaveLines.EMPTY;
+
+
+
+	/**
+	* Replace the lines shown, firing events for the rows that differ
+	*
+	* @param {@link WaveLines} as returned by {@link WaveConnector}.getWaveLines()
+	*/
+	public void update(WaveLines newLines) {
+		WaveLines oldLines = lines;
+		int oldSize = oldLines.size();
+		int newSize = newLines.size();
+
+		int prefix = 0;
+		int shortest = Math.min(oldSize, newSize);
+		while(prefix < shortest && oldLines.isSameLine(prefix, newLines, prefix)) {
+			prefix++;
+		}
+		int suffix = 0;
+		while(suffix < shortest - prefix
+				&& oldLines.isSameLine(oldSize - 1 - suffix, newLines, newSize - 1 - suffix)) {
+			suffix++;
+		}
+
+		lines = newLines;
+
+		//Rows prefix to oldEnd were replaced by rows prefix to newEnd
+		int oldEnd = oldSize - suffix;
+		int newEnd = newSize - suffix;
+		int changed = Math.min(oldEnd, newEnd);
+		if(changed > prefix) {
+			fireContentsChanged(this, prefix, changed - 1);
+		}
+		if(newEnd > oldEnd) {
+			fireIntervalAdded(this, oldEnd, newEnd - 1);
+		} else if(oldEnd > newEnd) {
+			fireIntervalRemoved(this, newEnd, oldEnd - 1);
+		}
+	}
+
+
+
+	/**
+	* Returns the text shown in a row
+	*/
+	@Override
+	public String getElementAt(int index) {
+		return lines.getAuthor(index) + " SAYS: " + lines.getText(index);
+	}
+
+
+
+	/**
+	* Returns the number of rows
+	*/
+	@Override
+	public int getSize() {
+		return lines.size();
+	}
+}
\ No newline at end of file
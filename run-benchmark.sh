@@ -0,0 +1,68 @@
+#!/bin/bash
+
+# This script will compile and run the WaveConnector benchmarks.
+# The console client and the benchmarks are compiled against the pre-compiled
+# client jar, no server is needed.
+#
+# usage: run-benchmark.sh [quick] [name of benchmark]
+#   quick  runs the smaller sizes only, with short warm up and measurement times
+#   name   runs only the benchmarks whose name contains it, for example getInbox
+#
+# usage: run-benchmark.sh load [waves] [lines per wave] [deltas per second] [latency ms] [seconds]
+#   runs the client against an in-memory fake backend under a steady stream of deltas
+#
+# usage: run-benchmark.sh stress [seconds] [threads of each kind]
+#   calls the client from many threads at once while deltas stream in, and checks
+#   every thread sees a consistent state. Exits non-zero if a check fails
+#
+# usage: run-benchmark.sh heap [lines] [authors]
+#   reports the heap retained by the body of a large wave against one object per line
+#
+# usage: run-benchmark.sh reconnect [waves] [lines per wave] [waves changed while down] [rounds]
+#   drops the connection to a fake backend and times how long the client takes to catch
+#   up again, checking unchanged waves are kept. Exits non-zero if a check fails
+#
+# usage: run-benchmark.sh export [waves] [lines per wave]
+#   times exporting the inbox of a fake backend as JSON, checking every line is
+#   written and what is allocated. Exits non-zero if a check fails
+#
+# usage: run-benchmark.sh acks
+#   checks that what is sent is acknowledged promptly when the fake backend answers
+#   with updates of several deltas. Exits non-zero if a check fails
+#
+# usage: run-benchmark.sh connection
+#   checks when the adapter over the reference backend takes its connection to be lost,
+#   against an RPC server on a local port. Exits non-zero if a check fails
+
+CLIENT_JAR=fedone-client-0.2.jar
+BUILD_DIR=build/benchmark
+JAVA_OPTS="-Xms2g -Xmx2g"
+
+mkdir -p $BUILD_DIR
+javac -d $BUILD_DIR -cp $CLIENT_JAR console/*.java benchmark/*.java || exit 1
+
+MAIN_CLASS=ConnectorBenchmark
+if [[ "$1" == "load" ]]; then
+  MAIN_CLASS=LoadBenchmark
+  shift
+elif [[ "$1" == "stress" ]]; then
+  MAIN_CLASS=ConcurrencyStress
+  shift
+elif [[ "$1" == "heap" ]]; then
+  MAIN_CLASS=HeapReport
+  shift
+elif [[ "$1" == "reconnect" ]]; then
+  MAIN_CLASS=ReconnectBenchmark
+  shift
+elif [[ "$1" == "export" ]]; then
+  MAIN_CLASS=ExportBenchmark
+  shift
+elif [[ "$1" == "acks" ]]; then
+  MAIN_CLASS=AcknowledgementCheck
+  shift
+elif [[ "$1" == "connection" ]]; then
+  MAIN_CLASS=ConnectionCheck
+  shift
+fi
+java $JAVA_OPTS -cp $BUILD_DIR:$CLIENT_JAR \
+  org.waveprotocol.wave.examples.fedone.waveclient.console.$MAIN_CLASS "$@"